@@ -2,67 +2,175 @@ package com.aitravel.planner.auth;
 
 import com.aitravel.planner.model.User;
 import com.aitravel.planner.repo.UserRepository;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/auth")
 @CrossOrigin(origins = "*", allowCredentials = "false")
 public class AuthController {
+    private static final Logger log = LoggerFactory.getLogger(AuthController.class);
+
     private final UserRepository users;
-    private final PasswordEncoder encoder;
+    private final PasswordHasher hasher;
+    private final LoginAttemptLimiter limiter;
+    private final EmailExistenceFilter emails;
     private final JwtService jwt;
 
-    public AuthController(UserRepository users, PasswordEncoder encoder, JwtService jwt) {
+    public AuthController(UserRepository users, PasswordHasher hasher, LoginAttemptLimiter limiter,
+                          EmailExistenceFilter emails, JwtService jwt) {
         this.users = users;
-        this.encoder = encoder;
+        this.hasher = hasher;
+        this.limiter = limiter;
+        this.emails = emails;
         this.jwt = jwt;
     }
 
+    private Optional<JwtUser> currentUser() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null || !(auth.getPrincipal() instanceof JwtUser)) return Optional.empty();
+        return Optional.of((JwtUser) auth.getPrincipal());
+    }
+
     // Read-only endpoint for diagnosing login issues: check if email exists
+    // 注册页逐字输入时高频调用：绝大多数邮箱未注册，由过滤器直接判定，仅“可能存在”时查库
     @GetMapping("/exists")
     public ResponseEntity<?> exists(@RequestParam("email") String email) {
         if (email == null || email.isBlank()) {
             return ResponseEntity.badRequest().body(Map.of("error", "邮箱不能为空"));
         }
-        boolean exists = users.existsByEmail(email);
+        boolean exists = emails.exists(email);
         return ResponseEntity.ok(Map.of("exists", exists));
     }
 
     @PostMapping("/register")
-    public ResponseEntity<?> register(@RequestBody RegisterRequest req) {
+    public CompletableFuture<ResponseEntity<?>> register(@RequestBody RegisterRequest req, HttpServletRequest http) {
         if (req.email() == null || req.password() == null || req.email().isBlank() || req.password().isBlank()) {
-            return ResponseEntity.badRequest().body(Map.of("error", "邮箱和密码不能为空"));
+            return done(ResponseEntity.badRequest().body(Map.of("error", "邮箱和密码不能为空")));
         }
-        if (users.existsByEmail(req.email())) {
-            return ResponseEntity.status(409).body(Map.of("error", "邮箱已被注册"));
+        long wait = limiter.acquireIp(http.getRemoteAddr());
+        if (wait > 0) return done(tooMany(wait));
+        if (emails.exists(req.email())) {
+            return done(ResponseEntity.status(409).body(Map.of("error", "邮箱已被注册")));
         }
-        User u = new User();
-        u.setEmail(req.email());
-        u.setPasswordHash(encoder.encode(req.password()));
-        users.save(u);
-        String token = jwt.issueToken(u.getId(), u.getEmail(), Map.of("type", "access"));
-        return ResponseEntity.ok(new AuthResponse(token));
+        return hasher.encode(req.password()).<ResponseEntity<?>>thenApply(hash -> {
+            User u = new User();
+            u.setEmail(req.email());
+            u.setPasswordHash(hash);
+            users.save(u);
+            emails.add(u.getEmail());
+            String token = jwt.issueToken(u.getId(), u.getEmail(), Map.of("type", "access"));
+            return ResponseEntity.ok(new AuthResponse(token));
+        }).exceptionally(AuthController::busy);
     }
 
+    // 先过限流再哈希：被限制的请求不消耗 BCrypt；哈希在专用线程池执行，Tomcat 线程不等待
     @PostMapping("/login")
-    public ResponseEntity<?> login(@RequestBody AuthRequest req) {
+    public CompletableFuture<ResponseEntity<?>> login(@RequestBody AuthRequest req, HttpServletRequest http) {
+        long wait = limiter.acquireIp(http.getRemoteAddr());
+        if (wait > 0) return done(tooMany(wait));
+        if (req.email() == null || req.password() == null) {
+            return done(ResponseEntity.status(401).body(Map.of("error", "邮箱或密码错误")));
+        }
+        wait = limiter.accountLockedFor(req.email());
+        if (wait > 0) return done(tooMany(wait));
         var uopt = users.findByEmail(req.email());
         if (uopt.isEmpty()) {
-            return ResponseEntity.status(401).body(Map.of("error", "邮箱或密码错误"));
+            limiter.recordFailure(req.email());
+            return done(ResponseEntity.status(401).body(Map.of("error", "邮箱或密码错误")));
         }
         var u = uopt.get();
-        if (!encoder.matches(req.password(), u.getPasswordHash())) {
-            return ResponseEntity.status(401).body(Map.of("error", "邮箱或密码错误"));
+        String stored = u.getPasswordHash();
+        return hasher.matches(req.password(), stored).<ResponseEntity<?>>thenApply(ok -> {
+            if (!ok) {
+                limiter.recordFailure(req.email());
+                return ResponseEntity.status(401).body(Map.of("error", "邮箱或密码错误"));
+            }
+            limiter.recordSuccess(req.email());
+            // 存量哈希 cost 低于当前配置时，趁持有明文密码在后台重算（队列满时跳过，下次登录再试）
+            if (hasher.needsUpgrade(stored)) {
+                hasher.encode(req.password()).thenAccept(next -> {
+                    if (users.replacePasswordHash(u.getId(), stored, next) > 0) hasher.recordUpgrade();
+                });
+            }
+            String token = jwt.issueToken(u.getId(), u.getEmail(), Map.of("type", "access"));
+            return ResponseEntity.ok(new AuthResponse(token));
+        }).exceptionally(AuthController::busy);
+    }
+
+    // 登出：吊销当前令牌，经 Redis 广播后所有节点立即拒绝该令牌
+    @PostMapping("/logout")
+    public ResponseEntity<?> logout(@RequestHeader(value = "Authorization", required = false) String authorization) {
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            return ResponseEntity.status(401).body(Map.of("error", "未认证"));
+        }
+        if (!jwt.revoke(authorization.substring(7))) {
+            // 缺少 jti 的令牌无法单独吊销，明确拒绝而不是返回成功
+            return ResponseEntity.badRequest().body(Map.of("error", "该令牌不支持登出，请重新登录获取新令牌"));
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    // 修改密码：此前签发的全部令牌失效，返回新令牌
+    @PostMapping("/password")
+    public CompletableFuture<ResponseEntity<?>> changePassword(@RequestBody ChangePasswordRequest req) {
+        var cu = currentUser();
+        if (cu.isEmpty()) return done(ResponseEntity.status(401).body(Map.of("error", "未认证")));
+        if (req.oldPassword() == null || req.newPassword() == null || req.newPassword().isBlank()) {
+            return done(ResponseEntity.badRequest().body(Map.of("error", "原密码和新密码不能为空")));
+        }
+        var uopt = users.findById(cu.get().getId());
+        if (uopt.isEmpty()) return done(ResponseEntity.status(401).body(Map.of("error", "未认证")));
+        var u = uopt.get();
+        return hasher.matches(req.oldPassword(), u.getPasswordHash()).<ResponseEntity<?>>thenCompose(ok -> {
+            if (!ok) return done(ResponseEntity.status(403).body(Map.of("error", "原密码错误")));
+            return hasher.encode(req.newPassword()).<ResponseEntity<?>>thenApply(hash -> {
+                u.setPasswordHash(hash);
+                users.save(u);
+                jwt.revokeAll(u.getId());
+                String token = jwt.issueToken(u.getId(), u.getEmail(), Map.of("type", "access"));
+                return ResponseEntity.ok(new AuthResponse(token));
+            });
+        }).exceptionally(AuthController::busy);
+    }
+
+    private static CompletableFuture<ResponseEntity<?>> done(ResponseEntity<?> body) {
+        return CompletableFuture.completedFuture(body);
+    }
+
+    private static ResponseEntity<?> tooMany(long retryAfterSeconds) {
+        return ResponseEntity.status(429).header("Retry-After", String.valueOf(retryAfterSeconds))
+                .body(Map.of("error", "尝试过于频繁，请稍后再试"));
+    }
+
+    // 哈希队列已满时返回 503；并发注册同一邮箱（或过滤器尚未收到其他节点的注册广播）由唯一约束拦下，返回 409；
+    // 其余按 500 处理，异常只记日志，不把内部信息返回给客户端
+    private static ResponseEntity<?> busy(Throwable ex) {
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        if (cause instanceof DataIntegrityViolationException) {
+            return ResponseEntity.status(409).body(Map.of("error", "邮箱已被注册"));
+        }
+        if (cause instanceof RejectedExecutionException) {
+            return ResponseEntity.status(503).header("Retry-After", "1").body(Map.of("error", "服务繁忙，请稍后重试"));
         }
-        String token = jwt.issueToken(u.getId(), u.getEmail(), Map.of("type", "access"));
-        return ResponseEntity.ok(new AuthResponse(token));
+        log.error("认证请求处理失败", cause);
+        return ResponseEntity.status(500).body(Map.of("status", 500, "error", "服务器内部错误，请稍后重试"));
     }
 }
 
 record AuthRequest(String email, String password) {}
 record RegisterRequest(String email, String password) {}
 record AuthResponse(String accessToken) {}
+record ChangePasswordRequest(String oldPassword, String newPassword) {}
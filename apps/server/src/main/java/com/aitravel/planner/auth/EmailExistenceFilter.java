@@ -0,0 +1,228 @@
+package com.aitravel.planner.auth;
+
+import com.aitravel.planner.repo.UserRepository;
+import com.aitravel.planner.util.BloomFilter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 已注册邮箱的布隆过滤器：注册页逐字输入触发的存在性检查，过滤器判定不存在时直接返回，
+ * 只有“可能存在”才回源 users 表。
+ * - 启动时在后台按邮箱键集分页全量构建，构建完成前全部回源数据库；
+ * - 注册成功（事务提交后）写入本地过滤器，并把邮箱哈希经 Redis 频道广播给其他节点（不传邮箱原文）；
+ * - 定期重建以修正漏收的广播与已删除用户造成的误判，重建期间的新增同时写入新旧两个过滤器。
+ * 过滤器只会误报“存在”（回源纠正），不会漏报已在本地登记的邮箱；注册最终仍以唯一约束兜底。
+ */
+@Service
+public class EmailExistenceFilter implements MessageListener {
+    private static final Logger log = LoggerFactory.getLogger(EmailExistenceFilter.class);
+
+    private static final String CHANNEL = "users:registered";
+    private static final int PAGE = 5000;
+
+    private final UserRepository users;
+    private final ObjectProvider<StringRedisTemplate> redisProvider;
+    private final ObjectProvider<RedisConnectionFactory> connections;
+
+    @Value("${app.auth.email-filter.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.auth.email-filter.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${app.auth.email-filter.fpp:0.01}")
+    private double fpp;
+
+    @Value("${app.auth.email-filter.rebuild-minutes:360}")
+    private long rebuildMinutes;
+
+    @Value("${app.auth.email-filter.redis-enabled:true}")
+    private boolean redisEnabled;
+
+    // 构建完成前为 null（一律回源）；重建期间 building 非空，新增同时写入
+    private volatile BloomFilter current;
+    private volatile BloomFilter building;
+    private volatile long builtAt;
+    private volatile long buildMillis;
+    private final AtomicLong entries = new AtomicLong();
+
+    private final AtomicLong negatives = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    private ScheduledExecutorService worker;
+    private RedisMessageListenerContainer listener;
+    private volatile long redisDownUntil;
+
+    public EmailExistenceFilter(UserRepository users,
+                                ObjectProvider<StringRedisTemplate> redisProvider,
+                                ObjectProvider<RedisConnectionFactory> connections) {
+        this.users = users;
+        this.redisProvider = redisProvider;
+        this.connections = connections;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) return;
+        // 先订阅再构建：构建期间其他节点的注册经广播写入 building，不会遗漏
+        subscribe();
+        worker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "email-filter");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, rebuildMinutes);
+        worker.scheduleWithFixedDelay(this::rebuildSafely, 0, period, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (worker != null) worker.shutdownNow();
+        if (listener != null) {
+            try {
+                listener.destroy();
+            } catch (Exception ignored) {}
+        }
+    }
+
+    /** 邮箱是否已注册：过滤器判定不存在时直接返回 false，否则回源数据库。 */
+    public boolean exists(String email) {
+        BloomFilter f = current;
+        if (f != null && !f.mightContainHash(BloomFilter.hash(email))) {
+            negatives.incrementAndGet();
+            return false;
+        }
+        lookups.incrementAndGet();
+        boolean found = users.existsByEmail(email);
+        if (!found && f != null) falsePositives.incrementAndGet();
+        return found;
+    }
+
+    /** 注册成功后调用（用户行已提交）。 */
+    public void add(String email) {
+        if (!enabled) return;
+        long h = BloomFilter.hash(email);
+        putLocal(h);
+        StringRedisTemplate redis = redis();
+        if (redis == null) return;
+        try {
+            redis.convertAndSend(CHANNEL, Long.toHexString(h));
+        } catch (Exception e) {
+            markDown(e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            putLocal(Long.parseUnsignedLong(new String(message.getBody(), StandardCharsets.UTF_8), 16));
+        } catch (NumberFormatException ignored) {}
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        BloomFilter f = current;
+        m.put("enabled", enabled);
+        m.put("ready", f != null);
+        m.put("entries", entries.get());
+        if (f != null) {
+            m.put("bits", f.bitCount());
+            m.put("hashes", f.hashCount());
+            m.put("fillRatio", Math.round(f.fillRatio() * 10_000) / 10_000.0);
+            m.put("builtAt", builtAt);
+            m.put("buildMillis", buildMillis);
+        }
+        m.put("negatives", negatives.get());
+        m.put("lookups", lookups.get());
+        m.put("falsePositives", falsePositives.get());
+        m.put("redis", listener != null);
+        return m;
+    }
+
+    private void putLocal(long h) {
+        BloomFilter f = current;
+        if (f != null) f.putHash(h);
+        BloomFilter b = building;
+        if (b != null) b.putHash(h);
+        entries.incrementAndGet();
+    }
+
+    private void rebuildSafely() {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            building = null;
+            log.warn("构建邮箱过滤器失败，存在性检查暂时全部回源数据库: {}", e.toString());
+        }
+    }
+
+    private void rebuild() {
+        long t0 = System.currentTimeMillis();
+        long count = users.count();
+        // 预留一倍增长空间，下次重建前的注册不会明显抬高误判率
+        BloomFilter next = BloomFilter.create(Math.max(expectedInsertions, count * 2), fpp);
+        building = next;
+        long n = 0;
+        String after = "";
+        while (true) {
+            List<String> page = users.findEmailsAfter(after, PageRequest.of(0, PAGE));
+            for (String email : page) next.putHash(BloomFilter.hash(email));
+            n += page.size();
+            if (page.size() < PAGE) break;
+            after = page.get(page.size() - 1);
+        }
+        current = next;
+        building = null;
+        entries.set(n);
+        builtAt = System.currentTimeMillis();
+        buildMillis = builtAt - t0;
+        log.info("邮箱过滤器已构建: {} 个邮箱, {} 位, 用时 {} ms", n, next.bitCount(), buildMillis);
+    }
+
+    private void subscribe() {
+        RedisConnectionFactory cf = connections.getIfAvailable();
+        if (!redisEnabled || cf == null) return;
+        try {
+            listener = new RedisMessageListenerContainer();
+            listener.setConnectionFactory(cf);
+            listener.addMessageListener(this, new ChannelTopic(CHANNEL));
+            listener.afterPropertiesSet();
+            listener.start();
+        } catch (Exception e) {
+            listener = null;
+            log.warn("订阅注册广播失败，其他节点的新注册在下次重建前需回源确认: {}", e.toString());
+        }
+    }
+
+    private StringRedisTemplate redis() {
+        if (!redisEnabled || System.currentTimeMillis() < redisDownUntil) return null;
+        return redisProvider.getIfAvailable();
+    }
+
+    private void markDown(Exception e) {
+        if (System.currentTimeMillis() >= redisDownUntil) log.warn("访问 Redis 失败，30 秒内注册仅在本节点过滤器生效: {}", e.toString());
+        redisDownUntil = System.currentTimeMillis() + 30_000;
+    }
+}
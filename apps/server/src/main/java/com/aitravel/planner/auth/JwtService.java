@@ -1,6 +1,7 @@
 package com.aitravel.planner.auth;
 
 import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.security.Keys;
@@ -8,49 +9,124 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
+import java.util.Base64;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Optional;
 
+/**
+ * 令牌签发与校验。解析器线程安全，构造时创建一次复用；
+ * 验签通过的令牌按 SHA-256 摘要缓存（不保留令牌原文），命中时只检查 exp 与本地吊销表。
+ */
 @Service
 public class JwtService {
+    // 签发时刻（毫秒），用于与用户级吊销时刻精确比较；标准 iat 只有秒级
+    private static final String ISSUED_AT_MS = "ims";
+
     private final SecretKey key;
     private final long expiresMinutes;
+    private final JwtParser parser;
+    private final TokenRevocationService revocations;
+
+    @Value("${security.jwt.cache.max-entries:10000}")
+    private int maxEntries;
+
+    private final Map<String, ParsedToken> verified = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ParsedToken> eldest) {
+            return size() > maxEntries;
+        }
+    };
 
     public JwtService(
             @Value("${security.jwt.secret}") String secret,
-            @Value("${security.jwt.expiresMinutes}") long expiresMinutes
+            @Value("${security.jwt.expiresMinutes}") long expiresMinutes,
+            TokenRevocationService revocations
     ) {
         this.key = Keys.hmacShaKeyFor(secret.getBytes());
         this.expiresMinutes = expiresMinutes;
+        this.parser = Jwts.parserBuilder().setSigningKey(key).build();
+        this.revocations = revocations;
     }
 
     public String issueToken(UUID userId, String email, Map<String, Object> claims) {
         Instant now = Instant.now();
         Instant exp = now.plusSeconds(expiresMinutes * 60);
         return Jwts.builder()
+                .setId(UUID.randomUUID().toString())
                 .setSubject(userId.toString())
                 .setIssuedAt(Date.from(now))
                 .setExpiration(Date.from(exp))
                 .addClaims(claims)
                 .claim("email", email)
+                .claim(ISSUED_AT_MS, now.toEpochMilli())
                 .signWith(key, SignatureAlgorithm.HS256)
                 .compact();
     }
 
     public Optional<ParsedToken> parse(String token) {
+        String digest = digest(token);
+        long now = System.currentTimeMillis();
+        ParsedToken cached;
+        synchronized (verified) {
+            cached = verified.get(digest);
+        }
+        if (cached != null) {
+            if (cached.expiresAt() > now && !revocations.isRevoked(cached.jti(), cached.userId(), cached.issuedAt())) {
+                return Optional.of(cached);
+            }
+            synchronized (verified) {
+                verified.remove(digest);
+            }
+            return Optional.empty();
+        }
+        ParsedToken pt;
         try {
-            Claims c = Jwts.parserBuilder().setSigningKey(key).build().parseClaimsJws(token).getBody();
-            String sub = c.getSubject();
-            String email = c.get("email", String.class);
-            UUID userId = UUID.fromString(sub);
-            return Optional.of(new ParsedToken(userId, email));
+            Claims c = parser.parseClaimsJws(token).getBody();
+            Number ims = c.get(ISSUED_AT_MS, Number.class);
+            long issuedAt = ims != null ? ims.longValue() : (c.getIssuedAt() == null ? 0 : c.getIssuedAt().getTime());
+            long expiresAt = c.getExpiration() == null ? Long.MAX_VALUE : c.getExpiration().getTime();
+            pt = new ParsedToken(UUID.fromString(c.getSubject()), c.get("email", String.class), c.getId(), issuedAt, expiresAt);
         } catch (Exception e) {
             return Optional.empty();
         }
+        if (revocations.isRevokedRemote(pt.jti(), pt.userId(), pt.issuedAt(), pt.expiresAt())) return Optional.empty();
+        synchronized (verified) {
+            verified.put(digest, pt);
+        }
+        return Optional.of(pt);
+    }
+
+    /** 登出：吊销该令牌（验签失败或已过期时忽略）；令牌没有 jti、无法单独吊销时返回 false。 */
+    public boolean revoke(String token) {
+        Optional<ParsedToken> pt = parse(token);
+        if (pt.isPresent() && pt.get().jti() == null) return false;
+        pt.ifPresent(p -> revocations.revokeToken(p.jti(), p.expiresAt()));
+        synchronized (verified) {
+            verified.remove(digest(token));
+        }
+        return true;
+    }
+
+    /** 修改密码：吊销用户此前签发的全部令牌，已缓存的条目在下次命中时被拒绝。 */
+    public void revokeAll(UUID userId) {
+        revocations.revokeAllBefore(userId, System.currentTimeMillis());
+    }
+
+    private static String digest(String token) {
+        try {
+            byte[] h = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(h);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    public record ParsedToken(UUID userId, String email) {}
+    public record ParsedToken(UUID userId, String email, String jti, long issuedAt, long expiresAt) {}
 }
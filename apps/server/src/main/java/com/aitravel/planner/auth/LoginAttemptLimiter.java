@@ -0,0 +1,153 @@
+package com.aitravel.planner.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 登录尝试限制（固定窗口计数，Redis INCR + EXPIRE，多节点共享）：
+ * - 按 IP：窗口内全部登录/注册尝试数，超限后到窗口结束前直接拒绝；
+ * - 按账号：窗口内密码错误次数，超限即锁定到窗口结束，登录成功清零。
+ * 检查在哈希之前进行，被限制的请求不消耗 BCrypt 计算。Redis 不可用时退化为本节点计数。
+ */
+@Service
+public class LoginAttemptLimiter {
+    private static final Logger log = LoggerFactory.getLogger(LoginAttemptLimiter.class);
+
+    private static final String IP_KEY = "login:ip:";
+    private static final String ACCOUNT_KEY = "login:fail:";
+
+    private final ObjectProvider<StringRedisTemplate> redisProvider;
+
+    @Value("${app.auth.limiter.ip.max-attempts:30}")
+    private int ipMax;
+
+    @Value("${app.auth.limiter.ip.window-seconds:60}")
+    private long ipWindow;
+
+    @Value("${app.auth.limiter.account.max-failures:5}")
+    private int accountMax;
+
+    @Value("${app.auth.limiter.account.window-seconds:900}")
+    private long accountWindow;
+
+    private record Window(long count, long resetAt) {}
+
+    private final Map<String, Window> local = new ConcurrentHashMap<>();
+    private volatile long redisDownUntil;
+
+    private final AtomicLong blockedByIp = new AtomicLong();
+    private final AtomicLong blockedByAccount = new AtomicLong();
+
+    public LoginAttemptLimiter(ObjectProvider<StringRedisTemplate> redisProvider) {
+        this.redisProvider = redisProvider;
+    }
+
+    /** 记一次来自该 IP 的尝试；超限时返回需等待的秒数，否则返回 0。 */
+    public long acquireIp(String ip) {
+        long[] r = increment(IP_KEY + ip, ipWindow);
+        if (r[0] <= ipMax) return 0;
+        blockedByIp.incrementAndGet();
+        return r[1];
+    }
+
+    /** 账号当前是否因密码错误次数过多被锁定；锁定时返回剩余秒数。 */
+    public long accountLockedFor(String email) {
+        long[] r = peek(ACCOUNT_KEY + normalize(email));
+        if (r[0] < accountMax) return 0;
+        blockedByAccount.incrementAndGet();
+        return r[1];
+    }
+
+    public void recordFailure(String email) {
+        increment(ACCOUNT_KEY + normalize(email), accountWindow);
+    }
+
+    public void recordSuccess(String email) {
+        String key = ACCOUNT_KEY + normalize(email);
+        local.remove(key);
+        StringRedisTemplate redis = redis();
+        if (redis == null) return;
+        try {
+            redis.delete(key);
+        } catch (Exception e) {
+            markDown(e);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("blockedByIp", blockedByIp.get());
+        m.put("blockedByAccount", blockedByAccount.get());
+        m.put("redis", redis() != null);
+        return m;
+    }
+
+    // 返回 [窗口内计数, 窗口剩余秒数]
+    private long[] increment(String key, long windowSeconds) {
+        StringRedisTemplate redis = redis();
+        if (redis != null) {
+            try {
+                Long n = redis.opsForValue().increment(key);
+                if (n != null && n == 1) redis.expire(key, Duration.ofSeconds(windowSeconds));
+                Long ttl = redis.getExpire(key);
+                // 首次 INCR 后进程中断可能遗留无过期时间的键，补设过期
+                if (ttl == null || ttl < 0) {
+                    redis.expire(key, Duration.ofSeconds(windowSeconds));
+                    ttl = windowSeconds;
+                }
+                return new long[]{n == null ? 0 : n, Math.max(1, ttl)};
+            } catch (Exception e) {
+                markDown(e);
+            }
+        }
+        long now = System.currentTimeMillis();
+        Window w = local.compute(key, (k, old) -> old == null || old.resetAt() <= now
+                ? new Window(1, now + windowSeconds * 1000)
+                : new Window(old.count() + 1, old.resetAt()));
+        if (local.size() > 100_000) local.values().removeIf(x -> x.resetAt() <= now);
+        return new long[]{w.count(), Math.max(1, (w.resetAt() - now) / 1000)};
+    }
+
+    private long[] peek(String key) {
+        StringRedisTemplate redis = redis();
+        if (redis != null) {
+            try {
+                String v = redis.opsForValue().get(key);
+                if (v == null) return new long[]{0, 0};
+                Long ttl = redis.getExpire(key);
+                return new long[]{Long.parseLong(v), ttl == null || ttl < 0 ? 1 : Math.max(1, ttl)};
+            } catch (Exception e) {
+                markDown(e);
+            }
+        }
+        long now = System.currentTimeMillis();
+        Window w = local.get(key);
+        if (w == null || w.resetAt() <= now) return new long[]{0, 0};
+        return new long[]{w.count(), Math.max(1, (w.resetAt() - now) / 1000)};
+    }
+
+    private StringRedisTemplate redis() {
+        if (System.currentTimeMillis() < redisDownUntil) return null;
+        return redisProvider.getIfAvailable();
+    }
+
+    private void markDown(Exception e) {
+        if (System.currentTimeMillis() >= redisDownUntil) log.warn("访问 Redis 失败，30 秒内登录限制仅按本节点计数: {}", e.toString());
+        redisDownUntil = System.currentTimeMillis() + 30_000;
+    }
+
+    private static String normalize(String email) {
+        return email == null ? "" : email.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,102 @@
+package com.aitravel.planner.auth;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 密码哈希专用线程池：BCrypt 每次数十毫秒 CPU，放在固定大小的线程池与有界队列中执行，
+ * 登录洪峰只会排满该队列（超出即拒绝，由接口返回 503），不会占满 Tomcat 线程影响其他接口。
+ */
+@Service
+public class PasswordHasher {
+    private final PasswordEncoder encoder;
+
+    @Value("${app.auth.hashing.threads:0}")
+    private int threads;
+
+    @Value("${app.auth.hashing.queue-capacity:64}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor pool;
+
+    private final AtomicLong hashed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong upgraded = new AtomicLong();
+
+    public PasswordHasher(PasswordEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    @PostConstruct
+    public void start() {
+        // 默认留一半核心给请求处理
+        int n = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger seq = new AtomicInteger();
+        pool = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread t = new Thread(r, "password-hash-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (pool != null) pool.shutdownNow();
+    }
+
+    /** 队列已满时返回以 RejectedExecutionException 失败的 future。 */
+    public CompletableFuture<String> encode(CharSequence raw) {
+        return submit(() -> encoder.encode(raw));
+    }
+
+    public CompletableFuture<Boolean> matches(CharSequence raw, String hash) {
+        return submit(() -> encoder.matches(raw, hash));
+    }
+
+    /** 存量哈希的 cost 低于当前配置时需要在登录成功后重算。 */
+    public boolean needsUpgrade(String hash) {
+        return encoder.upgradeEncoding(hash);
+    }
+
+    public void recordUpgrade() {
+        upgraded.incrementAndGet();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("threads", pool.getCorePoolSize());
+        m.put("active", pool.getActiveCount());
+        m.put("queued", pool.getQueue().size());
+        m.put("hashed", hashed.get());
+        m.put("rejected", rejected.get());
+        m.put("upgraded", upgraded.get());
+        return m;
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                T out = task.get();
+                hashed.incrementAndGet();
+                return out;
+            }, pool);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.aitravel.planner.auth;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 令牌吊销表：
+ * - 单个令牌按 jti 吊销（登出），用户级按“此时刻之前签发的全部失效”吊销（修改密码）；
+ * - 吊销写入 Redis（键带 TTL，到期即随令牌自然过期）并经频道广播，各节点订阅后更新本地表，
+ *   因此已验证令牌缓存命中时只查本地表，无需每个请求访问 Redis；
+ * - 缓存未命中（完整验签）时再回源 Redis 一次，覆盖本节点订阅建立之前发生的吊销；
+ * Redis 不可用时退化为仅本节点生效。
+ */
+@Service
+public class TokenRevocationService implements MessageListener {
+    private static final Logger log = LoggerFactory.getLogger(TokenRevocationService.class);
+
+    private static final String TOKEN_KEY = "jwt:revoked:";
+    private static final String USER_KEY = "jwt:revoked-before:";
+    private static final String CHANNEL = "jwt:revocations";
+
+    private final ObjectProvider<StringRedisTemplate> redisProvider;
+    private final ObjectProvider<RedisConnectionFactory> connections;
+    private final long expiresMinutes;
+
+    @Value("${app.auth.revocation.redis-enabled:true}")
+    private boolean redisEnabled;
+
+    // jti -> 令牌过期时间（毫秒），用户 -> 吊销时刻（毫秒）
+    private final Map<String, Long> revokedTokens = new ConcurrentHashMap<>();
+    private final Map<UUID, Long> revokedBefore = new ConcurrentHashMap<>();
+    private RedisMessageListenerContainer listener;
+    // Redis 访问失败后的冷却截止时间，避免每个请求都等待连接超时
+    private volatile long redisDownUntil;
+
+    public TokenRevocationService(ObjectProvider<StringRedisTemplate> redisProvider,
+                                  ObjectProvider<RedisConnectionFactory> connections,
+                                  @Value("${security.jwt.expiresMinutes}") long expiresMinutes) {
+        this.redisProvider = redisProvider;
+        this.connections = connections;
+        this.expiresMinutes = expiresMinutes;
+    }
+
+    @PostConstruct
+    public void start() {
+        RedisConnectionFactory cf = connections.getIfAvailable();
+        if (!redisEnabled || cf == null) return;
+        try {
+            listener = new RedisMessageListenerContainer();
+            listener.setConnectionFactory(cf);
+            listener.addMessageListener(this, new ChannelTopic(CHANNEL));
+            listener.afterPropertiesSet();
+            listener.start();
+        } catch (Exception e) {
+            listener = null;
+            log.warn("订阅令牌吊销频道失败，吊销仅在本节点生效: {}", e.toString());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (listener == null) return;
+        try {
+            listener.destroy();
+        } catch (Exception ignored) {}
+    }
+
+    /** 吊销单个令牌（登出）。 */
+    public void revokeToken(String jti, long expiresAtMillis) {
+        if (jti == null) return;
+        revokedTokens.put(jti, expiresAtMillis);
+        cleanup();
+        long ttl = expiresAtMillis - System.currentTimeMillis();
+        if (ttl > 0) publish(TOKEN_KEY + jti, String.valueOf(expiresAtMillis), Duration.ofMillis(ttl), "t:" + jti + ":" + expiresAtMillis);
+    }
+
+    /** 吊销用户在此刻之前签发的全部令牌（修改密码）。 */
+    public void revokeAllBefore(UUID userId, long atMillis) {
+        revokedBefore.merge(userId, atMillis, Math::max);
+        cleanup();
+        publish(USER_KEY + userId, String.valueOf(atMillis), Duration.ofMinutes(expiresMinutes), "u:" + userId + ":" + atMillis);
+    }
+
+    /** 仅查本地表（已验证令牌缓存命中时使用）。 */
+    public boolean isRevoked(String jti, UUID userId, long issuedAtMillis) {
+        if (jti != null && revokedTokens.containsKey(jti)) return true;
+        Long before = revokedBefore.get(userId);
+        return before != null && issuedAtMillis < before;
+    }
+
+    /** 完整验签后调用：回源 Redis 同步该令牌与用户的吊销状态，再查本地表。 */
+    public boolean isRevokedRemote(String jti, UUID userId, long issuedAtMillis, long expiresAtMillis) {
+        StringRedisTemplate redis = redis();
+        if (redis != null) {
+            try {
+                if (jti != null && Boolean.TRUE.equals(redis.hasKey(TOKEN_KEY + jti))) revokedTokens.put(jti, expiresAtMillis);
+                String before = redis.opsForValue().get(USER_KEY + userId);
+                if (before != null) revokedBefore.merge(userId, Long.parseLong(before), Math::max);
+            } catch (Exception e) {
+                markDown(e);
+            }
+        }
+        return isRevoked(jti, userId, issuedAtMillis);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+        if (parts.length != 3) return;
+        try {
+            if ("t".equals(parts[0])) revokedTokens.put(parts[1], Long.parseLong(parts[2]));
+            else if ("u".equals(parts[0])) revokedBefore.merge(UUID.fromString(parts[1]), Long.parseLong(parts[2]), Math::max);
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    private void publish(String key, String value, Duration ttl, String event) {
+        StringRedisTemplate redis = redis();
+        if (redis == null) return;
+        try {
+            redis.opsForValue().set(key, value, ttl);
+            redis.convertAndSend(CHANNEL, event);
+        } catch (Exception e) {
+            markDown(e);
+        }
+    }
+
+    private StringRedisTemplate redis() {
+        if (!redisEnabled || System.currentTimeMillis() < redisDownUntil) return null;
+        return redisProvider.getIfAvailable();
+    }
+
+    private void markDown(Exception e) {
+        if (System.currentTimeMillis() >= redisDownUntil) log.warn("访问 Redis 失败，30 秒内吊销仅在本节点生效: {}", e.toString());
+        redisDownUntil = System.currentTimeMillis() + 30_000;
+    }
+
+    // 过期令牌的吊销记录已无意义；用户级记录超过令牌有效期后也不会再命中
+    private void cleanup() {
+        if (revokedTokens.size() + revokedBefore.size() < 10_000) return;
+        long now = System.currentTimeMillis();
+        revokedTokens.values().removeIf(exp -> exp < now);
+        revokedBefore.values().removeIf(at -> at < now - expiresMinutes * 60_000);
+    }
+}
@@ -1,5 +1,6 @@
 package com.aitravel.planner.config;
 
+import com.aitravel.planner.util.KeysetCursor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
@@ -17,6 +18,8 @@ public class CorsGlobalFilter {
         config.addAllowedOriginPattern("*");
         config.addAllowedHeader("*");
         config.addAllowedMethod("*");
+        // 键集分页游标通过响应头返回
+        config.addExposedHeader(KeysetCursor.HEADER);
 
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
         source.registerCorsConfiguration("/**", config);
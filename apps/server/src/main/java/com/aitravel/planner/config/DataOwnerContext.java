@@ -0,0 +1,39 @@
+package com.aitravel.planner.config;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+/**
+ * 当前线程数据读写的归属用户，ReplicaRoutingDataSource 据此记录写入并让该用户随后的读走主库（写后读一致）。
+ * 请求线程直接使用安全上下文中的用户；在工作线程（行程落库、规划、后台任务）中写库时用 run / call 显式绑定。
+ */
+public final class DataOwnerContext {
+    private static final ThreadLocal<UUID> CURRENT = new ThreadLocal<>();
+
+    private DataOwnerContext() {}
+
+    /** 未绑定时返回 null。 */
+    public static UUID current() {
+        return CURRENT.get();
+    }
+
+    public static <T> T call(UUID userId, Callable<T> body) throws Exception {
+        UUID prev = CURRENT.get();
+        CURRENT.set(userId);
+        try {
+            return body.call();
+        } finally {
+            if (prev == null) CURRENT.remove(); else CURRENT.set(prev);
+        }
+    }
+
+    public static void run(UUID userId, Runnable body) {
+        UUID prev = CURRENT.get();
+        CURRENT.set(userId);
+        try {
+            body.run();
+        } finally {
+            if (prev == null) CURRENT.remove(); else CURRENT.set(prev);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.aitravel.planner.config;
+
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+
+/**
+ * 按请求截止时间收紧超时的 RestTemplate 连接工厂：每次建立连接时，连接与读取超时取配置值与 RequestDeadline 剩余时间中的较小者；
+ * 已截止时直接以 SocketTimeoutException 失败（RestTemplate 包装为 ResourceAccessException），调用方的重试/回退路径因此也会立即结束。
+ * 读取超时针对单次读阻塞，模型非流式接口在生成完成后一次性返回，近似等于整次调用的上限。
+ */
+public class DeadlineRequestFactory extends SimpleClientHttpRequestFactory {
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    public DeadlineRequestFactory(int connectTimeoutMs, int readTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        setConnectTimeout(connectTimeoutMs);
+        setReadTimeout(readTimeoutMs);
+    }
+
+    @Override
+    protected void prepareConnection(HttpURLConnection connection, String httpMethod) throws IOException {
+        super.prepareConnection(connection, httpMethod);
+        if (RequestDeadline.current() == null) return;
+        if (RequestDeadline.expired()) throw new SocketTimeoutException("请求截止时间已到，不再发起调用");
+        connection.setConnectTimeout(toInt(RequestDeadline.bound(connectTimeoutMs)));
+        connection.setReadTimeout(toInt(RequestDeadline.bound(readTimeoutMs)));
+    }
+
+    // HttpURLConnection 以 0 表示不限，剩余时间至少取 1ms
+    private static int toInt(long ms) {
+        return (int) Math.max(1, Math.min(ms, Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,80 @@
+package com.aitravel.planner.config;
+
+import com.aitravel.planner.auth.JwtUser;
+import com.aitravel.planner.service.LlmUsageLedger;
+import com.aitravel.planner.service.TokenBucketRateLimiter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 调用 LLM 的接口按用户限流：先过令牌桶（突发 capacity 次，之后按 refill-per-minute 补充），
+ * 再检查当日 token 配额，任一不满足返回 429 与 Retry-After。放行时绑定 LlmUsageContext，用量记到该用户名下。
+ * 异步处理（CompletableFuture、SSE）结束后的 ASYNC 分派会再次经过拦截器，此时不再计数；
+ * 请求线程在异步处理开始时即清除绑定，工作线程上的归属由 PlanningExecutor 或调用方显式传递。
+ */
+@Component
+public class LlmQuotaInterceptor implements AsyncHandlerInterceptor {
+    private final TokenBucketRateLimiter limiter;
+    private final LlmUsageLedger ledger;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Value("${app.ratelimit.llm.capacity:10}")
+    private int capacity;
+
+    @Value("${app.ratelimit.llm.refill-per-minute:6}")
+    private double refillPerMinute;
+
+    public LlmQuotaInterceptor(TokenBucketRateLimiter limiter, LlmUsageLedger ledger) {
+        this.limiter = limiter;
+        this.ledger = ledger;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws IOException {
+        if (request.getDispatcherType() == DispatcherType.ASYNC) return true;
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null || !(auth.getPrincipal() instanceof JwtUser user)) return true;
+        long waitMs = limiter.tryAcquire("llm:" + user.getId(), capacity, refillPerMinute);
+        if (waitMs > 0) {
+            reject(response, (waitMs + 999) / 1000, "请求过于频繁，请稍后再试");
+            return false;
+        }
+        long quotaWait = ledger.quotaExceededFor(user.getId());
+        if (quotaWait > 0) {
+            reject(response, quotaWait, "今日 AI 规划额度已用完，请明天再试");
+            return false;
+        }
+        LlmUsageContext.set(user.getId());
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        LlmUsageContext.clear();
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        LlmUsageContext.clear();
+    }
+
+    private void reject(HttpServletResponse response, long retryAfterSeconds, String message) throws IOException {
+        response.setStatus(429);
+        response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(mapper.writeValueAsString(Map.of("error", message)));
+    }
+}
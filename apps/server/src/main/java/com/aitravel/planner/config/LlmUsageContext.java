@@ -0,0 +1,47 @@
+package com.aitravel.planner.config;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+/**
+ * 当前线程的 LLM 调用归属用户，LlmService 据此把模型回报的用量记到该用户名下。
+ * 请求线程由 LlmQuotaInterceptor 设置；在工作线程中调用 LLM 时用 run 显式绑定。
+ */
+public final class LlmUsageContext {
+    private static final ThreadLocal<UUID> CURRENT = new ThreadLocal<>();
+
+    private LlmUsageContext() {}
+
+    /** 未绑定时返回 null（用量不计入任何用户）。 */
+    public static UUID current() {
+        return CURRENT.get();
+    }
+
+    public static <T> T call(UUID userId, Callable<T> body) throws Exception {
+        UUID prev = CURRENT.get();
+        CURRENT.set(userId);
+        try {
+            return body.call();
+        } finally {
+            if (prev == null) CURRENT.remove(); else CURRENT.set(prev);
+        }
+    }
+
+    public static void run(UUID userId, Runnable body) {
+        UUID prev = CURRENT.get();
+        CURRENT.set(userId);
+        try {
+            body.run();
+        } finally {
+            if (prev == null) CURRENT.remove(); else CURRENT.set(prev);
+        }
+    }
+
+    static void set(UUID userId) {
+        CURRENT.set(userId);
+    }
+
+    static void clear() {
+        CURRENT.remove();
+    }
+}
@@ -0,0 +1,64 @@
+package com.aitravel.planner.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+
+/**
+ * 配置了 app.datasource.replica.url 时启用读写分离：
+ * 主库沿用 spring.datasource.*，副本使用 app.datasource.replica.*（用户名/密码缺省同主库）。
+ * 对外暴露的 DataSource 为 LazyConnectionDataSourceProxy(ReplicaRoutingDataSource)，JPA / JdbcTemplate / schema 初始化均经由它。
+ */
+@Configuration
+@ConditionalOnExpression("'${app.datasource.replica.url:}' != '' and '${app.sharding.urls:}' == ''")
+public class ReadReplicaConfig {
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties props) {
+        HikariDataSource ds = props.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        ds.setPoolName("primary");
+        return ds;
+    }
+
+    @Bean
+    public HikariDataSource replicaDataSource(DataSourceProperties props,
+                                              @Value("${app.datasource.replica.url}") String url,
+                                              @Value("${app.datasource.replica.username:}") String username,
+                                              @Value("${app.datasource.replica.password:}") String password,
+                                              @Value("${app.datasource.replica.maximum-pool-size:10}") int poolSize) {
+        HikariDataSource ds = new HikariDataSource();
+        ds.setPoolName("replica");
+        ds.setJdbcUrl(url);
+        ds.setUsername(username.isBlank() ? props.determineUsername() : username);
+        ds.setPassword(password.isBlank() ? props.determinePassword() : password);
+        if (props.getDriverClassName() != null) ds.setDriverClassName(props.getDriverClassName());
+        ds.setMaximumPoolSize(poolSize);
+        ds.setReadOnly(true);
+        // 副本不可达时不阻塞启动，由路由层回退主库
+        ds.setInitializationFailTimeout(-1);
+        ds.setConnectionTimeout(2000);
+        return ds;
+    }
+
+    @Bean
+    public ReplicaRoutingDataSource routingDataSource(HikariDataSource primaryDataSource, HikariDataSource replicaDataSource,
+                                                      @Value("${app.datasource.replica.sticky-ms:3000}") long stickyMs,
+                                                      @Value("${app.datasource.replica.health-interval-ms:5000}") long healthIntervalMs) {
+        return new ReplicaRoutingDataSource(primaryDataSource, replicaDataSource, stickyMs, healthIntervalMs);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicaRoutingDataSource routingDataSource) {
+        return new LazyConnectionDataSourceProxy(routingDataSource);
+    }
+}
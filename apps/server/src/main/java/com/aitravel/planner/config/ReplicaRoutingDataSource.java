@@ -0,0 +1,179 @@
+package com.aitravel.planner.config;
+
+import com.aitravel.planner.auth.JwtUser;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 读写分离路由：
+ * - 只读事务（@Transactional(readOnly = true)，含仓库查询方法）路由到只读副本；
+ * - 当前用户在 sticky 窗口内发生过写事务时，其只读事务仍走主库（写后读一致）；
+ *   用户取自安全上下文，工作线程上取 DataOwnerContext 绑定的用户；不在事务内的批量写入由调用方 markWritten；
+ * - 后台定期探测副本，探测失败或取副本连接失败时标记为不可用，全部回退主库，恢复后自动切回。
+ * 须包在 LazyConnectionDataSourceProxy 中使用，使路由发生在事务只读标记设置之后。
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+    private static final Logger log = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    static final String PRIMARY = "primary";
+    static final String REPLICA = "replica";
+
+    private final DataSource primary;
+    private final DataSource replica;
+    private final long stickyMs;
+    private final long healthIntervalMs;
+
+    // 用户 id -> 最近一次写事务时间
+    private final Map<UUID, Long> lastWrite = new ConcurrentHashMap<>();
+    private volatile boolean replicaHealthy = true;
+    private ScheduledExecutorService prober;
+
+    private final AtomicLong primaryRoutes = new AtomicLong();
+    private final AtomicLong replicaRoutes = new AtomicLong();
+    private final AtomicLong stickyRoutes = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public ReplicaRoutingDataSource(DataSource primary, DataSource replica, long stickyMs, long healthIntervalMs) {
+        this.primary = primary;
+        this.replica = replica;
+        this.stickyMs = stickyMs;
+        this.healthIntervalMs = healthIntervalMs;
+        Map<Object, Object> targets = new LinkedHashMap<>();
+        targets.put(PRIMARY, primary);
+        targets.put(REPLICA, replica);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+    }
+
+    @PostConstruct
+    public void start() {
+        prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-health");
+            t.setDaemon(true);
+            return t;
+        });
+        prober.scheduleWithFixedDelay(this::probe, healthIntervalMs, healthIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (prober != null) prober.shutdownNow();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        UUID user = currentUserId();
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            // 写事务（或无事务的 JDBC 访问）：走主库并记录写入时间
+            if (user != null && TransactionSynchronizationManager.isActualTransactionActive()) {
+                lastWrite.put(user, System.currentTimeMillis());
+                if (lastWrite.size() > 10_000) evictExpired();
+            }
+            primaryRoutes.incrementAndGet();
+            return PRIMARY;
+        }
+        if (!replicaHealthy) {
+            primaryRoutes.incrementAndGet();
+            return PRIMARY;
+        }
+        if (user != null) {
+            Long at = lastWrite.get(user);
+            if (at != null && System.currentTimeMillis() - at < stickyMs) {
+                stickyRoutes.incrementAndGet();
+                return PRIMARY;
+            }
+        }
+        replicaRoutes.incrementAndGet();
+        return REPLICA;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Object key = determineCurrentLookupKey();
+        if (!REPLICA.equals(key)) return primary.getConnection();
+        try {
+            return replica.getConnection();
+        } catch (SQLException e) {
+            markDown(e);
+            return primary.getConnection();
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        Object key = determineCurrentLookupKey();
+        if (!REPLICA.equals(key)) return primary.getConnection(username, password);
+        try {
+            return replica.getConnection(username, password);
+        } catch (SQLException e) {
+            markDown(e);
+            return primary.getConnection(username, password);
+        }
+    }
+
+    /** 记录 owner 刚发生写入（用于事务外的批量写入，如消息写后落库），sticky 窗口内其读走主库。 */
+    public void markWritten(UUID owner) {
+        if (owner == null) return;
+        lastWrite.put(owner, System.currentTimeMillis());
+        if (lastWrite.size() > 10_000) evictExpired();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("replicaHealthy", replicaHealthy);
+        m.put("primaryRoutes", primaryRoutes.get());
+        m.put("replicaRoutes", replicaRoutes.get());
+        m.put("stickyRoutes", stickyRoutes.get());
+        m.put("fallbacks", fallbacks.get());
+        return m;
+    }
+
+    private void markDown(SQLException e) {
+        fallbacks.incrementAndGet();
+        if (replicaHealthy) log.warn("只读副本不可用，回退主库: {}", e.toString());
+        replicaHealthy = false;
+    }
+
+    private void probe() {
+        try (Connection c = replica.getConnection()) {
+            boolean ok = c.isValid(2);
+            if (ok && !replicaHealthy) log.info("只读副本已恢复");
+            replicaHealthy = ok;
+        } catch (Exception e) {
+            if (replicaHealthy) log.warn("只读副本探测失败，回退主库: {}", e.toString());
+            replicaHealthy = false;
+        }
+        evictExpired();
+    }
+
+    private void evictExpired() {
+        long cutoff = System.currentTimeMillis() - stickyMs;
+        lastWrite.values().removeIf(at -> at < cutoff);
+    }
+
+    private static UUID currentUserId() {
+        UUID bound = DataOwnerContext.current();
+        if (bound != null) return bound;
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null || !(auth.getPrincipal() instanceof JwtUser)) return null;
+        return ((JwtUser) auth.getPrincipal()).getId();
+    }
+}
@@ -0,0 +1,72 @@
+package com.aitravel.planner.config;
+
+import java.util.concurrent.Callable;
+
+/**
+ * 当前线程所处理请求的截止时刻（System.nanoTime 基准）。
+ * 入口由 RequestDeadlineInterceptor 按客户端请求头或配置的 SLA 设置；PlanningExecutor、阶段线程与流式线程沿用提交方的截止时刻。
+ * 出站调用（LLM、高德）的超时取配置值与剩余时间中的较小者，截止后不再发起新的调用或重试。未设置时不限制。
+ */
+public final class RequestDeadline {
+    private static final ThreadLocal<Long> CURRENT = new ThreadLocal<>();
+
+    private RequestDeadline() {}
+
+    /** 未设置时返回 null；用于在提交任务前捕获，再在工作线程上 call/run 绑定。 */
+    public static Long current() {
+        return CURRENT.get();
+    }
+
+    /** 从现在起 ms 毫秒后的截止时刻。 */
+    public static long after(long ms) {
+        return System.nanoTime() + Math.max(0, ms) * 1_000_000;
+    }
+
+    /** 剩余毫秒数；未设置时为 Long.MAX_VALUE，已截止时为 0。 */
+    public static long remainingMs() {
+        return remainingMs(CURRENT.get());
+    }
+
+    public static long remainingMs(Long deadline) {
+        if (deadline == null) return Long.MAX_VALUE;
+        return Math.max(0, (deadline - System.nanoTime()) / 1_000_000);
+    }
+
+    public static boolean expired() {
+        return remainingMs() == 0;
+    }
+
+    /** 配置的超时（<= 0 表示不限）与剩余时间中的较小者，供单次出站调用使用。 */
+    public static long bound(long configuredMs) {
+        long remaining = remainingMs();
+        return configuredMs > 0 ? Math.min(configuredMs, remaining) : remaining;
+    }
+
+    public static <T> T call(Long deadline, Callable<T> body) throws Exception {
+        Long prev = CURRENT.get();
+        if (deadline == null) CURRENT.remove(); else CURRENT.set(deadline);
+        try {
+            return body.call();
+        } finally {
+            if (prev == null) CURRENT.remove(); else CURRENT.set(prev);
+        }
+    }
+
+    public static void run(Long deadline, Runnable body) {
+        Long prev = CURRENT.get();
+        if (deadline == null) CURRENT.remove(); else CURRENT.set(deadline);
+        try {
+            body.run();
+        } finally {
+            if (prev == null) CURRENT.remove(); else CURRENT.set(prev);
+        }
+    }
+
+    static void set(long deadline) {
+        CURRENT.set(deadline);
+    }
+
+    static void clear() {
+        CURRENT.remove();
+    }
+}
@@ -0,0 +1,53 @@
+package com.aitravel.planner.config;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+/**
+ * 规划类接口的请求截止时间：客户端可用 X-Request-Timeout-Ms 给出本次请求的时间预算（不超过 max-ms），
+ * 否则按配置的 SLA（流式接口单独配置）。截止时刻从进入拦截器起算，之后排队、LLM、高德等各阶段共用这一预算。
+ */
+@Component
+public class RequestDeadlineInterceptor implements AsyncHandlerInterceptor {
+    public static final String HEADER = "X-Request-Timeout-Ms";
+
+    @Value("${app.deadline.default-ms:45000}")
+    private long defaultMs;
+
+    @Value("${app.deadline.stream-ms:180000}")
+    private long streamMs;
+
+    @Value("${app.deadline.max-ms:120000}")
+    private long maxMs;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (request.getDispatcherType() == DispatcherType.ASYNC) return true;
+        long budget = request.getRequestURI().endsWith("/plan/stream") ? streamMs : defaultMs;
+        String header = request.getHeader(HEADER);
+        if (header != null && !header.isBlank()) {
+            try {
+                long asked = Long.parseLong(header.trim());
+                if (asked > 0) budget = Math.min(asked, Math.max(maxMs, 1));
+            } catch (NumberFormatException ignored) {
+                // 非法值按默认 SLA 处理
+            }
+        }
+        if (budget > 0) RequestDeadline.set(RequestDeadline.after(budget));
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        RequestDeadline.clear();
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        RequestDeadline.clear();
+    }
+}
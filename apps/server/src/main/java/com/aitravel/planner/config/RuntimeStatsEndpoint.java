@@ -0,0 +1,96 @@
+package com.aitravel.planner.config;
+
+import com.aitravel.planner.auth.EmailExistenceFilter;
+import com.aitravel.planner.auth.LoginAttemptLimiter;
+import com.aitravel.planner.auth.PasswordHasher;
+import com.aitravel.planner.service.ConversationPurgeService;
+import com.aitravel.planner.service.ItineraryPersistenceService;
+import com.aitravel.planner.service.LlmUsageLedger;
+import com.aitravel.planner.service.MessageTieringService;
+import com.aitravel.planner.service.PlanJobService;
+import com.aitravel.planner.service.PlanningExecutor;
+import com.aitravel.planner.service.SearchService;
+import com.aitravel.planner.service.ShardRebalanceService;
+import com.aitravel.planner.service.StreamReplayLog;
+import com.aitravel.planner.service.TokenBucketRateLimiter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 运维统计：/actuator/runtime，汇总各后台任务、队列、限流与缓存的内部计数。
+ * 与 /actuator/prometheus 一样需要运维账号（见 SecurityConfig），公开的 /api/v1/health 只做存活检查。
+ */
+@Component
+@Endpoint(id = "runtime")
+public class RuntimeStatsEndpoint {
+    private final ConversationPurgeService purger;
+    private final ItineraryPersistenceService persistence;
+    private final ObjectProvider<ReplicaRoutingDataSource> routing;
+    private final ShardRebalanceService sharding;
+    private final MessageTieringService tiering;
+    private final SearchService search;
+    private final PasswordHasher hasher;
+    private final LoginAttemptLimiter limiter;
+    private final EmailExistenceFilter emailFilter;
+    private final TokenBucketRateLimiter rateLimiter;
+    private final LlmUsageLedger llmUsage;
+    private final PlanJobService planJobs;
+    private final StreamReplayLog streamReplay;
+    private final PlanningExecutor planning;
+
+    public RuntimeStatsEndpoint(ConversationPurgeService purger, ItineraryPersistenceService persistence,
+                                ObjectProvider<ReplicaRoutingDataSource> routing, ShardRebalanceService sharding,
+                                MessageTieringService tiering, SearchService search,
+                                PasswordHasher hasher, LoginAttemptLimiter limiter,
+                                EmailExistenceFilter emailFilter, TokenBucketRateLimiter rateLimiter,
+                                LlmUsageLedger llmUsage, PlanJobService planJobs,
+                                StreamReplayLog streamReplay, PlanningExecutor planning) {
+        this.purger = purger;
+        this.persistence = persistence;
+        this.routing = routing;
+        this.sharding = sharding;
+        this.tiering = tiering;
+        this.search = search;
+        this.hasher = hasher;
+        this.limiter = limiter;
+        this.emailFilter = emailFilter;
+        this.rateLimiter = rateLimiter;
+        this.llmUsage = llmUsage;
+        this.planJobs = planJobs;
+        this.streamReplay = streamReplay;
+        this.planning = planning;
+    }
+
+    @ReadOperation
+    public Map<String, Object> stats() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        // 后台会话清理进度
+        data.put("conversationPurge", purger.stats());
+        // 生成行程落库队列
+        data.put("itineraryPersist", persistence.stats());
+        // 读写分离路由（仅配置副本时存在）
+        ReplicaRoutingDataSource r = routing.getIfAvailable();
+        if (r != null) data.put("datasourceRouting", r.stats());
+        // 会话分片分布与再平衡进度
+        data.put("sharding", sharding.stats());
+        // 冷消息压缩：节省比例与解压耗时
+        data.put("messageTiering", tiering.stats());
+        // 搜索索引驻留量与平均耗时
+        data.put("search", search.stats());
+        // 密码哈希线程池与登录限流
+        data.put("passwordHashing", hasher.stats());
+        data.put("loginLimiter", limiter.stats());
+        data.put("emailFilter", emailFilter.stats());
+        data.put("rateLimit", rateLimiter.stats());
+        data.put("llmUsage", llmUsage.stats());
+        data.put("planJobs", planJobs.stats());
+        data.put("streamReplay", streamReplay.stats());
+        data.put("planning", planning.stats());
+        return data;
+    }
+}
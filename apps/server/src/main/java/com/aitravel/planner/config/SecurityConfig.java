@@ -1,11 +1,16 @@
 package com.aitravel.planner.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.provisioning.InMemoryUserDetailsManager;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 import org.springframework.web.cors.CorsConfiguration;
@@ -13,17 +18,49 @@ import org.springframework.web.cors.CorsConfigurationSource;
 import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
 
 import com.aitravel.planner.auth.JwtAuthFilter;
+import jakarta.servlet.DispatcherType;
 
 @Configuration
 public class SecurityConfig {
 
+    /**
+     * /actuator/**：health、info 公开（探针），其余端点（prometheus、runtime 等）需运维账号 HTTP Basic 认证；
+     * 未配置 app.ops.password 时一律拒绝。
+     */
     @Bean
+    @Order(1)
+    public SecurityFilterChain actuatorFilterChain(HttpSecurity http, PasswordEncoder encoder,
+                                                   @Value("${app.ops.username:ops}") String username,
+                                                   @Value("${app.ops.password:}") String password) throws Exception {
+        boolean configured = !password.isBlank();
+        http
+                .securityMatcher("/actuator/**")
+                .csrf(csrf -> csrf.disable())
+                .sessionManagement(s -> s.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
+                .authorizeHttpRequests(auth -> {
+                    auth.requestMatchers("/actuator/health", "/actuator/health/**", "/actuator/info").permitAll();
+                    if (configured) auth.anyRequest().hasRole("OPS");
+                    else auth.anyRequest().denyAll();
+                })
+                .httpBasic(Customizer.withDefaults());
+        if (configured) {
+            http.userDetailsService(new InMemoryUserDetailsManager(
+                    User.withUsername(username).password(encoder.encode(password)).roles("OPS").build()));
+        }
+        return http.build();
+    }
+
+    @Bean
+    @Order(2)
     public SecurityFilterChain securityFilterChain(HttpSecurity http, JwtAuthFilter jwtAuthFilter) throws Exception {
         http
                 .csrf(csrf -> csrf.disable())
                 .cors(Customizer.withDefaults())
                 .authorizeHttpRequests(auth -> auth
-                        .requestMatchers("/", "/api/v1/health", "/actuator/**", "/auth/**").permitAll()
+                        // 异步处理（CompletableFuture / SSE）结束后的 ASYNC 分派只负责写回结果，原请求已通过鉴权；
+                        // JwtAuthFilter 不处理该分派，不放行则会按匿名用户拒绝
+                        .dispatcherTypeMatchers(DispatcherType.ASYNC).permitAll()
+                        .requestMatchers("/", "/api/v1/health", "/auth/**").permitAll()
                         .requestMatchers("/api/v1/**").authenticated()
                         .anyRequest().permitAll()
                 )
@@ -32,9 +69,10 @@ public class SecurityConfig {
         return http.build();
     }
 
+    // 提高 strength 后，存量哈希在用户下次登录成功时自动按新 cost 重算
     @Bean
-    public PasswordEncoder passwordEncoder() {
-        return new BCryptPasswordEncoder();
+    public PasswordEncoder passwordEncoder(@Value("${app.auth.bcrypt.strength:10}") int strength) {
+        return new BCryptPasswordEncoder(strength);
     }
 
     @Bean
@@ -45,6 +83,8 @@ public class SecurityConfig {
         config.addAllowedOriginPattern("*");
         config.addAllowedHeader("*");
         config.addAllowedMethod("*");
+        // 前端可读取分阶段耗时
+        config.addExposedHeader("Server-Timing");
 
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
         source.registerCorsConfiguration("/**", config);
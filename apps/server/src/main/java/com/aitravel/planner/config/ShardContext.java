@@ -0,0 +1,46 @@
+package com.aitravel.planner.config;
+
+import java.util.function.Supplier;
+
+/**
+ * 当前线程的会话分片（conversations / messages / budget_ledgers 所在数据源）。
+ * 未设置时为主分片 0（users / plans / days / activities 等非分片表始终在主分片）。
+ * 须在事务开始前设置：连接在第一条语句执行时按当前分片获取。
+ */
+public final class ShardContext {
+    public static final int HOME = 0;
+
+    private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<>();
+
+    private ShardContext() {}
+
+    public static int current() {
+        Integer s = CURRENT.get();
+        return s == null ? HOME : s;
+    }
+
+    public static <T> T call(int shard, Supplier<T> body) {
+        Integer prev = CURRENT.get();
+        CURRENT.set(shard);
+        try {
+            return body.get();
+        } finally {
+            if (prev == null) CURRENT.remove(); else CURRENT.set(prev);
+        }
+    }
+
+    public static void run(int shard, Runnable body) {
+        call(shard, () -> {
+            body.run();
+            return null;
+        });
+    }
+
+    static void set(int shard) {
+        CURRENT.set(shard);
+    }
+
+    static void clear() {
+        CURRENT.remove();
+    }
+}
@@ -0,0 +1,43 @@
+package com.aitravel.planner.config;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按 ShardContext 路由到各分片数据源；分片 0 为主库。
+ * 须包在 LazyConnectionDataSourceProxy 中使用。
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource {
+    private final List<DataSource> shards;
+
+    public ShardRoutingDataSource(List<DataSource> shards) {
+        this.shards = List.copyOf(shards);
+        Map<Object, Object> targets = new LinkedHashMap<>();
+        for (int i = 0; i < shards.size(); i++) targets.put(i, shards.get(i));
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(shards.get(ShardContext.HOME));
+        setLenientFallback(false);
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    /** 关闭追加分片的连接池（主库连接池由容器管理）。 */
+    public void close() {
+        for (int i = 1; i < shards.size(); i++) {
+            if (shards.get(i) instanceof AutoCloseable c) {
+                try { c.close(); } catch (Exception ignored) {}
+            }
+        }
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return ShardContext.current();
+    }
+}
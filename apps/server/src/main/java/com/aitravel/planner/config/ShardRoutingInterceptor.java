@@ -0,0 +1,67 @@
+package com.aitravel.planner.config;
+
+import com.aitravel.planner.auth.JwtUser;
+import com.aitravel.planner.service.ShardMap;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 会话接口按当前用户（即会话属主）选择分片：请求期间设置 ShardContext 并持有该用户的分片读锁，
+ * 迁移该用户数据时请求会等待迁移完成。创建会话时先在目录中登记用户。
+ * 异步处理的接口在请求线程返回时即释放（读锁须由加锁线程释放），工作线程经 PlanningExecutor.supplySharded 自行加锁；
+ * 结果写回时的 ASYNC 分派不再加锁。
+ */
+@Component
+public class ShardRoutingInterceptor implements AsyncHandlerInterceptor {
+    private static final String LOCK_ATTR = ShardRoutingInterceptor.class.getName() + ".lock";
+
+    private final ShardMap shards;
+
+    public ShardRoutingInterceptor(ShardMap shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (!shards.enabled() || request.getDispatcherType() == DispatcherType.ASYNC) return true;
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null || !(auth.getPrincipal() instanceof JwtUser user)) return true;
+        Lock lock = shards.lock(user.getId()).readLock();
+        lock.lock();
+        try {
+            boolean create = "POST".equals(request.getMethod()) && request.getRequestURI().endsWith("/api/v1/conversations");
+            ShardContext.set(create ? shards.assign(user.getId()) : shards.route(user.getId()));
+        } catch (RuntimeException e) {
+            // preHandle 抛出时不会回调 afterCompletion，此处释放锁
+            lock.unlock();
+            throw e;
+        }
+        request.setAttribute(LOCK_ATTR, lock);
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        release(request);
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        release(request);
+    }
+
+    private void release(HttpServletRequest request) {
+        ShardContext.clear();
+        if (request.getAttribute(LOCK_ATTR) instanceof Lock lock) {
+            request.removeAttribute(LOCK_ATTR);
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.aitravel.planner.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 配置了 app.sharding.urls（逗号分隔，追加分片的 JDBC URL）时启用会话分片：
+ * 分片 0 为 spring.datasource 主库，其余分片只存放 conversations / messages / message_cold / budget_ledgers，
+ * 启动时在追加分片上执行 shard-schema.sql 建表（H2 下 JSONB 换为 JSON）。
+ * 对外暴露的 DataSource 为 LazyConnectionDataSourceProxy(ShardRoutingDataSource)。
+ */
+@Configuration
+@ConditionalOnExpression("'${app.sharding.urls:}' != ''")
+public class ShardingConfig {
+    private static final Logger log = LoggerFactory.getLogger(ShardingConfig.class);
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource homeDataSource(DataSourceProperties props) {
+        HikariDataSource ds = props.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        ds.setPoolName("shard-0");
+        return ds;
+    }
+
+    @Bean
+    public ShardRoutingDataSource shardRoutingDataSource(HikariDataSource homeDataSource, DataSourceProperties props,
+                                                         @Value("${app.sharding.urls}") String urls,
+                                                         @Value("${app.sharding.username:}") String username,
+                                                         @Value("${app.sharding.password:}") String password,
+                                                         @Value("${app.sharding.maximum-pool-size:10}") int poolSize) throws IOException {
+        String script = new ClassPathResource("shard-schema.sql").getContentAsString(StandardCharsets.UTF_8);
+        List<DataSource> shards = new ArrayList<>();
+        shards.add(homeDataSource);
+        for (String url : urls.split(",")) {
+            if (url.isBlank()) continue;
+            HikariDataSource ds = new HikariDataSource();
+            ds.setPoolName("shard-" + shards.size());
+            ds.setJdbcUrl(url.trim());
+            ds.setUsername(username.isBlank() ? props.determineUsername() : username);
+            ds.setPassword(password.isBlank() ? props.determinePassword() : password);
+            ds.setMaximumPoolSize(poolSize);
+            // H2 不支持 JSONB 与部分索引：JSONB 换成 JSON，索引去掉 WHERE 条件
+            String ddl = url.trim().startsWith("jdbc:h2:")
+                    ? script.replace("JSONB", "JSON").replaceAll("(?m)^(CREATE INDEX [^;]*?)\\s+WHERE [^;]*;", "$1;")
+                    : script;
+            new ResourceDatabasePopulator(new ByteArrayResource(ddl.getBytes(StandardCharsets.UTF_8))).execute(ds);
+            shards.add(ds);
+        }
+        log.info("会话分片已启用: {} 个分片", shards.size());
+        return new ShardRoutingDataSource(shards);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(ShardRoutingDataSource shardRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(shardRoutingDataSource);
+    }
+}
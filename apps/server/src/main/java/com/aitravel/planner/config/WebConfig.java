@@ -0,0 +1,34 @@
+package com.aitravel.planner.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+    private final ShardRoutingInterceptor shardRouting;
+    private final LlmQuotaInterceptor llmQuota;
+    private final RequestDeadlineInterceptor deadline;
+
+    public WebConfig(ShardRoutingInterceptor shardRouting, LlmQuotaInterceptor llmQuota,
+                     RequestDeadlineInterceptor deadline) {
+        this.shardRouting = shardRouting;
+        this.llmQuota = llmQuota;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        // 截止时间最先设置：限流、分片锁与线程池排队的等待也计入请求预算；异步任务接口的截止时间由后台工作线程另行设置
+        registry.addInterceptor(deadline).addPathPatterns(
+                "/api/v1/itinerary/plan", "/api/v1/itinerary/plan/stream",
+                "/api/v1/itinerary/day-route", "/api/v1/itinerary/day-route/compute",
+                "/api/v1/conversations/*/chat-plan", "/api/v1/conversations/*/budget-adjust");
+        // 限流在前：被拒绝的请求不必等待分片锁
+        registry.addInterceptor(llmQuota).addPathPatterns(
+                "/api/v1/itinerary/plan", "/api/v1/itinerary/plan/stream", "/api/v1/itinerary/plan/jobs",
+                "/api/v1/itinerary/day-route",
+                "/api/v1/conversations/*/chat-plan", "/api/v1/conversations/*/budget-adjust");
+        registry.addInterceptor(shardRouting).addPathPatterns("/api/v1/conversations", "/api/v1/conversations/**");
+    }
+}
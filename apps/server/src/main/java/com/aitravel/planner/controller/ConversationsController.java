@@ -4,7 +4,19 @@ import com.aitravel.planner.auth.JwtUser;
 import com.aitravel.planner.model.Conversation;
 import com.aitravel.planner.model.Message;
 import com.aitravel.planner.repo.ConversationRepository;
+import com.aitravel.planner.repo.ConversationSummary;
 import com.aitravel.planner.repo.MessageRepository;
+import com.aitravel.planner.repo.MessageSummary;
+import com.aitravel.planner.service.BudgetLedgerService;
+import com.aitravel.planner.service.ConversationPurgeService;
+import com.aitravel.planner.service.ItineraryPersistenceService;
+import com.aitravel.planner.service.MessageAppendService;
+import com.aitravel.planner.service.OwnershipCache;
+import com.aitravel.planner.service.PlanningExecutor;
+import com.aitravel.planner.service.SearchService;
+import com.aitravel.planner.util.BudgetEngine;
+import com.aitravel.planner.util.KeysetCursor;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -13,19 +25,46 @@ import org.springframework.web.bind.annotation.*;
 import java.time.OffsetDateTime;
 import java.util.*;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/api/v1/conversations")
 @CrossOrigin(origins = "*", allowCredentials = "false")
 public class ConversationsController {
+    private static final int DEFAULT_CONVERSATION_PAGE = KeysetCursor.DEFAULT_PAGE;
+    private static final int DEFAULT_MESSAGE_PAGE = 200;
+
     private final ConversationRepository conversations;
     private final MessageRepository messages;
     private final com.aitravel.planner.service.LlmService llm;
+    private final BudgetLedgerService ledgers;
+    private final MessageAppendService appender;
+    private final ConversationPurgeService purger;
+    private final ItineraryPersistenceService persistence;
+    private final OwnershipCache owners;
+    private final PlanningExecutor planning;
+    private final SearchService search;
 
-    public ConversationsController(ConversationRepository conversations, MessageRepository messages, com.aitravel.planner.service.LlmService llm) {
+    public ConversationsController(ConversationRepository conversations, MessageRepository messages, com.aitravel.planner.service.LlmService llm,
+                                   BudgetLedgerService ledgers, MessageAppendService appender, ConversationPurgeService purger,
+                                   ItineraryPersistenceService persistence, OwnershipCache owners, PlanningExecutor planning,
+                                   SearchService search) {
         this.conversations = conversations;
         this.messages = messages;
         this.llm = llm;
+        this.ledgers = ledgers;
+        this.appender = appender;
+        this.purger = purger;
+        this.persistence = persistence;
+        this.owners = owners;
+        this.planning = planning;
+        this.search = search;
+    }
+
+    // 属于当前用户且未被软删除的会话
+    private Optional<Conversation> ownedConversation(UUID id, UUID userId) {
+        return conversations.findById(id)
+                .filter(c -> c.getOwnerId().equals(userId) && !ConversationPurgeService.DELETED.equals(c.getStatus()));
     }
 
     private Optional<JwtUser> currentUser() {
@@ -45,63 +84,113 @@ public class ConversationsController {
         c.setCreatedAt(OffsetDateTime.now());
         c.setUpdatedAt(OffsetDateTime.now());
         Conversation saved = conversations.save(c);
+        owners.putConversation(saved.getId(), saved.getOwnerId());
         return ResponseEntity.ok(saved);
     }
 
+    /**
+     * 会话列表（键集分页）：按 updatedAt 倒序，下一页游标通过 X-Next-Cursor 响应头返回。
+     */
     @GetMapping
-    public ResponseEntity<?> list() {
+    public ResponseEntity<?> list(@RequestParam(value = "limit", required = false) Integer limit,
+                                  @RequestParam(value = "cursor", required = false) String cursor) {
         var cu = currentUser();
         if (cu.isEmpty()) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
-        List<Conversation> list = conversations.findByOwnerIdOrderByUpdatedAtDesc(cu.get().getId());
-        return ResponseEntity.ok(list);
+        KeysetCursor after = KeysetCursor.decode(cursor);
+        if (cursor != null && !cursor.isBlank() && after == null) {
+            return ResponseEntity.badRequest().body(Map.of("error", "cursor 无效"));
+        }
+        int size = KeysetCursor.pageSize(limit, DEFAULT_CONVERSATION_PAGE);
+        PageRequest page = PageRequest.of(0, size);
+        List<ConversationSummary> list = after == null
+                ? conversations.findPageByOwner(cu.get().getId(), page)
+                : conversations.findPageByOwnerAfter(cu.get().getId(), after.getAt(), after.getId(), page);
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok();
+        if (list.size() == size) {
+            ConversationSummary last = list.get(list.size() - 1);
+            ok.header(KeysetCursor.HEADER, new KeysetCursor(last.getUpdatedAt(), last.getId()).encode());
+        }
+        return ok.body(list);
     }
 
     @GetMapping("/{id}")
     public ResponseEntity<?> get(@PathVariable("id") UUID id) {
         var cu = currentUser();
         if (cu.isEmpty()) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
-        Optional<Conversation> copt = conversations.findById(id);
-        if (copt.isEmpty() || !copt.get().getOwnerId().equals(cu.get().getId())) {
+        Optional<Conversation> copt = ownedConversation(id, cu.get().getId());
+        if (copt.isEmpty()) {
             return ResponseEntity.status(404).body(Map.of("error", "会话不存在或无权限"));
         }
         Conversation c = copt.get();
-        List<Message> ms = messages.findByConversationIdOrderByCreatedAtAsc(id);
-        return ResponseEntity.ok(Map.of("conversation", c, "messages", ms));
+        // 仅返回最近一页消息（时间正序），更早的消息通过 /messages?before= 翻页
+        List<Message> ms = new ArrayList<>(messages.findLatest(id, PageRequest.of(0, DEFAULT_MESSAGE_PAGE)));
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok();
+        if (ms.size() == DEFAULT_MESSAGE_PAGE) {
+            Message oldest = ms.get(ms.size() - 1);
+            ok.header(KeysetCursor.HEADER, new KeysetCursor(oldest.getCreatedAt(), oldest.getId()).encode());
+        }
+        Collections.reverse(ms);
+        return ok.body(Map.of("conversation", c, "messages", ms));
     }
 
     @PostMapping("/{id}/messages")
     public ResponseEntity<?> appendMessage(@PathVariable("id") UUID id, @RequestBody AppendMessageRequest req) {
         var cu = currentUser();
         if (cu.isEmpty()) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
-        Optional<Conversation> copt = conversations.findById(id);
-        if (copt.isEmpty() || !copt.get().getOwnerId().equals(cu.get().getId())) {
-            return ResponseEntity.status(404).body(Map.of("error", "会话不存在或无权限"));
-        }
         if (req.content() == null || req.content().isBlank()) {
             return ResponseEntity.badRequest().body(Map.of("error", "content 不能为空"));
         }
-        Message m = new Message();
-        m.setConversationId(id);
-        m.setRole((req.role() == null || req.role().isBlank()) ? "user" : req.role());
-        m.setContent(req.content());
-        m.setTokens(req.tokens());
-        Message saved = messages.save(m);
-        Conversation c = copt.get();
-        c.setUpdatedAt(OffsetDateTime.now());
-        conversations.save(c);
-        return ResponseEntity.ok(saved);
+        String role = (req.role() == null || req.role().isBlank()) ? "user" : req.role();
+        // 属主校验 + 刷新 updated_at + 插入消息，不再先查询会话
+        Optional<Message> saved = appender.append(id, cu.get().getId(), role, req.content(), req.tokens());
+        if (saved.isEmpty()) {
+            return ResponseEntity.status(404).body(Map.of("error", "会话不存在或无权限"));
+        }
+        return ResponseEntity.ok(saved.get());
     }
 
+    /**
+     * 消息列表（键集分页）：返回 before 游标之前最近 limit 条消息（时间正序）；
+     * fields=meta 时只返回元数据投影，不加载消息正文。
+     */
     @GetMapping("/{id}/messages")
-    public ResponseEntity<?> listMessages(@PathVariable("id") UUID id) {
+    public ResponseEntity<?> listMessages(@PathVariable("id") UUID id,
+                                          @RequestParam(value = "limit", required = false) Integer limit,
+                                          @RequestParam(value = "before", required = false) String before,
+                                          @RequestParam(value = "fields", required = false) String fields) {
         var cu = currentUser();
         if (cu.isEmpty()) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
-        Optional<Conversation> copt = conversations.findById(id);
-        if (copt.isEmpty() || !copt.get().getOwnerId().equals(cu.get().getId())) {
+        // 属主校验走缓存，命中时不查询会话
+        if (!owners.ownsConversation(id, cu.get().getId())) {
             return ResponseEntity.status(404).body(Map.of("error", "会话不存在或无权限"));
         }
-        List<Message> ms = messages.findByConversationIdOrderByCreatedAtAsc(id);
-        return ResponseEntity.ok(ms);
+        KeysetCursor cur = KeysetCursor.decode(before);
+        if (before != null && !before.isBlank() && cur == null) {
+            return ResponseEntity.badRequest().body(Map.of("error", "before 游标无效"));
+        }
+        int size = KeysetCursor.pageSize(limit, DEFAULT_MESSAGE_PAGE);
+        PageRequest page = PageRequest.of(0, size);
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok();
+        if ("meta".equalsIgnoreCase(fields)) {
+            List<MessageSummary> ms = new ArrayList<>(cur == null
+                    ? messages.findLatestSummaries(id, page)
+                    : messages.findLatestSummariesBefore(id, cur.getAt(), cur.getId(), page));
+            if (ms.size() == size) {
+                MessageSummary oldest = ms.get(ms.size() - 1);
+                ok.header(KeysetCursor.HEADER, new KeysetCursor(oldest.getCreatedAt(), oldest.getId()).encode());
+            }
+            Collections.reverse(ms);
+            return ok.body(ms);
+        }
+        List<Message> ms = new ArrayList<>(cur == null
+                ? messages.findLatest(id, page)
+                : messages.findLatestBefore(id, cur.getAt(), cur.getId(), page));
+        if (ms.size() == size) {
+            Message oldest = ms.get(ms.size() - 1);
+            ok.header(KeysetCursor.HEADER, new KeysetCursor(oldest.getCreatedAt(), oldest.getId()).encode());
+        }
+        Collections.reverse(ms);
+        return ok.body(ms);
     }
 
     public record ChatPlanRequest(String text, String city) {}
@@ -110,16 +199,21 @@ public class ConversationsController {
      * 基于会话历史进行上下文规划：返回原始文本(rawText)与结构化计划(plan)。
      */
     @PostMapping("/{id}/chat-plan")
-    public ResponseEntity<?> chatPlan(@PathVariable("id") UUID id, @RequestBody ChatPlanRequest req) {
+    public CompletableFuture<ResponseEntity<?>> chatPlan(@PathVariable("id") UUID id, @RequestBody ChatPlanRequest req) {
         var cu = currentUser();
-        if (cu.isEmpty()) return ResponseEntity.status(401).body(java.util.Map.of("error", "未认证"));
-        var copt = conversations.findById(id);
-        if (copt.isEmpty() || !copt.get().getOwnerId().equals(cu.get().getId())) {
-            return ResponseEntity.status(404).body(java.util.Map.of("error", "会话不存在或无权限"));
+        if (cu.isEmpty()) return done(ResponseEntity.status(401).body(java.util.Map.of("error", "未认证")));
+        if (!owners.ownsConversation(id, cu.get().getId())) {
+            return done(ResponseEntity.status(404).body(java.util.Map.of("error", "会话不存在或无权限")));
         }
         if (req == null || req.text() == null || req.text().trim().isEmpty()) {
-            return ResponseEntity.badRequest().body(java.util.Map.of("error", "text 不能为空"));
+            return done(ResponseEntity.badRequest().body(java.util.Map.of("error", "text 不能为空")));
         }
+        // 读取历史、调用 LLM 与记账在工作线程上完成（持有属主分片读锁），Tomcat 线程立即释放
+        UUID ownerId = cu.get().getId();
+        return planning.supplySharded(ownerId, () -> chatPlanFor(id, ownerId, req));
+    }
+
+    private ResponseEntity<?> chatPlanFor(UUID id, UUID ownerId, ChatPlanRequest req) {
         java.util.List<Message> hist = messages.findByConversationIdOrderByCreatedAtAsc(id);
         java.util.List<java.util.Map<String, String>> prev = new java.util.ArrayList<>();
         prev.add(java.util.Map.of("role", "system", "content", "你是行程规划助手。尽量给出完整、可执行的建议。"));
@@ -131,29 +225,34 @@ public class ConversationsController {
         java.util.Optional<com.aitravel.planner.service.LlmService.PlanResult> resOpt = llm.planWithRawWithContext(req.text(), req.city(), prev);
         if (resOpt.isPresent()) {
             var pr = resOpt.get();
-            String raw = pr.getRawText();
-            try {
-                raw = com.aitravel.planner.util.BudgetRawTextNormalizer.normalize(raw);
-            } catch (Exception ignored) {}
+            BudgetEngine.Result budget = BudgetEngine.process(pr.getRawText());
+            String raw = budget.getText();
             com.aitravel.planner.itinerary.ItineraryPlan plan = pr.getPlan();
+            // 记录预算账本，后续预算调整走增量路径
+            try { ledgers.record(id, budget.getBreakdown(), plan, null); } catch (Exception e) { ledgers.failed(id, e); }
+            // 生成结果异步落库并关联到会话
+            persistence.submit(ownerId, id, req.city(), plan, budget.getBreakdown());
             // 不再以摘要兜底，保持原文（可能为空）
             return ResponseEntity.ok(java.util.Map.of("plan", plan, "rawText", raw));
         }
+        if (com.aitravel.planner.config.RequestDeadline.expired()) {
+            return ResponseEntity.status(504).body(java.util.Map.of("error", "行程生成超时，请稍后重试"));
+        }
         return ResponseEntity.status(502).body(java.util.Map.of("error", "LLM 不可用或超时"));
     }
 
-    public record BudgetAdjustRequest(java.math.BigDecimal usedAmount, String currency, String text, String city) {}
+    public record BudgetAdjustRequest(java.math.BigDecimal usedAmount, String currency, String text, String city, Integer fromDay) {}
 
     /**
      * 基于已使用花费动态调整后续行程：复用会话上下文，向模型明确预算约束，并返回结构化计划与原文。
+     * 会话已有预算账本时仅发送增量提示（账本摘要 + 调整诉求），并只重算受影响的类别与天数。
      */
     @PostMapping("/{id}/budget-adjust")
-    public ResponseEntity<?> budgetAdjust(@PathVariable("id") UUID id, @RequestBody BudgetAdjustRequest req) {
+    public CompletableFuture<ResponseEntity<?>> budgetAdjust(@PathVariable("id") UUID id, @RequestBody BudgetAdjustRequest req) {
         var cu = currentUser();
-        if (cu.isEmpty()) return ResponseEntity.status(401).body(java.util.Map.of("error", "未认证"));
-        var copt = conversations.findById(id);
-        if (copt.isEmpty() || !copt.get().getOwnerId().equals(cu.get().getId())) {
-            return ResponseEntity.status(404).body(java.util.Map.of("error", "会话不存在或无权限"));
+        if (cu.isEmpty()) return done(ResponseEntity.status(401).body(java.util.Map.of("error", "未认证")));
+        if (!owners.ownsConversation(id, cu.get().getId())) {
+            return done(ResponseEntity.status(404).body(java.util.Map.of("error", "会话不存在或无权限")));
         }
         // 构造调整提示：包含已使用花费与可选补充文本
         StringBuilder sb = new StringBuilder();
@@ -165,45 +264,77 @@ public class ConversationsController {
             sb.append(req.text());
         }
         if (sb.length() == 0) {
-            return ResponseEntity.badRequest().body(java.util.Map.of("error", "请至少提供 usedAmount/currency 或补充说明文本"));
+            return done(ResponseEntity.badRequest().body(java.util.Map.of("error", "请至少提供 usedAmount/currency 或补充说明文本")));
         }
-        // 会话历史
-        java.util.List<Message> hist = messages.findByConversationIdOrderByCreatedAtAsc(id);
+        return planning.supplySharded(cu.get().getId(), () -> adjustBudget(id, req, sb.toString()));
+    }
+
+    private ResponseEntity<?> adjustBudget(UUID id, BudgetAdjustRequest req, String adjustment) {
         java.util.List<java.util.Map<String, String>> prev = new java.util.ArrayList<>();
         prev.add(java.util.Map.of("role", "system", "content", "你是行程规划助手。尽量给出完整、可执行的建议。在涉及预算时，请提供 baseBudget {amount,currency} 并合理优化后续天安排。"));
-        for (Message m : hist) {
-            String role = (m.getRole() == null || m.getRole().isBlank()) ? "user" : m.getRole();
-            String content = m.getContent() == null ? "" : m.getContent();
-            prev.add(java.util.Map.of("role", role, "content", content));
+        // 已有预算账本：只发送账本摘要与调整诉求（增量提示），不回放完整会话历史
+        var ledgerOpt = ledgers.find(id);
+        int fromDay = req.fromDay() == null || req.fromDay() < 0 ? 0 : req.fromDay();
+        String prompt;
+        if (ledgerOpt.isPresent()) {
+            prompt = ledgers.deltaPrompt(ledgerOpt.get(), req.usedAmount(), req.currency(), adjustment, fromDay);
+        } else {
+            // 会话历史
+            java.util.List<Message> hist = messages.findByConversationIdOrderByCreatedAtAsc(id);
+            for (Message m : hist) {
+                String role = (m.getRole() == null || m.getRole().isBlank()) ? "user" : m.getRole();
+                String content = m.getContent() == null ? "" : m.getContent();
+                prev.add(java.util.Map.of("role", role, "content", content));
+            }
+            prompt = adjustment;
         }
-        var resOpt = llm.planWithRawWithContext(sb.toString(), req.city(), prev);
+        var resOpt = llm.planWithRawWithContext(prompt, req.city(), prev);
         if (resOpt.isPresent()) {
             var pr = resOpt.get();
-            String raw = pr.getRawText();
-            try {
-                raw = com.aitravel.planner.util.BudgetRawTextNormalizer.normalize(raw);
-            } catch (Exception ignored) {}
+            BudgetEngine.Result budget = BudgetEngine.process(pr.getRawText());
+            String raw = budget.getText();
             com.aitravel.planner.itinerary.ItineraryPlan plan = pr.getPlan();
+            // 增量合并：仅替换受影响的类别与天数；无账本时以本次结果建立账本
+            com.aitravel.planner.itinerary.BudgetBreakdown ledgerBudget = budget.getBreakdown();
+            try {
+                var ledger = ledgerOpt.isPresent()
+                        ? ledgers.applyDelta(ledgerOpt.get(), budget.getBreakdown(), plan, req.usedAmount(), fromDay)
+                        : ledgers.record(id, budget.getBreakdown(), plan, req.usedAmount());
+                ledgerBudget = ledgers.toBreakdown(ledger);
+                // 增量结果只含 fromDay 起的天数，返回与保留天数合并后的完整行程
+                if (ledgerOpt.isPresent()) plan = ledgers.mergedPlan(ledger, plan);
+            } catch (Exception e) {
+                ledgers.failed(id, e);
+            }
             // 修改：不再使用摘要回填 rawText，严格返回原始文本（可能为空）
-            return ResponseEntity.ok(java.util.Map.of("plan", plan, "rawText", raw));
+            return ResponseEntity.ok(java.util.Map.of("plan", plan, "rawText", raw, "budget", ledgerBudget));
+        }
+        if (com.aitravel.planner.config.RequestDeadline.expired()) {
+            return ResponseEntity.status(504).body(java.util.Map.of("error", "预算调整超时，请稍后重试"));
         }
         return ResponseEntity.status(502).body(java.util.Map.of("error", "LLM 不可用或超时"));
     }
 
+    private static CompletableFuture<ResponseEntity<?>> done(ResponseEntity<?> body) {
+        return CompletableFuture.completedFuture(body);
+    }
+
     @DeleteMapping("/{id}")
     public ResponseEntity<?> delete(@PathVariable("id") UUID id) {
         var cu = currentUser();
         if (cu.isEmpty()) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
-        Optional<Conversation> copt = conversations.findById(id);
-        if (copt.isEmpty()) {
+        Optional<UUID> owner = owners.conversationOwner(id);
+        if (owner.isEmpty()) {
             return ResponseEntity.status(404).body(Map.of("error", "会话不存在"));
         }
-        if (!copt.get().getOwnerId().equals(cu.get().getId())) {
+        if (!owner.get().equals(cu.get().getId())) {
             return ResponseEntity.status(403).body(Map.of("error", "无权限删除该会话"));
         }
-        // 先删除该会话的消息，再删除会话
-        try { messages.deleteByConversationId(id); } catch (Exception ignored) {}
-        conversations.deleteById(id);
+        // 软删除后立即返回；消息与会话行由后台分批清理
+        conversations.markDeleted(id, OffsetDateTime.now());
+        owners.evictConversation(id);
+        search.onConversationDeleted(owner.get());
+        purger.wakeUp();
         return ResponseEntity.ok(Map.of("ok", true));
     }
 
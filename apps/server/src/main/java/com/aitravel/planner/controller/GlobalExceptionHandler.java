@@ -1,11 +1,14 @@
 package com.aitravel.planner.controller;
 
+import com.aitravel.planner.service.ShardMap;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.context.request.async.AsyncRequestTimeoutException;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import jakarta.validation.ConstraintViolationException;
 
 @RestControllerAdvice
@@ -19,6 +22,33 @@ public class GlobalExceptionHandler {
         ));
     }
 
+    // 规划线程池排满：快速拒绝，客户端稍后重试
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<?> handleRejected(RejectedExecutionException ex) {
+        return ResponseEntity.status(503).header("Retry-After", "1").body(Map.of(
+                "status", 503,
+                "error", "服务繁忙，请稍后重试"
+        ));
+    }
+
+    // 用户数据正在跨分片迁移
+    @ExceptionHandler(ShardMap.MigratingException.class)
+    public ResponseEntity<?> handleMigrating(ShardMap.MigratingException ex) {
+        return ResponseEntity.status(503).header("Retry-After", String.valueOf(ex.getRetryAfterSeconds())).body(Map.of(
+                "status", 503,
+                "error", ex.getMessage()
+        ));
+    }
+
+    // 异步请求超过 spring.mvc.async.request-timeout 仍未完成
+    @ExceptionHandler(AsyncRequestTimeoutException.class)
+    public ResponseEntity<?> handleAsyncTimeout(AsyncRequestTimeoutException ex) {
+        return ResponseEntity.status(504).body(Map.of(
+                "status", 504,
+                "error", "处理超时，请稍后重试"
+        ));
+    }
+
     @ExceptionHandler(Exception.class)
     public ResponseEntity<?> handleGeneric(Exception ex) {
         return ResponseEntity.status(500).body(Map.of(
@@ -11,6 +11,7 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/api/v1")
 public class HealthController {
 
+    // 公开的存活检查，不含内部统计（运维统计见需认证的 /actuator/runtime）
     @GetMapping("/health")
     public ResponseEntity<Map<String, Object>> health() {
         Map<String, Object> body = new HashMap<>();
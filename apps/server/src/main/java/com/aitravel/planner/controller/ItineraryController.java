@@ -1,25 +1,39 @@
 package com.aitravel.planner.controller;
 
+import com.aitravel.planner.config.DataOwnerContext;
+import com.aitravel.planner.config.RequestDeadline;
 import com.aitravel.planner.itinerary.DayPlan;
 import com.aitravel.planner.itinerary.ItineraryPlan;
 import com.aitravel.planner.itinerary.Poi;
 import com.aitravel.planner.itinerary.Route;
 import com.aitravel.planner.service.LlmService;
 import com.aitravel.planner.service.AmapService;
+import com.aitravel.planner.service.ItineraryPersistenceService;
+import com.aitravel.planner.service.PlanJobService;
+import com.aitravel.planner.service.PlanMetrics;
+import com.aitravel.planner.service.PlanningExecutor;
+import com.aitravel.planner.service.StreamReplayLog;
 import com.aitravel.planner.map.AmapClient;
 import com.aitravel.planner.itinerary.Budget;
 import com.aitravel.planner.itinerary.BudgetBreakdown;
 import com.aitravel.planner.itinerary.BudgetCategory;
-import com.aitravel.planner.itinerary.BudgetItem;
-import com.aitravel.planner.util.BudgetParser;
-import com.aitravel.planner.util.BudgetVerifier;
+import com.aitravel.planner.util.BudgetEngine;
+import com.aitravel.planner.util.BudgetEstimator;
+import com.aitravel.planner.util.ServerTiming;
 import com.fasterxml.jackson.databind.JsonNode;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import java.util.*;
 import java.math.BigDecimal;
 import java.util.regex.Matcher;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 
 @RestController
@@ -30,122 +44,264 @@ public class ItineraryController {
     private final LlmService llm;
     private final AmapService amap;
     private final AmapClient amapClient;
+    private final ItineraryPersistenceService persistence;
+    private final PlanJobService jobs;
+    private final StreamReplayLog replay;
+    private final PlanningExecutor planning;
+    private final PlanMetrics metrics;
 
-    public ItineraryController(LlmService llm, AmapService amap, AmapClient amapClient) {
+    @Value("${app.plan-jobs.events-timeout-ms:120000}")
+    private long jobEventsTimeoutMs;
+
+    // 行程生成后处理阶段的截止时间，超时采用部分结果
+    @Value("${app.planning.deadlines.geocode-ms:8000}")
+    private long geocodeDeadlineMs;
+
+    @Value("${app.planning.deadlines.raw-daily-ms:20000}")
+    private long rawDailyDeadlineMs;
+
+    @Value("${app.planning.geocode-parallelism:4}")
+    private int geocodeParallelism;
+
+    public ItineraryController(LlmService llm, AmapService amap, AmapClient amapClient, ItineraryPersistenceService persistence,
+                               PlanJobService jobs, StreamReplayLog replay, PlanningExecutor planning, PlanMetrics metrics) {
         this.llm = llm;
         this.amap = amap;
         this.amapClient = amapClient;
+        this.persistence = persistence;
+        this.jobs = jobs;
+        this.replay = replay;
+        this.planning = planning;
+        this.metrics = metrics;
+    }
+
+    // 任务队列的工作线程执行与同步接口相同的生成流程
+    @PostConstruct
+    public void registerPlanJobHandler() {
+        jobs.setHandler(this::generatePlan);
+    }
+
+    private Optional<com.aitravel.planner.auth.JwtUser> currentUser() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null || !(auth.getPrincipal() instanceof com.aitravel.planner.auth.JwtUser)) return Optional.empty();
+        return Optional.of((com.aitravel.planner.auth.JwtUser) auth.getPrincipal());
     }
 
     public record PlanRequest(String text, String city) {}
 
+    // 同步规划类接口均为异步处理：生成流程在 PlanningExecutor 的工作线程上执行，不占用 Tomcat 线程
     @PostMapping("/plan")
-    public ResponseEntity<?> plan(@RequestBody PlanRequest req) {
+    public CompletableFuture<ResponseEntity<?>> plan(@RequestBody PlanRequest req) {
         if (req == null || req.text() == null || req.text().trim().isEmpty()) {
-            return ResponseEntity.badRequest().body(Map.of("error", "text 不能为空"));
+            return done(ResponseEntity.badRequest().body(Map.of("error", "text 不能为空")));
         }
+        UUID ownerId = currentUser().map(com.aitravel.planner.auth.JwtUser::getId).orElse(null);
+        long receivedAt = System.nanoTime();
+        return planning.<ResponseEntity<?>>supply(() -> {
+            long startedAt = System.nanoTime();
+            PlanningExecutor.Stages stages = planning.stages();
+            Optional<Map<String, Object>> body = generatePlan(ownerId, req.text(), req.city(), stages);
+            // Server-Timing：排队、各阶段与总耗时
+            Map<String, Long> timings = new LinkedHashMap<>();
+            timings.put("queue", (startedAt - receivedAt) / 1_000_000);
+            timings.putAll(stages.timings());
+            timings.put("total", (System.nanoTime() - receivedAt) / 1_000_000);
+            String serverTiming = ServerTiming.format(timings);
+            if (body.isPresent()) return ResponseEntity.ok().header(ServerTiming.HEADER, serverTiming).body(body.get());
+            // 请求截止时间已到而 LLM 尚无结果：不再重试，立即返回超时
+            if (RequestDeadline.expired()) {
+                return ResponseEntity.status(504).header(ServerTiming.HEADER, serverTiming)
+                        .body(Map.of("error", "行程生成超时，请稍后重试或缩短行程描述"));
+            }
+            // 不返回降级示例：若 LLM 不可用或超时，直接返回错误
+            return ResponseEntity.status(502).header(ServerTiming.HEADER, serverTiming).body(Map.of(
+                    "error", "LLM 不可用或超时，请稍后重试",
+                    "hint", "请检查 OPENAI_* 配置或提高超时时间"
+            ));
+        });
+    }
+
+    private static CompletableFuture<ResponseEntity<?>> done(ResponseEntity<?> body) {
+        return CompletableFuture.completedFuture(body);
+    }
+
+    /**
+     * 行程生成完整流程（LLM、预算解析、地图补全、按天整理、异步落库），同步接口与任务队列共用。
+     * LLM 不可用或超时时返回 empty。
+     */
+    private Optional<Map<String, Object>> generatePlan(UUID ownerId, String text, String city) {
+        return generatePlan(ownerId, text, city, planning.stages());
+    }
+
+    private Optional<Map<String, Object>> generatePlan(UUID ownerId, String text, String city, PlanningExecutor.Stages stages) {
         // 先尝试调用 LLM 生成行程（同时返回原始文本与结构化计划）
-        Optional<LlmService.PlanResult> resOpt = llm.planWithRaw(req.text(), req.city());
-        if (resOpt.isPresent()) {
-            LlmService.PlanResult pr = resOpt.get();
-            String rawText = pr.getRawText();
+        Optional<LlmService.PlanResult> resOpt = stages.run("llm", () -> llm.planWithRaw(text, city));
+        if (resOpt.isEmpty()) return Optional.empty();
+        LlmService.PlanResult pr = resOpt.get();
+        ItineraryPlan plan = pr.getPlan();
+        // 后处理为小型阶段图：地理编码（高德 I/O）与预算解析、按天整理（CPU）互不依赖，并发执行。
+        // 地理编码按名称分成至多 geocode-parallelism 路并发，只产出“名称 -> 坐标”，汇合时才写回计划，
+        // 超时后仍在运行的请求不会与响应序列化并发修改计划
+        Map<String, List<Double>> located = new java.util.concurrent.ConcurrentHashMap<>();
+        List<String> toLocate = poiNamesToLocate(plan, city);
+        int lanes = Math.max(1, Math.min(geocodeParallelism, toLocate.size()));
+        long geocodeUntil = System.currentTimeMillis() + geocodeDeadlineMs;
+        List<PlanningExecutor.Stage<Map<String, List<Double>>>> geocodes = new ArrayList<>();
+        for (int i = 0; i < lanes && !toLocate.isEmpty(); i++) {
+            List<String> lane = new ArrayList<>();
+            for (int j = i; j < toLocate.size(); j += lanes) lane.add(toLocate.get(j));
+            geocodes.add(stages.fork("geocode", () -> geocodePois(lane, city, located)));
+        }
+        // 单趟完成原文规范化与预算解析/校验，后续直接复用结构化结果
+        BudgetEngine.Result budgetResult = stages.run("budget", () -> BudgetEngine.process(pr.getRawText()));
+        stages.add("normalize", budgetResult.getNormalizeNanos());
+        stages.add("parse-verify", budgetResult.getParseNanos());
+        String rawText = budgetResult.getText();
+        // 优先：使用 LLM 返回的 typed POIs 生成 daily（restaurant/hotel/sight/transport），只依赖名称与类型，无需等待坐标
+        List<Map<String, Object>> typedDaily = stages.run("daily", () -> convertPlanToDaily(plan));
+        // 兜底：若 LLM 未提供类型或为空，再回退到原文解析（可能再次调用 LLM，与地理编码并发）
+        PlanningExecutor.Stage<List<Map<String, Object>>> rawDaily = typedDaily == null || typedDaily.isEmpty()
+                ? stages.fork("raw-daily", () -> parseDailyFromRawText(rawText, city))
+                : null;
+        BudgetBreakdown breakdown = stages.run("breakdown", () -> {
+            applyTotalBudget(plan, rawText, text);
+            if (plan != null && plan.getDays() != null) fillBaseBudget(plan, city);
+            return alignBreakdown(budgetResult.getBreakdown(), plan, city);
+        });
+        // 汇合：超过截止时间的地理编码只写回已取得的坐标，其余 POI 保留模型给出的坐标（仍做跨城过滤）
+        for (PlanningExecutor.Stage<Map<String, List<Double>>> g : geocodes) {
+            stages.join(g, geocodeUntil - System.currentTimeMillis(), () -> located);
+        }
+        Map<String, List<Double>> coords = new HashMap<>(located);
+        ItineraryPlan enriched = stages.run("locate", () -> applyLocations(plan, city, coords));
+        List<Map<String, Object>> daily = rawDaily == null ? typedDaily : stages.join(rawDaily, rawDailyDeadlineMs, List::of);
+        // 生成结果异步落库（plans/days/activities），不阻塞响应
+        persistence.submit(ownerId, null, city, enriched, breakdown);
+        // 按要求：不再以摘要兜底，保持原文（可能为空）
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("plan", enriched);
+        body.put("rawText", rawText);
+        body.put("daily", daily);
+        body.put("budget", breakdown);
+        body.put("budgetAligned", breakdown != null && breakdown.isAligned());
+        // 超过截止时间、采用部分结果的阶段（geocode：部分 POI 无坐标；raw-daily：daily 为空）
+        body.put("partial", stages.late());
+        return Optional.of(body);
+    }
+
+    // 从原文中尝试提取“总预算”并同步到结构化计划（覆盖/填充 baseBudget）
+    private void applyTotalBudget(ItineraryPlan plan, String rawText, String requestText) {
+        Budget tb = extractTotalBudgetFromText(rawText);
+        // 兜底：若原文未提取到总预算，则总是尝试从请求文本中提取（请求里通常包含“总预算<数值> <币种>”）
+        if ((tb == null || tb.getAmount() == null || tb.getAmount().compareTo(BigDecimal.ZERO) <= 0)) {
             try {
-                rawText = com.aitravel.planner.util.BudgetRawTextNormalizer.normalize(rawText);
+                Budget fromReq = extractTotalBudgetFromText(requestText);
+                if (fromReq != null) tb = fromReq;
             } catch (Exception ignored) {}
-            // 从原文中尝试提取“总预算”并同步到结构化计划（覆盖/填充 baseBudget）
-            Budget tb = extractTotalBudgetFromText(rawText);
-            // 兜底：若原文未提取到总预算，则总是尝试从请求文本中提取（请求里通常包含“总预算<数值> <币种>”）
-            if ((tb == null || tb.getAmount() == null || tb.getAmount().compareTo(BigDecimal.ZERO) <= 0)) {
-                try {
-                    Budget fromReq = extractTotalBudgetFromText(req.text());
-                    if (fromReq != null) tb = fromReq;
-                } catch (Exception ignored) {}
-            }
-            if (tb != null) {
-                try { pr.getPlan().setBaseBudget(tb); } catch (Exception ignored) {}
+        }
+        if (tb != null) {
+            try { plan.setBaseBudget(tb); } catch (Exception ignored) {}
+        }
+    }
+
+    // 解析结构化预算；当原文预算缺失或解析为 0 时，依据 baseBudget 提供保守的降级拆分（标记为未对齐）
+    private BudgetBreakdown alignBreakdown(BudgetBreakdown parsed, ItineraryPlan plan, String city) {
+        BudgetBreakdown breakdown = parsed;
+        try {
+            if (breakdown == null) breakdown = new BudgetBreakdown();
+            BigDecimal grand = breakdown.getGrandTotal() == null ? BigDecimal.ZERO : breakdown.getGrandTotal();
+            // 条件1：总计为 0（无预算解析结果）
+            if (grand.compareTo(BigDecimal.ZERO) == 0) {
+                Budget base = plan != null ? plan.getBaseBudget() : null;
+                if (base != null && base.getAmount() != null && base.getAmount().compareTo(BigDecimal.ZERO) > 0) {
+                    BigDecimal total = base.getAmount();
+                    String cur = base.getCurrency() == null || base.getCurrency().isBlank() ? "CNY" : base.getCurrency();
+                    // 按城市价格表与行程结构估算各类占比，再缩放到基础预算
+                    breakdown = BudgetEstimator.scaleTo(BudgetEstimator.estimate(plan, city), total, cur);
+                }
             }
-            ItineraryPlan enriched = enrichPlan(pr.getPlan(), req.city());
-            // 优先：使用 LLM 返回的 typed POIs 生成 daily（restaurant/hotel/sight/transport）
-            List<Map<String, Object>> daily = convertPlanToDaily(enriched);
-            // 兜底：若 LLM 未提供类型或为空，再回退到原文解析
-            if (daily == null || daily.isEmpty()) {
-                daily = parseDailyFromRawText(rawText, req.city());
+            // 条件2：类别有效值过少（例如仅一个类别非零），也进行降级拆分以给出可用的具体项
+            int nonZeroCats = 0;
+            for (BudgetCategory c : breakdown.getCategories()) {
+                if (c.getTotal() != null && c.getTotal().compareTo(BigDecimal.ZERO) > 0) nonZeroCats++;
             }
-            // 解析结构化预算并返回一致性标志
-            BudgetBreakdown breakdown = BudgetParser.parse(rawText);
-            breakdown = BudgetVerifier.fixAndAlign(breakdown);
-            // 当原文预算缺失或解析为 0 时，依据 baseBudget 提供保守的降级拆分（标记为未对齐）
-            try {
-                if (breakdown == null) breakdown = new BudgetBreakdown();
-                BigDecimal grand = breakdown.getGrandTotal() == null ? BigDecimal.ZERO : breakdown.getGrandTotal();
-                // 条件1：总计为 0（无预算解析结果）
-                if (grand.compareTo(BigDecimal.ZERO) == 0) {
-                    Budget base = enriched != null ? enriched.getBaseBudget() : null;
-                    if (base != null && base.getAmount() != null && base.getAmount().compareTo(BigDecimal.ZERO) > 0) {
-                        BigDecimal total = base.getAmount();
-                        String cur = base.getCurrency() == null || base.getCurrency().isBlank() ? "CNY" : base.getCurrency();
-                        java.util.List<BudgetCategory> cats = new java.util.ArrayList<>();
-                        java.util.function.BiFunction<String, BigDecimal, BudgetCategory> mk = (name, amt) -> {
-                            BudgetCategory c = new BudgetCategory(name, cur);
-                            // 单项“估算”以便前端显示具体费用项
-                            BudgetItem it = new BudgetItem(name + "（估算）", amt, cur);
-                            c.getItems().add(it);
-                            c.setTotal(amt);
-                            return c;
-                        };
-                        cats.add(mk.apply("住宿", total.multiply(new BigDecimal("0.40"))));
-                        cats.add(mk.apply("餐饮", total.multiply(new BigDecimal("0.30"))));
-                        cats.add(mk.apply("交通", total.multiply(new BigDecimal("0.15"))));
-                        cats.add(mk.apply("门票", total.multiply(new BigDecimal("0.15"))));
-                        breakdown.setCategories(cats);
-                        breakdown.setCurrency(cur);
-                        breakdown.setGrandTotal(total);
-                        breakdown.setAligned(false);
-                    }
+            if (nonZeroCats < 2) {
+                Budget base = plan != null ? plan.getBaseBudget() : null;
+                if (base != null && base.getAmount() != null && base.getAmount().compareTo(BigDecimal.ZERO) > 0) {
+                    BigDecimal total = base.getAmount();
+                    String cur = base.getCurrency() == null || base.getCurrency().isBlank() ? "CNY" : base.getCurrency();
+                    // 按城市价格表与行程结构估算各类占比，再缩放到基础预算
+                    breakdown = BudgetEstimator.scaleTo(BudgetEstimator.estimate(plan, city), total, cur);
                 }
-                // 条件2：类别有效值过少（例如仅一个类别非零），也进行降级拆分以给出可用的具体项
-                int nonZeroCats = 0;
-                for (BudgetCategory c : breakdown.getCategories()) {
-                    if (c.getTotal() != null && c.getTotal().compareTo(BigDecimal.ZERO) > 0) nonZeroCats++;
-                }
-                if (nonZeroCats < 2) {
-                    Budget base = enriched != null ? enriched.getBaseBudget() : null;
-                    if (base != null && base.getAmount() != null && base.getAmount().compareTo(BigDecimal.ZERO) > 0) {
-                        BigDecimal total = base.getAmount();
-                        String cur = base.getCurrency() == null || base.getCurrency().isBlank() ? "CNY" : base.getCurrency();
-                        java.util.List<BudgetCategory> cats = new java.util.ArrayList<>();
-                        java.util.function.BiFunction<String, BigDecimal, BudgetCategory> mk = (name, amt) -> {
-                            BudgetCategory c = new BudgetCategory(name, cur);
-                            BudgetItem it = new BudgetItem(name + "（估算）", amt, cur);
-                            c.getItems().add(it);
-                            c.setTotal(amt);
-                            return c;
-                        };
-                        cats.add(mk.apply("住宿", total.multiply(new BigDecimal("0.40"))));
-                        cats.add(mk.apply("餐饮", total.multiply(new BigDecimal("0.30"))));
-                        cats.add(mk.apply("交通", total.multiply(new BigDecimal("0.15"))));
-                        cats.add(mk.apply("门票", total.multiply(new BigDecimal("0.15"))));
-                        breakdown.setCategories(cats);
-                        breakdown.setCurrency(cur);
-                        breakdown.setGrandTotal(total);
-                        breakdown.setAligned(false);
-                    }
-                }
-            } catch (Exception ignored) {}
-            // 按要求：不再以摘要兜底，保持原文（可能为空）
-            return ResponseEntity.ok(Map.of(
-                    "plan", enriched,
-                    "rawText", rawText,
-                    "daily", daily,
-                    "budget", breakdown,
-                    "budgetAligned", breakdown != null && breakdown.isAligned()
-            ));
+            }
+        } catch (Exception ignored) {}
+        return breakdown;
+    }
+
+    /**
+     * 任务模式：立即返回任务 id，由工作节点执行生成，结果保存 result-ttl-seconds。
+     * 客户端轮询 GET /plan/jobs/{id}，或订阅 GET /plan/jobs/{id}/events 等待完成事件。
+     */
+    @PostMapping("/plan/jobs")
+    public ResponseEntity<?> submitPlanJob(@RequestBody PlanRequest req) {
+        if (req == null || req.text() == null || req.text().trim().isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "text 不能为空"));
         }
-        // 不返回降级示例：若 LLM 不可用或超时，直接返回错误
-        return ResponseEntity.status(502).body(Map.of(
-                "error", "LLM 不可用或超时，请稍后重试",
-                "hint", "请检查 OPENAI_* 配置或提高超时时间"
-        ));
+        UUID ownerId = currentUser().map(com.aitravel.planner.auth.JwtUser::getId).orElse(null);
+        if (ownerId == null) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
+        Optional<String> id = jobs.submit(ownerId, req.text(), req.city());
+        if (id.isEmpty()) {
+            return ResponseEntity.status(503).header("Retry-After", "5").body(Map.of("error", "排队任务过多，请稍后重试"));
+        }
+        String location = "/api/v1/itinerary/plan/jobs/" + id.get();
+        return ResponseEntity.accepted().header("Location", location)
+                .body(Map.of("id", id.get(), "status", PlanJobService.QUEUED, "poll", location, "events", location + "/events"));
+    }
+
+    @GetMapping("/plan/jobs/{id}")
+    public ResponseEntity<?> planJob(@PathVariable("id") String id) {
+        UUID ownerId = currentUser().map(com.aitravel.planner.auth.JwtUser::getId).orElse(null);
+        if (ownerId == null) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
+        return jobs.view(id, ownerId).<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.status(404).body(Map.of("error", "任务不存在或已过期")));
+    }
+
+    // 订阅任务完成：先下发当前状态，完成时下发 result 事件并关闭连接
+    @GetMapping(path = "/plan/jobs/{id}/events")
+    public SseEmitter planJobEvents(@PathVariable("id") String id) {
+        UUID ownerId = currentUser().map(com.aitravel.planner.auth.JwtUser::getId).orElse(null);
+        if (ownerId == null) throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "未认证");
+        Map<String, Object> current = jobs.view(id, ownerId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "任务不存在或已过期"));
+        SseEmitter emitter = new SseEmitter(jobEventsTimeoutMs);
+        try {
+            sendTimed(emitter, "status", SseEmitter.event().name("status").data(current));
+        } catch (Exception e) {
+            emitter.completeWithError(e);
+            return emitter;
+        }
+        Runnable cancel = jobs.watch(id, view -> {
+            try {
+                sendTimed(emitter, "result", SseEmitter.event().name("result").data(view));
+                emitter.complete();
+            } catch (Exception e) {
+                emitter.completeWithError(e);
+            }
+        });
+        emitter.onCompletion(cancel);
+        emitter.onTimeout(cancel);
+        emitter.onError(e -> cancel.run());
+        return emitter;
+    }
+
+    /**
+     * 本地预算估算（不调用 LLM）：按城市价格表与天数即时返回结构化预算，供预算面板先行渲染。
+     */
+    @GetMapping("/budget/estimate")
+    public ResponseEntity<?> budgetEstimate(@RequestParam(value = "city", required = false) String city,
+                                            @RequestParam(value = "days", required = false) Integer days) {
+        int n = days == null || days <= 0 ? 1 : Math.min(days, 30);
+        return ResponseEntity.ok(BudgetEstimator.estimate(city, n));
     }
 
     /**
@@ -156,8 +312,21 @@ public class ItineraryController {
     public SseEmitter stream(@RequestParam(value = "text", required = false) String text,
                              @RequestParam(value = "city", required = false) String city,
                              @RequestParam(value = "destination", required = false) String destination,
-                             @RequestParam(value = "days", required = false) Integer days) {
+                             @RequestParam(value = "days", required = false) Integer days,
+                             @RequestHeader(value = "Last-Event-ID", required = false) String lastEventIdHeader,
+                             @RequestParam(value = "lastEventId", required = false) String lastEventIdParam) {
         final SseEmitter emitter = new SseEmitter(0L); // 不限时，前端关闭连接即可
+        final UUID ownerId = currentUser().map(com.aitravel.planner.auth.JwtUser::getId).orElse(null);
+        // 断线重连（EventSource 自动携带 Last-Event-ID，原生客户端可用 lastEventId 参数）：
+        // 从重放日志补发之后的事件并继续跟随原生成过程，不重新调用 LLM；流已过期时按新请求处理
+        String[] resume = StreamReplayLog.parseEventId(lastEventIdHeader != null ? lastEventIdHeader : lastEventIdParam);
+        if (resume != null) {
+            StreamReplayLog.Sink sink = replaySink(emitter);
+            if (replay.subscribe(resume[0], Long.parseLong(resume[1]), ownerId, sink)) {
+                detachOnClose(emitter, resume[0], sink);
+                return emitter;
+            }
+        }
         // 参数兼容：若未提供 text，则基于 destination/days 构造提示（在线程外，避免 lambda 捕获非最终变量）
         String effectiveText = text;
         if (effectiveText == null || effectiveText.trim().isEmpty()) {
@@ -178,10 +347,21 @@ public class ItineraryController {
         }
         final String requestText = effectiveText;
         final String requestCity = city;
-        new Thread(() -> {
+        // 事件经重放日志转发：连接断开不影响生成，重连后可补发
+        final String streamId = replay.open(ownerId);
+        StreamReplayLog.Sink sink = replaySink(emitter);
+        replay.subscribe(streamId, 0, ownerId, sink);
+        detachOnClose(emitter, streamId, sink);
+        // 安全上下文不会传递到工作线程，落库所需的用户 id 已在上方捕获；LLM 用量同样按该用户计入配额。
+        // 请求截止时间一并带到生成线程：到点后流式读取结束，以已收到的文本生成 final，地图补全不再发起调用
+        final Long deadline = RequestDeadline.current();
+        new Thread(() -> RequestDeadline.run(deadline, () -> com.aitravel.planner.config.LlmUsageContext.run(ownerId, () -> DataOwnerContext.run(ownerId, () -> {
             try {
-                emitter.send(SseEmitter.event().name("progress").data(Map.of("stage", "init")));
-                emitter.send(SseEmitter.event().name("progress").data(Map.of("stage", "llm_stream_start")));
+                replay.append(streamId, "progress", Map.of("stage", "init"));
+                // 本地估算预算先行下发，预算面板无需等待 LLM 原文
+                int estDays = days != null && days > 0 ? days : inferDays(requestText);
+                replay.append(streamId, "budget_estimate", BudgetEstimator.estimate(requestCity, estDays));
+                replay.append(streamId, "progress", Map.of("stage", "llm_stream_start"));
                 final StringBuilder acc = new StringBuilder();
                 final boolean[] drafted = new boolean[]{false};
                 // 真实流式：按增量文本发送，一定长度后发送一次草稿，让前端先渲染
@@ -196,10 +376,10 @@ public class ItineraryController {
                             ItineraryPlan draftPlan = new ItineraryPlan();
                             draftPlan.setCityCenter(List.of(116.402, 39.907));
                             draftPlan.setDays(List.of(draftDay));
-                            emitter.send(SseEmitter.event().name("draft").data(Map.of(
+                            replay.append(streamId, "draft", Map.of(
                                     "plan", draftPlan,
                                     "rawText", acc.toString()
-                            )));
+                            ));
                             drafted[0] = true;
                         }
                     } catch (Exception ignored) {}
@@ -274,27 +454,66 @@ public class ItineraryController {
                     finalPlanOpt = Optional.of(plan);
                 }
 
-                emitter.send(SseEmitter.event().name("progress").data(Map.of("stage", "llm_stream_end")));
+                replay.append(streamId, "progress", Map.of("stage", "llm_stream_end"));
+                if (RequestDeadline.expired()) replay.append(streamId, "progress", Map.of("stage", "deadline_exceeded"));
                 ItineraryPlan enriched = enrichPlan(finalPlanOpt.get(), requestCity);
                 // 当 LLM 流输出为空时，回退使用请求文本进行预算解析，确保无 API Key 也能得到预算结果
                 String budgetSource = acc.length() > 0 ? acc.toString() : requestText;
-                BudgetBreakdown breakdown = BudgetParser.parse(budgetSource);
-                breakdown = BudgetVerifier.fixAndAlign(breakdown);
-                emitter.send(SseEmitter.event().name("final").data(Map.of(
+                BudgetBreakdown breakdown = BudgetEngine.parseAndAlign(budgetSource);
+                replay.append(streamId, "final", Map.of(
                         "plan", enriched,
                         "rawText", acc.toString(),
                         "budget", breakdown,
                         "budgetAligned", breakdown != null && breakdown.isAligned()
-                )));
-                emitter.complete();
+                ));
+                // final 已下发；落库完成后补发 saved 事件告知行程 id（未保存时直接结束）
+                persistence.submit(ownerId, null, requestCity, enriched, breakdown).whenComplete((planId, err) -> {
+                    try {
+                        if (planId != null) replay.append(streamId, "saved", Map.of("planId", planId));
+                    } catch (Exception ignored) {}
+                    replay.finish(streamId);
+                });
             } catch (Exception e) {
-                try { emitter.send(SseEmitter.event().name("error").data(Map.of("message", e.getMessage()))); } catch (Exception ignored) {}
-                emitter.completeWithError(e);
+                replay.append(streamId, "error", Map.of("message", String.valueOf(e.getMessage())));
+                replay.finish(streamId);
             }
-        }).start();
+        })))).start();
         return emitter;
     }
 
+    // 写出耗时计入 sse.send：客户端读取慢或网络拥塞时，写出会阻塞在 socket 缓冲上
+    private void sendTimed(SseEmitter emitter, String name, SseEmitter.SseEventBuilder event) throws java.io.IOException {
+        long t0 = System.nanoTime();
+        try {
+            emitter.send(event);
+        } finally {
+            metrics.sseSend(name, System.nanoTime() - t0);
+        }
+    }
+
+    // 事件 id 为 "<流 id>:<序号>"，客户端重连时据此续传；data 已是 JSON 文本
+    private StreamReplayLog.Sink replaySink(SseEmitter emitter) {
+        return new StreamReplayLog.Sink() {
+            @Override
+            public void send(StreamReplayLog.Event event) throws java.io.IOException {
+                sendTimed(emitter, event.name(), SseEmitter.event().id(event.id()).name(event.name()).reconnectTime(3000)
+                        .data(event.data(), org.springframework.http.MediaType.APPLICATION_JSON));
+            }
+
+            @Override
+            public void end() {
+                emitter.complete();
+            }
+        };
+    }
+
+    // 连接关闭只退订，生成继续写入重放日志
+    private void detachOnClose(SseEmitter emitter, String streamId, StreamReplayLog.Sink sink) {
+        emitter.onCompletion(() -> replay.unsubscribe(streamId, sink));
+        emitter.onTimeout(() -> replay.unsubscribe(streamId, sink));
+        emitter.onError(e -> replay.unsubscribe(streamId, sink));
+    }
+
     /**
      * 从原始文本中提取“总预算”金额与币种，映射为 Budget。
      * 支持示例："总预算：5000元人民币"、"总预算: 5000 CNY"、"预算控制在5000人民币左右"。
@@ -341,10 +560,47 @@ public class ItineraryController {
      * 基于 POI 名称补齐坐标，并为每天生成一条按顺序连接的路线 polyline。
      */
     private ItineraryPlan enrichPlan(ItineraryPlan plan, String city) {
+        if (plan == null) return null;
+        if (plan.getDays() == null) return plan;
+        long t0 = System.nanoTime();
+        applyLocations(plan, city, geocodePois(poiNamesToLocate(plan, city), city, new HashMap<>()));
+        fillBaseBudget(plan, city);
+        metrics.stage("enrich", System.nanoTime() - t0);
+        return plan;
+    }
+
+    // 需要地理编码的 POI 名称（去重）：明确给出城市时全部按城市重新编码，否则只编码缺少坐标的
+    private List<String> poiNamesToLocate(ItineraryPlan plan, String city) {
+        Set<String> names = new LinkedHashSet<>();
+        if (plan == null || plan.getDays() == null) return new ArrayList<>();
+        boolean hasCity = city != null && !city.isBlank();
+        for (DayPlan day : plan.getDays()) {
+            if (day.getPois() == null) continue;
+            for (Poi p : day.getPois()) {
+                List<Double> c = p.getCoord();
+                if (p.getName() == null || p.getName().isBlank()) continue;
+                if (hasCity || c == null || c.size() < 2) names.add(p.getName());
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    // 逐个地理编码并写入 found（超时后调用方可读取已取得的部分）；阶段被取消时在两次调用之间停止
+    private Map<String, List<Double>> geocodePois(List<String> names, String city, Map<String, List<Double>> found) {
+        for (String name : names) {
+            if (Thread.currentThread().isInterrupted()) break;
+            amap.geocodePlace(name, city).ifPresent(c -> found.put(name, c));
+        }
+        return found;
+    }
+
+    // 把地理编码结果写回 POI，剔除跨城坐标，补齐按顺序连接的路线与城市中心（不访问网络）
+    private ItineraryPlan applyLocations(ItineraryPlan plan, String city, Map<String, List<Double>> found) {
         if (plan == null) return null;
         List<DayPlan> days = plan.getDays();
         if (days == null) return plan;
         final List<Double> cityCenterHint = builtinCityCenter(city);
+        boolean hasCity = city != null && !city.isBlank();
         List<List<Double>> allCoords = new ArrayList<>();
         for (DayPlan day : days) {
             // 补齐 POI 坐标
@@ -354,12 +610,9 @@ public class ItineraryController {
                 for (Poi p : pois) {
                     List<Double> c = p.getCoord();
                     // 当明确给出城市时，优先使用城市限定的地理编码覆盖坐标，避免 LLM 错误坐标污染（如北京）
-                    if (city != null && !city.isBlank()) {
-                        Optional<List<Double>> found = amap.geocodePlace(p.getName(), city);
-                        if (found.isPresent()) { c = found.get(); p.setCoord(c); }
-                    } else if (c == null || c.size() < 2) {
-                        Optional<List<Double>> found = amap.geocodePlace(p.getName(), city);
-                        if (found.isPresent()) { c = found.get(); p.setCoord(c); }
+                    if (hasCity || c == null || c.size() < 2) {
+                        List<Double> g = p.getName() == null ? null : found.get(p.getName());
+                        if (g != null) { c = g; p.setCoord(c); }
                     }
                     // 若仍存在坐标但明显偏离给定城市中心（>80km），视为跨城污染，丢弃
                     if (c != null && c.size() >= 2 && cityCenterHint != null && cityCenterHint.size() == 2) {
@@ -406,13 +659,15 @@ public class ItineraryController {
                 plan.setCityCenter(builtin != null ? builtin : List.of(116.402, 39.907));
             }
         }
-        // 若基础预算缺失，按天数提供默认预算（简化：每人每天 500 CNY）
+        return plan;
+    }
+
+    // 若基础预算缺失，按城市价格表与行程天数/POI 类型本地估算
+    private void fillBaseBudget(ItineraryPlan plan, String city) {
         if (plan.getBaseBudget() == null) {
-            int dcount = days.size();
-            java.math.BigDecimal amt = java.math.BigDecimal.valueOf(Math.max(1, dcount) * 500L);
-            plan.setBaseBudget(new com.aitravel.planner.itinerary.Budget(amt, "CNY"));
+            BudgetBreakdown est = BudgetEstimator.estimate(plan, city);
+            plan.setBaseBudget(new com.aitravel.planner.itinerary.Budget(est.getGrandTotal(), est.getCurrency()));
         }
-        return plan;
     }
 
     /**
@@ -458,12 +713,16 @@ public class ItineraryController {
      * 参数：text/city/day（day 从 1 开始计数）
      */
     @GetMapping("/day-route")
-    public ResponseEntity<?> dayRoute(@RequestParam("text") String text,
-                                      @RequestParam(value = "city", required = false) String city,
-                                      @RequestParam("day") Integer dayIndex) throws Exception {
+    public CompletableFuture<ResponseEntity<?>> dayRoute(@RequestParam("text") String text,
+                                                         @RequestParam(value = "city", required = false) String city,
+                                                         @RequestParam("day") Integer dayIndex) {
         if (dayIndex == null || dayIndex < 1) {
-            return ResponseEntity.badRequest().body(Map.of("error", "day 必须为从 1 开始的正整数"));
+            return done(ResponseEntity.badRequest().body(Map.of("error", "day 必须为从 1 开始的正整数")));
         }
+        return planning.supply(() -> routeForDay(text, city, dayIndex));
+    }
+
+    private ResponseEntity<?> routeForDay(String text, String city, int dayIndex) {
         Optional<ItineraryPlan> planOpt = llm.plan(text, city);
         ItineraryPlan plan;
         if (planOpt.isPresent() && planOpt.get().getDays() != null && !planOpt.get().getDays().isEmpty()) {
@@ -551,17 +810,21 @@ public class ItineraryController {
     public record DayRouteComputeReq(java.util.List<PoiReq> pois, String city) {}
 
     @PostMapping("/day-route/compute")
-    public ResponseEntity<?> dayRouteCompute(@RequestBody DayRouteComputeReq req) throws Exception {
+    public CompletableFuture<ResponseEntity<?>> dayRouteCompute(@RequestBody DayRouteComputeReq req) {
         if (req == null || req.pois() == null) {
-            return ResponseEntity.badRequest().body(java.util.Map.of("error", "请求体缺少 pois"));
+            return done(ResponseEntity.badRequest().body(java.util.Map.of("error", "请求体缺少 pois")));
         }
         if (req.pois().size() < 2) {
             // 与 GET /day-route 行为保持一致：当少于2个POI时返回空路线而非错误
-            return ResponseEntity.ok(java.util.Map.of(
+            return done(ResponseEntity.ok(java.util.Map.of(
                     "routes", java.util.List.of(),
                     "total", java.util.Map.of("distance", 0, "duration", 0)
-            ));
+            )));
         }
+        return planning.supply(() -> computeRoutes(req));
+    }
+
+    private ResponseEntity<?> computeRoutes(DayRouteComputeReq req) {
         java.util.List<PoiReq> pois = req.pois();
         String city = req.city();
         java.util.List<java.util.Map<String, Object>> routesOut = new java.util.ArrayList<>();
@@ -1,8 +1,10 @@
 package com.aitravel.planner.controller;
 
+import com.aitravel.planner.config.ShardContext;
 import com.aitravel.planner.model.Plan;
 import com.aitravel.planner.repo.PlanRepository;
-import com.aitravel.planner.repo.ConversationRepository;
+import com.aitravel.planner.service.OwnershipCache;
+import com.aitravel.planner.service.ShardMap;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -19,11 +21,13 @@ import java.util.UUID;
 @CrossOrigin(origins = "*", allowCredentials = "false")
 public class PlanAssociationController {
     private final PlanRepository plans;
-    private final ConversationRepository conversations;
+    private final OwnershipCache owners;
+    private final ShardMap shards;
 
-    public PlanAssociationController(PlanRepository plans, ConversationRepository conversations) {
+    public PlanAssociationController(PlanRepository plans, OwnershipCache owners, ShardMap shards) {
         this.plans = plans;
-        this.conversations = conversations;
+        this.owners = owners;
+        this.shards = shards;
     }
 
     private Optional<com.aitravel.planner.auth.JwtUser> currentUser() {
@@ -46,11 +50,12 @@ public class PlanAssociationController {
 
         // 校验并设置会话归属
         if (req.conversationId() != null) {
-            var copt = conversations.findById(req.conversationId());
-            if (copt.isEmpty()) {
+            // 会话位于当前用户所在分片（非本人会话在该分片上查不到，同样返回 404）
+            Optional<UUID> owner = ShardContext.call(shards.shardFor(cu.get().getId()), () -> owners.conversationOwner(req.conversationId()));
+            if (owner.isEmpty()) {
                 return ResponseEntity.status(404).body(Map.of("error", "会话不存在"));
             }
-            if (!copt.get().getOwnerId().equals(cu.get().getId())) {
+            if (!owner.get().equals(cu.get().getId())) {
                 return ResponseEntity.status(403).body(Map.of("error", "无权限关联该会话"));
             }
         }
@@ -2,9 +2,13 @@ package com.aitravel.planner.controller;
 
 import com.aitravel.planner.model.Day;
 import com.aitravel.planner.model.Plan;
-import com.aitravel.planner.repo.DayRepository;
+import com.aitravel.planner.repo.ActivityRepository;
 import com.aitravel.planner.repo.PlanRepository;
+import com.aitravel.planner.service.ItineraryPersistenceService;
+import com.aitravel.planner.service.PlanDetailService;
 import com.aitravel.planner.service.PlanningService;
+import com.aitravel.planner.util.KeysetCursor;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -20,13 +24,18 @@ import java.util.stream.Collectors;
 @CrossOrigin(origins = "*", allowCredentials = "false")
 public class PlansController {
     private final PlanRepository plans;
-    private final DayRepository days;
+    private final ActivityRepository activities;
     private final PlanningService planning;
+    private final ItineraryPersistenceService persistence;
+    private final PlanDetailService details;
 
-    public PlansController(PlanRepository plans, DayRepository days, PlanningService planning) {
+    public PlansController(PlanRepository plans, ActivityRepository activities, PlanningService planning,
+                           ItineraryPersistenceService persistence, PlanDetailService details) {
         this.plans = plans;
-        this.days = days;
+        this.activities = activities;
         this.planning = planning;
+        this.persistence = persistence;
+        this.details = details;
     }
 
     private Optional<com.aitravel.planner.auth.JwtUser> currentUser() {
@@ -91,21 +100,92 @@ public class PlansController {
         if (!popt.get().getOwnerId().equals(cu.get().getId())) {
             return ResponseEntity.status(403).body(Map.of("error", "无权限查看该行程"));
         }
+        // 天与活动走读模型（固定两条查询，版本未变时命中缓存）
         Plan plan = popt.get();
-        List<Day> ds = days.findByPlanIdOrderByIndexAsc(id);
-        return ResponseEntity.ok(Map.of("plan", plan, "days", ds));
+        return ResponseEntity.ok(Map.of("plan", plan, "days", details.days(plan)));
     }
 
+    /**
+     * 从库中重建已保存的生成行程（ItineraryPlan + 预算），不调用 LLM / 高德。
+     */
+    @GetMapping("/{id}/itinerary")
+    public ResponseEntity<?> itinerary(@PathVariable("id") UUID id) {
+        var cu = currentUser();
+        if (cu.isEmpty()) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
+        Optional<Plan> popt = plans.findById(id);
+        if (popt.isEmpty()) {
+            return ResponseEntity.status(404).body(Map.of("error", "行程不存在"));
+        }
+        if (!popt.get().getOwnerId().equals(cu.get().getId())) {
+            return ResponseEntity.status(403).body(Map.of("error", "无权限查看该行程"));
+        }
+        return ResponseEntity.ok(persistence.load(popt.get()));
+    }
+
+    /**
+     * 行程列表（键集分页）：按 updatedAt 倒序，下一页游标通过 X-Next-Cursor 响应头返回。
+     */
     @GetMapping
-    public ResponseEntity<?> list(@RequestParam(value = "ownerId", required = false) UUID ownerId) {
+    public ResponseEntity<?> list(@RequestParam(value = "ownerId", required = false) UUID ownerId,
+                                  @RequestParam(value = "limit", required = false) Integer limit,
+                                  @RequestParam(value = "cursor", required = false) String cursor,
+                                  @RequestParam(value = "tag", required = false) String tag) {
         var cu = currentUser();
         if (cu.isEmpty()) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
         UUID oid = ownerId == null ? cu.get().getId() : ownerId;
         if (!oid.equals(cu.get().getId())) {
             return ResponseEntity.status(403).body(Map.of("error", "不能查询其他用户的行程"));
         }
-        List<Plan> res = plans.findByOwnerId(oid);
-        return ResponseEntity.ok(res);
+        KeysetCursor after = KeysetCursor.decode(cursor);
+        if (cursor != null && !cursor.isBlank() && after == null) {
+            return ResponseEntity.badRequest().body(Map.of("error", "cursor 无效"));
+        }
+        int size = KeysetCursor.pageSize(limit, KeysetCursor.DEFAULT_PAGE);
+        PageRequest page = PageRequest.of(0, size);
+        List<Plan> res;
+        if (tag != null && !tag.isBlank()) {
+            res = after == null
+                    ? plans.findPageByOwnerAndTag(oid, tag.trim(), page)
+                    : plans.findPageByOwnerAndTagAfter(oid, tag.trim(), after.getAt(), after.getId(), page);
+        } else {
+            res = after == null
+                    ? plans.findPageByOwner(oid, page)
+                    : plans.findPageByOwnerAfter(oid, after.getAt(), after.getId(), page);
+        }
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok();
+        if (res.size() == size) {
+            Plan last = res.get(res.size() - 1);
+            ok.header(KeysetCursor.HEADER, new KeysetCursor(last.getUpdatedAt(), last.getId()).encode());
+        }
+        return ok.body(res);
+    }
+
+    /**
+     * 活动检索（由数据库过滤）：按类型，或按中心点 + 半径（公里）检索当前用户行程中的活动。
+     */
+    @GetMapping("/activities")
+    public ResponseEntity<?> activities(@RequestParam(value = "type", required = false) String type,
+                                        @RequestParam(value = "lng", required = false) Double lng,
+                                        @RequestParam(value = "lat", required = false) Double lat,
+                                        @RequestParam(value = "radiusKm", required = false) Double radiusKm,
+                                        @RequestParam(value = "limit", required = false) Integer limit) {
+        var cu = currentUser();
+        if (cu.isEmpty()) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
+        int size = KeysetCursor.pageSize(limit, KeysetCursor.DEFAULT_PAGE);
+        PageRequest page = PageRequest.of(0, size);
+        String tp = type == null || type.isBlank() ? null : type.trim();
+        if (lng != null && lat != null) {
+            double r = radiusKm == null || radiusKm <= 0 ? 3.0 : Math.min(radiusKm, 100.0);
+            // 公里换算为经纬度包围盒（经度跨度随纬度收窄）
+            double dLat = r / 111.0;
+            double dLng = r / (111.0 * Math.max(Math.cos(Math.toRadians(lat)), 0.01));
+            return ResponseEntity.ok(activities.findNear(cu.get().getId(), lng, lat,
+                    lng - dLng, lng + dLng, lat - dLat, lat + dLat, tp, page));
+        }
+        if (tp == null) {
+            return ResponseEntity.badRequest().body(Map.of("error", "需提供 type 或 lng/lat"));
+        }
+        return ResponseEntity.ok(activities.findByOwnerAndType(cu.get().getId(), tp, page));
     }
 
     public record CreatePlanRequest(
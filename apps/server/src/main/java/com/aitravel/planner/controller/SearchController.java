@@ -0,0 +1,45 @@
+package com.aitravel.planner.controller;
+
+import com.aitravel.planner.service.SearchService;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+import java.util.Optional;
+
+@RestController
+@RequestMapping("/api/v1/search")
+@CrossOrigin(origins = "*", allowCredentials = "false")
+public class SearchController {
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 50;
+    private static final int MAX_QUERY_LENGTH = 100;
+
+    private final SearchService search;
+
+    public SearchController(SearchService search) {
+        this.search = search;
+    }
+
+    private Optional<com.aitravel.planner.auth.JwtUser> currentUser() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null || !(auth.getPrincipal() instanceof com.aitravel.planner.auth.JwtUser)) return Optional.empty();
+        return Optional.of((com.aitravel.planner.auth.JwtUser) auth.getPrincipal());
+    }
+
+    // 搜索当前用户的消息正文、会话标题、行程目的地与标签，按相关度排序分页
+    @GetMapping
+    public ResponseEntity<?> search(@RequestParam("q") String q,
+                                    @RequestParam(value = "page", defaultValue = "0") int page,
+                                    @RequestParam(value = "size", required = false) Integer size) {
+        var cu = currentUser();
+        if (cu.isEmpty()) return ResponseEntity.status(401).body(Map.of("error", "未认证"));
+        if (q == null || q.isBlank()) return ResponseEntity.badRequest().body(Map.of("error", "q 不能为空"));
+        if (q.length() > MAX_QUERY_LENGTH) return ResponseEntity.badRequest().body(Map.of("error", "关键词过长"));
+        if (page < 0) return ResponseEntity.badRequest().body(Map.of("error", "page 无效"));
+        int s = size == null || size <= 0 ? DEFAULT_PAGE_SIZE : Math.min(size, MAX_PAGE_SIZE);
+        return ResponseEntity.ok(search.search(cu.get().getId(), q.trim(), page, s));
+    }
+}
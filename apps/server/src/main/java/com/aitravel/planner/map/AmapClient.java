@@ -1,5 +1,7 @@
 package com.aitravel.planner.map;
 
+import com.aitravel.planner.config.DeadlineRequestFactory;
+import com.aitravel.planner.service.PlanMetrics;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
@@ -22,14 +24,18 @@ import java.nio.charset.StandardCharsets;
 public class AmapClient {
     private static final Logger log = LoggerFactory.getLogger(AmapClient.class);
     private final String apiKey;
-    private final RestTemplate http = new RestTemplate();
+    private final RestTemplate http;
+    private final PlanMetrics metrics;
     private final ObjectMapper mapper = new ObjectMapper();
 
     private String getJson(String url) {
+        long t0 = System.nanoTime();
         try {
             ResponseEntity<String> res = http.getForEntity(url, String.class);
+            metrics.amapRequest(url, PlanMetrics.statusClass(res.getStatusCode().value()), System.nanoTime() - t0);
             return res.getBody();
         } catch (Exception e) {
+            metrics.amapRequest(url, PlanMetrics.outcome(e), System.nanoTime() - t0);
             log.warn("AMap HTTP call failed for {}: {}", url, e.toString());
             throw new ResponseStatusException(HttpStatus.BAD_GATEWAY, "AMap HTTP error: " + e.getMessage());
         }
@@ -41,7 +47,13 @@ public class AmapClient {
         return enc.replace("%2C", ",");
     }
 
-    public AmapClient(@Value("${amap.api.key:}") String apiKeyProp) {
+    public AmapClient(@Value("${amap.api.key:}") String apiKeyProp,
+                      @Value("${amap.http.connectTimeoutMs:2000}") int connectTimeoutMs,
+                      @Value("${amap.http.readTimeoutMs:5000}") int readTimeoutMs,
+                      PlanMetrics metrics) {
+        this.metrics = metrics;
+        // 超时不超过当前请求的剩余时间，截止后直接失败
+        this.http = new RestTemplate(new DeadlineRequestFactory(connectTimeoutMs, readTimeoutMs));
         String envKey = System.getenv("AMAP_API_KEY");
         String resolved = (apiKeyProp != null && !apiKeyProp.isBlank()) ? apiKeyProp : envKey;
         if (resolved == null || resolved.isBlank()) {
@@ -6,11 +6,16 @@ import org.hibernate.type.SqlTypes;
 
 import java.math.BigDecimal;
 import java.time.LocalTime;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 @Entity
-@Table(name = "activities")
+@Table(name = "activities", indexes = {
+        @Index(name = "idx_activities_day", columnList = "day_id"),
+        @Index(name = "idx_activities_type", columnList = "type"),
+        @Index(name = "idx_activities_lng_lat", columnList = "lng, lat")
+})
 public class Activity {
     @Id
     @GeneratedValue
@@ -19,13 +24,27 @@ public class Activity {
     @Column(name = "day_id", nullable = false)
     private UUID dayId;
 
+    @Column(name = "type")
+    private String type;
+
     @Column(nullable = false)
     private String title;
 
+    // 当日内的顺序（POI 在行程中的先后）
+    @Column(name = "seq")
+    private Integer seq;
+
     @JdbcTypeCode(SqlTypes.JSON)
     @Column(name = "poi")
     private Map<String, Object> poi;
 
+    // 由 poi.coord 派生的经纬度列：H2 不支持 JSON 路径运算，坐标检索统一走普通列与 B-Tree 索引
+    @Column(name = "lng")
+    private Double lng;
+
+    @Column(name = "lat")
+    private Double lat;
+
     @Column(name = "start_time")
     private LocalTime startTime;
 
@@ -55,12 +74,33 @@ public class Activity {
     public UUID getDayId() { return dayId; }
     public void setDayId(UUID dayId) { this.dayId = dayId; }
 
+    public String getType() { return type; }
+    public void setType(String type) { this.type = type; }
+
     public String getTitle() { return title; }
     public void setTitle(String title) { this.title = title; }
 
+    public Integer getSeq() { return seq; }
+    public void setSeq(Integer seq) { this.seq = seq; }
+
     public Map<String, Object> getPoi() { return poi; }
     public void setPoi(Map<String, Object> poi) { this.poi = poi; }
 
+    public Double getLng() { return lng; }
+    public Double getLat() { return lat; }
+
+    @PrePersist
+    @PreUpdate
+    void syncCoord() {
+        lng = null;
+        lat = null;
+        if (poi != null && poi.get("coord") instanceof List<?> c && c.size() >= 2
+                && c.get(0) instanceof Number x && c.get(1) instanceof Number y) {
+            lng = x.doubleValue();
+            lat = y.doubleValue();
+        }
+    }
+
     public LocalTime getStartTime() { return startTime; }
     public void setStartTime(LocalTime startTime) { this.startTime = startTime; }
 
@@ -0,0 +1,74 @@
+package com.aitravel.planner.model;
+
+import com.aitravel.planner.itinerary.BudgetCategory;
+import com.aitravel.planner.itinerary.DayPlan;
+import jakarta.persistence.*;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 会话级预算账本：保存结构化的类别/条目、已花费金额、每日安排与摘要，
+ * 供预算调整时增量重算并构造精简的增量提示。
+ */
+@Entity
+@Table(name = "budget_ledgers")
+public class BudgetLedger {
+    @Id
+    @Column(name = "conversation_id")
+    private UUID conversationId;
+
+    @Column(nullable = false)
+    private String currency = "CNY";
+
+    @Column(name = "planned_total", nullable = false)
+    private BigDecimal plannedTotal = BigDecimal.ZERO;
+
+    @Column(name = "spent_amount", nullable = false)
+    private BigDecimal spentAmount = BigDecimal.ZERO;
+
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(name = "categories")
+    private List<BudgetCategory> categories = new ArrayList<>();
+
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(name = "day_summaries")
+    private List<String> daySummaries = new ArrayList<>();
+
+    // 当前完整的每日安排，增量调整时与新天数合并后返回
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(name = "days")
+    private List<DayPlan> days = new ArrayList<>();
+
+    @Column(name = "updated_at", nullable = false)
+    private OffsetDateTime updatedAt = OffsetDateTime.now();
+
+    public UUID getConversationId() { return conversationId; }
+    public void setConversationId(UUID conversationId) { this.conversationId = conversationId; }
+
+    public String getCurrency() { return currency; }
+    public void setCurrency(String currency) { this.currency = currency; }
+
+    public BigDecimal getPlannedTotal() { return plannedTotal; }
+    public void setPlannedTotal(BigDecimal plannedTotal) { this.plannedTotal = plannedTotal; }
+
+    public BigDecimal getSpentAmount() { return spentAmount; }
+    public void setSpentAmount(BigDecimal spentAmount) { this.spentAmount = spentAmount; }
+
+    public List<BudgetCategory> getCategories() { return categories; }
+    public void setCategories(List<BudgetCategory> categories) { this.categories = categories; }
+
+    public List<String> getDaySummaries() { return daySummaries; }
+    public void setDaySummaries(List<String> daySummaries) { this.daySummaries = daySummaries; }
+
+    public List<DayPlan> getDays() { return days; }
+    public void setDays(List<DayPlan> days) { this.days = days; }
+
+    public OffsetDateTime getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(OffsetDateTime updatedAt) { this.updatedAt = updatedAt; }
+}
@@ -5,7 +5,9 @@ import java.time.OffsetDateTime;
 import java.util.UUID;
 
 @Entity
-@Table(name = "conversations")
+@Table(name = "conversations", indexes = {
+        @Index(name = "idx_conversations_owner_updated", columnList = "owner_id, updated_at DESC, id DESC")
+})
 public class Conversation {
     @Id
     @GeneratedValue
@@ -0,0 +1,47 @@
+package com.aitravel.planner.model;
+
+import jakarta.persistence.*;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * 会话分片目录（位于主分片）：记录每个用户的会话数据所在分片。
+ * 新用户按一致性哈希落位；再平衡迁移完成后更新此处的分片号。
+ */
+@Entity
+@Table(name = "conversation_shards")
+public class ConversationShard {
+    @Id
+    @Column(name = "owner_id")
+    private UUID ownerId;
+
+    @Column(nullable = false)
+    private int shard;
+
+    // 迁移栅栏令牌：每次取得租约或切换分片时递增
+    @Column(nullable = false)
+    private long epoch;
+
+    // 迁移租约到期时间，非空且未过期时各节点拒绝路由该用户的请求
+    @Column(name = "lease_until")
+    private OffsetDateTime leaseUntil;
+
+    @Column(name = "updated_at", nullable = false)
+    private OffsetDateTime updatedAt = OffsetDateTime.now();
+
+    public UUID getOwnerId() { return ownerId; }
+    public void setOwnerId(UUID ownerId) { this.ownerId = ownerId; }
+
+    public int getShard() { return shard; }
+    public void setShard(int shard) { this.shard = shard; }
+
+    public long getEpoch() { return epoch; }
+    public void setEpoch(long epoch) { this.epoch = epoch; }
+
+    public OffsetDateTime getLeaseUntil() { return leaseUntil; }
+    public void setLeaseUntil(OffsetDateTime leaseUntil) { this.leaseUntil = leaseUntil; }
+
+    public OffsetDateTime getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(OffsetDateTime updatedAt) { this.updatedAt = updatedAt; }
+}
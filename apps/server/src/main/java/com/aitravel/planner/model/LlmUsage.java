@@ -0,0 +1,76 @@
+package com.aitravel.planner.model;
+
+import jakarta.persistence.*;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * LLM 用量台账（位于主分片）：按用户、自然日累计调用次数与模型回报的 token 数，用于每日配额。
+ */
+@Entity
+@Table(name = "llm_usage")
+@IdClass(LlmUsage.Key.class)
+public class LlmUsage {
+    @Id
+    @Column(name = "user_id")
+    private UUID userId;
+
+    @Id
+    @Column(name = "usage_date")
+    private LocalDate usageDate;
+
+    @Column(nullable = false)
+    private long requests;
+
+    @Column(name = "prompt_tokens", nullable = false)
+    private long promptTokens;
+
+    @Column(name = "completion_tokens", nullable = false)
+    private long completionTokens;
+
+    @Column(name = "updated_at", nullable = false)
+    private OffsetDateTime updatedAt = OffsetDateTime.now();
+
+    public UUID getUserId() { return userId; }
+    public void setUserId(UUID userId) { this.userId = userId; }
+
+    public LocalDate getUsageDate() { return usageDate; }
+    public void setUsageDate(LocalDate usageDate) { this.usageDate = usageDate; }
+
+    public long getRequests() { return requests; }
+    public void setRequests(long requests) { this.requests = requests; }
+
+    public long getPromptTokens() { return promptTokens; }
+    public void setPromptTokens(long promptTokens) { this.promptTokens = promptTokens; }
+
+    public long getCompletionTokens() { return completionTokens; }
+    public void setCompletionTokens(long completionTokens) { this.completionTokens = completionTokens; }
+
+    public OffsetDateTime getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(OffsetDateTime updatedAt) { this.updatedAt = updatedAt; }
+
+    public static class Key implements Serializable {
+        private UUID userId;
+        private LocalDate usageDate;
+
+        public Key() {}
+        public Key(UUID userId, LocalDate usageDate) {
+            this.userId = userId;
+            this.usageDate = usageDate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && Objects.equals(userId, k.userId) && Objects.equals(usageDate, k.usageDate);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, usageDate);
+        }
+    }
+}
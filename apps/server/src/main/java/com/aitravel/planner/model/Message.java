@@ -1,12 +1,25 @@
 package com.aitravel.planner.model;
 
+import com.aitravel.planner.util.MessageCompression;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import jakarta.persistence.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.time.OffsetDateTime;
 import java.util.UUID;
 
 @Entity
-@Table(name = "messages")
+@Table(name = "messages", indexes = {
+        @Index(name = "idx_messages_conv_created", columnList = "conversation_id, created_at, id")
+})
 public class Message {
+    private static final Logger log = LoggerFactory.getLogger(Message.class);
+
+    /** 冷数据无法解压（数据损坏、字典缺失）时返回的正文，同时 contentUnavailable 为 true。 */
+    public static final String UNAVAILABLE = "[消息内容暂不可用]";
+
     @Id
     @GeneratedValue
     private UUID id;
@@ -20,6 +33,19 @@ public class Message {
     @Column(name = "content", nullable = false, columnDefinition = "TEXT")
     private String content;
 
+    // 冷数据：正文压缩后移到 message_cold（cold_id 即本消息 id），content 置空，读取时按需解压。
+    // 查询须 fetch 该关联（见 MessageRepository），关闭 OSIV 后实体离开事务即不能再懒加载
+    @JsonIgnore
+    @OneToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "cold_id", foreignKey = @ForeignKey(ConstraintMode.NO_CONSTRAINT))
+    private MessageColdBlock cold;
+
+    @Transient
+    private String inflated;
+
+    @Transient
+    private boolean unavailable;
+
     @Column
     private Integer tokens;
 
@@ -35,8 +61,36 @@ public class Message {
     public String getRole() { return role; }
     public void setRole(String role) { this.role = role; }
 
-    public String getContent() { return content; }
-    public void setContent(String content) { this.content = content; }
+    public String getContent() {
+        if (cold == null) return content;
+        if (inflated == null) {
+            try {
+                inflated = MessageCompression.inflate(cold.getData());
+            } catch (RuntimeException e) {
+                // 单条冷消息损坏不影响整页响应
+                log.warn("冷消息 {} 解压失败: {}", id, e.toString());
+                unavailable = true;
+                inflated = UNAVAILABLE;
+            }
+        }
+        return inflated;
+    }
+    public void setContent(String content) {
+        this.content = content;
+        this.cold = null;
+        this.inflated = null;
+        this.unavailable = false;
+    }
+
+    @JsonIgnore
+    public boolean isCold() { return cold != null; }
+
+    /** 正文无法读取时为 true（响应中仅在此时输出该字段）。 */
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public boolean isContentUnavailable() {
+        getContent();
+        return unavailable;
+    }
 
     public Integer getTokens() { return tokens; }
     public void setTokens(Integer tokens) { this.tokens = tokens; }
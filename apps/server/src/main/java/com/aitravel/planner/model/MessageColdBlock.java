@@ -0,0 +1,30 @@
+package com.aitravel.planner.model;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+import java.util.UUID;
+
+/**
+ * 冷消息正文（与 messages 同分片）：分层任务把长消息正文压缩后移到此表，messages 行只保留 cold_id 标记，
+ * 热表行保持短小，列表与扫描不必读取大字段。数据格式见 MessageCompression。
+ */
+@Entity
+@Table(name = "message_cold")
+public class MessageColdBlock {
+    @Id
+    @Column(name = "message_id")
+    private UUID messageId;
+
+    // 显式映射为 bytea，避免按长度推断成 H2（PostgreSQL 模式）不支持的 blob
+    @JdbcTypeCode(SqlTypes.VARBINARY)
+    @Column(nullable = false, columnDefinition = "bytea")
+    private byte[] data;
+
+    public UUID getMessageId() { return messageId; }
+    public void setMessageId(UUID messageId) { this.messageId = messageId; }
+
+    public byte[] getData() { return data; }
+    public void setData(byte[] data) { this.data = data; }
+}
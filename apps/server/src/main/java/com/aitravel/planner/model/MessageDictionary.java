@@ -0,0 +1,37 @@
+package com.aitravel.planner.model;
+
+import jakarta.persistence.*;
+
+import java.time.OffsetDateTime;
+
+/**
+ * 冷消息压缩字典（位于主分片）：由近期助手消息训练，压缩数据头部记录所用字典 id。
+ * 字典只增不改，已压缩的数据始终能找到对应字典。
+ */
+@Entity
+@Table(name = "message_dictionaries")
+public class MessageDictionary {
+    @Id
+    private Integer id;
+
+    @Column(nullable = false, length = 64 * 1024)
+    private byte[] data;
+
+    @Column(name = "sample_count", nullable = false)
+    private int sampleCount;
+
+    @Column(name = "created_at", nullable = false)
+    private OffsetDateTime createdAt = OffsetDateTime.now();
+
+    public Integer getId() { return id; }
+    public void setId(Integer id) { this.id = id; }
+
+    public byte[] getData() { return data; }
+    public void setData(byte[] data) { this.data = data; }
+
+    public int getSampleCount() { return sampleCount; }
+    public void setSampleCount(int sampleCount) { this.sampleCount = sampleCount; }
+
+    public OffsetDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(OffsetDateTime createdAt) { this.createdAt = createdAt; }
+}
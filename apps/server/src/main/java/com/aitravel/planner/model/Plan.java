@@ -10,7 +10,9 @@ import java.time.OffsetDateTime;
 import java.util.UUID;
 
 @Entity
-@Table(name = "plans")
+@Table(name = "plans", indexes = {
+        @Index(name = "idx_plans_owner_updated", columnList = "owner_id, updated_at DESC, id DESC")
+})
 public class Plan {
     @Id
     @GeneratedValue
@@ -1,11 +1,42 @@
 package com.aitravel.planner.repo;
 
 import com.aitravel.planner.model.Activity;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 import java.util.UUID;
 
+@Transactional(readOnly = true)
 public interface ActivityRepository extends JpaRepository<Activity, UUID> {
     List<Activity> findByDayId(UUID dayId);
-}
\ No newline at end of file
+
+    // 行程详情：一条关联查询取回全部活动，按天序、当日顺序排列
+    @Query("select a from Activity a, Day d where a.dayId = d.id and d.planId = :planId order by d.index asc, a.seq asc")
+    List<Activity> findAllByPlanIdOrdered(@Param("planId") UUID planId);
+
+    // 集合删除某行程下所有天的活动（H2 开发库无外键级联时也能清理干净）
+    @Modifying
+    @Transactional
+    @Query("delete from Activity a where a.dayId in (select d.id from Day d where d.planId = :planId)")
+    int deleteAllByPlanId(@Param("planId") UUID planId);
+
+    // 按活动类型（hotel/restaurant/transport/sight）筛选某属主的活动，走 idx_activities_type
+    @Query("select a from Activity a, Day d, Plan p where a.dayId = d.id and d.planId = p.id " +
+            "and p.ownerId = :ownerId and a.type = :type order by p.updatedAt desc, d.index asc, a.seq asc")
+    List<Activity> findByOwnerAndType(@Param("ownerId") UUID ownerId, @Param("type") String type, Pageable page);
+
+    // 坐标范围检索：经纬度包围盒在库内过滤（idx_activities_lng_lat），按与中心点的平面距离排序
+    @Query("select a from Activity a, Day d, Plan p where a.dayId = d.id and d.planId = p.id and p.ownerId = :ownerId " +
+            "and a.lng between :minLng and :maxLng and a.lat between :minLat and :maxLat " +
+            "and (:type is null or a.type = :type) " +
+            "order by (a.lng - :lng) * (a.lng - :lng) + (a.lat - :lat) * (a.lat - :lat) asc")
+    List<Activity> findNear(@Param("ownerId") UUID ownerId, @Param("lng") double lng, @Param("lat") double lat,
+                            @Param("minLng") double minLng, @Param("maxLng") double maxLng,
+                            @Param("minLat") double minLat, @Param("maxLat") double maxLat,
+                            @Param("type") String type, Pageable page);
+}
@@ -0,0 +1,9 @@
+package com.aitravel.planner.repo;
+
+import com.aitravel.planner.model.BudgetLedger;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.UUID;
+
+public interface BudgetLedgerRepository extends JpaRepository<BudgetLedger, UUID> {
+}
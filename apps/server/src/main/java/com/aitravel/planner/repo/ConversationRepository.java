@@ -1,12 +1,46 @@
 package com.aitravel.planner.repo;
 
 import com.aitravel.planner.model.Conversation;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.OffsetDateTime;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
+@Transactional(readOnly = true)
 public interface ConversationRepository extends JpaRepository<Conversation, UUID> {
     List<Conversation> findByOwnerIdOrderByUpdatedAtDesc(UUID ownerId);
-}
 
+    // 属主校验用的单列查询（未删除会话）
+    @Query("select c.ownerId from Conversation c where c.id = :id and c.status <> 'deleted'")
+    Optional<UUID> findActiveOwnerId(@Param("id") UUID id);
+
+    // 带属主校验的 updated_at 刷新：返回 0 表示会话不存在或不属于该用户
+    @Modifying
+    @Transactional
+    @Query("update Conversation c set c.updatedAt = :now where c.id = :id and c.ownerId = :ownerId and c.status <> 'deleted'")
+    int touch(@Param("id") UUID id, @Param("ownerId") UUID ownerId, @Param("now") OffsetDateTime now);
+
+    // 软删除：仅标记状态，消息由后台分批清理
+    @Modifying
+    @Transactional
+    @Query("update Conversation c set c.status = 'deleted', c.updatedAt = :now where c.id = :id")
+    int markDeleted(@Param("id") UUID id, @Param("now") OffsetDateTime now);
+
+    // 键集分页（走 idx_conversations_owner_updated），Pageable 仅用于 LIMIT，不触发 count 查询
+    @Query("select c.id as id, c.title as title, c.status as status, c.createdAt as createdAt, c.updatedAt as updatedAt " +
+            "from Conversation c where c.ownerId = :ownerId and c.status <> 'deleted' order by c.updatedAt desc, c.id desc")
+    List<ConversationSummary> findPageByOwner(@Param("ownerId") UUID ownerId, Pageable page);
+
+    @Query("select c.id as id, c.title as title, c.status as status, c.createdAt as createdAt, c.updatedAt as updatedAt " +
+            "from Conversation c where c.ownerId = :ownerId and c.status <> 'deleted' " +
+            "and (c.updatedAt < :at or (c.updatedAt = :at and c.id < :id)) order by c.updatedAt desc, c.id desc")
+    List<ConversationSummary> findPageByOwnerAfter(@Param("ownerId") UUID ownerId, @Param("at") OffsetDateTime at,
+                                                   @Param("id") UUID id, Pageable page);
+}
@@ -0,0 +1,16 @@
+package com.aitravel.planner.repo;
+
+import com.aitravel.planner.model.ConversationShard;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+import java.util.UUID;
+
+@Transactional(readOnly = true)
+public interface ConversationShardRepository extends JpaRepository<ConversationShard, UUID> {
+    // 各分片的用户数
+    @Query("select s.shard, count(s) from ConversationShard s group by s.shard order by s.shard")
+    List<Object[]> countByShard();
+}
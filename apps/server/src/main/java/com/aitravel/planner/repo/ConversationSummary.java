@@ -0,0 +1,15 @@
+package com.aitravel.planner.repo;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * 会话列表投影：只取列表展示所需的列。
+ */
+public interface ConversationSummary {
+    UUID getId();
+    String getTitle();
+    String getStatus();
+    OffsetDateTime getCreatedAt();
+    OffsetDateTime getUpdatedAt();
+}
@@ -2,10 +2,21 @@ package com.aitravel.planner.repo;
 
 import com.aitravel.planner.model.Day;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 import java.util.UUID;
 
+@Transactional(readOnly = true)
 public interface DayRepository extends JpaRepository<Day, UUID> {
     List<Day> findByPlanIdOrderByIndexAsc(UUID planId);
-}
\ No newline at end of file
+
+    // 集合删除：一条 DELETE，不再逐个加载实体
+    @Modifying
+    @Transactional
+    @Query("delete from Day d where d.planId = :planId")
+    int deleteAllByPlanId(@Param("planId") UUID planId);
+}
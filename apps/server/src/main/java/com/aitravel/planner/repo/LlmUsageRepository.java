@@ -0,0 +1,27 @@
+package com.aitravel.planner.repo;
+
+import com.aitravel.planner.model.LlmUsage;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+@Transactional(readOnly = true)
+public interface LlmUsageRepository extends JpaRepository<LlmUsage, LlmUsage.Key> {
+    // 累加到已有的当日记录；返回 0 表示当日记录尚不存在
+    @Modifying
+    @Transactional
+    @Query("update LlmUsage u set u.requests = u.requests + :requests, u.promptTokens = u.promptTokens + :prompt, " +
+            "u.completionTokens = u.completionTokens + :completion, u.updatedAt = :now " +
+            "where u.userId = :userId and u.usageDate = :day")
+    int addUsage(@Param("userId") UUID userId, @Param("day") LocalDate day, @Param("requests") long requests,
+                 @Param("prompt") long prompt, @Param("completion") long completion, @Param("now") OffsetDateTime now);
+
+    @Query("select coalesce(sum(u.promptTokens + u.completionTokens), 0) from LlmUsage u where u.userId = :userId and u.usageDate = :day")
+    long tokensOn(@Param("userId") UUID userId, @Param("day") LocalDate day);
+}
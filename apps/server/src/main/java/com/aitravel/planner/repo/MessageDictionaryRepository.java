@@ -0,0 +1,12 @@
+package com.aitravel.planner.repo;
+
+import com.aitravel.planner.model.MessageDictionary;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Optional;
+
+@Transactional(readOnly = true)
+public interface MessageDictionaryRepository extends JpaRepository<MessageDictionary, Integer> {
+    Optional<MessageDictionary> findTopByOrderByIdDesc();
+}
@@ -1,12 +1,48 @@
 package com.aitravel.planner.repo;
 
 import com.aitravel.planner.model.Message;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.UUID;
 
+@Transactional(readOnly = true)
 public interface MessageRepository extends JpaRepository<Message, UUID> {
+    // 返回实体的查询都连带取出冷数据块（message_cold 按主键左连接），离开事务后仍可解压正文
+    @EntityGraph(attributePaths = "cold")
     List<Message> findByConversationIdOrderByCreatedAtAsc(UUID conversationId);
-    void deleteByConversationId(UUID conversationId);
+
+    @Override
+    @EntityGraph(attributePaths = "cold")
+    List<Message> findAllById(Iterable<UUID> ids);
+
+    // 键集分页：从最新消息向前翻页（走 idx_messages_conv_created），调用方按需反转为时间正序
+    @Query("select m from Message m left join fetch m.cold where m.conversationId = :cid order by m.createdAt desc, m.id desc")
+    List<Message> findLatest(@Param("cid") UUID conversationId, Pageable page);
+
+    @Query("select m from Message m left join fetch m.cold where m.conversationId = :cid " +
+            "and (m.createdAt < :at or (m.createdAt = :at and m.id < :id)) order by m.createdAt desc, m.id desc")
+    List<Message> findLatestBefore(@Param("cid") UUID conversationId, @Param("at") OffsetDateTime at,
+                                   @Param("id") UUID id, Pageable page);
+
+    // 搜索索引增量追平：某会话在给定时间之后的消息（走 idx_messages_conv_created）
+    @Query("select m from Message m left join fetch m.cold where m.conversationId = :cid and m.createdAt >= :since order by m.createdAt asc, m.id asc")
+    List<Message> findSince(@Param("cid") UUID conversationId, @Param("since") OffsetDateTime since);
+
+    // 不加载正文的元数据投影
+    @Query("select m.id as id, m.role as role, m.tokens as tokens, m.createdAt as createdAt " +
+            "from Message m where m.conversationId = :cid order by m.createdAt desc, m.id desc")
+    List<MessageSummary> findLatestSummaries(@Param("cid") UUID conversationId, Pageable page);
+
+    @Query("select m.id as id, m.role as role, m.tokens as tokens, m.createdAt as createdAt " +
+            "from Message m where m.conversationId = :cid " +
+            "and (m.createdAt < :at or (m.createdAt = :at and m.id < :id)) order by m.createdAt desc, m.id desc")
+    List<MessageSummary> findLatestSummariesBefore(@Param("cid") UUID conversationId, @Param("at") OffsetDateTime at,
+                                                   @Param("id") UUID id, Pageable page);
 }
@@ -0,0 +1,14 @@
+package com.aitravel.planner.repo;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * 消息元数据投影：不加载消息正文（content），用于列表/时间线。
+ */
+public interface MessageSummary {
+    UUID getId();
+    String getRole();
+    Integer getTokens();
+    OffsetDateTime getCreatedAt();
+}
@@ -1,11 +1,35 @@
 package com.aitravel.planner.repo;
 
 import com.aitravel.planner.model.Plan;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.UUID;
 
+@Transactional(readOnly = true)
 public interface PlanRepository extends JpaRepository<Plan, UUID> {
     List<Plan> findByOwnerId(UUID ownerId);
-}
\ No newline at end of file
+
+    // 键集分页（走 idx_plans_owner_updated）
+    @Query("select p from Plan p where p.ownerId = :ownerId order by p.updatedAt desc, p.id desc")
+    List<Plan> findPageByOwner(@Param("ownerId") UUID ownerId, Pageable page);
+
+    @Query("select p from Plan p where p.ownerId = :ownerId " +
+            "and (p.updatedAt < :at or (p.updatedAt = :at and p.id < :id)) order by p.updatedAt desc, p.id desc")
+    List<Plan> findPageByOwnerAfter(@Param("ownerId") UUID ownerId, @Param("at") OffsetDateTime at,
+                                    @Param("id") UUID id, Pageable page);
+
+    // 按标签筛选：array_contains 在 PostgreSQL 上渲染为 tags @> array[?]（走 GIN 索引），H2 上为内置 ARRAY_CONTAINS
+    @Query("select p from Plan p where p.ownerId = :ownerId and array_contains(p.tags, :tag) order by p.updatedAt desc, p.id desc")
+    List<Plan> findPageByOwnerAndTag(@Param("ownerId") UUID ownerId, @Param("tag") String tag, Pageable page);
+
+    @Query("select p from Plan p where p.ownerId = :ownerId and array_contains(p.tags, :tag) " +
+            "and (p.updatedAt < :at or (p.updatedAt = :at and p.id < :id)) order by p.updatedAt desc, p.id desc")
+    List<Plan> findPageByOwnerAndTagAfter(@Param("ownerId") UUID ownerId, @Param("tag") String tag, @Param("at") OffsetDateTime at,
+                                          @Param("id") UUID id, Pageable page);
+}
@@ -1,12 +1,28 @@
 package com.aitravel.planner.repo;
 
 import com.aitravel.planner.model.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
 public interface UserRepository extends JpaRepository<User, UUID> {
     Optional<User> findByEmail(String email);
     boolean existsByEmail(String email);
-}
\ No newline at end of file
+
+    // 按邮箱键集分页全量读取，用于构建邮箱过滤器
+    @Query("select u.email from User u where u.email > :after order by u.email")
+    List<String> findEmailsAfter(@Param("after") String after, Pageable page);
+
+    // 仅当哈希未被并发修改（如同时修改密码）时替换，用于登录后的 cost 升级
+    @Modifying
+    @Transactional
+    @Query("update User u set u.passwordHash = :next where u.id = :id and u.passwordHash = :prev")
+    int replacePasswordHash(@Param("id") UUID id, @Param("prev") String prev, @Param("next") String next);
+}
@@ -1,5 +1,8 @@
 package com.aitravel.planner.service;
 
+import com.aitravel.planner.config.DeadlineRequestFactory;
+import com.aitravel.planner.config.RequestDeadline;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -18,7 +21,24 @@ public class AmapService {
     @Value("${amap.api.key:}")
     private String apiKey;
 
-    private final RestTemplate http = new RestTemplate();
+    @Value("${amap.http.connectTimeoutMs:2000}")
+    private int connectTimeoutMs;
+
+    @Value("${amap.http.readTimeoutMs:5000}")
+    private int readTimeoutMs;
+
+    private RestTemplate http;
+    private final PlanMetrics metrics;
+
+    public AmapService(PlanMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void initHttp() {
+        // 超时不超过当前请求的剩余时间，截止后直接失败
+        this.http = new RestTemplate(new DeadlineRequestFactory(connectTimeoutMs, readTimeoutMs));
+    }
 
     /**
      * 通过高德地点搜索获取坐标（lng, lat）。
@@ -30,10 +50,19 @@ public class AmapService {
                 log.warn("AMap API KEY 未配置，跳过地理编码: {}", keyword);
                 return Optional.empty();
             }
+            if (RequestDeadline.expired()) return Optional.empty();
             String q = URLEncoder.encode(keyword, StandardCharsets.UTF_8);
             String cityParam = (city == null || city.isBlank()) ? "" : ("&city=" + URLEncoder.encode(city, StandardCharsets.UTF_8));
             String url = "https://restapi.amap.com/v3/place/text?keywords=" + q + cityParam + "&offset=1&page=1&key=" + apiKey;
-            ResponseEntity<Map> res = http.getForEntity(url, Map.class);
+            ResponseEntity<Map> res;
+            long t0 = System.nanoTime();
+            try {
+                res = http.getForEntity(url, Map.class);
+                metrics.amapRequest(url, PlanMetrics.statusClass(res.getStatusCode().value()), System.nanoTime() - t0);
+            } catch (RuntimeException callErr) {
+                metrics.amapRequest(url, PlanMetrics.outcome(callErr), System.nanoTime() - t0);
+                throw callErr;
+            }
             Object pois = ((Map<?, ?>) Objects.requireNonNull(res.getBody())).get("pois");
             if (!(pois instanceof List)) return Optional.empty();
             List<?> list = (List<?>) pois;
@@ -0,0 +1,195 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.itinerary.BudgetBreakdown;
+import com.aitravel.planner.itinerary.BudgetCategory;
+import com.aitravel.planner.itinerary.DayPlan;
+import com.aitravel.planner.itinerary.ItineraryPlan;
+import com.aitravel.planner.model.BudgetLedger;
+import com.aitravel.planner.repo.BudgetLedgerRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * 会话预算账本：
+ * - 完整规划后记录结构化预算与每日摘要；
+ * - 预算调整时只向模型发送账本摘要与调整诉求（增量提示），不再回放完整会话历史；
+ * - 模型返回后仅替换受影响的类别与天数，总额按差值增量更新；账本保存完整的每日安排，
+ *   增量结果只含 fromDay 起的天数，返回前与保留的天数合并为完整行程。
+ */
+@Service
+public class BudgetLedgerService {
+    private static final Logger log = LoggerFactory.getLogger(BudgetLedgerService.class);
+
+    private final BudgetLedgerRepository ledgers;
+    private final Counter failures;
+
+    public BudgetLedgerService(BudgetLedgerRepository ledgers, MeterRegistry registry) {
+        this.ledgers = ledgers;
+        this.failures = Counter.builder("budget.ledger.failures").description("预算账本更新失败次数").register(registry);
+    }
+
+    public Optional<BudgetLedger> find(UUID conversationId) {
+        return ledgers.findById(conversationId);
+    }
+
+    /**
+     * 以完整规划结果覆盖账本（首次规划或无账本时的全量调整）。
+     */
+    @Transactional
+    public BudgetLedger record(UUID conversationId, BudgetBreakdown breakdown, ItineraryPlan plan, BigDecimal spent) {
+        BudgetLedger l = ledgers.findById(conversationId).orElseGet(BudgetLedger::new);
+        l.setConversationId(conversationId);
+        List<BudgetCategory> cats = breakdown == null || breakdown.getCategories() == null
+                ? new ArrayList<>() : new ArrayList<>(breakdown.getCategories());
+        l.setCategories(cats);
+        l.setCurrency(breakdown == null || breakdown.getCurrency() == null ? "CNY" : breakdown.getCurrency());
+        l.setPlannedTotal(sumTotals(cats));
+        if (spent != null) l.setSpentAmount(spent);
+        l.setDays(plan == null || plan.getDays() == null ? new ArrayList<>() : new ArrayList<>(plan.getDays()));
+        l.setDaySummaries(daySummaries(l.getDays()));
+        l.setUpdatedAt(OffsetDateTime.now());
+        return ledgers.save(l);
+    }
+
+    /**
+     * 构造增量提示：账本摘要（类别合计、已花费、剩余、已确定的每日摘要）+ 本次调整诉求。
+     * @param fromDay 需要重新规划的起始天（0 基）
+     */
+    public String deltaPrompt(BudgetLedger l, BigDecimal used, String currency, String text, int fromDay) {
+        String cur = l.getCurrency() == null ? "CNY" : l.getCurrency();
+        BigDecimal spent = used != null ? used : l.getSpentAmount();
+        BigDecimal remaining = l.getPlannedTotal().subtract(spent == null ? BigDecimal.ZERO : spent);
+        StringBuilder sb = new StringBuilder();
+        sb.append("【预算账本】币种 ").append(cur)
+                .append("；计划总额 ").append(plain(l.getPlannedTotal()))
+                .append("；已花费 ").append(plain(spent))
+                .append(used != null && currency != null && !currency.isBlank() ? " " + currency : "")
+                .append("；剩余 ").append(plain(remaining)).append("\n");
+        if (l.getCategories() != null && !l.getCategories().isEmpty()) {
+            sb.append("类别：");
+            for (int i = 0; i < l.getCategories().size(); i++) {
+                BudgetCategory c = l.getCategories().get(i);
+                if (i > 0) sb.append("，");
+                sb.append(c.getName()).append(" ").append(plain(c.getTotal()));
+            }
+            sb.append("\n");
+        }
+        List<String> days = l.getDaySummaries() == null ? List.of() : l.getDaySummaries();
+        int keep = Math.min(fromDay, days.size());
+        for (int i = 0; i < keep; i++) {
+            sb.append("第").append(i + 1).append("天（已确定）：").append(days.get(i)).append("\n");
+        }
+        sb.append("请仅重新规划第").append(fromDay + 1).append("天起的行程；在“### 预算”中只列出需要调整的类别，")
+                .append("每个类别给出调整后的完整金额（含已发生部分），未列出的类别保持不变。\n");
+        if (text != null && !text.isBlank()) sb.append("调整诉求：").append(text);
+        return sb.toString();
+    }
+
+    /**
+     * 合并增量结果：只替换增量预算中出现的类别，计划总额按新旧差值更新；天数从 fromDay 起替换
+     * （增量结果没有天数时保留原有安排）。
+     */
+    @Transactional
+    public BudgetLedger applyDelta(BudgetLedger l, BudgetBreakdown delta, ItineraryPlan plan, BigDecimal used, int fromDay) {
+        Map<String, BudgetCategory> byName = new LinkedHashMap<>();
+        if (l.getCategories() != null) {
+            for (BudgetCategory c : l.getCategories()) byName.put(c.getName(), c);
+        }
+        BigDecimal total = l.getPlannedTotal() == null ? BigDecimal.ZERO : l.getPlannedTotal();
+        if (delta != null && delta.getCategories() != null) {
+            for (BudgetCategory c : delta.getCategories()) {
+                BudgetCategory old = byName.put(c.getName(), c);
+                total = total.add(nz(c.getTotal())).subtract(old == null ? BigDecimal.ZERO : nz(old.getTotal()));
+            }
+        }
+        l.setCategories(new ArrayList<>(byName.values()));
+        l.setPlannedTotal(total);
+        if (used != null) l.setSpentAmount(used);
+
+        List<DayPlan> old = previousDays(l);
+        List<DayPlan> merged = new ArrayList<>(old.subList(0, Math.min(fromDay, old.size())));
+        List<DayPlan> fresh = plan == null || plan.getDays() == null ? List.of() : plan.getDays();
+        merged.addAll(fresh.isEmpty() ? old.subList(merged.size(), old.size()) : fresh);
+        l.setDays(merged);
+        l.setDaySummaries(daySummaries(merged));
+        l.setUpdatedAt(OffsetDateTime.now());
+        return ledgers.save(l);
+    }
+
+    /** 完整行程：账本中合并后的每日安排，城市中心与基础预算取本次结果。 */
+    public ItineraryPlan mergedPlan(BudgetLedger l, ItineraryPlan fresh) {
+        ItineraryPlan out = new ItineraryPlan();
+        if (fresh != null) {
+            out.setCityCenter(fresh.getCityCenter());
+            out.setBaseBudget(fresh.getBaseBudget());
+        }
+        out.setDays(new ArrayList<>(previousDays(l)));
+        return out;
+    }
+
+    /** 账本更新失败：不影响本次响应，记录日志并计数。 */
+    public void failed(UUID conversationId, Exception e) {
+        failures.increment();
+        log.warn("会话 {} 预算账本更新失败: {}", conversationId, e.toString());
+    }
+
+    /** 账本视图：以 BudgetBreakdown 的形式返回，便于前端复用预算展示。 */
+    public BudgetBreakdown toBreakdown(BudgetLedger l) {
+        BudgetBreakdown bd = new BudgetBreakdown();
+        bd.setCurrency(l.getCurrency());
+        bd.setCategories(l.getCategories() == null ? new ArrayList<>() : new ArrayList<>(l.getCategories()));
+        bd.setGrandTotal(l.getPlannedTotal());
+        bd.setAligned(sumTotals(bd.getCategories()).compareTo(nz(l.getPlannedTotal())) == 0);
+        return bd;
+    }
+
+    private static List<String> daySummaries(List<DayPlan> days) {
+        List<String> out = new ArrayList<>();
+        for (DayPlan d : days) {
+            out.add(d.getSummary() == null ? "" : d.getSummary());
+        }
+        return out;
+    }
+
+    // 早期账本只有每日摘要，没有完整安排：以仅含摘要的天代替
+    private static List<DayPlan> previousDays(BudgetLedger l) {
+        if (l.getDays() != null && !l.getDays().isEmpty()) return l.getDays();
+        List<DayPlan> out = new ArrayList<>();
+        if (l.getDaySummaries() == null) return out;
+        for (String s : l.getDaySummaries()) {
+            DayPlan d = new DayPlan();
+            d.setSummary(s);
+            out.add(d);
+        }
+        return out;
+    }
+
+    private static BigDecimal sumTotals(List<BudgetCategory> cats) {
+        BigDecimal sum = BigDecimal.ZERO;
+        if (cats != null) {
+            for (BudgetCategory c : cats) sum = sum.add(nz(c.getTotal()));
+        }
+        return sum;
+    }
+
+    private static BigDecimal nz(BigDecimal v) {
+        return v == null ? BigDecimal.ZERO : v;
+    }
+
+    private static String plain(BigDecimal v) {
+        return nz(v).stripTrailingZeros().toPlainString();
+    }
+}
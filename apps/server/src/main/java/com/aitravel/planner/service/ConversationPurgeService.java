@@ -0,0 +1,145 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.ShardContext;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 会话后台清理：删除接口只把会话标记为 deleted 并立即返回，
+ * 由本服务按固定间隔分批执行集合 DELETE（每批最多 batch-size 条消息），全部清空后再删除会话行。
+ * 每批独立提交，不会长时间占用事务或请求线程。启用分片时逐个分片清理，plans 上的关联在主分片解除；
+ * 会话删除后丢弃属主在本实例驻留的搜索索引。
+ */
+@Service
+public class ConversationPurgeService {
+    private static final Logger log = LoggerFactory.getLogger(ConversationPurgeService.class);
+
+    public static final String DELETED = "deleted";
+
+    private final JdbcTemplate jdbc;
+    private final ShardMap shards;
+    private final SearchService search;
+
+    @Value("${app.conversations.purge.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${app.conversations.purge.interval-ms:5000}")
+    private long intervalMs;
+
+    @Value("${app.conversations.purge.max-batches-per-run:50}")
+    private int maxBatchesPerRun;
+
+    private ScheduledExecutorService purger;
+
+    // 进度指标
+    private final AtomicLong pendingConversations = new AtomicLong();
+    private final AtomicLong purgedConversations = new AtomicLong();
+    private final AtomicLong purgedMessages = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastRunAt;
+
+    public ConversationPurgeService(JdbcTemplate jdbc, ShardMap shards, SearchService search) {
+        this.jdbc = jdbc;
+        this.shards = shards;
+        this.search = search;
+    }
+
+    @PostConstruct
+    public void start() {
+        purger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "conversation-purge");
+            t.setDaemon(true);
+            return t;
+        });
+        purger.scheduleWithFixedDelay(this::runQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (purger != null) purger.shutdownNow();
+    }
+
+    /** 删除接口调用后唤醒一次清理，不必等待下一个周期。 */
+    public void wakeUp() {
+        if (purger != null && !purger.isShutdown()) purger.execute(this::runQuietly);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("pendingConversations", pendingConversations.get());
+        m.put("purgedConversations", purgedConversations.get());
+        m.put("purgedMessages", purgedMessages.get());
+        m.put("batches", batches.get());
+        m.put("failures", failures.get());
+        m.put("lastRunAt", lastRunAt);
+        return m;
+    }
+
+    private void runQuietly() {
+        try {
+            run();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.warn("会话清理失败，下个周期重试: {}", e.toString());
+        }
+    }
+
+    private synchronized void run() {
+        lastRunAt = System.currentTimeMillis();
+        pendingConversations.set(0);
+        int budget = maxBatchesPerRun;
+        for (int s = 0; s < shards.shardCount() && budget > 0; s++) {
+            int left = budget;
+            budget = ShardContext.call(s, () -> purgeShard(left));
+        }
+    }
+
+    /** 清理当前分片上已标记删除的会话，返回剩余批次预算。 */
+    private int purgeShard(int budget) {
+        List<Map<String, Object>> rows = jdbc.queryForList(
+                "SELECT id, owner_id FROM conversations WHERE status = ? LIMIT 100", DELETED);
+        pendingConversations.addAndGet(rows.size());
+        for (Map<String, Object> row : rows) {
+            UUID id = (UUID) value(row, "id");
+            while (budget > 0) {
+                // PostgreSQL/H2 均不支持 DELETE ... LIMIT，以子查询限定每批行数
+                int n = jdbc.update("DELETE FROM messages WHERE id IN (SELECT id FROM messages WHERE conversation_id = ? LIMIT ?)", id, batchSize);
+                budget--;
+                batches.incrementAndGet();
+                purgedMessages.addAndGet(n);
+                if (n < batchSize) break;
+            }
+            if (budget <= 0) return 0;
+            // 消息已清空：清理关联数据后删除会话行（H2 开发库无外键级联，显式处理）
+            jdbc.update("DELETE FROM budget_ledgers WHERE conversation_id = ?", id);
+            ShardContext.run(ShardContext.HOME, () -> jdbc.update("UPDATE plans SET conversation_id = NULL WHERE conversation_id = ?", id));
+            if (jdbc.update("DELETE FROM conversations WHERE id = ? AND status = ?", id, DELETED) > 0) {
+                search.onConversationDeleted((UUID) value(row, "owner_id"));
+                purgedConversations.incrementAndGet();
+                pendingConversations.decrementAndGet();
+            }
+        }
+        return budget;
+    }
+
+    // H2 返回大写列名，PostgreSQL 为小写
+    private static Object value(Map<String, Object> row, String col) {
+        Object v = row.get(col);
+        return v != null ? v : row.get(col.toUpperCase());
+    }
+}
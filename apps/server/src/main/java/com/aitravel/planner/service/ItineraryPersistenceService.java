@@ -0,0 +1,364 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.DataOwnerContext;
+import com.aitravel.planner.itinerary.Budget;
+import com.aitravel.planner.itinerary.BudgetBreakdown;
+import com.aitravel.planner.itinerary.BudgetCategory;
+import com.aitravel.planner.itinerary.BudgetItem;
+import com.aitravel.planner.itinerary.DayPlan;
+import com.aitravel.planner.itinerary.ItineraryPlan;
+import com.aitravel.planner.itinerary.Poi;
+import com.aitravel.planner.itinerary.Route;
+import com.aitravel.planner.model.Activity;
+import com.aitravel.planner.model.Day;
+import com.aitravel.planner.model.Plan;
+import com.aitravel.planner.repo.ActivityRepository;
+import com.aitravel.planner.repo.DayRepository;
+import com.aitravel.planner.repo.PlanRepository;
+import com.aitravel.planner.util.BudgetEstimator;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 生成结果落库：把 ItineraryPlan / BudgetBreakdown 映射到 plans / days / activities。
+ * - 写入在后台单线程执行，不占用响应路径；队列满时丢弃并计数（生成结果已返回给前端）；
+ * - 每个行程一个事务，days / activities 通过 saveAll 走 JDBC 批量插入；
+ * - 路线、POI 坐标写入 JSONB，预算按类别平摊到对应类型的活动上；
+ * - load 从库中重建行程与预算，无需再次调用 LLM / 高德。
+ */
+@Service
+public class ItineraryPersistenceService {
+    private static final Logger log = LoggerFactory.getLogger(ItineraryPersistenceService.class);
+
+    public static final String GENERATED = "generated";
+
+    // 预算类别与活动类型的对应关系（顺序即重建预算时的类别顺序）
+    private static final Map<String, String> CATEGORY_TYPES = new LinkedHashMap<>();
+    static {
+        CATEGORY_TYPES.put("住宿", "hotel");
+        CATEGORY_TYPES.put("餐饮", "restaurant");
+        CATEGORY_TYPES.put("交通", "transport");
+        CATEGORY_TYPES.put("门票", "sight");
+    }
+
+    private final PlanRepository plans;
+    private final DayRepository days;
+    private final ActivityRepository activities;
+    private final TransactionTemplate tx;
+
+    @Value("${app.itinerary.persist.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.itinerary.persist.queue-capacity:200}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor writer;
+
+    private final AtomicLong persisted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public ItineraryPersistenceService(PlanRepository plans, DayRepository days, ActivityRepository activities,
+                                       PlatformTransactionManager txManager) {
+        this.plans = plans;
+        this.days = days;
+        this.activities = activities;
+        this.tx = new TransactionTemplate(txManager);
+    }
+
+    @PostConstruct
+    public void start() {
+        writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), r -> {
+            Thread t = new Thread(r, "itinerary-persist");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (writer == null) return;
+        writer.shutdown();
+        try { writer.awaitTermination(5, TimeUnit.SECONDS); } catch (InterruptedException ignored) { Thread.currentThread().interrupt(); }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", enabled);
+        m.put("queued", writer == null ? 0 : writer.getQueue().size());
+        m.put("persisted", persisted.get());
+        m.put("dropped", dropped.get());
+        m.put("failures", failures.get());
+        return m;
+    }
+
+    /**
+     * 异步保存生成结果；完成后返回新行程 id，未保存（未登录/已关闭/队列满/失败）时返回 null。
+     * 调用方无需等待，返回值仅用于可选地通知前端。
+     */
+    public CompletableFuture<UUID> submit(UUID ownerId, UUID conversationId, String city, ItineraryPlan plan, BudgetBreakdown budget) {
+        if (!enabled || ownerId == null || plan == null || plan.getDays() == null || plan.getDays().isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<UUID> done = new CompletableFuture<>();
+        try {
+            writer.execute(() -> {
+                try {
+                    // 绑定属主：落库事务计入该用户的写入，随后打开行程列表时走主库
+                    done.complete(DataOwnerContext.call(ownerId, () -> tx.execute(s -> persist(ownerId, conversationId, city, plan, budget))));
+                    persisted.incrementAndGet();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    log.warn("保存生成行程失败: {}", e.toString());
+                    done.complete(null);
+                }
+            });
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            dropped.incrementAndGet();
+            log.warn("行程落库队列已满，跳过本次保存");
+            done.complete(null);
+        }
+        return done;
+    }
+
+    private UUID persist(UUID ownerId, UUID conversationId, String city, ItineraryPlan ip, BudgetBreakdown budget) {
+        List<DayPlan> dps = ip.getDays();
+        String currency = currencyOf(ip, budget);
+        LocalDate start = LocalDate.now();
+
+        Plan p = new Plan();
+        p.setOwnerId(ownerId);
+        p.setConversationId(conversationId);
+        p.setDestination(city == null || city.isBlank() ? "未知" : city.trim());
+        p.setStartDate(start);
+        p.setEndDate(start.plusDays(dps.size() - 1L));
+        p.setTotalDays(dps.size());
+        Budget base = ip.getBaseBudget();
+        p.setBudgetAmount(base != null && base.getAmount() != null ? base.getAmount() : budget == null ? null : budget.getGrandTotal());
+        p.setBudgetCurrency(currency);
+        p.setStatus(GENERATED);
+        p.setCreatedAt(OffsetDateTime.now());
+        p.setUpdatedAt(p.getCreatedAt());
+        Plan saved = plans.save(p);
+
+        List<Day> dayRows = new ArrayList<>(dps.size());
+        for (int i = 0; i < dps.size(); i++) {
+            DayPlan dp = dps.get(i);
+            Day d = new Day();
+            d.setPlanId(saved.getId());
+            d.setIndex(i);
+            d.setDate(start.plusDays(i));
+            d.setSummary(dp.getSummary());
+            d.setTransport(Map.of("routes", routesToJson(dp.getRoutes())));
+            Poi hotel = firstOfType(dp.getPois(), "hotel");
+            if (hotel != null) d.setAccommodation(poiToJson(hotel));
+            dayRows.add(d);
+        }
+        dayRows = days.saveAll(dayRows);
+
+        List<Activity> acts = new ArrayList<>();
+        for (int i = 0; i < dps.size(); i++) {
+            List<Poi> pois = dps.get(i).getPois();
+            if (pois == null) continue;
+            int seq = 0;
+            for (Poi poi : pois) {
+                if (poi == null || poi.getName() == null || poi.getName().isBlank()) continue;
+                Activity a = new Activity();
+                a.setDayId(dayRows.get(i).getId());
+                a.setType(CATEGORY_TYPES.get(BudgetEstimator.categoryOf(poi.getType())));
+                a.setTitle(poi.getName());
+                a.setSeq(seq++);
+                a.setPoi(poiToJson(poi));
+                acts.add(a);
+            }
+        }
+        allocateCosts(acts, budget, currency, dayRows.get(0).getId());
+        activities.saveAll(acts);
+        return saved.getId();
+    }
+
+    /**
+     * 类别预算平摊到该类别的活动上（余数归最后一个，保证合计一致）；
+     * 没有对应活动的类别（如市内交通）在第一天生成一条不含 POI 的预算活动，便于重建时还原。
+     */
+    private static void allocateCosts(List<Activity> acts, BudgetBreakdown budget, String currency, UUID firstDayId) {
+        if (budget == null || budget.getCategories() == null) return;
+        for (BudgetCategory c : budget.getCategories()) {
+            if (c == null || c.getTotal() == null || c.getName() == null) continue;
+            String type = CATEGORY_TYPES.get(c.getName());
+            if (type == null) type = CATEGORY_TYPES.get(BudgetEstimator.categoryOf(c.getName()));
+            List<Activity> group = new ArrayList<>();
+            for (Activity a : acts) if (type.equals(a.getType()) && a.getPoi() != null) group.add(a);
+            if (group.isEmpty()) {
+                Activity a = new Activity();
+                a.setDayId(firstDayId);
+                a.setType(type);
+                a.setTitle(c.getName());
+                a.setSeq(Integer.MAX_VALUE);
+                a.setEstimatedCostAmount(c.getTotal());
+                a.setEstimatedCostCurrency(currency);
+                acts.add(a);
+                continue;
+            }
+            BigDecimal share = c.getTotal().divide(BigDecimal.valueOf(group.size()), 2, RoundingMode.DOWN);
+            BigDecimal assigned = BigDecimal.ZERO;
+            for (int i = 0; i < group.size(); i++) {
+                BigDecimal amt = i == group.size() - 1 ? c.getTotal().subtract(assigned) : share;
+                assigned = assigned.add(amt);
+                Activity a = group.get(i);
+                a.setEstimatedCostAmount(amt);
+                a.setEstimatedCostCurrency(currency);
+            }
+        }
+    }
+
+    /**
+     * 从库中重建行程与预算；返回 plan（ItineraryPlan）与 budget（BudgetBreakdown）。
+     */
+    public Map<String, Object> load(Plan p) {
+        List<Day> ds = days.findByPlanIdOrderByIndexAsc(p.getId());
+        Map<UUID, List<Activity>> byDay = new HashMap<>();
+        for (Activity a : activities.findAllByPlanIdOrdered(p.getId())) byDay.computeIfAbsent(a.getDayId(), k -> new ArrayList<>()).add(a);
+
+        String currency = p.getBudgetCurrency() == null ? "CNY" : p.getBudgetCurrency();
+        Map<String, BudgetCategory> cats = new LinkedHashMap<>();
+        for (String name : CATEGORY_TYPES.keySet()) cats.put(name, new BudgetCategory(name, currency));
+
+        ItineraryPlan ip = new ItineraryPlan();
+        List<DayPlan> dps = new ArrayList<>(ds.size());
+        double lngSum = 0, latSum = 0;
+        int coords = 0;
+        for (Day d : ds) {
+            DayPlan dp = new DayPlan();
+            dp.setSummary(d.getSummary());
+            dp.setRoutes(routesFromJson(d.getTransport()));
+            List<Poi> pois = new ArrayList<>();
+            for (Activity a : byDay.getOrDefault(d.getId(), List.of())) {
+                if (a.getPoi() != null) {
+                    Poi poi = poiFromJson(a.getPoi(), a.getType());
+                    if (poi.getCoord() != null) {
+                        lngSum += poi.getCoord().get(0);
+                        latSum += poi.getCoord().get(1);
+                        coords++;
+                    }
+                    pois.add(poi);
+                }
+                if (a.getEstimatedCostAmount() != null) {
+                    BudgetCategory c = cats.get(categoryOfType(a.getType()));
+                    c.getItems().add(new BudgetItem(a.getTitle(), a.getEstimatedCostAmount(), currency));
+                    c.setTotal(c.getTotal() == null ? a.getEstimatedCostAmount() : c.getTotal().add(a.getEstimatedCostAmount()));
+                }
+            }
+            dp.setPois(pois);
+            dps.add(dp);
+        }
+        ip.setDays(dps);
+        if (coords > 0) ip.setCityCenter(List.of(lngSum / coords, latSum / coords));
+        if (p.getBudgetAmount() != null) ip.setBaseBudget(new Budget(p.getBudgetAmount(), currency));
+
+        BudgetBreakdown bd = new BudgetBreakdown();
+        bd.setCurrency(currency);
+        BigDecimal grand = BigDecimal.ZERO;
+        for (BudgetCategory c : cats.values()) {
+            if (c.getTotal() == null) continue;
+            bd.getCategories().add(c);
+            grand = grand.add(c.getTotal());
+        }
+        bd.setGrandTotal(grand);
+        bd.setAligned(p.getBudgetAmount() != null && p.getBudgetAmount().compareTo(grand) == 0);
+
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("planId", p.getId());
+        out.put("plan", ip);
+        out.put("budget", bd);
+        return out;
+    }
+
+    private static String currencyOf(ItineraryPlan ip, BudgetBreakdown budget) {
+        if (budget != null && budget.getCurrency() != null && !budget.getCurrency().isBlank()) return budget.getCurrency();
+        if (ip.getBaseBudget() != null && ip.getBaseBudget().getCurrency() != null) return ip.getBaseBudget().getCurrency();
+        return "CNY";
+    }
+
+    private static String categoryOfType(String type) {
+        for (Map.Entry<String, String> e : CATEGORY_TYPES.entrySet()) {
+            if (e.getValue().equals(type)) return e.getKey();
+        }
+        return "门票";
+    }
+
+    private static Poi firstOfType(List<Poi> pois, String type) {
+        if (pois == null) return null;
+        for (Poi p : pois) {
+            if (p != null && type.equals(CATEGORY_TYPES.get(BudgetEstimator.categoryOf(p.getType())))) return p;
+        }
+        return null;
+    }
+
+    private static Map<String, Object> poiToJson(Poi poi) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("name", poi.getName());
+        if (poi.getType() != null) m.put("type", poi.getType());
+        if (poi.getCoord() != null && poi.getCoord().size() >= 2) m.put("coord", List.of(poi.getCoord().get(0), poi.getCoord().get(1)));
+        return m;
+    }
+
+    private static Poi poiFromJson(Map<String, Object> m, String fallbackType) {
+        Poi poi = new Poi();
+        poi.setName(String.valueOf(m.get("name")));
+        Object tp = m.get("type");
+        poi.setType(tp == null ? fallbackType : String.valueOf(tp));
+        if (m.get("coord") instanceof List<?> c && c.size() >= 2 && c.get(0) instanceof Number lng && c.get(1) instanceof Number lat) {
+            poi.setCoord(List.of(lng.doubleValue(), lat.doubleValue()));
+        }
+        return poi;
+    }
+
+    private static List<Map<String, Object>> routesToJson(List<Route> routes) {
+        List<Map<String, Object>> out = new ArrayList<>();
+        if (routes == null) return out;
+        for (Route r : routes) {
+            if (r == null || r.getPolyline() == null) continue;
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("polyline", r.getPolyline());
+            if (r.getColor() != null) m.put("color", r.getColor());
+            out.add(m);
+        }
+        return out;
+    }
+
+    private static List<Route> routesFromJson(Map<String, Object> transport) {
+        List<Route> out = new ArrayList<>();
+        if (transport == null || !(transport.get("routes") instanceof List<?> list)) return out;
+        for (Object o : list) {
+            if (!(o instanceof Map<?, ?> m) || m.get("polyline") == null) continue;
+            Route r = new Route();
+            r.setPolyline(String.valueOf(m.get("polyline")));
+            if (m.get("color") != null) r.setColor(String.valueOf(m.get("color")));
+            out.add(r);
+        }
+        return out;
+    }
+}
@@ -5,6 +5,9 @@ import com.aitravel.planner.itinerary.ItineraryPlan;
 import com.aitravel.planner.itinerary.Poi;
 import com.aitravel.planner.itinerary.Route;
 import com.aitravel.planner.itinerary.Budget;
+import com.aitravel.planner.config.DeadlineRequestFactory;
+import com.aitravel.planner.config.LlmUsageContext;
+import com.aitravel.planner.config.RequestDeadline;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
@@ -12,7 +15,6 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import jakarta.annotation.PostConstruct;
 import org.springframework.web.client.RestTemplate;
 
@@ -24,6 +26,11 @@ import java.net.http.HttpResponse;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 @Service
@@ -51,21 +58,30 @@ public class LlmService {
     @Value("${llm.http.readTimeoutMs:15000}")
     private int httpReadTimeoutMs;
 
-    public LlmService() {
-        // 先用默认值初始化，@PostConstruct 再根据配置覆盖
-        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
-        factory.setConnectTimeout(2000);
-        factory.setReadTimeout(5000);
-        this.http = new RestTemplate(factory);
+    private final LlmUsageLedger usageLedger;
+    private final PlanMetrics metrics;
+
+    // 最近一次非流式调用（本线程）的耗时，recordUsage 据此计算生成速度
+    private final ThreadLocal<Long> lastCallNanos = new ThreadLocal<>();
+
+    // 流式读取的截止看门狗：到点关闭响应流并唤醒阻塞在响应体上的读线程
+    private static final ScheduledExecutorService STREAM_WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "llm-stream-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public LlmService(LlmUsageLedger usageLedger, PlanMetrics metrics) {
+        this.usageLedger = usageLedger;
+        this.metrics = metrics;
+        // 先用默认值初始化，@PostConstruct 再根据配置覆盖；实际超时不超过当前请求的剩余时间
+        this.http = new RestTemplate(new DeadlineRequestFactory(2000, 5000));
     }
 
     @PostConstruct
     public void initHttp() {
         try {
-            SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
-            factory.setConnectTimeout(httpConnectTimeoutMs);
-            factory.setReadTimeout(httpReadTimeoutMs);
-            this.http = new RestTemplate(factory);
+            this.http = new RestTemplate(new DeadlineRequestFactory(httpConnectTimeoutMs, httpReadTimeoutMs));
             log.info("LLM HTTP 超时: connect={}ms, read={}ms", httpConnectTimeoutMs, httpReadTimeoutMs);
         } catch (Exception e) {
             log.warn("初始化 LLM HTTP 超时失败，沿用默认: {}", e.toString());
@@ -155,7 +171,7 @@ public class LlmService {
             HttpEntity<String> req = new HttpEntity<>(jsonBody, headers);
             ResponseEntity<String> res;
             try {
-                res = http.postForEntity(url, req, String.class);
+                res = post(url, req);
             } catch (Exception callErr) {
                 // 标准端点失败时，回退到 DashScope 兼容模式（OpenAI 兼容）
                 if (isDashScope && !isDashScopeCompatible) {
@@ -165,7 +181,7 @@ public class LlmService {
                     compatBody.put("messages", messages);
                     compatBody.put("stream", false);                    String compatJson = mapper.writeValueAsString(compatBody);
                     log.info("DashScope 标准端点调用失败，回退 POST {}", compatUrl);
-                    res = http.postForEntity(compatUrl, new HttpEntity<>(compatJson, headers), String.class);
+                    res = post(compatUrl, new HttpEntity<>(compatJson, headers));
                 } else {
                     throw callErr;
                 }
@@ -175,6 +191,7 @@ public class LlmService {
                 return Optional.empty();
             }
             JsonNode root = mapper.readTree(res.getBody());
+            recordUsage(root);
             // OpenAI 兼容优先，DashScope 标准/文本生成作为回退
             String content = root.path("choices").path(0).path("message").path("content").asText("");
             if (content.isBlank()) {
@@ -368,7 +385,7 @@ public class LlmService {
             HttpEntity<String> req = new HttpEntity<>(jsonBody, headers);
             ResponseEntity<String> res;
             try {
-                res = http.postForEntity(url, req, String.class);
+                res = post(url, req);
             } catch (Exception callErr) {
                 if (isDashScope && !isDashScopeCompatible) {
                     String compatUrl = "https://dashscope.aliyuncs.com/compatible-mode/v1/chat/completions";
@@ -377,7 +394,7 @@ public class LlmService {
                     compatBody.put("messages", messages);
                     compatBody.put("stream", false);                    String compatJson = mapper.writeValueAsString(compatBody);
                     log.info("DashScope 标准端点调用失败，回退 POST {}", compatUrl);
-                    res = http.postForEntity(compatUrl, new HttpEntity<>(compatJson, headers), String.class);
+                    res = post(compatUrl, new HttpEntity<>(compatJson, headers));
                 } else {
                     throw callErr;
                 }
@@ -387,6 +404,7 @@ public class LlmService {
                 return Optional.empty();
             }
             JsonNode root = mapper.readTree(res.getBody());
+            recordUsage(root);
             String content = root.path("choices").path(0).path("message").path("content").asText("");
             if (content.isBlank()) content = root.path("output").path("choices").path(0).path("message").path("content").asText("");
             if (content.isBlank()) content = root.path("output").path("text").asText("");
@@ -569,7 +587,7 @@ public class LlmService {
             HttpEntity<String> reqEntity = new HttpEntity<>(jsonBody, headers);
             ResponseEntity<String> res;
             try {
-                res = http.postForEntity(url, reqEntity, String.class);
+                res = post(url, reqEntity);
             } catch (Exception callErr) {
                 // DashScope 标准端点失败，尝试兼容模式
                 if (isDashScope && !isDashScopeCompatible) {
@@ -584,7 +602,7 @@ public class LlmService {
                     compatBody.put("stream", false);
                     String compatJson = mapper.writeValueAsString(compatBody);
                     HttpEntity<String> req2 = new HttpEntity<>(compatJson, headers);
-                    res = http.postForEntity(compatUrl, req2, String.class);
+                    res = post(compatUrl, req2);
                 } else {
                     throw callErr;
                 }
@@ -619,6 +637,7 @@ public class LlmService {
         if (body == null) return "";
         try {
             JsonNode root = mapper.readTree(body);
+            recordUsage(root);
             String content = root.path("choices").path(0).path("message").path("content").asText("");
             if (content.isBlank()) content = root.path("output").path("choices").path(0).path("message").path("content").asText("");
             if (content.isBlank()) content = root.path("output").path("text").asText("");
@@ -882,7 +901,7 @@ public class LlmService {
 
             org.springframework.http.ResponseEntity<String> res;
             try {
-                res = http.postForEntity(url, req, String.class);
+                res = post(url, req);
             } catch (Exception callErr) {
                 if (isDashScope && !isDashScopeCompatible) {
                     String compatUrl = "https://dashscope.aliyuncs.com/compatible-mode/v1/chat/completions";
@@ -895,7 +914,7 @@ public class LlmService {
                     compatBody.put("messages", messages);
                     compatBody.put("stream", false);                    String compatJson = mapper.writeValueAsString(compatBody);
                     log.info("DashScope 标准端点(提取)失败，回退 POST {}", compatUrl);
-                    res = http.postForEntity(compatUrl, new org.springframework.http.HttpEntity<>(compatJson, headers), String.class);
+                    res = post(compatUrl, new org.springframework.http.HttpEntity<>(compatJson, headers));
                 } else {
                     throw callErr;
                 }
@@ -907,6 +926,7 @@ public class LlmService {
             }
 
             com.fasterxml.jackson.databind.JsonNode root = mapper.readTree(res.getBody());
+            recordUsage(root);
             String content = root.path("choices").path(0).path("message").path("content").asText("");
             if (content.isBlank()) content = root.path("output").path("choices").path(0).path("message").path("content").asText("");
             if (content.isBlank()) content = root.path("output").path("text").asText("");
@@ -1008,18 +1028,48 @@ public void streamText(String text, String city, Consumer<String> onChunk) {
             Map<String, Object> body = new HashMap<>();
             body.put("model", openaiModel);
             body.put("messages", messages);
+            body.put("stream", true);
+            // 最后一个数据块携带本次调用的 usage，用于配额计量
+            body.put("stream_options", Map.of("include_usage", true));
 
             String jsonBody = mapper.writeValueAsString(body);
+            if (RequestDeadline.expired()) {
+                log.warn("LLM 流式调用跳过：请求截止时间已到");
+                return;
+            }
+            // 连接与响应头等待不超过配置的读超时与请求剩余时间
             HttpRequest req = HttpRequest.newBuilder(URI.create(url))
+                    .timeout(Duration.ofMillis(Math.max(1, RequestDeadline.bound(httpReadTimeoutMs))))
                     .header("Authorization", "Bearer " + openaiApiKey)
                     .header("Content-Type", "application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
                     .build();
-            HttpClient client = HttpClient.newHttpClient();
-            HttpResponse<java.io.InputStream> resp = client.send(req, HttpResponse.BodyHandlers.ofInputStream());
+            HttpClient client = HttpClient.newBuilder()
+                    .connectTimeout(Duration.ofMillis(Math.max(1, RequestDeadline.bound(httpConnectTimeoutMs))))
+                    .build();
+            long sentAt = System.nanoTime();
+            HttpResponse<java.io.InputStream> resp;
+            try {
+                resp = client.send(req, HttpResponse.BodyHandlers.ofInputStream());
+            } catch (Exception sendErr) {
+                metrics.llmRequest("stream", PlanMetrics.outcome(sendErr), System.nanoTime() - sentAt);
+                throw sendErr;
+            }
+            String outcome = PlanMetrics.statusClass(resp.statusCode());
+            long firstTokenAt = 0;
+            long completionTokens = -1;
+            boolean usageSeen = false;
+            long streamedChars = 0;
+            // 响应体没有整体超时：到截止时间由看门狗关闭响应流并唤醒本线程，阻塞中的读取随即以 IOException 结束
+            StreamGuard guard = StreamGuard.arm(resp.body(), RequestDeadline.remainingMs());
             try (BufferedReader br = new BufferedReader(new InputStreamReader(resp.body(), StandardCharsets.UTF_8))) {
                 String line;
                 while ((line = br.readLine()) != null) {
+                    if (RequestDeadline.expired()) {
+                        log.warn("LLM 流式读取到达请求截止时间，已输出 {} 字", streamedChars);
+                        outcome = "timeout";
+                        break;
+                    }
                     line = line.trim();
                     if (line.isEmpty()) continue;
                     if (!line.startsWith("data:")) continue;
@@ -1027,19 +1077,127 @@ public void streamText(String text, String city, Consumer<String> onChunk) {
                     if ("[DONE]".equals(data)) break;
                     try {
                         JsonNode node = mapper.readTree(data);
+                        if (node.path("usage").isObject()) {
+                            completionTokens = recordUsage(node);
+                            usageSeen = completionTokens >= 0;
+                        }
                         // OpenAI 流式：choices[0].delta.content
                         String chunk = node.path("choices").path(0).path("delta").path("content").asText("");
                         if (chunk == null) chunk = "";
                         if (!chunk.isEmpty()) {
+                            if (firstTokenAt == 0) {
+                                firstTokenAt = System.nanoTime();
+                                metrics.llmFirstToken(firstTokenAt - sentAt);
+                            }
+                            streamedChars += chunk.length();
                             onChunk.accept(chunk);
                         }
                     } catch (Exception parseErr) {
                         // 非 JSON 行，忽略
                     }
                 }
+            } catch (java.io.IOException readErr) {
+                outcome = guard.fired() ? "timeout" : PlanMetrics.outcome(readErr);
+                if (!guard.fired()) throw readErr;
+                log.warn("LLM 流式读取到达请求截止时间，已输出 {} 字", streamedChars);
+            } finally {
+                guard.disarm();
+                metrics.llmRequest("stream", outcome, System.nanoTime() - sentAt);
+            }
+            // 生成速度按首 token 之后计；未回报 usage 时以字数估算
+            if (firstTokenAt > 0) {
+                metrics.llmThroughput("stream", usageSeen ? completionTokens : streamedChars, System.nanoTime() - firstTokenAt);
+            }
+            // 不支持 stream_options 的兼容实现不回报 usage，按字符数粗略估算（中文约 1 字 1 token）
+            if (!usageSeen) {
+                usageLedger.record(LlmUsageContext.current(), systemPrompt.length() + userContent.length(), streamedChars);
             }
         } catch (Exception e) {
             log.warn("LLM 流式读取失败: {}", e.toString());
         }
     }
+
+    /**
+     * 流式读取的截止看门狗：到点关闭响应流再中断读线程（JDK 的 HttpClient 响应流在等待数据时忽略中断，
+     * 需先关闭，被唤醒后才会以 IOException 结束）。disarm 之后不会再中断读线程，并清除可能已送达的中断标志，
+     * 读线程（SSE 专用线程）因此不会把残留的中断带到后续代码。
+     */
+    private static final class StreamGuard {
+        private final Thread reader = Thread.currentThread();
+        private final java.io.InputStream body;
+        private ScheduledFuture<?> timer;
+        private boolean done;
+        private boolean fired;
+
+        private StreamGuard(java.io.InputStream body) {
+            this.body = body;
+        }
+
+        static StreamGuard arm(java.io.InputStream body, long remainingMs) {
+            StreamGuard g = new StreamGuard(body);
+            if (remainingMs != Long.MAX_VALUE) {
+                g.timer = STREAM_WATCHDOG.schedule(g::fire, remainingMs, TimeUnit.MILLISECONDS);
+            }
+            return g;
+        }
+
+        private synchronized void fire() {
+            if (done) return;
+            fired = true;
+            try {
+                body.close();
+            } catch (Exception ignored) {
+                // 关闭失败时仍依赖中断唤醒
+            }
+            reader.interrupt();
+        }
+
+        synchronized boolean fired() {
+            return fired;
+        }
+
+        void disarm() {
+            synchronized (this) {
+                done = true;
+            }
+            if (timer != null) timer.cancel(false);
+            if (fired()) Thread.interrupted();
+        }
+    }
+
+    /** 非流式调用：计入 llm.request（primary 为配置的端点，compat 为 DashScope 兼容模式回退）。 */
+    private ResponseEntity<String> post(String url, HttpEntity<?> req) {
+        String endpoint = url.contains("/compatible-mode/") ? "compat" : "primary";
+        long t0 = System.nanoTime();
+        try {
+            ResponseEntity<String> res = http.postForEntity(url, req, String.class);
+            long nanos = System.nanoTime() - t0;
+            lastCallNanos.set(nanos);
+            metrics.llmRequest(endpoint, PlanMetrics.statusClass(res.getStatusCode().value()), nanos);
+            return res;
+        } catch (RuntimeException e) {
+            metrics.llmRequest(endpoint, PlanMetrics.outcome(e), System.nanoTime() - t0);
+            throw e;
+        }
+    }
+
+    /**
+     * 按模型回报的 usage 记账（OpenAI: prompt/completion_tokens；DashScope 标准: input/output_tokens）。
+     * 返回输出 token 数，未回报 usage 时返回 -1。非流式调用同时按本线程最近一次调用的耗时记录生成速度。
+     */
+    private long recordUsage(JsonNode root) {
+        Long callNanos = lastCallNanos.get();
+        lastCallNanos.remove();
+        JsonNode u = root.path("usage");
+        if (!u.isObject()) {
+            usageLedger.record(LlmUsageContext.current(), 0, 0);
+            return -1;
+        }
+        long prompt = u.has("prompt_tokens") ? u.path("prompt_tokens").asLong() : u.path("input_tokens").asLong();
+        long completion = u.has("completion_tokens") ? u.path("completion_tokens").asLong() : u.path("output_tokens").asLong();
+        if (prompt == 0 && completion == 0) completion = u.path("total_tokens").asLong();
+        usageLedger.record(LlmUsageContext.current(), prompt, completion);
+        if (callNanos != null) metrics.llmThroughput("blocking", completion, callNanos);
+        return completion;
+    }
 }
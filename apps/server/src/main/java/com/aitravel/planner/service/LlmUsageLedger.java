@@ -0,0 +1,252 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.ShardContext;
+import com.aitravel.planner.model.LlmUsage;
+import com.aitravel.planner.repo.LlmUsageRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LLM 用量台账与每日配额：
+ * - LlmService 解析到模型回报的 usage 后调用 record，请求线程只做本地累加，
+ *   Redis 计数（INCRBY，多节点共享的当日用量）与数据库汇总在后台单线程完成，按用户/日合并后定期写入 llm_usage；
+ * - 调用前检查当日 token 用量，超过配额时拒绝到次日零点；
+ * - Redis 不可用时按“数据库已落库用量 + 本节点新增”判断，其他节点的新增在下次重新加载基线后才可见。
+ * 用量在调用结束后才知道，因此配额可能被最后一次调用超出一次调用的用量。
+ */
+@Service
+public class LlmUsageLedger {
+    private static final Logger log = LoggerFactory.getLogger(LlmUsageLedger.class);
+
+    private static final String KEY_PREFIX = "llm:usage:";
+    private static final long BASELINE_TTL_MS = 300_000;
+
+    private final LlmUsageRepository usage;
+    private final ObjectProvider<StringRedisTemplate> redisProvider;
+
+    @Value("${app.llm.quota.daily-tokens:200000}")
+    private long dailyTokens;
+
+    @Value("${app.llm.quota.zone:Asia/Shanghai}")
+    private String zone;
+
+    @Value("${app.llm.usage.flush-interval-ms:5000}")
+    private long flushIntervalMs;
+
+    @Value("${app.llm.usage.redis-enabled:true}")
+    private boolean redisEnabled;
+
+    private record Key(UUID userId, LocalDate day) {}
+
+    // 以下仅在 worker 线程访问
+    private final Map<Key, long[]> pending = new HashMap<>();
+
+    // Redis 不可用时的本地视图：数据库基线 + 加载后本节点新增
+    private static final class Today {
+        final LocalDate day;
+        final long baseline;
+        final long loadedAt;
+        final AtomicLong recorded = new AtomicLong();
+
+        Today(LocalDate day, long baseline, long loadedAt) {
+            this.day = day;
+            this.baseline = baseline;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final Map<UUID, Today> local = new ConcurrentHashMap<>();
+
+    private ZoneId zoneId;
+    private ScheduledExecutorService worker;
+    private volatile long redisDownUntil;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong quotaRejections = new AtomicLong();
+
+    public LlmUsageLedger(LlmUsageRepository usage, ObjectProvider<StringRedisTemplate> redisProvider) {
+        this.usage = usage;
+        this.redisProvider = redisProvider;
+    }
+
+    @PostConstruct
+    public void start() {
+        zoneId = ZoneId.of(zone);
+        worker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "llm-usage");
+            t.setDaemon(true);
+            return t;
+        });
+        worker.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (worker == null) return;
+        worker.shutdown();
+        try { worker.awaitTermination(5, TimeUnit.SECONDS); } catch (InterruptedException ignored) { Thread.currentThread().interrupt(); }
+        flushQuietly();
+    }
+
+    /** 记录一次 LLM 调用的用量（模型未回报时传 0）；userId 为 null 时忽略。 */
+    public void record(UUID userId, long promptTokens, long completionTokens) {
+        if (userId == null) return;
+        long total = Math.max(0, promptTokens) + Math.max(0, completionTokens);
+        LocalDate day = LocalDate.now(zoneId);
+        calls.incrementAndGet();
+        tokens.addAndGet(total);
+        Today t = local.get(userId);
+        if (t != null && t.day.equals(day)) t.recorded.addAndGet(total);
+        try {
+            worker.execute(() -> apply(new Key(userId, day), Math.max(0, promptTokens), Math.max(0, completionTokens)));
+        } catch (RejectedExecutionException ignored) {
+            // 关闭过程中的调用不再入账
+        }
+    }
+
+    /** 当日 token 用量超过配额时返回距次日零点的秒数，否则返回 0。 */
+    public long quotaExceededFor(UUID userId) {
+        if (dailyTokens <= 0 || userId == null) return 0;
+        if (usedToday(userId) < dailyTokens) return 0;
+        quotaRejections.incrementAndGet();
+        ZonedDateTime now = ZonedDateTime.now(zoneId);
+        ZonedDateTime reset = now.toLocalDate().plusDays(1).atStartOfDay(zoneId);
+        return Math.max(1, Duration.between(now, reset).getSeconds());
+    }
+
+    public long usedToday(UUID userId) {
+        LocalDate day = LocalDate.now(zoneId);
+        StringRedisTemplate redis = redis();
+        if (redis != null) {
+            try {
+                String v = redis.opsForValue().get(redisKey(userId, day));
+                if (v != null) return Long.parseLong(v);
+            } catch (Exception e) {
+                markDown(e);
+            }
+        }
+        long now = System.currentTimeMillis();
+        Today t = local.get(userId);
+        if (t == null || !t.day.equals(day) || now - t.loadedAt > BASELINE_TTL_MS) {
+            // 请求线程可能已绑定用户的会话分片，llm_usage 位于主分片
+            long base = ShardContext.call(ShardContext.HOME, () -> usage.tokensOn(userId, day));
+            t = new Today(day, base, now);
+            local.put(userId, t);
+            if (local.size() > 100_000) local.values().removeIf(x -> !x.day.equals(day));
+        }
+        return t.baseline + t.recorded.get();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("dailyTokens", dailyTokens);
+        m.put("calls", calls.get());
+        m.put("tokens", tokens.get());
+        m.put("flushedRows", flushedRows.get());
+        m.put("quotaRejections", quotaRejections.get());
+        m.put("redis", redis() != null);
+        return m;
+    }
+
+    private void apply(Key key, long prompt, long completion) {
+        long[] p = pending.computeIfAbsent(key, k -> new long[3]);
+        p[0]++;
+        p[1] += prompt;
+        p[2] += completion;
+        StringRedisTemplate redis = redis();
+        if (redis == null) return;
+        try {
+            String k = redisKey(key.userId(), key.day());
+            Long n = redis.opsForValue().increment(k, prompt + completion);
+            if (n != null && n == prompt + completion) redis.expire(k, Duration.ofDays(2));
+        } catch (Exception e) {
+            markDown(e);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.warn("写入 LLM 用量失败，下次重试: {}", e.toString());
+        }
+    }
+
+    private void flush() {
+        if (pending.isEmpty()) return;
+        Map<Key, long[]> batch = new HashMap<>(pending);
+        pending.clear();
+        OffsetDateTime now = OffsetDateTime.now();
+        var it = batch.entrySet().iterator();
+        try {
+            while (it.hasNext()) {
+                Map.Entry<Key, long[]> e = it.next();
+                write(e.getKey(), e.getValue(), now);
+                it.remove();
+                flushedRows.incrementAndGet();
+            }
+        } finally {
+            // 未写入的放回待写，与之后的增量合并
+            for (Map.Entry<Key, long[]> e : batch.entrySet()) {
+                long[] p = pending.computeIfAbsent(e.getKey(), x -> new long[3]);
+                for (int i = 0; i < 3; i++) p[i] += e.getValue()[i];
+            }
+        }
+    }
+
+    private void write(Key k, long[] d, OffsetDateTime now) {
+        if (usage.addUsage(k.userId(), k.day(), d[0], d[1], d[2], now) > 0) return;
+        try {
+            LlmUsage u = new LlmUsage();
+            u.setUserId(k.userId());
+            u.setUsageDate(k.day());
+            u.setRequests(d[0]);
+            u.setPromptTokens(d[1]);
+            u.setCompletionTokens(d[2]);
+            u.setUpdatedAt(now);
+            usage.save(u);
+        } catch (DataIntegrityViolationException race) {
+            // 其他节点刚插入了当日记录
+            usage.addUsage(k.userId(), k.day(), d[0], d[1], d[2], now);
+        }
+    }
+
+    private static String redisKey(UUID userId, LocalDate day) {
+        return KEY_PREFIX + userId + ":" + day;
+    }
+
+    private StringRedisTemplate redis() {
+        if (!redisEnabled || System.currentTimeMillis() < redisDownUntil) return null;
+        return redisProvider.getIfAvailable();
+    }
+
+    private void markDown(Exception e) {
+        if (System.currentTimeMillis() >= redisDownUntil) log.warn("访问 Redis 失败，30 秒内 LLM 配额按本节点视图判断: {}", e.toString());
+        redisDownUntil = System.currentTimeMillis() + 30_000;
+    }
+}
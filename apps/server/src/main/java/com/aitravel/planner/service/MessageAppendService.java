@@ -0,0 +1,363 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.ReplicaRoutingDataSource;
+import com.aitravel.planner.config.ShardContext;
+import com.aitravel.planner.model.Message;
+import com.aitravel.planner.repo.ConversationRepository;
+import com.aitravel.planner.repo.MessageRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消息追加：
+ * - 同步模式：一条带属主校验的 UPDATE（刷新 updated_at）+ 一条 INSERT，不再先查询会话、再整行保存；
+ * - 写后模式（app.messages.write-behind.enabled=true）：属主校验后把消息写入本地日志并 fsync 即返回，
+ *   后台线程按批次通过 JDBC 批量插入，成功后以“写临时文件 + 原子改名”重写日志；启动时回放日志中尚未入库的消息。
+ *   每条待写消息记录其会话分片与属主（日志行为 {"shard":n,"owner":"...","message":{...}}），按分片分组写入，
+ *   入库后把属主记为刚写入（读写分离时随后的读走主库）。
+ * - 批量插入因数据完整性错误（如会话已被删除）失败时逐条重试，仍失败的消息转入 {journal}.failed，不阻塞后续消息；
+ *   待写消息超过 max-pending 时新消息改为同步插入。
+ */
+@Service
+public class MessageAppendService {
+    private static final Logger log = LoggerFactory.getLogger(MessageAppendService.class);
+
+    private static final String INSERT_SQL =
+            "INSERT INTO messages (id, conversation_id, role, content, tokens, created_at) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private final ConversationRepository conversations;
+    private final MessageRepository messages;
+    private final JdbcTemplate jdbc;
+    private final SearchService search;
+    private final ObjectProvider<ReplicaRoutingDataSource> routing;
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+    @Value("${app.messages.write-behind.enabled:false}")
+    private boolean writeBehind;
+
+    @Value("${app.messages.write-behind.journal:./data/message-journal.log}")
+    private String journalPath;
+
+    @Value("${app.messages.write-behind.batch-size:200}")
+    private int batchSize;
+
+    @Value("${app.messages.write-behind.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    @Value("${app.messages.write-behind.max-pending:10000}")
+    private int maxPending;
+
+    private record Pending(int shard, UUID owner, Message message) {}
+
+    // 仅在 synchronized (this) 内读写
+    private final List<Pending> pending = new ArrayList<>();
+    private Path path;
+    private FileChannel journal;
+    private ScheduledExecutorService flusher;
+
+    public MessageAppendService(ConversationRepository conversations, MessageRepository messages, JdbcTemplate jdbc,
+                                SearchService search, ObjectProvider<ReplicaRoutingDataSource> routing) {
+        this.conversations = conversations;
+        this.messages = messages;
+        this.jdbc = jdbc;
+        this.search = search;
+        this.routing = routing;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!writeBehind) return;
+        try {
+            path = Paths.get(journalPath);
+            if (path.getParent() != null) Files.createDirectories(path.getParent());
+            replay();
+            journal = openJournal();
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "message-write-behind");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+            log.info("消息写后模式已启用: journal={}, batchSize={}, interval={}ms", path, batchSize, flushIntervalMs);
+        } catch (IOException e) {
+            writeBehind = false;
+            log.warn("初始化消息日志失败，回退为同步写入: {}", e.toString());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try { flusher.awaitTermination(5, TimeUnit.SECONDS); } catch (InterruptedException ignored) { Thread.currentThread().interrupt(); }
+        }
+        flushQuietly();
+        try { if (journal != null) journal.close(); } catch (IOException ignored) {}
+    }
+
+    /**
+     * 追加消息；会话不存在或不属于 ownerId 时返回 empty。
+     */
+    @Transactional
+    public Optional<Message> append(UUID conversationId, UUID ownerId, String role, String content, Integer tokens) {
+        OffsetDateTime now = OffsetDateTime.now();
+        // 属主校验与 updated_at 刷新合并为一条 UPDATE
+        if (conversations.touch(conversationId, ownerId, now) == 0) return Optional.empty();
+        Message m = new Message();
+        m.setConversationId(conversationId);
+        m.setRole(role);
+        m.setContent(content);
+        m.setTokens(tokens);
+        m.setCreatedAt(now);
+        if (!writeBehind) {
+            Message saved = messages.save(m);
+            search.onAppend(ownerId, saved);
+            return Optional.of(saved);
+        }
+
+        m.setId(UUID.randomUUID());
+        Pending p = new Pending(ShardContext.current(), ownerId, m);
+        boolean queued = false;
+        int size = 0;
+        try {
+            synchronized (this) {
+                if (pending.size() < maxPending) {
+                    journal.write(ByteBuffer.wrap(journalLine(p)));
+                    journal.force(false);
+                    pending.add(p);
+                    queued = true;
+                }
+                size = pending.size();
+            }
+        } catch (IOException e) {
+            // 日志不可写时退回同步插入，保证确认即持久
+            log.warn("写入消息日志失败，改为同步插入: {}", e.toString());
+        }
+        if (!queued) {
+            // 积压过多（数据库变慢或不可用）或日志不可写：同步插入，对调用方形成背压
+            insertBatch(List.of(m));
+            search.onAppend(ownerId, m);
+            return Optional.of(m);
+        }
+        if (size >= batchSize) flusher.execute(this::flushQuietly);
+        search.onAppend(ownerId, m);
+        return Optional.of(m);
+    }
+
+    /** 等待已确认的消息全部入库（迁移用户分片前调用），返回是否已无待写消息。 */
+    public boolean drain() {
+        if (flusher == null) return true;
+        try {
+            flusher.submit(this::flushQuietly).get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.warn("等待消息写入超时或失败: {}", e.toString());
+        }
+        synchronized (this) {
+            return pending.isEmpty();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.warn("批量写入消息失败，稍后重试: {}", e.toString());
+        }
+    }
+
+    private void flush() throws IOException {
+        List<Pending> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            batch = new ArrayList<>(pending);
+        }
+        List<Pending> done = new ArrayList<>();
+        List<Pending> rejected = new ArrayList<>();
+        try {
+            for (Map.Entry<Integer, List<Pending>> e : byShard(batch).entrySet()) {
+                ShardContext.run(e.getKey(), () -> persist(e.getValue(), done, rejected));
+            }
+        } finally {
+            // 即使中途失败（如数据库不可用），已入库和已隔离的消息也先移出队列与日志
+            markWritten(done);
+            if (!done.isEmpty() || !rejected.isEmpty()) {
+                Set<Pending> settled = Collections.newSetFromMap(new IdentityHashMap<>());
+                settled.addAll(done);
+                settled.addAll(rejected);
+                synchronized (this) {
+                    pending.removeIf(settled::contains);
+                    deadLetter(rejected);
+                    rewriteJournal();
+                }
+            }
+        }
+    }
+
+    /**
+     * 在当前分片上按批插入；某批因数据完整性错误失败时逐条插入以隔离出错的消息：
+     * 主键冲突说明此前已入库，其余完整性错误的消息放入 rejected。数据库不可用等其他错误直接抛出，留待下次重试。
+     */
+    private void persist(List<Pending> ps, List<Pending> done, List<Pending> rejected) {
+        for (int i = 0; i < ps.size(); i += batchSize) {
+            List<Pending> chunk = ps.subList(i, Math.min(i + batchSize, ps.size()));
+            try {
+                insertBatch(chunk.stream().map(Pending::message).toList());
+                done.addAll(chunk);
+            } catch (DataIntegrityViolationException e) {
+                for (Pending p : chunk) {
+                    try {
+                        insertBatch(List.of(p.message()));
+                        done.add(p);
+                    } catch (DuplicateKeyException dup) {
+                        done.add(p);
+                    } catch (DataIntegrityViolationException bad) {
+                        log.warn("消息 {} 无法入库，已转入失败日志: {}", p.message().getId(), bad.getMostSpecificCause().toString());
+                        rejected.add(p);
+                    }
+                }
+            }
+        }
+    }
+
+    /** 日志只保留仍未入库的消息：先写临时文件并 fsync，再原子改名替换，崩溃时旧日志或新日志总有一份完整。 */
+    private void rewriteJournal() throws IOException {
+        if (journal == null) return;
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Pending p : pending) out.write(ByteBuffer.wrap(journalLine(p)));
+            out.force(false);
+        }
+        journal.close();
+        try {
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            journal = openJournal();
+        }
+    }
+
+    private FileChannel openJournal() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /** 无法入库的消息追加到 {journal}.failed，便于人工排查与补录。 */
+    private void deadLetter(List<Pending> rejected) throws IOException {
+        if (rejected.isEmpty()) return;
+        Path failed = path.resolveSibling(path.getFileName() + ".failed");
+        try (FileChannel out = FileChannel.open(failed, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            for (Pending p : rejected) out.write(ByteBuffer.wrap(journalLine(p)));
+            out.force(false);
+        }
+    }
+
+    private void markWritten(List<Pending> done) {
+        ReplicaRoutingDataSource r = routing.getIfAvailable();
+        if (r == null) return;
+        Set<UUID> owners = new HashSet<>();
+        for (Pending p : done) owners.add(p.owner());
+        owners.forEach(r::markWritten);
+    }
+
+    private byte[] journalLine(Pending p) throws IOException {
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("shard", p.shard());
+        line.put("owner", p.owner());
+        line.put("message", p.message());
+        return (mapper.writeValueAsString(line) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<Integer, List<Pending>> byShard(List<Pending> ps) {
+        Map<Integer, List<Pending>> out = new LinkedHashMap<>();
+        for (Pending p : ps) out.computeIfAbsent(p.shard(), k -> new ArrayList<>()).add(p);
+        return out;
+    }
+
+    private void insertBatch(List<Message> batch) {
+        jdbc.batchUpdate(INSERT_SQL, batch, batch.size(), (ps, m) -> {
+            ps.setObject(1, m.getId());
+            ps.setObject(2, m.getConversationId());
+            ps.setString(3, m.getRole());
+            ps.setString(4, m.getContent());
+            ps.setObject(5, m.getTokens());
+            ps.setTimestamp(6, Timestamp.from(m.getCreatedAt().toInstant()));
+        });
+    }
+
+    /** 启动时回放日志：跳过已入库的 id，其余批量插入，无法入库的转入失败日志。 */
+    private void replay() throws IOException {
+        if (!Files.exists(path)) return;
+        List<Pending> logged = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) continue;
+            try {
+                JsonNode node = mapper.readTree(line);
+                // 兼容分片前的日志格式（整行即消息，位于分片 0）；旧日志行没有属主
+                JsonNode owner = node.path("owner");
+                logged.add(node.has("message")
+                        ? new Pending(node.path("shard").asInt(ShardContext.HOME),
+                                owner.isTextual() ? UUID.fromString(owner.asText()) : null,
+                                mapper.treeToValue(node.get("message"), Message.class))
+                        : new Pending(ShardContext.HOME, null, mapper.treeToValue(node, Message.class)));
+            } catch (IOException e) {
+                // 最后一行可能在崩溃时只写了一半，丢弃（未 fsync 的消息尚未确认给客户端）
+                log.warn("跳过无法解析的消息日志行: {}", e.toString());
+            }
+        }
+        int replayed = 0;
+        List<Pending> rejected = new ArrayList<>();
+        for (Map.Entry<Integer, List<Pending>> e : byShard(logged).entrySet()) {
+            List<Pending> ps = e.getValue();
+            replayed += ShardContext.call(e.getKey(), () -> {
+                Set<UUID> existing = new HashSet<>();
+                List<UUID> ids = new ArrayList<>();
+                for (Pending p : ps) ids.add(p.message().getId());
+                messages.findAllById(ids).forEach(m -> existing.add(m.getId()));
+                List<Pending> missing = new ArrayList<>();
+                for (Pending p : ps) if (!existing.contains(p.message().getId())) missing.add(p);
+                persist(missing, new ArrayList<>(), rejected);
+                return missing.size();
+            });
+        }
+        deadLetter(rejected);
+        if (!logged.isEmpty()) log.info("已回放消息日志: {} 条，补写 {} 条，失败 {} 条", logged.size(), replayed - rejected.size(), rejected.size());
+        Files.write(path, new byte[0]);
+    }
+}
@@ -0,0 +1,249 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.ShardContext;
+import com.aitravel.planner.model.MessageDictionary;
+import com.aitravel.planner.repo.MessageDictionaryRepository;
+import com.aitravel.planner.util.MessageCompression;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 消息冷热分层：超过 age-days 的长消息正文压缩后移到同分片的 message_cold（按消息 id），
+ * messages 行 content 置空并以 cold_id 标记，热表行保持短小。
+ * - 压缩使用 deflate + 共享字典，字典由近期助手消息训练（行程 Markdown 的标题、列表、预算模板高度重复），
+ *   每 retrain-days 训练一个新版本，旧数据继续使用写入时的字典；
+ * - 读取经 MessageRepository 连带取出冷数据块，由 Message#getContent 按需解压，调用方无感知；
+ * - 按分片逐个处理，每批独立提交；压缩后不变小的消息保持原样。
+ */
+@Service
+public class MessageTieringService {
+    private static final Logger log = LoggerFactory.getLogger(MessageTieringService.class);
+
+    private final JdbcTemplate jdbc;
+    private final MessageDictionaryRepository dictionaries;
+    private final ShardMap shards;
+    private final TransactionTemplate tx;
+
+    @Value("${app.messages.cold.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.messages.cold.age-days:30}")
+    private int ageDays;
+
+    @Value("${app.messages.cold.min-bytes:1024}")
+    private int minBytes;
+
+    @Value("${app.messages.cold.batch-size:500}")
+    private int batchSize;
+
+    @Value("${app.messages.cold.max-batches-per-run:20}")
+    private int maxBatchesPerRun;
+
+    @Value("${app.messages.cold.interval-ms:300000}")
+    private long intervalMs;
+
+    @Value("${app.messages.cold.dictionary.sample-size:500}")
+    private int sampleSize;
+
+    @Value("${app.messages.cold.dictionary.min-samples:50}")
+    private int minSamples;
+
+    @Value("${app.messages.cold.dictionary.retrain-days:30}")
+    private int retrainDays;
+
+    private ScheduledExecutorService tierer;
+    private volatile MessageDictionary current;
+    // 各分片的扫描游标 (created_at, id)
+    private final Map<Integer, Object[]> cursors = new ConcurrentHashMap<>();
+
+    private final AtomicLong tieredMessages = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastRunAt;
+
+    public MessageTieringService(JdbcTemplate jdbc, MessageDictionaryRepository dictionaries, ShardMap shards,
+                                 PlatformTransactionManager txManager) {
+        this.jdbc = jdbc;
+        this.dictionaries = dictionaries;
+        this.shards = shards;
+        this.tx = new TransactionTemplate(txManager);
+    }
+
+    @PostConstruct
+    public void start() {
+        // 冷数据在任意分片上读取时都可能需要字典，字典统一存放在主分片
+        MessageCompression.setLoader(id -> ShardContext.call(ShardContext.HOME,
+                () -> dictionaries.findById(id).map(MessageDictionary::getData).orElse(null)));
+        if (!enabled) return;
+        tierer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-tiering");
+            t.setDaemon(true);
+            return t;
+        });
+        tierer.scheduleWithFixedDelay(this::runQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (tierer != null) tierer.shutdownNow();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        MessageDictionary d = current;
+        long raw = rawBytes.get();
+        long stored = storedBytes.get();
+        long n = MessageCompression.inflations();
+        m.put("enabled", enabled);
+        m.put("dictionaryId", d == null ? 0 : d.getId());
+        m.put("dictionaryBytes", d == null ? 0 : d.getData().length);
+        m.put("tieredMessages", tieredMessages.get());
+        m.put("rawBytes", raw);
+        m.put("storedBytes", stored);
+        m.put("savedRatio", raw == 0 ? 0.0 : Math.round((1 - (double) stored / raw) * 1000) / 1000.0);
+        m.put("skipped", skipped.get());
+        m.put("inflations", n);
+        m.put("avgInflateMicros", n == 0 ? 0 : MessageCompression.inflateNanos() / n / 1000);
+        m.put("inflateFailures", MessageCompression.inflateFailures());
+        m.put("failures", failures.get());
+        m.put("lastRunAt", lastRunAt);
+        return m;
+    }
+
+    private void runQuietly() {
+        try {
+            run();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.warn("消息分层失败，下个周期重试: {}", e.toString());
+        }
+    }
+
+    private synchronized void run() {
+        lastRunAt = System.currentTimeMillis();
+        MessageDictionary dict = dictionary();
+        int dictId = dict == null ? 0 : dict.getId();
+        Timestamp cutoff = Timestamp.from(OffsetDateTime.now().minusDays(ageDays).toInstant());
+        int budget = maxBatchesPerRun;
+        for (int s = 0; s < shards.shardCount() && budget > 0; s++) {
+            int left = budget;
+            budget = ShardContext.call(s, () -> tierShard(cutoff, dictId, left));
+        }
+    }
+
+    /** 压缩当前分片上的冷消息，返回剩余批次预算。 */
+    private int tierShard(Timestamp cutoff, int dictId, int budget) {
+        // 按 (created_at, id) 推进游标，走 idx_messages_hot；游标跨周期保留，
+        // 已扫描过（含压缩后不变小而被跳过）的消息不再重复扫描，新到期的消息总在游标之后
+        int shard = ShardContext.current();
+        Object[] mark = cursors.getOrDefault(shard, new Object[]{new Timestamp(0L), new UUID(0L, 0L)});
+        while (budget > 0) {
+            // 中文正文每字符约 3 字节，按 min-bytes/3 个字符粗筛，精确字节数在内存中判断
+            List<Map<String, Object>> rows = jdbc.queryForList(
+                    "SELECT id, created_at, content FROM messages WHERE cold_id IS NULL AND created_at < ? " +
+                            "AND (created_at, id) > (?, ?) AND LENGTH(content) >= ? ORDER BY created_at, id LIMIT ?",
+                    cutoff, mark[0], mark[1], minBytes / 3, batchSize);
+            budget--;
+            if (rows.isEmpty()) break;
+            Map<String, Object> last = rows.get(rows.size() - 1);
+            mark = new Object[]{value(last, "created_at"), value(last, "id")};
+            List<Object[]> updates = new ArrayList<>();
+            for (Map<String, Object> row : rows) {
+                String content = (String) value(row, "content");
+                int raw = content.getBytes(StandardCharsets.UTF_8).length;
+                byte[] z = MessageCompression.deflate(content, dictId);
+                if (raw < minBytes || z.length >= raw) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                updates.add(new Object[]{value(row, "id"), z});
+                rawBytes.addAndGet(raw);
+                storedBytes.addAndGet(z.length);
+            }
+            if (!updates.isEmpty()) {
+                // 冷数据块与热表标记同一事务提交
+                tx.executeWithoutResult(st -> {
+                    jdbc.batchUpdate("INSERT INTO message_cold (message_id, data) VALUES (?, ?)", updates);
+                    List<Object[]> ids = new ArrayList<>();
+                    for (Object[] u : updates) ids.add(new Object[]{u[0], u[0]});
+                    jdbc.batchUpdate("UPDATE messages SET content = '', cold_id = ? WHERE id = ? AND cold_id IS NULL", ids);
+                });
+                tieredMessages.addAndGet(updates.size());
+            }
+            cursors.put(shard, mark);
+            if (rows.size() < batchSize) break;
+        }
+        return budget;
+    }
+
+    /** 当前使用的字典；尚无字典或已超过 retrain-days 时用近期助手消息训练新字典，样本不足时不用字典。 */
+    private MessageDictionary dictionary() {
+        MessageDictionary d = current;
+        if (d == null) {
+            d = ShardContext.call(ShardContext.HOME, dictionaries::findTopByOrderByIdDesc).orElse(null);
+            if (d != null) MessageCompression.register(d.getId(), d.getData());
+        }
+        if (d == null || d.getCreatedAt().isBefore(OffsetDateTime.now().minusDays(retrainDays))) {
+            List<String> samples = new ArrayList<>();
+            for (int s = 0; s < shards.shardCount() && samples.size() < sampleSize; s++) {
+                int want = sampleSize - samples.size();
+                samples.addAll(ShardContext.call(s, () -> jdbc.queryForList(
+                        "SELECT content FROM messages WHERE role = 'assistant' AND cold_id IS NULL ORDER BY created_at DESC LIMIT ?",
+                        String.class, want)));
+            }
+            if (samples.size() >= minSamples) {
+                int id = d == null ? 1 : d.getId() + 1;
+                byte[] data = MessageCompression.train(samples);
+                // 显式 INSERT：多实例同时训练时只有一个能写入该 id，其余实例改用已落库的最新字典，不会覆盖已有字典
+                boolean inserted = ShardContext.call(ShardContext.HOME, () -> {
+                    try {
+                        jdbc.update("INSERT INTO message_dictionaries (id, data, sample_count, created_at) VALUES (?, ?, ?, ?)",
+                                id, data, samples.size(), OffsetDateTime.now());
+                        return true;
+                    } catch (DuplicateKeyException e) {
+                        return false;
+                    }
+                });
+                d = ShardContext.call(ShardContext.HOME, dictionaries::findTopByOrderByIdDesc).orElse(d);
+                if (d != null) MessageCompression.register(d.getId(), d.getData());
+                if (inserted) {
+                    log.info("已训练消息压缩字典 {}: 样本 {} 条，{} 字节", id, samples.size(), data.length);
+                } else {
+                    log.info("字典 {} 已由其他实例写入，改用最新字典 {}", id, d == null ? 0 : d.getId());
+                }
+            }
+        }
+        current = d;
+        return d;
+    }
+
+    // H2 返回大写列名，PostgreSQL 为小写
+    private static Object value(Map<String, Object> row, String col) {
+        Object v = row.get(col);
+        return v != null ? v : row.get(col.toUpperCase());
+    }
+}
@@ -0,0 +1,71 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.repo.ConversationRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * 会话属主缓存：属主校验只需 ownerId，会话的属主创建后不会改变，
+ * 因此按 id 缓存（创建时写入、删除时失效），命中时不再访问数据库。
+ * 多实例部署时其他实例的删除依赖 TTL 过期；删除后的写入仍由 touch 等带状态条件的语句兜底。
+ */
+@Service
+public class OwnershipCache {
+    private final ConversationRepository conversations;
+
+    @Value("${app.cache.ownership.max-entries:10000}")
+    private int maxEntries;
+
+    @Value("${app.cache.ownership.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    private record Entry(UUID ownerId, long expiresAt) {}
+
+    private final Map<UUID, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    public OwnershipCache(ConversationRepository conversations) {
+        this.conversations = conversations;
+    }
+
+    /** 未删除会话的属主；会话不存在或已删除时返回 empty（不缓存未命中结果）。 */
+    public Optional<UUID> conversationOwner(UUID id) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry e = entries.get(id);
+            if (e != null) {
+                if (e.expiresAt() > now) return Optional.of(e.ownerId());
+                entries.remove(id);
+            }
+        }
+        Optional<UUID> owner = conversations.findActiveOwnerId(id);
+        owner.ifPresent(o -> putConversation(id, o));
+        return owner;
+    }
+
+    /** 会话是否存在、未删除且属于 userId。 */
+    public boolean ownsConversation(UUID id, UUID userId) {
+        return conversationOwner(id).map(userId::equals).orElse(false);
+    }
+
+    public void putConversation(UUID id, UUID ownerId) {
+        synchronized (entries) {
+            entries.put(id, new Entry(ownerId, System.currentTimeMillis() + ttlSeconds * 1000));
+        }
+    }
+
+    public void evictConversation(UUID id) {
+        synchronized (entries) {
+            entries.remove(id);
+        }
+    }
+}
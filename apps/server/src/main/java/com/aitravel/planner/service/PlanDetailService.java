@@ -0,0 +1,89 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.model.Activity;
+import com.aitravel.planner.model.Day;
+import com.aitravel.planner.model.Plan;
+import com.aitravel.planner.repo.ActivityRepository;
+import com.aitravel.planner.repo.DayRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 行程详情读模型：
+ * - 天与活动各一条集合查询（活动通过 days 关联按天序/当日顺序取回），查询次数与行程天数无关；
+ * - 结果按 plans.updated_at 版本戳缓存，调用方已为属主校验加载了 Plan，版本一致时直接复用，不再访问 days/activities。
+ */
+@Service
+public class PlanDetailService {
+    private final DayRepository days;
+    private final ActivityRepository activities;
+
+    @Value("${app.plans.detail-cache.max-entries:1000}")
+    private int maxEntries;
+
+    private final Map<UUID, Cached> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Cached> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    public PlanDetailService(DayRepository days, ActivityRepository activities) {
+        this.days = days;
+        this.activities = activities;
+    }
+
+    public record ActivityDetail(UUID id, String type, String title, Integer seq, Map<String, Object> poi,
+                                 LocalTime startTime, LocalTime endTime, Map<String, Object> transport,
+                                 BigDecimal estimatedCostAmount, String estimatedCostCurrency,
+                                 String description, String[] images) {
+        static ActivityDetail of(Activity a) {
+            return new ActivityDetail(a.getId(), a.getType(), a.getTitle(), a.getSeq(), a.getPoi(), a.getStartTime(), a.getEndTime(),
+                    a.getTransport(), a.getEstimatedCostAmount(), a.getEstimatedCostCurrency(), a.getDescription(), a.getImages());
+        }
+    }
+
+    public record DayDetail(UUID id, UUID planId, int index, LocalDate date, Map<String, Object> accommodation,
+                            Map<String, Object> transport, String summary, String notes, List<ActivityDetail> activities) {}
+
+    private record Cached(OffsetDateTime version, List<DayDetail> days) {}
+
+    /**
+     * 返回行程的天与活动；plan 须为刚从库中读取的实体（其 updatedAt 作为版本戳）。
+     */
+    public List<DayDetail> days(Plan plan) {
+        OffsetDateTime version = plan.getUpdatedAt();
+        synchronized (cache) {
+            Cached c = cache.get(plan.getId());
+            if (c != null && version != null && c.version().isEqual(version)) return c.days();
+        }
+        List<Day> ds = days.findByPlanIdOrderByIndexAsc(plan.getId());
+        Map<UUID, List<ActivityDetail>> byDay = new HashMap<>();
+        for (Activity a : activities.findAllByPlanIdOrdered(plan.getId())) {
+            byDay.computeIfAbsent(a.getDayId(), k -> new ArrayList<>()).add(ActivityDetail.of(a));
+        }
+        List<DayDetail> out = new ArrayList<>(ds.size());
+        for (Day d : ds) {
+            out.add(new DayDetail(d.getId(), d.getPlanId(), d.getIndex(), d.getDate(), d.getAccommodation(), d.getTransport(),
+                    d.getSummary(), d.getNotes(), List.copyOf(byDay.getOrDefault(d.getId(), List.of()))));
+        }
+        List<DayDetail> result = List.copyOf(out);
+        if (version != null) {
+            synchronized (cache) {
+                cache.put(plan.getId(), new Cached(version, result));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,559 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.DataOwnerContext;
+import com.aitravel.planner.config.LlmUsageContext;
+import com.aitravel.planner.config.RequestDeadline;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisListCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 行程生成任务队列：提交即返回任务 id，由工作线程从队列取出执行，结果带 TTL 保存，客户端轮询或订阅完成事件。
+ * - Redis 模式（启动时 Redis 可用）：任务为哈希 plan:job:<id>，待执行 id 在列表 plan:jobs:queue，
+ *   提交时以 Lua 脚本原子写入哈希、TTL 与队列；工作线程以 BLMOVE 原子移入 plan:jobs:processing，完成后移除；
+ *   执行期间定期写入心跳（heartbeatAt），进程崩溃遗留在 processing 中、超过可见性超时未心跳的任务
+ *   由任一节点重新入队（超过最大尝试次数则标记失败）。完成事件经频道广播，各节点推送给本地订阅者。
+ *   API 节点与工作节点可独立扩缩（worker-threads=0 的节点只受理不执行），重启不丢任务。
+ * - 本地模式（未启用或连不上 Redis）：同样的流程在进程内完成，仅用于开发与单机部署，重启后任务丢失。
+ * 生成流程由 ItineraryController 通过 setHandler 注册，与同步 /plan 完全一致。
+ */
+@Service
+public class PlanJobService implements MessageListener {
+    private static final Logger log = LoggerFactory.getLogger(PlanJobService.class);
+
+    private static final String JOB_KEY = "plan:job:";
+    private static final String QUEUE = "plan:jobs:queue";
+    private static final String PROCESSING = "plan:jobs:processing";
+    private static final String CHANNEL = "plan:jobs:events";
+
+    // KEYS[1] 任务哈希，KEYS[2] 队列；ARGV TTL 秒、任务 id、字段/值对。哈希、TTL 与入队一次完成，不会留下无 TTL 或未入队的任务
+    private static final DefaultRedisScript<Long> CREATE_SCRIPT = new DefaultRedisScript<>("""
+            redis.call('HSET', KEYS[1], unpack(ARGV, 3))
+            redis.call('EXPIRE', KEYS[1], tonumber(ARGV[1]))
+            return redis.call('LPUSH', KEYS[2], ARGV[2])
+            """, Long.class);
+
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    /** 生成流程：返回与同步接口相同的响应体；empty 表示 LLM 不可用。 */
+    @FunctionalInterface
+    public interface Handler {
+        Optional<Map<String, Object>> generate(UUID ownerId, String text, String city) throws Exception;
+    }
+
+    private final ObjectProvider<StringRedisTemplate> redisProvider;
+    private final ObjectProvider<RedisConnectionFactory> connections;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Value("${app.plan-jobs.redis-enabled:true}")
+    private boolean redisEnabled;
+
+    @Value("${app.plan-jobs.worker-threads:2}")
+    private int workerThreads;
+
+    @Value("${app.plan-jobs.max-queued:1000}")
+    private long maxQueued;
+
+    @Value("${app.plan-jobs.pending-ttl-seconds:3600}")
+    private long pendingTtlSeconds;
+
+    @Value("${app.plan-jobs.result-ttl-seconds:3600}")
+    private long resultTtlSeconds;
+
+    @Value("${app.plan-jobs.visibility-timeout-seconds:300}")
+    private long visibilityTimeoutSeconds;
+
+    @Value("${app.plan-jobs.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${app.plan-jobs.deadline-ms:120000}")
+    private long deadlineMs;
+
+    private volatile Handler handler;
+    private Store store;
+    private ExecutorService workers;
+    private ScheduledExecutorService reaper;
+    private RedisMessageListenerContainer listener;
+    private volatile boolean running;
+
+    private final Map<String, List<Consumer<Map<String, Object>>>> watchers = new ConcurrentHashMap<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong requeued = new AtomicLong();
+
+    public PlanJobService(ObjectProvider<StringRedisTemplate> redisProvider,
+                          ObjectProvider<RedisConnectionFactory> connections) {
+        this.redisProvider = redisProvider;
+        this.connections = connections;
+    }
+
+    @PostConstruct
+    public void start() {
+        store = redisStore().orElseGet(LocalStore::new);
+        running = true;
+        // 回收与心跳共用一个线程，须在工作线程启动前创建
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "plan-job-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        reaper.scheduleWithFixedDelay(this::reapQuietly, 30, 30, TimeUnit.SECONDS);
+        int n = Math.max(0, workerThreads);
+        if (n > 0) {
+            AtomicInteger seq = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(n, r -> {
+                Thread t = new Thread(r, "plan-job-worker-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            for (int i = 0; i < n; i++) workers.execute(this::workLoop);
+        }
+        log.info("行程任务队列: mode={}, workers={}", store.mode(), n);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (workers != null) workers.shutdownNow();
+        if (reaper != null) reaper.shutdownNow();
+        if (listener != null) {
+            try {
+                listener.destroy();
+            } catch (Exception ignored) {}
+        }
+    }
+
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    /** 提交任务；队列积压超过上限时返回 empty（由接口返回 503）。 */
+    public Optional<String> submit(UUID ownerId, String text, String city) {
+        if (store.queued() >= maxQueued) return Optional.empty();
+        String id = UUID.randomUUID().toString();
+        Map<String, String> job = new HashMap<>();
+        job.put("status", QUEUED);
+        job.put("owner", ownerId == null ? "" : ownerId.toString());
+        job.put("text", text);
+        job.put("city", city == null ? "" : city);
+        job.put("submittedAt", String.valueOf(System.currentTimeMillis()));
+        job.put("attempts", "0");
+        store.create(id, job, pendingTtlSeconds);
+        submitted.incrementAndGet();
+        return Optional.of(id);
+    }
+
+    /** 任务视图；不存在、已过期或不属于 ownerId 时返回 empty。 */
+    public Optional<Map<String, Object>> view(String id, UUID ownerId) {
+        Map<String, String> job = store.get(id);
+        if (job == null || !String.valueOf(ownerId).equals(job.get("owner"))) return Optional.empty();
+        return Optional.of(toView(id, job));
+    }
+
+    /**
+     * 任务结束（done/failed）时回调一次；已结束的任务立即回调。返回取消订阅的句柄。
+     */
+    public Runnable watch(String id, Consumer<Map<String, Object>> onFinished) {
+        List<Consumer<Map<String, Object>>> list = watchers.computeIfAbsent(id, k -> new CopyOnWriteArrayList<>());
+        list.add(onFinished);
+        // 注册后再检查一次，避免错过注册前刚发出的完成事件
+        notifyWatchers(id);
+        return () -> {
+            list.remove(onFinished);
+            watchers.computeIfPresent(id, (k, v) -> v.isEmpty() ? null : v);
+        };
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("mode", store.mode());
+        m.put("workers", Math.max(0, workerThreads));
+        try {
+            m.put("queued", store.queued());
+            m.put("processing", store.processing().size());
+        } catch (Exception e) {
+            m.put("error", e.toString());
+        }
+        m.put("submitted", submitted.get());
+        m.put("completed", completed.get());
+        m.put("failed", failed.get());
+        m.put("requeued", requeued.get());
+        m.put("watchers", watchers.size());
+        return m;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        notifyWatchers(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void workLoop() {
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                if (handler == null) {
+                    Thread.sleep(1000);
+                    continue;
+                }
+                String id = store.take();
+                if (id != null) process(id);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("行程任务队列访问失败，5 秒后重试: {}", e.toString());
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void process(String id) {
+        Map<String, String> job = store.get(id);
+        // 已过期，或重复投递（已被其他工作线程完成）
+        if (job == null || DONE.equals(job.get("status")) || FAILED.equals(job.get("status"))) {
+            store.ack(id);
+            return;
+        }
+        int attempts = parseInt(job.get("attempts")) + 1;
+        store.update(id, Map.of("status", RUNNING, "startedAt", String.valueOf(System.currentTimeMillis()),
+                "attempts", String.valueOf(attempts)), pendingTtlSeconds);
+        // 执行期间按可见性超时的 1/3 写心跳，执行时间较长的任务不会被当作遗留任务重新入队
+        long beatMs = Math.max(1000, visibilityTimeoutSeconds * 1000 / 3);
+        ScheduledFuture<?> heartbeat = reaper.scheduleAtFixedRate(() -> {
+            try {
+                store.update(id, Map.of("heartbeatAt", String.valueOf(System.currentTimeMillis())), pendingTtlSeconds);
+            } catch (Exception e) {
+                log.warn("行程任务 {} 心跳失败: {}", id, e.toString());
+            }
+        }, beatMs, beatMs, TimeUnit.MILLISECONDS);
+        UUID owner = job.get("owner").isEmpty() ? null : UUID.fromString(job.get("owner"));
+        String city = job.get("city").isEmpty() ? null : job.get("city");
+        Map<String, String> result = new HashMap<>();
+        try {
+            // 用量记到提交任务的用户名下；截止时间从开始执行起算，保证在可见性超时之前结束
+            Long deadline = deadlineMs > 0 ? RequestDeadline.after(deadlineMs) : null;
+            Optional<Map<String, Object>> out = RequestDeadline.call(deadline,
+                    () -> LlmUsageContext.call(owner, () -> DataOwnerContext.call(owner, () -> handler.generate(owner, job.get("text"), city))));
+            if (out.isPresent()) {
+                result.put("status", DONE);
+                result.put("result", mapper.writeValueAsString(out.get()));
+                completed.incrementAndGet();
+            } else {
+                result.put("status", FAILED);
+                result.put("error", "LLM 不可用或超时，请稍后重试");
+                failed.incrementAndGet();
+            }
+        } catch (Exception e) {
+            // 异常详情只进日志，任务结果（返回给用户）使用固定文案
+            log.warn("行程任务 {} 执行失败", id, e);
+            result.put("status", FAILED);
+            result.put("error", "行程生成失败，请稍后重试");
+            failed.incrementAndGet();
+        } finally {
+            heartbeat.cancel(false);
+        }
+        result.put("finishedAt", String.valueOf(System.currentTimeMillis()));
+        store.update(id, result, resultTtlSeconds);
+        store.ack(id);
+        store.publish(id);
+    }
+
+    private void reapQuietly() {
+        try {
+            reap();
+        } catch (Exception e) {
+            log.warn("检查超时行程任务失败: {}", e.toString());
+        }
+    }
+
+    // 工作线程崩溃或节点重启后遗留在 processing 中的任务：超过可见性超时后重新入队
+    private void reap() {
+        long now = System.currentTimeMillis();
+        for (String id : store.processing()) {
+            Map<String, String> job = store.get(id);
+            if (job == null || DONE.equals(job.get("status")) || FAILED.equals(job.get("status"))) {
+                store.ack(id);
+                continue;
+            }
+            // 最近一次活动：心跳、开始执行或提交时间
+            long since = Math.max(parseLong(job.get("heartbeatAt")),
+                    parseLong(job.getOrDefault("startedAt", job.get("submittedAt"))));
+            if (now - since < visibilityTimeoutSeconds * 1000) continue;
+            if (parseInt(job.get("attempts")) >= maxAttempts) {
+                store.update(id, Map.of("status", FAILED, "error", "任务多次执行超时",
+                        "finishedAt", String.valueOf(now)), resultTtlSeconds);
+                store.ack(id);
+                store.publish(id);
+                failed.incrementAndGet();
+            } else if (store.requeue(id)) {
+                store.update(id, Map.of("status", QUEUED), pendingTtlSeconds);
+                requeued.incrementAndGet();
+            }
+        }
+    }
+
+    private void notifyWatchers(String id) {
+        List<Consumer<Map<String, Object>>> list = watchers.get(id);
+        if (list == null || list.isEmpty()) return;
+        Map<String, String> job;
+        try {
+            job = store.get(id);
+        } catch (Exception e) {
+            return;
+        }
+        if (job == null) return;
+        String status = job.get("status");
+        if (!DONE.equals(status) && !FAILED.equals(status)) return;
+        Map<String, Object> view = toView(id, job);
+        for (Consumer<Map<String, Object>> c : list) {
+            if (list.remove(c)) {
+                try {
+                    c.accept(view);
+                } catch (Exception ignored) {}
+            }
+        }
+        watchers.computeIfPresent(id, (k, v) -> v.isEmpty() ? null : v);
+    }
+
+    private Map<String, Object> toView(String id, Map<String, String> job) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", id);
+        m.put("status", job.get("status"));
+        m.put("attempts", parseInt(job.get("attempts")));
+        m.put("submittedAt", parseLong(job.get("submittedAt")));
+        if (job.containsKey("startedAt")) m.put("startedAt", parseLong(job.get("startedAt")));
+        if (job.containsKey("finishedAt")) m.put("finishedAt", parseLong(job.get("finishedAt")));
+        if (job.containsKey("error")) m.put("error", job.get("error"));
+        if (job.containsKey("result")) {
+            try {
+                m.put("result", mapper.readTree(job.get("result")));
+            } catch (Exception e) {
+                m.put("error", "结果解析失败");
+            }
+        }
+        return m;
+    }
+
+    private static int parseInt(String s) {
+        try {
+            return s == null ? 0 : Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long parseLong(String s) {
+        try {
+            return s == null ? 0 : Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private Optional<Store> redisStore() {
+        StringRedisTemplate redis = redisProvider.getIfAvailable();
+        RedisConnectionFactory cf = connections.getIfAvailable();
+        if (!redisEnabled || redis == null || cf == null) return Optional.empty();
+        try {
+            redis.opsForList().size(QUEUE);
+            listener = new RedisMessageListenerContainer();
+            listener.setConnectionFactory(cf);
+            listener.addMessageListener(this, new ChannelTopic(CHANNEL));
+            listener.afterPropertiesSet();
+            listener.start();
+            return Optional.of(new RedisStore(redis));
+        } catch (Exception e) {
+            listener = null;
+            log.warn("连接 Redis 失败，行程任务队列使用进程内模式（重启后任务丢失）: {}", e.toString());
+            return Optional.empty();
+        }
+    }
+
+    private interface Store {
+        String mode();
+        void create(String id, Map<String, String> job, long ttlSeconds);
+        Map<String, String> get(String id);
+        void update(String id, Map<String, String> fields, long ttlSeconds);
+        /** 取出下一个任务并移入 processing；短暂阻塞后无任务返回 null。 */
+        String take() throws InterruptedException;
+        void ack(String id);
+        /** 从 processing 移回队列；已被其他节点处理时返回 false。 */
+        boolean requeue(String id);
+        List<String> processing();
+        long queued();
+        void publish(String id);
+    }
+
+    private final class RedisStore implements Store {
+        private final StringRedisTemplate redis;
+
+        RedisStore(StringRedisTemplate redis) {
+            this.redis = redis;
+        }
+
+        public String mode() { return "redis"; }
+
+        public void create(String id, Map<String, String> job, long ttlSeconds) {
+            List<String> args = new ArrayList<>(2 + job.size() * 2);
+            args.add(String.valueOf(ttlSeconds));
+            args.add(id);
+            job.forEach((k, v) -> {
+                args.add(k);
+                args.add(v);
+            });
+            redis.execute(CREATE_SCRIPT, List.of(JOB_KEY + id, QUEUE), args.toArray());
+        }
+
+        public Map<String, String> get(String id) {
+            Map<Object, Object> raw = redis.opsForHash().entries(JOB_KEY + id);
+            if (raw.isEmpty()) return null;
+            Map<String, String> m = new HashMap<>();
+            raw.forEach((k, v) -> m.put(String.valueOf(k), String.valueOf(v)));
+            return m;
+        }
+
+        public void update(String id, Map<String, String> fields, long ttlSeconds) {
+            redis.opsForHash().putAll(JOB_KEY + id, fields);
+            redis.expire(JOB_KEY + id, Duration.ofSeconds(ttlSeconds));
+        }
+
+        public String take() {
+            // 阻塞时长须小于 spring.data.redis.timeout
+            return redis.opsForList().move(QUEUE, RedisListCommands.Direction.RIGHT,
+                    PROCESSING, RedisListCommands.Direction.LEFT, Duration.ofSeconds(1));
+        }
+
+        public void ack(String id) {
+            redis.opsForList().remove(PROCESSING, 1, id);
+        }
+
+        public boolean requeue(String id) {
+            Long removed = redis.opsForList().remove(PROCESSING, 1, id);
+            if (removed == null || removed == 0) return false;
+            redis.opsForList().rightPush(QUEUE, id);
+            return true;
+        }
+
+        public List<String> processing() {
+            List<String> ids = redis.opsForList().range(PROCESSING, 0, -1);
+            return ids == null ? List.of() : ids;
+        }
+
+        public long queued() {
+            Long n = redis.opsForList().size(QUEUE);
+            return n == null ? 0 : n;
+        }
+
+        public void publish(String id) {
+            redis.convertAndSend(CHANNEL, id);
+        }
+    }
+
+    private final class LocalStore implements Store {
+        private record Entry(Map<String, String> fields, long expiresAt) {}
+
+        private final Map<String, Entry> jobs = new ConcurrentHashMap<>();
+        private final LinkedBlockingDeque<String> queue = new LinkedBlockingDeque<>();
+        private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+        public String mode() { return "local"; }
+
+        public void create(String id, Map<String, String> job, long ttlSeconds) {
+            jobs.put(id, new Entry(new ConcurrentHashMap<>(job), System.currentTimeMillis() + ttlSeconds * 1000));
+            queue.addFirst(id);
+        }
+
+        public Map<String, String> get(String id) {
+            Entry e = jobs.get(id);
+            if (e == null) return null;
+            if (e.expiresAt() <= System.currentTimeMillis()) {
+                jobs.remove(id);
+                return null;
+            }
+            return new HashMap<>(e.fields());
+        }
+
+        public void update(String id, Map<String, String> fields, long ttlSeconds) {
+            jobs.computeIfPresent(id, (k, e) -> {
+                e.fields().putAll(fields);
+                return new Entry(e.fields(), System.currentTimeMillis() + ttlSeconds * 1000);
+            });
+            if (jobs.size() > 10_000) {
+                long now = System.currentTimeMillis();
+                jobs.values().removeIf(e -> e.expiresAt() <= now);
+            }
+        }
+
+        public String take() throws InterruptedException {
+            String id = queue.pollLast(1, TimeUnit.SECONDS);
+            if (id != null) inFlight.add(id);
+            return id;
+        }
+
+        public void ack(String id) {
+            inFlight.remove(id);
+        }
+
+        public boolean requeue(String id) {
+            if (!inFlight.remove(id)) return false;
+            queue.addLast(id);
+            return true;
+        }
+
+        public List<String> processing() {
+            return new ArrayList<>(inFlight);
+        }
+
+        public long queued() {
+            return queue.size();
+        }
+
+        public void publish(String id) {
+            notifyWatchers(id);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.aitravel.planner.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 规划链路的分阶段耗时指标，经 /actuator/prometheus 导出为直方图：
+ * plan.stage（按阶段）、llm.request / llm.ttft / llm.tokens.per.second（LLM 调用、首 token、生成速度）、
+ * amap.request（按接口与状态）、sse.send（按事件）。
+ * 标签取值都先映射到固定集合（阶段名为代码常量；接口、状态、事件名不在白名单内的归为 other），
+ * 直方图限定上下界，时间序列总数与请求内容无关。
+ */
+@Service
+public class PlanMetrics {
+    private static final Set<String> AMAP_ENDPOINTS = Set.of("place/text", "geocode/geo", "geocode/regeo", "direction/driving");
+    private static final Set<String> SSE_EVENTS = Set.of("progress", "budget_estimate", "draft", "final", "saved", "error", "status", "result");
+
+    private final MeterRegistry registry;
+    // 按“指标名 + 标签值”缓存，避免每次记录都经注册表查找
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+    public PlanMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /** 规划阶段耗时；stage 须为代码中的常量。 */
+    public void stage(String stage, long nanos) {
+        timer("plan.stage", "规划各阶段耗时", Duration.ofSeconds(120), "stage", stage).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** 单次 LLM HTTP 调用（含 DashScope 兼容端点回退的每次尝试）；流式调用为从发送到读完的全程。 */
+    public void llmRequest(String endpoint, String outcome, long nanos) {
+        timer("llm.request", "LLM 调用耗时", Duration.ofSeconds(180), "endpoint", endpoint, "outcome", outcome)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** 流式调用从发送请求到收到第一段内容的时间。 */
+    public void llmFirstToken(long nanos) {
+        timer("llm.ttft", "LLM 首 token 时间", Duration.ofSeconds(60)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** 生成速度：输出 token 数 / 生成耗时（流式按首 token 之后计）。 */
+    public void llmThroughput(String mode, long completionTokens, long nanos) {
+        if (completionTokens <= 0 || nanos <= 0) return;
+        summaries.computeIfAbsent("llm.tokens.per.second|" + mode, k -> DistributionSummary.builder("llm.tokens.per.second")
+                .description("LLM 输出 token 速度")
+                .tag("mode", mode)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(1.0)
+                .maximumExpectedValue(2000.0)
+                .register(registry))
+                .record(completionTokens * 1e9 / nanos);
+    }
+
+    /** 高德接口调用；url 只取接口路径，不含查询参数。 */
+    public void amapRequest(String url, String status, long nanos) {
+        timer("amap.request", "高德接口耗时", Duration.ofSeconds(30), "endpoint", amapEndpoint(url), "status", status)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** SSE 单个事件写出耗时（慢客户端或拥塞时升高）。 */
+    public void sseSend(String event, long nanos) {
+        timer("sse.send", "SSE 事件写出耗时", Duration.ofSeconds(10), "event", SSE_EVENTS.contains(event) ? event : "other")
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** HTTP 状态码归为 2xx/3xx/4xx/5xx。 */
+    public static String statusClass(int code) {
+        return code >= 100 && code < 600 ? (code / 100) + "xx" : "other";
+    }
+
+    /** 出站调用异常的结果标签：HTTP 错误按状态类，超时（含请求截止）为 timeout，其余为 io_error。 */
+    public static String outcome(Throwable e) {
+        if (e instanceof HttpStatusCodeException he) return statusClass(he.getStatusCode().value());
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SocketTimeoutException || t instanceof HttpTimeoutException) return "timeout";
+        }
+        return "io_error";
+    }
+
+    private static String amapEndpoint(String url) {
+        if (url == null) return "other";
+        int v = url.indexOf("/v3/");
+        if (v < 0) return "other";
+        int end = url.indexOf('?', v);
+        String path = url.substring(v + 4, end < 0 ? url.length() : end);
+        return AMAP_ENDPOINTS.contains(path) ? path : "other";
+    }
+
+    private Timer timer(String name, String description, Duration max, String... tags) {
+        String key = name + "|" + String.join("|", tags);
+        Timer t = timers.get(key);
+        if (t != null) return t;
+        return timers.computeIfAbsent(key, k -> Timer.builder(name)
+                .description(description)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(max)
+                .register(registry));
+    }
+}
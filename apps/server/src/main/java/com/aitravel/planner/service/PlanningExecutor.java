@@ -0,0 +1,316 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.DataOwnerContext;
+import com.aitravel.planner.config.LlmUsageContext;
+import com.aitravel.planner.config.RequestDeadline;
+import com.aitravel.planner.config.ShardContext;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+/**
+ * 同步规划接口的执行线程池：接口返回 CompletableFuture，Tomcat 线程提交后立即释放，
+ * LLM 与高德调用在此线程池中完成。每个请求的各阶段在同一个工作线程内顺序执行，不在阶段之间切换线程。
+ * 提交时把请求线程上的 LLM 用量归属与请求截止时间带到工作线程；会话接口另在工作线程上按属主持有分片读锁并绑定分片，
+ * 与同步处理时由 ShardRoutingInterceptor 在请求线程上持有的保护一致。队列排满时返回以 RejectedExecutionException 失败的 future。
+ * 请求内部可用 stages() 把互不依赖的阶段并发执行：I/O 阶段 fork 到独立的阶段线程池（不与请求任务共用，避免嵌套等待耗尽线程），
+ * CPU 阶段在当前线程上 run，join 时按阶段截止时间（不超过请求剩余时间）等待，超时取消该阶段并采用调用方给出的部分结果。
+ * 各阶段耗时按名称汇总，并记入 PlanMetrics 的 plan.stage 直方图；任务在队列中的等待记为 queue 阶段。
+ */
+@Service
+public class PlanningExecutor {
+    private final ShardMap shards;
+    private final PlanMetrics metrics;
+
+    @Value("${app.planning.threads:256}")
+    private int threads;
+
+    @Value("${app.planning.queue-capacity:512}")
+    private int queueCapacity;
+
+    @Value("${app.planning.stage-threads:64}")
+    private int stageThreads;
+
+    @Value("${app.planning.stage-queue-capacity:256}")
+    private int stageQueueCapacity;
+
+    private ThreadPoolExecutor pool;
+    private ThreadPoolExecutor stagePool;
+
+    // 阶段名为代码中的常量，数量有限
+    private final Map<String, StageStats> stageStats = new ConcurrentHashMap<>();
+    private final AtomicLong stagesInline = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public PlanningExecutor(ShardMap shards, PlanMetrics metrics) {
+        this.shards = shards;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void start() {
+        int n = Math.max(1, threads);
+        AtomicInteger seq = new AtomicInteger();
+        pool = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), r -> {
+            Thread t = new Thread(r, "planning-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        // 空闲时线程可回收，低峰期不常驻全部线程
+        pool.allowCoreThreadTimeOut(true);
+        int m = Math.max(1, stageThreads);
+        AtomicInteger stageSeq = new AtomicInteger();
+        stagePool = new ThreadPoolExecutor(m, m, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, stageQueueCapacity)), r -> {
+            Thread t = new Thread(r, "planning-stage-" + stageSeq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        stagePool.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (pool != null) pool.shutdownNow();
+        if (stagePool != null) stagePool.shutdownNow();
+    }
+
+    /** 为当前请求创建阶段图；只在创建它的线程上调用 run / fork / join。 */
+    public Stages stages() {
+        return new Stages();
+    }
+
+    /** 在工作线程上执行 task，沿用提交线程的 LLM 用量归属与请求截止时间。 */
+    public <T> CompletableFuture<T> supply(Supplier<T> task) {
+        UUID user = LlmUsageContext.current();
+        Long deadline = RequestDeadline.current();
+        return submit(() -> inContext(user, deadline, task));
+    }
+
+    /** 会话接口：工作线程上持有属主的分片读锁并绑定其分片后执行 task（分片未启用时同 supply）。 */
+    public <T> CompletableFuture<T> supplySharded(UUID owner, Supplier<T> task) {
+        UUID user = LlmUsageContext.current();
+        Long deadline = RequestDeadline.current();
+        if (!shards.enabled() || owner == null) return submit(() -> inContext(user, deadline, task));
+        return submit(() -> {
+            Lock lock = shards.lock(owner).readLock();
+            lock.lock();
+            try {
+                return ShardContext.call(shards.route(owner), () -> inContext(user, deadline, task));
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("threads", pool.getMaximumPoolSize());
+        m.put("active", pool.getActiveCount());
+        m.put("queued", pool.getQueue().size());
+        m.put("inFlight", inFlight.get());
+        m.put("peakInFlight", peakInFlight.get());
+        m.put("completed", completed.get());
+        m.put("failed", failed.get());
+        m.put("rejected", rejected.get());
+        m.put("stageThreads", stagePool.getMaximumPoolSize());
+        m.put("stagesActive", stagePool.getActiveCount());
+        m.put("stagesInline", stagesInline.get());
+        Map<String, Object> st = new TreeMap<>();
+        stageStats.forEach((name, x) -> st.put(name, x.snapshot()));
+        m.put("stages", st);
+        return m;
+    }
+
+    /** 一个已 fork 的阶段。 */
+    public static final class Stage<T> {
+        private final String name;
+        private final Future<T> future;
+
+        private Stage(String name, Future<T> future) {
+            this.name = name;
+            this.future = future;
+        }
+    }
+
+    public final class Stages {
+        private final Map<String, Long> timings = new LinkedHashMap<>();
+        private final List<String> late = new ArrayList<>();
+
+        private Stages() {}
+
+        /** 在当前线程上执行并计时（CPU 阶段）。 */
+        public <T> T run(String name, Supplier<T> body) {
+            long t0 = System.nanoTime();
+            try {
+                return body.get();
+            } finally {
+                record(name, t0);
+            }
+        }
+
+        /**
+         * 在阶段线程池上执行（I/O 阶段），沿用当前线程的 LLM 用量归属、分片与请求截止时间。
+         * 阶段线程池排满时退化为在当前线程上直接执行。
+         */
+        public <T> Stage<T> fork(String name, Supplier<T> body) {
+            UUID user = LlmUsageContext.current();
+            Long deadline = RequestDeadline.current();
+            int shard = ShardContext.current();
+            FutureTask<T> task = new FutureTask<>(() -> {
+                long t0 = System.nanoTime();
+                try {
+                    return ShardContext.call(shard, () -> inContext(user, deadline, body));
+                } finally {
+                    record(name, t0);
+                }
+            });
+            try {
+                stagePool.execute(task);
+            } catch (RejectedExecutionException e) {
+                stagesInline.incrementAndGet();
+                task.run();
+            }
+            return new Stage<>(name, task);
+        }
+
+        /**
+         * 最多等待 timeoutMs（且不超过请求剩余时间）取阶段结果；超时则中断该阶段（阶段体应在步骤之间检查中断标志），
+         * 记为 late 并返回 onLate 给出的部分结果。阶段抛出的异常原样抛出。
+         */
+        public <T> T join(Stage<T> stage, long timeoutMs, Supplier<T> onLate) {
+            try {
+                long wait = Math.min(Math.max(0, timeoutMs), RequestDeadline.remainingMs());
+                return stage.future.get(wait, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                stage.future.cancel(true);
+                synchronized (this) {
+                    if (!late.contains(stage.name)) late.add(stage.name);
+                }
+                stageStats.computeIfAbsent(stage.name, k -> new StageStats()).late.incrementAndGet();
+                return onLate.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stage.future.cancel(true);
+                return onLate.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException re) throw re;
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        /** 记录由调用方自行测得的子阶段耗时（如融合执行的规范化与解析）。 */
+        public void add(String name, long nanos) {
+            recordNanos(name, nanos);
+        }
+
+        /** 超过截止时间而采用部分结果的阶段。 */
+        public synchronized List<String> late() {
+            return new ArrayList<>(late);
+        }
+
+        /** 本请求各阶段耗时（毫秒，按完成顺序）。 */
+        public synchronized Map<String, Long> timings() {
+            return new LinkedHashMap<>(timings);
+        }
+
+        private void record(String name, long t0) {
+            recordNanos(name, System.nanoTime() - t0);
+        }
+
+        private void recordNanos(String name, long nanos) {
+            long ms = nanos / 1_000_000;
+            synchronized (this) {
+                timings.merge(name, ms, Math::max);
+            }
+            stageStats.computeIfAbsent(name, k -> new StageStats()).add(ms);
+            metrics.stage(name, nanos);
+        }
+    }
+
+    private static final class StageStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMs = new AtomicLong();
+        final AtomicLong maxMs = new AtomicLong();
+        final AtomicLong late = new AtomicLong();
+
+        void add(long ms) {
+            count.incrementAndGet();
+            totalMs.addAndGet(ms);
+            maxMs.accumulateAndGet(ms, Math::max);
+        }
+
+        Map<String, Object> snapshot() {
+            long n = count.get();
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("count", n);
+            m.put("avgMs", n == 0 ? 0 : totalMs.get() / n);
+            m.put("maxMs", maxMs.get());
+            m.put("late", late.get());
+            return m;
+        }
+    }
+
+    private static <T> T inContext(UUID user, Long deadline, Supplier<T> task) {
+        if (user == null && deadline == null) return task.get();
+        try {
+            return RequestDeadline.call(deadline, () -> user == null ? task.get()
+                    : LlmUsageContext.call(user, () -> DataOwnerContext.call(user, task::get)));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        int now = inFlight.incrementAndGet();
+        peakInFlight.accumulateAndGet(now, Math::max);
+        long queuedAt = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                metrics.stage("queue", System.nanoTime() - queuedAt);
+                try {
+                    T out = task.get();
+                    completed.incrementAndGet();
+                    return out;
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    throw e;
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }, pool);
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
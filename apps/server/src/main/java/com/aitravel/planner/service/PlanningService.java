@@ -2,24 +2,29 @@ package com.aitravel.planner.service;
 
 import com.aitravel.planner.model.Day;
 import com.aitravel.planner.model.Plan;
+import com.aitravel.planner.repo.ActivityRepository;
 import com.aitravel.planner.repo.DayRepository;
 import com.aitravel.planner.repo.PlanRepository;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDate;
+import java.time.OffsetDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 @Service
 public class PlanningService {
     private final PlanRepository plans;
     private final DayRepository days;
+    private final ActivityRepository activities;
 
-    public PlanningService(PlanRepository plans, DayRepository days) {
+    public PlanningService(PlanRepository plans, DayRepository days, ActivityRepository activities) {
         this.plans = plans;
         this.days = days;
+        this.activities = activities;
     }
 
     @Transactional
@@ -28,11 +33,9 @@ public class PlanningService {
         if (n <= 0) {
             throw new IllegalArgumentException("结束日期必须不早于开始日期");
         }
-        // 清理旧的 days（如有）
-        var old = days.findByPlanIdOrderByIndexAsc(plan.getId());
-        if (!old.isEmpty()) {
-            days.deleteAll(old);
-        }
+        // 清理旧的 activities/days（集合删除，不逐个加载）
+        activities.deleteAllByPlanId(plan.getId());
+        days.deleteAllByPlanId(plan.getId());
         List<Day> created = new ArrayList<>();
         LocalDate d = plan.getStartDate();
         for (int i = 0; i < n; i++) {
@@ -40,11 +43,14 @@ public class PlanningService {
             day.setPlanId(plan.getId());
             day.setIndex(i);
             day.setDate(d.plusDays(i));
-            created.add(days.save(day));
+            created.add(day);
         }
+        // UUID 由 Hibernate 在内存生成，INSERT 在提交时按 hibernate.jdbc.batch_size 批量发送
+        created = days.saveAll(created);
         plan.setTotalDays((int) n);
         plan.setStatus("planned");
+        plan.setUpdatedAt(OffsetDateTime.now());
         plans.save(plan);
         return created;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,354 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.ShardContext;
+import com.aitravel.planner.model.Message;
+import com.aitravel.planner.model.Plan;
+import com.aitravel.planner.repo.ConversationRepository;
+import com.aitravel.planner.repo.ConversationSummary;
+import com.aitravel.planner.repo.MessageRepository;
+import com.aitravel.planner.repo.PlanRepository;
+import com.aitravel.planner.util.SearchTokenizer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 会话与行程全文搜索：每个用户一份进程内倒排索引（消息正文，二元组/单词分词），BM25 排序。
+ * - 首次搜索时从该用户所在分片全量构建；此后每次搜索只拉取 updated_at 晚于水位的会话中的新消息，
+ *   本实例追加的消息经 onAppend 直接写入已驻留的索引；
+ * - 会话标题、行程目的地与标签数量少，每次搜索现查现算，已删除会话的消息在查询时过滤；
+ * - 驻留索引按访问顺序淘汰，总倒排项不超过 max-postings；驻留计数只在索引自身的锁内、且仅对仍驻留的索引增减；
+ * - 会话被删除或清理后丢弃该用户的驻留索引（倒排按文档号追加，不单独删除文档），下次搜索重建。
+ */
+@Service
+public class SearchService {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    // 标题/目的地/标签命中权重高于正文
+    private static final double FIELD_BOOST = 2.0;
+    // 多实例时钟偏差与写后延迟的追平余量
+    private static final long CATCH_UP_SLACK_SECONDS = 60;
+    private static final int MAX_CONVERSATIONS = 1000;
+    private static final int SNIPPET_CHARS = 80;
+
+    private final ConversationRepository conversations;
+    private final MessageRepository messages;
+    private final PlanRepository plans;
+    private final ShardMap shards;
+
+    @Value("${app.search.max-postings:20000000}")
+    private long maxPostings;
+
+    // 锁顺序：indexes -> 单个 OwnerIndex，持有 OwnerIndex 锁时不再获取 indexes 锁
+    private final Map<UUID, OwnerIndex> indexes = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong residentPostings = new AtomicLong();
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong searchNanos = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong indexedMessages = new AtomicLong();
+
+    public record Hit(String type, UUID id, UUID conversationId, UUID planId, String title, String snippet,
+                      double score, OffsetDateTime at) {}
+
+    public record Result(List<Hit> items, int total, int page, int size) {}
+
+    public SearchService(ConversationRepository conversations, MessageRepository messages, PlanRepository plans, ShardMap shards) {
+        this.conversations = conversations;
+        this.messages = messages;
+        this.plans = plans;
+        this.shards = shards;
+    }
+
+    public Result search(UUID owner, String query, int page, int size) {
+        long start = System.nanoTime();
+        try {
+            return doSearch(owner, query, page, size);
+        } finally {
+            searches.incrementAndGet();
+            searchNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /** 消息写入后调用：该用户索引已驻留时增量加入，否则留待下次搜索构建。 */
+    public void onAppend(UUID owner, Message m) {
+        OwnerIndex idx;
+        synchronized (indexes) {
+            idx = indexes.get(owner);
+        }
+        if (idx == null) return;
+        synchronized (idx) {
+            add(idx, m);
+        }
+        evict(owner);
+    }
+
+    /** 会话被删除或清理后调用：丢弃该用户已驻留的索引，已删除会话的倒排项随之释放。 */
+    public void onConversationDeleted(UUID owner) {
+        OwnerIndex idx;
+        synchronized (indexes) {
+            idx = indexes.remove(owner);
+        }
+        if (idx != null) release(idx);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        long n = searches.get();
+        synchronized (indexes) {
+            m.put("residentOwners", indexes.size());
+        }
+        m.put("residentPostings", residentPostings.get());
+        m.put("builds", builds.get());
+        m.put("indexedMessages", indexedMessages.get());
+        m.put("searches", n);
+        m.put("avgSearchMicros", n == 0 ? 0 : searchNanos.get() / n / 1000);
+        return m;
+    }
+
+    private Result doSearch(UUID owner, String query, int page, int size) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(SearchTokenizer.tokens(query)));
+        if (terms.isEmpty()) return new Result(List.of(), 0, page, size);
+        int shard = shards.shardFor(owner);
+        List<ConversationSummary> convs = ShardContext.call(shard,
+                () -> conversations.findPageByOwner(owner, PageRequest.of(0, MAX_CONVERSATIONS)));
+        Map<UUID, ConversationSummary> active = new HashMap<>();
+        for (ConversationSummary c : convs) active.put(c.getId(), c);
+
+        OwnerIndex idx = index(owner);
+        List<Hit> hits = new ArrayList<>();
+        synchronized (idx) {
+            catchUp(idx, convs, shard);
+            double[] idf = new double[terms.size()];
+            Postings[] lists = new Postings[terms.size()];
+            for (int t = 0; t < terms.size(); t++) {
+                lists[t] = lookup(idx, terms.get(t));
+                idf[t] = idf(idx.ids.size(), lists[t].size);
+            }
+            double avgLen = idx.ids.isEmpty() ? 1 : (double) idx.totalLength / idx.ids.size();
+            // 以最短的倒排表驱动求交（AND 语义），其余表二分查找
+            int driver = 0;
+            for (int t = 1; t < terms.size(); t++) if (lists[t].size < lists[driver].size) driver = t;
+            for (int i = 0; i < lists[driver].size; i++) {
+                int doc = lists[driver].docs[i];
+                UUID cid = idx.conversations.get(doc);
+                if (!active.containsKey(cid)) continue;
+                double score = 0;
+                boolean all = true;
+                for (int t = 0; t < terms.size() && all; t++) {
+                    int pos = Arrays.binarySearch(lists[t].docs, 0, lists[t].size, doc);
+                    if (pos < 0) {
+                        all = false;
+                    } else {
+                        int tf = lists[t].tfs[pos];
+                        double norm = 1 - B + B * idx.lengths.get(doc) / avgLen;
+                        score += idf[t] * tf * (K1 + 1) / (tf + K1 * norm);
+                    }
+                }
+                if (!all) continue;
+                UUID id = idx.ids.get(doc);
+                hits.add(new Hit("message", id, cid, null, active.get(cid).getTitle(), null, score, idx.times.get(doc)));
+            }
+            int n = idx.ids.size();
+            for (ConversationSummary c : convs) {
+                double s = fieldScore(terms, c.getTitle(), idx, n);
+                if (s > 0) hits.add(new Hit("conversation", c.getId(), c.getId(), null, c.getTitle(), null, s, c.getUpdatedAt()));
+            }
+            for (Plan p : ShardContext.call(ShardContext.HOME, () -> plans.findByOwnerId(owner))) {
+                String text = p.getDestination() + " " + (p.getTags() == null ? "" : String.join(" ", p.getTags()));
+                double s = fieldScore(terms, text, idx, n);
+                if (s > 0) hits.add(new Hit("plan", p.getId(), p.getConversationId(), p.getId(), p.getDestination(),
+                        p.getTags() == null ? null : String.join(", ", p.getTags()), s, p.getUpdatedAt()));
+            }
+        }
+        evict(owner);
+
+        hits.sort(Comparator.comparingDouble(Hit::score).reversed()
+                .thenComparing(Hit::at, Comparator.nullsLast(Comparator.reverseOrder())));
+        int from = Math.min(page * size, hits.size());
+        List<Hit> slice = new ArrayList<>(hits.subList(from, Math.min(from + size, hits.size())));
+        // 只为当前页的消息命中加载正文生成摘要
+        List<UUID> ids = new ArrayList<>();
+        for (Hit h : slice) if ("message".equals(h.type())) ids.add(h.id());
+        Map<UUID, String> bodies = new HashMap<>();
+        if (!ids.isEmpty()) {
+            ShardContext.run(shard, () -> messages.findAllById(ids).forEach(m -> bodies.put(m.getId(), m.getContent())));
+        }
+        for (int i = 0; i < slice.size(); i++) {
+            Hit h = slice.get(i);
+            String snippet = "message".equals(h.type()) ? snippet(bodies.get(h.id()), terms) : h.snippet();
+            slice.set(i, new Hit(h.type(), h.id(), h.conversationId(), h.planId(), h.title(), snippet,
+                    Math.round(h.score() * 1000) / 1000.0, h.at()));
+        }
+        return new Result(slice, hits.size(), page, size);
+    }
+
+    private OwnerIndex index(UUID owner) {
+        synchronized (indexes) {
+            return indexes.computeIfAbsent(owner, k -> new OwnerIndex());
+        }
+    }
+
+    /** 拉取水位之后有更新的会话中的新消息；首次构建时水位为空，全量拉取。 */
+    private void catchUp(OwnerIndex idx, List<ConversationSummary> convs, int shard) {
+        OffsetDateTime started = OffsetDateTime.now();
+        OffsetDateTime since = idx.watermark == null ? null : idx.watermark.minusSeconds(CATCH_UP_SLACK_SECONDS);
+        if (since == null) builds.incrementAndGet();
+        for (ConversationSummary c : convs) {
+            if (since != null && c.getUpdatedAt() != null && c.getUpdatedAt().isBefore(since)) continue;
+            List<Message> ms = ShardContext.call(shard, () -> since == null
+                    ? messages.findByConversationIdOrderByCreatedAtAsc(c.getId())
+                    : messages.findSince(c.getId(), since));
+            for (Message m : ms) add(idx, m);
+        }
+        idx.watermark = started;
+    }
+
+    private void add(OwnerIndex idx, Message m) {
+        if (idx.known.contains(m.getId())) return;
+        String content = m.getContent();
+        List<String> tokens = SearchTokenizer.tokens(content);
+        Map<String, Integer> tf = new HashMap<>();
+        for (String t : tokens) tf.merge(t, 1, Integer::sum);
+        int doc = idx.ids.size();
+        idx.ids.add(m.getId());
+        idx.conversations.add(m.getConversationId());
+        idx.times.add(m.getCreatedAt());
+        idx.lengths.add(tokens.size());
+        idx.known.add(m.getId());
+        idx.totalLength += tokens.size();
+        for (Map.Entry<String, Integer> e : tf.entrySet()) {
+            idx.postings.computeIfAbsent(e.getKey(), k -> new Postings()).add(doc, e.getValue());
+        }
+        idx.postingCount += tf.size();
+        indexedMessages.incrementAndGet();
+        // 调用方持有 idx 锁；已被淘汰的索引不再计入驻留总数
+        if (idx.resident) residentPostings.addAndGet(tf.size());
+    }
+
+    /** 单个汉字没有独立的倒排项，合并以它开头或结尾的所有二元组。 */
+    private static Postings lookup(OwnerIndex idx, String term) {
+        Postings exact = idx.postings.get(term);
+        if (!SearchTokenizer.isSingleCjk(term)) return exact == null ? Postings.EMPTY : exact;
+        Map<Integer, Integer> merged = new HashMap<>();
+        for (Map.Entry<String, Postings> e : idx.postings.entrySet()) {
+            String k = e.getKey();
+            if (!k.equals(term) && !k.startsWith(term) && !k.endsWith(term)) continue;
+            Postings p = e.getValue();
+            for (int i = 0; i < p.size; i++) merged.merge(p.docs[i], p.tfs[i], Integer::sum);
+        }
+        Postings out = new Postings();
+        merged.keySet().stream().sorted().forEach(d -> out.add(d, merged.get(d)));
+        return out;
+    }
+
+    private static double fieldScore(List<String> terms, String text, OwnerIndex idx, int n) {
+        if (text == null || text.isBlank()) return 0;
+        String lower = text.toLowerCase(Locale.ROOT);
+        List<String> tokens = SearchTokenizer.tokens(text);
+        double score = 0;
+        for (String t : terms) {
+            int tf = 0;
+            for (String tok : tokens) if (tok.equals(t)) tf++;
+            if (tf == 0 && !lower.contains(t)) return 0;
+            tf = Math.max(tf, 1);
+            Postings p = idx.postings.get(t);
+            score += idf(n, p == null ? 0 : p.size) * tf * (K1 + 1) / (tf + K1);
+        }
+        return FIELD_BOOST * score;
+    }
+
+    private static double idf(int n, int df) {
+        return Math.log(1 + (n - df + 0.5) / (df + 0.5));
+    }
+
+    private static String snippet(String content, List<String> terms) {
+        if (content == null) return null;
+        String lower = content.toLowerCase(Locale.ROOT);
+        int at = -1;
+        for (String t : terms) {
+            at = lower.indexOf(t);
+            if (at >= 0) break;
+        }
+        int from = Math.max(0, at - SNIPPET_CHARS / 4);
+        int to = Math.min(content.length(), from + SNIPPET_CHARS);
+        return (from > 0 ? "…" : "") + content.substring(from, to).replace('\n', ' ') + (to < content.length() ? "…" : "");
+    }
+
+    /** 按访问顺序淘汰其他用户的索引，直到驻留倒排项不超过上限。 */
+    private void evict(UUID keep) {
+        while (residentPostings.get() > maxPostings) {
+            OwnerIndex victim = null;
+            synchronized (indexes) {
+                Iterator<Map.Entry<UUID, OwnerIndex>> it = indexes.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<UUID, OwnerIndex> e = it.next();
+                    if (e.getKey().equals(keep)) continue;
+                    victim = e.getValue();
+                    it.remove();
+                    break;
+                }
+            }
+            if (victim == null) return;
+            // 在索引自身的锁内扣减：与正在进行的 add 互斥，扣减的是最终计入的倒排项数
+            release(victim);
+        }
+    }
+
+    private void release(OwnerIndex idx) {
+        synchronized (idx) {
+            if (!idx.resident) return;
+            idx.resident = false;
+            residentPostings.addAndGet(-idx.postingCount);
+        }
+    }
+
+    private static final class OwnerIndex {
+        final List<UUID> ids = new ArrayList<>();
+        final List<UUID> conversations = new ArrayList<>();
+        final List<OffsetDateTime> times = new ArrayList<>();
+        final List<Integer> lengths = new ArrayList<>();
+        final Set<UUID> known = new HashSet<>();
+        final Map<String, Postings> postings = new HashMap<>();
+        long totalLength;
+        long postingCount;
+        OffsetDateTime watermark;
+        // 仍在 indexes 中；淘汰后置为 false，其后的 add 不再计入驻留总数
+        boolean resident = true;
+    }
+
+    /** 文档号递增追加，天然有序，可二分查找。 */
+    private static final class Postings {
+        static final Postings EMPTY = new Postings();
+
+        int[] docs = new int[2];
+        int[] tfs = new int[2];
+        int size;
+
+        void add(int doc, int tf) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                tfs = Arrays.copyOf(tfs, size * 2);
+            }
+            docs[size] = doc;
+            tfs[size] = tf;
+            size++;
+        }
+    }
+}
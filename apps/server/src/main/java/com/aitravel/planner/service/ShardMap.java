@@ -0,0 +1,355 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.ShardContext;
+import com.aitravel.planner.config.ShardRoutingDataSource;
+import com.aitravel.planner.model.ConversationShard;
+import com.aitravel.planner.repo.ConversationShardRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 会话分片映射：
+ * - 新用户按用户 UUID 的一致性哈希（每分片 128 个虚拟节点）落位，并写入主分片上的目录表；
+ * - 已有用户以目录为准，再平衡只需迁移数据后更新目录，增加分片时仅约 1/N 的用户需要迁移；
+ * - 目录查询结果在本地缓存 ttl-seconds；目录变更经 Redis 频道广播，各节点收到后立即丢弃该用户的缓存；
+ * - 跨节点迁移栅栏：迁移前在目录行上取租约（lease_until，并递增 epoch 作为栅栏令牌），
+ *   各节点路由请求（route）时看到有效租约即返回 503，租约内的目录项只缓存 1 秒；
+ *   迁移方等待所有节点的缓存过期、已放行的请求结束后才开始复制，目录切换时校验 epoch 与租约未过期；
+ * - 本节点内另有每用户一把读写锁（分段），请求期间持读锁，迁移时持写锁。
+ * 未启用分片时所有用户都在分片 0，不访问目录。
+ */
+@Service
+public class ShardMap implements MessageListener {
+    private static final Logger log = LoggerFactory.getLogger(ShardMap.class);
+
+    private static final int VNODES = 128;
+    private static final int LOCK_STRIPES = 64;
+    private static final String CHANNEL = "shards:directory";
+    // 处于迁移租约中的目录项的缓存时长：迁移结束后各节点最多延迟该时长恢复路由
+    private static final long LEASED_CACHE_MS = 1000;
+
+    private final ConversationShardRepository directory;
+    private final JdbcTemplate jdbc;
+    private final ObjectProvider<StringRedisTemplate> redisProvider;
+    private final ObjectProvider<RedisConnectionFactory> connections;
+    private final int shardCount;
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    private final ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+
+    @Value("${app.sharding.directory-cache.max-entries:100000}")
+    private int maxEntries;
+
+    @Value("${app.sharding.directory-cache.ttl-seconds:30}")
+    private long ttlSeconds;
+
+    @Value("${app.sharding.directory-cache.redis-enabled:true}")
+    private boolean redisEnabled;
+
+    private record Entry(int shard, long leaseUntil, long expiresAt) {}
+
+    /** 迁移租约：epoch 为取得租约时写入的栅栏令牌，目录切换与释放都以它为条件。 */
+    public record Lease(UUID owner, long epoch, long until) {}
+
+    /** 用户数据正在迁移，请求稍后重试。 */
+    public static class MigratingException extends RuntimeException {
+        private final long retryAfterSeconds;
+
+        public MigratingException(long retryAfterSeconds) {
+            super("会话数据迁移中，请稍后重试");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds() { return retryAfterSeconds; }
+    }
+
+    private final Map<UUID, Entry> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private RedisMessageListenerContainer listener;
+    private volatile long redisDownUntil;
+
+    public ShardMap(ConversationShardRepository directory, JdbcTemplate jdbc, ObjectProvider<ShardRoutingDataSource> routing,
+                    ObjectProvider<StringRedisTemplate> redisProvider, ObjectProvider<RedisConnectionFactory> connections) {
+        this.directory = directory;
+        this.jdbc = jdbc;
+        this.redisProvider = redisProvider;
+        this.connections = connections;
+        ShardRoutingDataSource r = routing.getIfAvailable();
+        this.shardCount = r == null ? 1 : r.shardCount();
+        for (int s = 0; s < shardCount; s++) {
+            for (int v = 0; v < VNODES; v++) ring.put(mix(((long) s << 32) | v), s);
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new ReentrantReadWriteLock();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled()) return;
+        subscribe();
+        // 为分片启用前已有会话的用户补登目录（以其数据当前所在分片为准）
+        for (int s = 0; s < shardCount; s++) {
+            List<UUID> owners = ShardContext.call(s, () -> jdbc.queryForList("SELECT DISTINCT owner_id FROM conversations", UUID.class));
+            if (owners.isEmpty()) continue;
+            final int shard = s;
+            Timestamp now = Timestamp.from(OffsetDateTime.now().toInstant());
+            ShardContext.run(ShardContext.HOME, () -> jdbc.batchUpdate(
+                    "INSERT INTO conversation_shards (owner_id, shard, updated_at) SELECT ?, ?, ? " +
+                            "WHERE NOT EXISTS (SELECT 1 FROM conversation_shards WHERE owner_id = ?)",
+                    owners, 500, (ps, o) -> {
+                        ps.setObject(1, o);
+                        ps.setInt(2, shard);
+                        ps.setTimestamp(3, now);
+                        ps.setObject(4, o);
+                    }));
+            log.info("分片 {}: 目录核对 {} 个用户", s, owners.size());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (listener == null) return;
+        try {
+            listener.destroy();
+        } catch (Exception ignored) {}
+    }
+
+    public boolean enabled() {
+        return shardCount > 1;
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    /** 一致性哈希给出的目标分片（新用户落位、再平衡目标）。 */
+    public int ringShard(UUID owner) {
+        Map.Entry<Long, Integer> e = ring.ceilingEntry(mix(owner.getMostSignificantBits() * 31 + owner.getLeastSignificantBits()));
+        return (e == null ? ring.firstEntry() : e).getValue();
+    }
+
+    /** 用户会话数据当前所在分片：目录优先，未登记时按一致性哈希。只读场景使用，不受迁移租约影响。 */
+    public int shardFor(UUID owner) {
+        if (!enabled() || owner == null) return ShardContext.HOME;
+        return entry(owner).shard();
+    }
+
+    /** 请求路由：同 shardFor，但用户处于迁移租约中时抛出 MigratingException（迁移期间不再向源分片写入）。 */
+    public int route(UUID owner) {
+        if (!enabled() || owner == null) return ShardContext.HOME;
+        return checkLease(entry(owner));
+    }
+
+    private Entry entry(UUID owner) {
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            Entry e = cache.get(owner);
+            if (e != null && e.expiresAt() > now) return e;
+        }
+        return ShardContext.call(ShardContext.HOME, () -> directory.findById(owner))
+                .map(this::remember)
+                .orElseGet(() -> remember(owner, ringShard(owner), 0L));
+    }
+
+    private static int checkLease(Entry e) {
+        long left = e.leaseUntil() - System.currentTimeMillis();
+        if (left > 0) throw new MigratingException(Math.max(1, Math.min(left, LEASED_CACHE_MS * 5) / 1000));
+        return e.shard();
+    }
+
+    /** 创建会话前调用：未登记的用户按一致性哈希登记到目录。 */
+    public int assign(UUID owner) {
+        if (!enabled()) return ShardContext.HOME;
+        Optional<ConversationShard> existing = ShardContext.call(ShardContext.HOME, () -> directory.findById(owner));
+        if (existing.isPresent()) return checkLease(remember(existing.get()));
+        int target = ringShard(owner);
+        ShardContext.run(ShardContext.HOME, () -> jdbc.update(
+                "INSERT INTO conversation_shards (owner_id, shard, updated_at) SELECT ?, ?, ? " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM conversation_shards WHERE owner_id = ?)",
+                owner, target, Timestamp.from(OffsetDateTime.now().toInstant()), owner));
+        // 并发登记时以库中记录为准
+        return ShardContext.call(ShardContext.HOME, () -> directory.findById(owner))
+                .map(s -> checkLease(remember(s)))
+                .orElseGet(() -> remember(owner, target, 0L).shard());
+    }
+
+    /**
+     * 取得迁移租约（跨节点互斥）：目录行无有效租约时写入 lease_until 并递增 epoch。
+     * 成功后广播缓存失效；其他节点最迟在 propagationMs() 后看到租约。
+     */
+    Optional<Lease> acquireLease(UUID owner, long durationMs) {
+        long now = System.currentTimeMillis();
+        Timestamp until = new Timestamp(now + durationMs);
+        int n = ShardContext.call(ShardContext.HOME, () -> jdbc.update(
+                "UPDATE conversation_shards SET lease_until = ?, epoch = epoch + 1 " +
+                        "WHERE owner_id = ? AND (lease_until IS NULL OR lease_until < ?)",
+                until, owner, new Timestamp(now)));
+        if (n == 0) return Optional.empty();
+        Long epoch = ShardContext.call(ShardContext.HOME, () -> jdbc.queryForObject(
+                "SELECT epoch FROM conversation_shards WHERE owner_id = ?", Long.class, owner));
+        invalidate(owner);
+        return Optional.of(new Lease(owner, epoch, until.getTime()));
+    }
+
+    /**
+     * 迁移完成后切换目录并清除租约；仅当租约仍由本次迁移持有且未过期时成功（否则其他节点可能已恢复向源分片写入）。
+     * 成功后广播缓存失效，调用方随后才可删除源分片数据。
+     */
+    boolean moved(Lease lease, int shard) {
+        int n = ShardContext.call(ShardContext.HOME, () -> jdbc.update(
+                "UPDATE conversation_shards SET shard = ?, epoch = epoch + 1, lease_until = NULL, updated_at = ? " +
+                        "WHERE owner_id = ? AND epoch = ? AND lease_until > ?",
+                shard, Timestamp.from(OffsetDateTime.now().toInstant()), lease.owner(), lease.epoch(),
+                new Timestamp(System.currentTimeMillis())));
+        invalidate(lease.owner());
+        return n == 1;
+    }
+
+    /** 迁移未完成时释放租约（目录位置不变）。 */
+    void release(Lease lease) {
+        ShardContext.run(ShardContext.HOME, () -> jdbc.update(
+                "UPDATE conversation_shards SET lease_until = NULL WHERE owner_id = ? AND epoch = ?",
+                lease.owner(), lease.epoch()));
+        invalidate(lease.owner());
+    }
+
+    /** 其他节点看到目录变更的最长延迟：未收到失效广播时以缓存过期为准。 */
+    long propagationMs() {
+        return ttlSeconds * 1000;
+    }
+
+    /** 丢弃本节点缓存并广播给其他节点。 */
+    void invalidate(UUID owner) {
+        forget(owner);
+        StringRedisTemplate redis = redis();
+        if (redis == null) return;
+        try {
+            redis.convertAndSend(CHANNEL, owner.toString());
+        } catch (Exception e) {
+            markDown(e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            forget(UUID.fromString(new String(message.getBody(), StandardCharsets.UTF_8)));
+        } catch (IllegalArgumentException ignored) {}
+    }
+
+    public ReadWriteLock lock(UUID owner) {
+        return locks[Math.floorMod(owner.hashCode(), LOCK_STRIPES)];
+    }
+
+    /** 各分片登记的用户数（主分片目录表上的聚合）。 */
+    public Map<Integer, Long> ownersPerShard() {
+        Map<Integer, Long> out = new LinkedHashMap<>();
+        for (int s = 0; s < shardCount; s++) out.put(s, 0L);
+        if (!enabled()) return out;
+        for (Object[] row : ShardContext.call(ShardContext.HOME, directory::countByShard)) {
+            out.put(((Number) row[0]).intValue(), ((Number) row[1]).longValue());
+        }
+        return out;
+    }
+
+    /** 目录中位置与一致性哈希不一致（需迁移）的用户，最多 limit 个。 */
+    List<UUID> misplacedOwners(int limit) {
+        List<UUID> out = new ArrayList<>();
+        if (!enabled()) return out;
+        for (int page = 0; out.size() < limit; page++) {
+            PageRequest req = PageRequest.of(page, 1000, Sort.by("ownerId"));
+            List<ConversationShard> rows = ShardContext.call(ShardContext.HOME, () -> directory.findAll(req).getContent());
+            for (ConversationShard s : rows) {
+                if (s.getShard() != ringShard(s.getOwnerId())) {
+                    out.add(s.getOwnerId());
+                    if (out.size() >= limit) break;
+                }
+            }
+            if (rows.size() < 1000) break;
+        }
+        return out;
+    }
+
+    private Entry remember(ConversationShard s) {
+        return remember(s.getOwnerId(), s.getShard(), s.getLeaseUntil() == null ? 0L : s.getLeaseUntil().toInstant().toEpochMilli());
+    }
+
+    private Entry remember(UUID owner, int shard, long leaseUntil) {
+        long now = System.currentTimeMillis();
+        // 租约中的目录项只短暂缓存，迁移结束（或失效广播丢失）后尽快恢复路由
+        long expiresAt = leaseUntil > now ? now + LEASED_CACHE_MS : now + ttlSeconds * 1000;
+        Entry e = new Entry(shard, leaseUntil, expiresAt);
+        synchronized (cache) {
+            cache.put(owner, e);
+        }
+        return e;
+    }
+
+    private void forget(UUID owner) {
+        synchronized (cache) {
+            cache.remove(owner);
+        }
+    }
+
+    private void subscribe() {
+        RedisConnectionFactory cf = connections.getIfAvailable();
+        if (!redisEnabled || cf == null) return;
+        try {
+            listener = new RedisMessageListenerContainer();
+            listener.setConnectionFactory(cf);
+            listener.addMessageListener(this, new ChannelTopic(CHANNEL));
+            listener.afterPropertiesSet();
+            listener.start();
+        } catch (Exception e) {
+            listener = null;
+            log.warn("订阅分片目录频道失败，目录变更仅靠缓存过期传播: {}", e.toString());
+        }
+    }
+
+    private StringRedisTemplate redis() {
+        if (!redisEnabled || System.currentTimeMillis() < redisDownUntil) return null;
+        return redisProvider.getIfAvailable();
+    }
+
+    private void markDown(Exception e) {
+        if (System.currentTimeMillis() >= redisDownUntil) log.warn("广播分片目录变更失败，30 秒内仅靠缓存过期传播: {}", e.toString());
+        redisDownUntil = System.currentTimeMillis() + 30_000;
+    }
+
+    // splitmix64 终结函数
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
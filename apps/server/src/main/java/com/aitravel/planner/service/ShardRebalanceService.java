@@ -0,0 +1,226 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.ShardContext;
+import com.aitravel.planner.model.BudgetLedger;
+import com.aitravel.planner.repo.BudgetLedgerRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 分片再平衡：把目录位置与一致性哈希不一致的用户（通常是新增分片后）迁移到目标分片。
+ * 每轮先在目录上为一批用户取迁移租约（各节点随即拒绝这些用户的请求），等待其他节点的目录缓存过期、
+ * 已放行的请求与写后队列完成（ttl-seconds + in-flight-grace-ms），再逐个迁移：
+ * 清掉目标分片上的残留 -> 分页复制会话/消息（含冷数据块）/预算账本 -> 以租约 epoch 为条件切换目录并广播失效 -> 删除源分片数据。
+ * 目录切换失败（租约过期或被抢占）时清理目标分片，数据仍以源分片为准，下次重试。
+ * 默认关闭，app.sharding.rebalance.enabled=true 时后台按周期执行。
+ */
+@Service
+public class ShardRebalanceService {
+    private static final Logger log = LoggerFactory.getLogger(ShardRebalanceService.class);
+
+    private final ShardMap shards;
+    private final JdbcTemplate jdbc;
+    private final BudgetLedgerRepository ledgers;
+    private final MessageAppendService appender;
+    private final TransactionTemplate tx;
+
+    @Value("${app.sharding.rebalance.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.sharding.rebalance.interval-ms:60000}")
+    private long intervalMs;
+
+    @Value("${app.sharding.rebalance.owners-per-run:100}")
+    private int ownersPerRun;
+
+    @Value("${app.sharding.rebalance.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${app.sharding.rebalance.lease-ms:600000}")
+    private long leaseMs;
+
+    @Value("${app.sharding.rebalance.in-flight-grace-ms:125000}")
+    private long inFlightGraceMs;
+
+    private ScheduledExecutorService rebalancer;
+
+    private final AtomicLong migratedOwners = new AtomicLong();
+    private final AtomicLong migratedMessages = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastRunAt;
+
+    public ShardRebalanceService(ShardMap shards, JdbcTemplate jdbc, BudgetLedgerRepository ledgers,
+                                 MessageAppendService appender, PlatformTransactionManager txManager) {
+        this.shards = shards;
+        this.jdbc = jdbc;
+        this.ledgers = ledgers;
+        this.appender = appender;
+        this.tx = new TransactionTemplate(txManager);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled || !shards.enabled()) return;
+        rebalancer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "shard-rebalance");
+            t.setDaemon(true);
+            return t;
+        });
+        rebalancer.scheduleWithFixedDelay(this::runQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (rebalancer != null) rebalancer.shutdownNow();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("shards", shards.shardCount());
+        m.put("ownersPerShard", shards.ownersPerShard());
+        m.put("rebalanceEnabled", enabled);
+        m.put("migratedOwners", migratedOwners.get());
+        m.put("migratedMessages", migratedMessages.get());
+        m.put("failures", failures.get());
+        m.put("lastRunAt", lastRunAt);
+        return m;
+    }
+
+    private void runQuietly() {
+        try {
+            rebalance(ownersPerRun);
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.warn("分片再平衡失败，下个周期重试: {}", e.toString());
+        }
+    }
+
+    /** 迁移至多 limit 个位置不正确的用户，返回成功迁移数。 */
+    public synchronized int rebalance(int limit) {
+        lastRunAt = System.currentTimeMillis();
+        List<ShardMap.Lease> leases = new ArrayList<>();
+        for (UUID owner : shards.misplacedOwners(limit)) shards.acquireLease(owner, leaseMs).ifPresent(leases::add);
+        if (leases.isEmpty()) return 0;
+        int done = 0;
+        try {
+            Thread.sleep(shards.propagationMs() + inFlightGraceMs);
+            for (ShardMap.Lease lease : leases) {
+                try {
+                    if (migrate(lease)) done++;
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    log.warn("迁移用户 {} 失败: {}", lease.owner(), e.toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // 已切换目录的租约 epoch 已变，释放为空操作
+            for (ShardMap.Lease lease : leases) shards.release(lease);
+        }
+        return done;
+    }
+
+    private boolean migrate(ShardMap.Lease lease) {
+        UUID owner = lease.owner();
+        if (System.currentTimeMillis() >= lease.until()) return false;
+        Lock lock = shards.lock(owner).writeLock();
+        lock.lock();
+        try {
+            int from = shards.shardFor(owner);
+            int to = shards.ringShard(owner);
+            if (from == to) return false;
+            // 写后模式下先让已确认的消息落到源分片，避免迁移后再写回旧位置
+            if (!appender.drain()) throw new IllegalStateException("仍有待写入的消息");
+
+            ShardContext.run(to, () -> tx.executeWithoutResult(s -> deleteOwner(owner)));
+            List<Map<String, Object>> convs = ShardContext.call(from, () ->
+                    jdbc.queryForList("SELECT * FROM conversations WHERE owner_id = ?", owner));
+            ShardContext.run(to, () -> tx.executeWithoutResult(s -> insert("conversations", convs)));
+
+            // 消息按 id 分页复制，每页在目标分片独立提交
+            long copied = 0;
+            // 数据库按无符号字节比较 UUID，全零为最小值
+            UUID after = new UUID(0L, 0L);
+            String pageSql = "SELECT m.* FROM messages m JOIN conversations c ON c.id = m.conversation_id " +
+                    "WHERE c.owner_id = ? AND m.id > ? ORDER BY m.id LIMIT ?";
+            while (true) {
+                UUID cursor = after;
+                List<Map<String, Object>> page = ShardContext.call(from, () -> jdbc.queryForList(pageSql, owner, cursor, batchSize));
+                if (page.isEmpty()) break;
+                List<UUID> pageIds = new ArrayList<>();
+                for (Map<String, Object> m : page) pageIds.add((UUID) m.get(idKey(m)));
+                // 冷数据块随所属消息同页复制
+                List<Map<String, Object>> cold = ShardContext.call(from, () -> jdbc.queryForList(
+                        "SELECT * FROM message_cold WHERE message_id IN (" + "?, ".repeat(pageIds.size() - 1) + "?)",
+                        pageIds.toArray()));
+                ShardContext.run(to, () -> tx.executeWithoutResult(s -> {
+                    insert("messages", page);
+                    insert("message_cold", cold);
+                }));
+                copied += page.size();
+                after = pageIds.get(pageIds.size() - 1);
+                if (page.size() < batchSize) break;
+            }
+
+            List<UUID> ids = new ArrayList<>();
+            for (Map<String, Object> c : convs) ids.add((UUID) c.get(idKey(c)));
+            List<BudgetLedger> ls = ShardContext.call(from, () -> ledgers.findAllById(ids));
+            if (!ls.isEmpty()) ShardContext.run(to, () -> tx.executeWithoutResult(s -> ledgers.saveAll(ls)));
+
+            if (!shards.moved(lease, to)) {
+                ShardContext.run(to, () -> tx.executeWithoutResult(s -> deleteOwner(owner)));
+                throw new IllegalStateException("迁移租约已失效");
+            }
+            // moved 已广播目录失效，此后各节点路由到目标分片
+            ShardContext.run(from, () -> tx.executeWithoutResult(s -> deleteOwner(owner)));
+            migratedOwners.incrementAndGet();
+            migratedMessages.addAndGet(copied);
+            log.info("用户 {} 已从分片 {} 迁移到分片 {}: 会话 {} 条，消息 {} 条", owner, from, to, convs.size(), copied);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deleteOwner(UUID owner) {
+        String owned = "SELECT id FROM conversations WHERE owner_id = ?";
+        // message_cold 随 messages 级联删除
+        jdbc.update("DELETE FROM messages WHERE conversation_id IN (" + owned + ")", owner);
+        jdbc.update("DELETE FROM budget_ledgers WHERE conversation_id IN (" + owned + ")", owner);
+        jdbc.update("DELETE FROM conversations WHERE owner_id = ?", owner);
+    }
+
+    private void insert(String table, List<Map<String, Object>> rows) {
+        if (rows.isEmpty()) return;
+        List<String> cols = new ArrayList<>(rows.get(0).keySet());
+        String sql = "INSERT INTO " + table + " (" + String.join(", ", cols) + ") VALUES ("
+                + "?, ".repeat(cols.size() - 1) + "?)";
+        jdbc.batchUpdate(sql, rows, batchSize, (ps, row) -> {
+            for (int i = 0; i < cols.size(); i++) ps.setObject(i + 1, row.get(cols.get(i)));
+        });
+    }
+
+    // H2 返回大写列名，PostgreSQL 为小写
+    private static String idKey(Map<String, Object> row) {
+        return row.containsKey("id") ? "id" : "ID";
+    }
+}
@@ -0,0 +1,448 @@
+package com.aitravel.planner.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SSE 事件重放日志：生成线程把事件追加到所属流的日志（事件 id 为 "<流 id>:<序号>"），
+ * 已连接的客户端作为订阅者实时接收；客户端断线重连并携带 Last-Event-ID 时，从日志补发其后的事件再继续实时接收，
+ * 生成过程不受断线影响，无需重新调用 LLM。
+ * - 本地日志：每个流最多保留 max-events 条，结束后保留 ttl-seconds；
+ * - Redis 层（可选）：事件同时写入 Redis Stream sse:stream:<id>（MAXLEN 截断、带 TTL），
+ *   重连落到其他节点时从 Redis 重放，并由单个轮询线程跟随后续事件直到结束标记。
+ */
+@Service
+public class StreamReplayLog {
+    private static final Logger log = LoggerFactory.getLogger(StreamReplayLog.class);
+
+    private static final String STREAM_KEY = "sse:stream:";
+    private static final String META_KEY = "sse:meta:";
+    private static final String END = "__end";
+
+    /** 已连接的客户端；send 抛出 IOException 表示连接已断开，随即移除。 */
+    public interface Sink {
+        void send(Event event) throws IOException;
+        void end();
+    }
+
+    /** data 为 JSON 文本。 */
+    public record Event(String id, String name, String data) {}
+
+    private final ObjectProvider<StringRedisTemplate> redisProvider;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Value("${app.sse.replay.max-events:1000}")
+    private int maxEvents;
+
+    @Value("${app.sse.replay.max-streams:10000}")
+    private int maxStreams;
+
+    @Value("${app.sse.replay.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    @Value("${app.sse.replay.redis-enabled:true}")
+    private boolean redisEnabled;
+
+    @Value("${app.sse.replay.poll-interval-ms:250}")
+    private long pollIntervalMs;
+
+    private static final class LocalStream {
+        final UUID owner;
+        final List<Event> events = new ArrayList<>();
+        final List<Subscriber> subscribers = new ArrayList<>();
+        long nextSeq = 1;
+        long firstSeq = 1;
+        boolean done;
+        long touchedAt = System.currentTimeMillis();
+
+        LocalStream(UUID owner) {
+            this.owner = owner;
+        }
+    }
+
+    // 本节点流的订阅者：sentSeq 为已发送的最大序号；同一时刻只有一个线程（draining）向它发送
+    private static final class Subscriber {
+        final Sink sink;
+        final long replayUntil;
+        long sentSeq;
+        boolean draining;
+        boolean closed;
+
+        Subscriber(Sink sink, long afterSeq, long replayUntil) {
+            this.sink = sink;
+            this.sentSeq = afterSeq;
+            this.replayUntil = replayUntil;
+        }
+    }
+
+    // 其他节点上的流：按 Redis Stream 记录 id 增量读取
+    private static final class RemoteTail {
+        final String streamId;
+        final Sink sink;
+        long afterSeq;
+        String lastRecordId = "0-0";
+        long lastSeenAt = System.currentTimeMillis();
+
+        RemoteTail(String streamId, Sink sink, long afterSeq) {
+            this.streamId = streamId;
+            this.sink = sink;
+            this.afterSeq = afterSeq;
+        }
+    }
+
+    private final Map<String, LocalStream> streams = new ConcurrentHashMap<>();
+    private final Map<Sink, RemoteTail> tails = new ConcurrentHashMap<>();
+    private ScheduledExecutorService poller;
+    private volatile long redisDownUntil;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong resumedLocal = new AtomicLong();
+    private final AtomicLong resumedRemote = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    public StreamReplayLog(ObjectProvider<StringRedisTemplate> redisProvider) {
+        this.redisProvider = redisProvider;
+    }
+
+    @PostConstruct
+    public void start() {
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sse-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        poller.scheduleWithFixedDelay(this::pollQuietly, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+        poller.scheduleWithFixedDelay(this::evict, 60, 60, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (poller != null) poller.shutdownNow();
+    }
+
+    /** 新建一个流，返回流 id。 */
+    public String open(UUID owner) {
+        String id = UUID.randomUUID().toString();
+        streams.put(id, new LocalStream(owner));
+        opened.incrementAndGet();
+        if (streams.size() > maxStreams) evict();
+        StringRedisTemplate redis = redis();
+        if (redis != null) {
+            try {
+                redis.opsForHash().put(META_KEY + id, "owner", String.valueOf(owner));
+                redis.expire(META_KEY + id, Duration.ofSeconds(ttlSeconds));
+            } catch (Exception e) {
+                markDown(e);
+            }
+        }
+        return id;
+    }
+
+    /** 追加事件并推送给当前订阅者；流不存在（已过期）时忽略。 */
+    public void append(String streamId, String name, Object data) {
+        LocalStream s = streams.get(streamId);
+        if (s == null) return;
+        String json;
+        try {
+            json = mapper.writeValueAsString(data);
+        } catch (Exception e) {
+            log.warn("序列化 SSE 事件失败: {}", e.toString());
+            return;
+        }
+        Event event;
+        List<Subscriber> subs;
+        synchronized (s) {
+            if (s.done) return;
+            event = new Event(streamId + ":" + s.nextSeq, name, json);
+            s.nextSeq++;
+            s.events.add(event);
+            if (s.events.size() > maxEvents) {
+                s.events.remove(0);
+                s.firstSeq++;
+            }
+            s.touchedAt = System.currentTimeMillis();
+            subs = new ArrayList<>(s.subscribers);
+        }
+        for (Subscriber sub : subs) deliver(s, sub);
+        mirror(streamId, event);
+    }
+
+    /** 生成结束：通知订阅者结束连接，日志保留 ttl-seconds 供重连补发。 */
+    public void finish(String streamId) {
+        LocalStream s = streams.get(streamId);
+        if (s == null) return;
+        List<Subscriber> subs;
+        synchronized (s) {
+            if (s.done) return;
+            s.done = true;
+            s.touchedAt = System.currentTimeMillis();
+            subs = new ArrayList<>(s.subscribers);
+        }
+        // 各订阅者发完剩余事件后结束连接
+        for (Subscriber sub : subs) deliver(s, sub);
+        mirror(streamId, new Event(streamId + ":0", END, "{}"));
+    }
+
+    /**
+     * 订阅流：先补发序号大于 afterSeq 的事件，再接收后续事件；流已结束时补发后即结束。
+     * 流不存在、已过期或不属于 owner 时返回 false。
+     */
+    public boolean subscribe(String streamId, long afterSeq, UUID owner, Sink sink) {
+        LocalStream s = streams.get(streamId);
+        if (s != null) {
+            if (!Objects.equals(s.owner, owner)) return false;
+            Subscriber sub;
+            synchronized (s) {
+                if (afterSeq > 0) resumedLocal.incrementAndGet();
+                sub = new Subscriber(sink, afterSeq, afterSeq > 0 ? s.nextSeq - 1 : 0);
+                s.subscribers.add(sub);
+            }
+            // 补发与后续实时事件走同一条发送路径，锁外发送
+            deliver(s, sub);
+            return true;
+        }
+        return subscribeRemote(streamId, afterSeq, owner, sink);
+    }
+
+    /** 连接关闭时调用，不影响生成。 */
+    public void unsubscribe(String streamId, Sink sink) {
+        tails.remove(sink);
+        LocalStream s = streams.get(streamId);
+        if (s == null) return;
+        synchronized (s) {
+            s.subscribers.removeIf(sub -> sub.sink == sink);
+        }
+    }
+
+    /** 解析 Last-Event-ID（"<流 id>:<序号>"），格式不符时返回 null。 */
+    public static String[] parseEventId(String lastEventId) {
+        if (lastEventId == null) return null;
+        int sep = lastEventId.lastIndexOf(':');
+        if (sep <= 0) return null;
+        try {
+            UUID.fromString(lastEventId.substring(0, sep));
+            Long.parseLong(lastEventId.substring(sep + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return new String[]{lastEventId.substring(0, sep), lastEventId.substring(sep + 1)};
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("streams", streams.size());
+        m.put("remoteTails", tails.size());
+        m.put("opened", opened.get());
+        m.put("resumedLocal", resumedLocal.get());
+        m.put("resumedRemote", resumedRemote.get());
+        m.put("replayedEvents", replayed.get());
+        m.put("redis", redis() != null);
+        return m;
+    }
+
+    /**
+     * 把订阅者尚未收到的事件发给它：在锁内复制待发事件，在锁外调用阻塞的 send，慢连接不阻塞生成线程与其他订阅者。
+     * 同一订阅者只有一个线程在发送（draining），其余线程追加的事件由该线程在下一轮取走，保证不重不漏且有序；
+     * 流已结束且事件发完后结束连接。
+     */
+    private void deliver(LocalStream s, Subscriber sub) {
+        while (true) {
+            List<Event> batch;
+            boolean end = false;
+            synchronized (s) {
+                if (sub.draining || sub.closed) return;
+                int from = (int) Math.max(0, sub.sentSeq + 1 - s.firstSeq);
+                batch = from < s.events.size() ? new ArrayList<>(s.events.subList(from, s.events.size())) : List.of();
+                if (batch.isEmpty()) {
+                    if (!s.done) return;
+                    sub.closed = true;
+                    s.subscribers.remove(sub);
+                    end = true;
+                } else {
+                    sub.draining = true;
+                }
+            }
+            if (end) {
+                sub.sink.end();
+                return;
+            }
+            long sent = sub.sentSeq;
+            boolean ok = true;
+            for (Event e : batch) {
+                if (!send(sub.sink, e)) {
+                    ok = false;
+                    break;
+                }
+                sent = seqOf(e.id());
+                if (sent <= sub.replayUntil) replayed.incrementAndGet();
+            }
+            synchronized (s) {
+                sub.draining = false;
+                sub.sentSeq = sent;
+                if (!ok) {
+                    sub.closed = true;
+                    s.subscribers.remove(sub);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean send(Sink sink, Event event) {
+        try {
+            sink.send(event);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void mirror(String streamId, Event event) {
+        StringRedisTemplate redis = redis();
+        if (redis == null) return;
+        try {
+            String key = STREAM_KEY + streamId;
+            redis.opsForStream().add(StreamRecords.string(Map.of("id", event.id(), "name", event.name(), "data", event.data()))
+                    .withStreamKey(key));
+            redis.opsForStream().trim(key, maxEvents, true);
+            redis.expire(key, Duration.ofSeconds(ttlSeconds));
+            redis.expire(META_KEY + streamId, Duration.ofSeconds(ttlSeconds));
+        } catch (Exception e) {
+            markDown(e);
+        }
+    }
+
+    private boolean subscribeRemote(String streamId, long afterSeq, UUID owner, Sink sink) {
+        StringRedisTemplate redis = redis();
+        if (redis == null) return false;
+        try {
+            Object o = redis.opsForHash().get(META_KEY + streamId, "owner");
+            if (o == null || !String.valueOf(owner).equals(o)) return false;
+        } catch (Exception e) {
+            markDown(e);
+            return false;
+        }
+        resumedRemote.incrementAndGet();
+        RemoteTail tail = new RemoteTail(streamId, sink, afterSeq);
+        tails.put(sink, tail);
+        // 立即补发已有事件，其余由轮询线程跟随
+        poller.execute(() -> pollTail(tail));
+        return true;
+    }
+
+    private void pollQuietly() {
+        for (RemoteTail tail : tails.values()) {
+            try {
+                pollTail(tail);
+            } catch (Exception e) {
+                log.debug("跟随 SSE 流 {} 失败: {}", tail.streamId, e.toString());
+            }
+        }
+    }
+
+    // 仅在轮询线程执行
+    private void pollTail(RemoteTail tail) {
+        if (!tails.containsKey(tail.sink)) return;
+        StringRedisTemplate redis = redis();
+        if (redis == null) return;
+        List<MapRecord<String, Object, Object>> records;
+        try {
+            records = redis.opsForStream().range(STREAM_KEY + tail.streamId, Range.rightUnbounded(Range.Bound.inclusive(tail.lastRecordId)));
+        } catch (Exception e) {
+            markDown(e);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (records != null) {
+            for (MapRecord<String, Object, Object> r : records) {
+                String recordId = r.getId().getValue();
+                if (recordId.equals(tail.lastRecordId)) continue;
+                tail.lastRecordId = recordId;
+                tail.lastSeenAt = now;
+                Map<Object, Object> v = r.getValue();
+                String name = String.valueOf(v.get("name"));
+                if (END.equals(name)) {
+                    tails.remove(tail.sink);
+                    tail.sink.end();
+                    return;
+                }
+                String id = String.valueOf(v.get("id"));
+                long seq = seqOf(id);
+                if (seq <= tail.afterSeq) continue;
+                if (!send(tail.sink, new Event(id, name, String.valueOf(v.get("data"))))) {
+                    tails.remove(tail.sink);
+                    return;
+                }
+                tail.afterSeq = seq;
+                replayed.incrementAndGet();
+            }
+        }
+        // 源节点崩溃未写结束标记：超过 TTL 无新事件后结束连接
+        if (now - tail.lastSeenAt > ttlSeconds * 1000) {
+            tails.remove(tail.sink);
+            tail.sink.end();
+        }
+    }
+
+    // 已结束超过 TTL 的流出队；数量超限时再按最久未更新淘汰已结束的流
+    private void evict() {
+        long now = System.currentTimeMillis();
+        streams.entrySet().removeIf(e -> {
+            LocalStream s = e.getValue();
+            synchronized (s) {
+                return (s.done && now - s.touchedAt > ttlSeconds * 1000)
+                        || (!s.done && s.subscribers.isEmpty() && now - s.touchedAt > ttlSeconds * 1000);
+            }
+        });
+        if (streams.size() <= maxStreams) return;
+        List<Map.Entry<String, LocalStream>> done = new ArrayList<>();
+        for (Map.Entry<String, LocalStream> e : streams.entrySet()) {
+            if (e.getValue().done) done.add(e);
+        }
+        done.sort((a, b) -> Long.compare(a.getValue().touchedAt, b.getValue().touchedAt));
+        for (int i = 0; i < done.size() && streams.size() > maxStreams; i++) streams.remove(done.get(i).getKey());
+    }
+
+    private static long seqOf(String eventId) {
+        int sep = eventId.lastIndexOf(':');
+        try {
+            return Long.parseLong(eventId.substring(sep + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private StringRedisTemplate redis() {
+        if (!redisEnabled || System.currentTimeMillis() < redisDownUntil) return null;
+        return redisProvider.getIfAvailable();
+    }
+
+    private void markDown(Exception e) {
+        if (System.currentTimeMillis() >= redisDownUntil) log.warn("访问 Redis 失败，30 秒内 SSE 重放仅限本节点: {}", e.toString());
+        redisDownUntil = System.currentTimeMillis() + 30_000;
+    }
+}
@@ -0,0 +1,133 @@
+package com.aitravel.planner.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 令牌桶限流：桶状态（剩余令牌、上次补充时刻）存于 Redis 哈希，补充与扣减在一个 Lua 脚本内原子完成，
+ * 多节点共享同一个桶；键在桶回满后过期。Redis 不可用时退化为本节点的桶（此时总速率为配置值乘以节点数）。
+ */
+@Service
+public class TokenBucketRateLimiter {
+    private static final Logger log = LoggerFactory.getLogger(TokenBucketRateLimiter.class);
+
+    private static final String KEY_PREFIX = "ratelimit:";
+
+    // KEYS[1] 桶；ARGV 容量、每毫秒补充数、当前毫秒；返回 0 表示放行，否则为需等待的毫秒数
+    private static final DefaultRedisScript<Long> SCRIPT = new DefaultRedisScript<>("""
+            local cap = tonumber(ARGV[1])
+            local rate = tonumber(ARGV[2])
+            local now = tonumber(ARGV[3])
+            local state = redis.call('HMGET', KEYS[1], 't', 'ts')
+            local tokens = tonumber(state[1])
+            local ts = tonumber(state[2])
+            if tokens == nil then tokens = cap; ts = now end
+            tokens = math.min(cap, tokens + math.max(0, now - ts) * rate)
+            local wait = 0
+            if tokens >= 1 then tokens = tokens - 1 else wait = math.ceil((1 - tokens) / rate) end
+            redis.call('HSET', KEYS[1], 't', tostring(tokens), 'ts', tostring(math.max(now, ts)))
+            redis.call('PEXPIRE', KEYS[1], math.ceil(cap / rate) + 1000)
+            return wait
+            """, Long.class);
+
+    private final ObjectProvider<StringRedisTemplate> redisProvider;
+
+    @Value("${app.ratelimit.redis-enabled:true}")
+    private boolean redisEnabled;
+
+    private static final class Bucket {
+        double tokens;
+        long ts;
+    }
+
+    private final Map<String, Bucket> local = new ConcurrentHashMap<>();
+    private volatile long redisDownUntil;
+
+    private final AtomicLong allowed = new AtomicLong();
+    private final AtomicLong limited = new AtomicLong();
+
+    public TokenBucketRateLimiter(ObjectProvider<StringRedisTemplate> redisProvider) {
+        this.redisProvider = redisProvider;
+    }
+
+    /**
+     * 从 key 对应的桶取一个令牌。
+     * @param capacity 桶容量（允许的突发请求数）
+     * @param refillPerMinute 每分钟补充的令牌数
+     * @return 0 表示放行；否则为下一个令牌可用前需等待的毫秒数
+     */
+    public long tryAcquire(String key, int capacity, double refillPerMinute) {
+        double perMs = Math.max(1e-9, refillPerMinute / 60_000.0);
+        long now = System.currentTimeMillis();
+        long wait = -1;
+        StringRedisTemplate redis = redis();
+        if (redis != null) {
+            try {
+                Long r = redis.execute(SCRIPT, List.of(KEY_PREFIX + key),
+                        String.valueOf(capacity), String.valueOf(perMs), String.valueOf(now));
+                if (r != null) wait = r;
+            } catch (Exception e) {
+                markDown(e);
+            }
+        }
+        if (wait < 0) wait = acquireLocal(key, capacity, perMs, now);
+        (wait == 0 ? allowed : limited).incrementAndGet();
+        return wait;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("allowed", allowed.get());
+        m.put("limited", limited.get());
+        m.put("localBuckets", local.size());
+        m.put("redis", redis() != null);
+        return m;
+    }
+
+    long acquireLocal(String key, int capacity, double perMs, long now) {
+        if (local.size() > 100_000) {
+            // 已回满的桶与新建的等价，可以丢弃
+            local.entrySet().removeIf(e -> {
+                synchronized (e.getValue()) {
+                    return e.getValue().tokens + (now - e.getValue().ts) * perMs >= capacity;
+                }
+            });
+        }
+        Bucket b = local.computeIfAbsent(key, k -> {
+            Bucket n = new Bucket();
+            n.tokens = capacity;
+            n.ts = now;
+            return n;
+        });
+        synchronized (b) {
+            b.tokens = Math.min(capacity, b.tokens + Math.max(0, now - b.ts) * perMs);
+            b.ts = Math.max(now, b.ts);
+            if (b.tokens >= 1) {
+                b.tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - b.tokens) / perMs);
+        }
+    }
+
+    private StringRedisTemplate redis() {
+        if (!redisEnabled || System.currentTimeMillis() < redisDownUntil) return null;
+        return redisProvider.getIfAvailable();
+    }
+
+    private void markDown(Exception e) {
+        if (System.currentTimeMillis() >= redisDownUntil) log.warn("访问 Redis 失败，30 秒内限流仅按本节点计数: {}", e.toString());
+        redisDownUntil = System.currentTimeMillis() + 30_000;
+    }
+}
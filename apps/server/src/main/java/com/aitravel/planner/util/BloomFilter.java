@@ -0,0 +1,92 @@
+package com.aitravel.planner.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 布隆过滤器：mightContain 为 false 时一定不存在，为 true 时可能存在（误判率约为构造时的 fpp）。
+ * 位数组为 AtomicLongArray，put 与 mightContain 可并发调用，无需加锁。
+ * 元素先算出 64 位哈希，k 个位置由双重哈希 h1 + i*h2 导出；集群内传播新增元素时只需传递该哈希值。
+ */
+public final class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashes;
+
+    private BloomFilter(long bitCount, int hashes) {
+        this.bitCount = bitCount;
+        this.hashes = hashes;
+        this.bits = new AtomicLongArray((int) ((bitCount + 63) >>> 6));
+    }
+
+    /** 按预计元素数与期望误判率确定位数与哈希函数个数。 */
+    public static BloomFilter create(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        double p = Math.min(0.5, Math.max(1e-9, fpp));
+        long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        m = Math.max(64, Math.min(m, (long) Integer.MAX_VALUE * 64));
+        int k = (int) Math.max(1, Math.min(16, Math.round((double) m / n * Math.log(2))));
+        return new BloomFilter(m, k);
+    }
+
+    public static long hash(String value) {
+        // FNV-1a 64 + murmur3 fmix64，分布足够均匀且无需额外依赖
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return fmix(h);
+    }
+
+    public void put(String value) {
+        putHash(hash(value));
+    }
+
+    public boolean mightContain(String value) {
+        return mightContainHash(hash(value));
+    }
+
+    public void putHash(long h) {
+        long h1 = h;
+        long h2 = fmix(h ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long cur;
+            while (((cur = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, cur, cur | mask)) {
+                // 其他线程同时修改了同一个字，重试
+            }
+        }
+    }
+
+    public boolean mightContainHash(long h) {
+        long h1 = h;
+        long h2 = fmix(h ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    public long bitCount() { return bitCount; }
+    public int hashCount() { return hashes; }
+
+    /** 已置位比例；越接近 1 误判率越高，可用于判断是否需要按更大容量重建。 */
+    public double fillRatio() {
+        long set = 0;
+        for (int i = 0; i < bits.length(); i++) set += Long.bitCount(bits.get(i));
+        return (double) set / bitCount;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
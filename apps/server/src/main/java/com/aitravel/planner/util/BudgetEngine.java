@@ -0,0 +1,686 @@
+package com.aitravel.planner.util;
+
+import com.aitravel.planner.itinerary.BudgetBreakdown;
+import com.aitravel.planner.itinerary.BudgetCategory;
+import com.aitravel.planner.itinerary.BudgetItem;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 融合的预算处理引擎：原文只切行、词法分类一次，在同一组行上依次完成
+ * 规范化（{@link BudgetRawTextNormalizer}）、结构化解析（{@link BudgetParser}）与对齐校验（{@link BudgetVerifier}）。
+ * - 正则全部预编译，且按行首字符预筛后才匹配；阶段之间不再 join/split 文本；
+ * - 金额内部使用定点整数（unscaled long + scale，通常即“分”）精确运算，仅在输出时还原为 BigDecimal；
+ * - 输出与原三段流水线逐字一致；遇到无法逐行等价处理的输入（\r 等换行符、跨行匹配、金额溢出）时回退原流水线。
+ */
+public final class BudgetEngine {
+
+    // 与 BudgetRawTextNormalizer 中的模式一致，但按“单行”匹配（不含 (?m)）
+    private static final Pattern ITEM_LINE = Pattern.compile(
+            "^[\\-\\*]\\s*(住宿|酒店|交通|餐饮|吃饭|用餐|门票|景点|购物|其他)[：:]\\s*([0-9]+(?:\\.[0-9]+)?)\\s*(CNY|RMB|人民币|元|USD|EUR|JPY)?\\s*$",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern CATEGORY_HEADER = Pattern.compile(
+            "^[\\-\\*]\\s*(住宿|交通|餐饮|门票)[：:]\\s*([0-9]+(?:\\.[0-9]+)?)\\s*(CNY|RMB|人民币|元|USD|EUR|JPY)?(?:\\s*（总计）)?\\s*$",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern CATEGORY_ITEM_TOTAL = Pattern.compile(
+            "^\\s+[\\-\\*]\\s*.*?=\\s*([0-9]+(?:\\.[0-9]+)?)\\s*(CNY|RMB|人民币|元|USD|EUR|JPY)?\\s*$",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern TOTAL_LINE = Pattern.compile(
+            "^(?:总预算|预算总额|总体预算|合计)[：:]\\s*([0-9]+(?:\\.[0-9]+)?)\\s*(CNY|RMB|人民币|元|USD|EUR|JPY)?\\s*$",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern TOTAL_LINE_ANY = Pattern.compile(
+            "^(?:[\\-\\*]\\s*)?(?:总预算|预算总额|总体预算|合计)[：:]\\s*([0-9]+(?:\\.[0-9]+)?)\\s*(CNY|RMB|人民币|元|USD|EUR|JPY)?\\s*$",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern BUDGET_HEADING = Pattern.compile("^[#]{1,6}\\s*预算\\s*$");
+    private static final Pattern LIST_LINE = Pattern.compile("^[\\-\\*]\\s+.*$");
+    private static final Pattern LINE_BREAK = Pattern.compile("\\r?\\n");
+
+    private static final String HEADING = "### 预算";
+
+    private BudgetEngine() {}
+
+    /** 规范化文本与结构化预算（已对齐校验）的组合结果，附带两段的耗时（解析与校验在同一趟内完成，合并计时）。 */
+    public static class Result {
+        private final String text;
+        private final BudgetBreakdown breakdown;
+        private final long normalizeNanos;
+        private final long parseNanos;
+
+        public Result(String text, BudgetBreakdown breakdown) {
+            this(text, breakdown, 0, 0);
+        }
+
+        public Result(String text, BudgetBreakdown breakdown, long normalizeNanos, long parseNanos) {
+            this.text = text;
+            this.breakdown = breakdown;
+            this.normalizeNanos = normalizeNanos;
+            this.parseNanos = parseNanos;
+        }
+
+        public String getText() { return text; }
+        public BudgetBreakdown getBreakdown() { return breakdown; }
+        public long getNormalizeNanos() { return normalizeNanos; }
+        public long getParseNanos() { return parseNanos; }
+    }
+
+    /**
+     * 等价于 normalize → parse → fixAndAlign：返回规范化后的原文与对齐后的结构化预算。
+     */
+    public static Result process(String raw) {
+        if (raw == null || raw.trim().isEmpty()) {
+            return new Result(raw, BudgetVerifier.fixAndAlign(BudgetParser.parse(raw)));
+        }
+        try {
+            long t0 = System.nanoTime();
+            List<Line> lines = normalizeLines(raw);
+            if (lines != null) {
+                String text = join(lines);
+                long t1 = System.nanoTime();
+                BudgetBreakdown breakdown = parseLines(lines);
+                return new Result(text, breakdown, t1 - t0, System.nanoTime() - t1);
+            }
+        } catch (RuntimeException ignored) {
+            // 定点溢出等异常：交由原流水线处理
+        }
+        return legacyProcess(raw);
+    }
+
+    /**
+     * 等价于 BudgetRawTextNormalizer.normalize，供只需要规范化原文的场景（如会话规划）。
+     */
+    public static String normalize(String raw) {
+        if (raw == null || raw.trim().isEmpty()) return raw;
+        try {
+            List<Line> lines = normalizeLines(raw);
+            if (lines != null) return join(lines);
+        } catch (RuntimeException ignored) {}
+        return BudgetRawTextNormalizer.normalize(raw);
+    }
+
+    /**
+     * 等价于 parse → fixAndAlign（不做规范化），用于流式输出结束后的预算解析。
+     */
+    public static BudgetBreakdown parseAndAlign(String text) {
+        if (text == null || text.isBlank()) return BudgetVerifier.fixAndAlign(BudgetParser.parse(text));
+        try {
+            String[] parts = LINE_BREAK.split(text);
+            List<Line> lines = new ArrayList<>(parts.length);
+            for (String p : parts) lines.add(new Line(p));
+            return parseLines(lines);
+        } catch (RuntimeException e) {
+            return BudgetVerifier.fixAndAlign(BudgetParser.parse(text));
+        }
+    }
+
+    private static Result legacyProcess(String raw) {
+        long t0 = System.nanoTime();
+        String text = raw;
+        try {
+            text = BudgetRawTextNormalizer.normalize(raw);
+        } catch (Exception ignored) {}
+        long t1 = System.nanoTime();
+        BudgetBreakdown breakdown = BudgetVerifier.fixAndAlign(BudgetParser.parse(text));
+        return new Result(text, breakdown, t1 - t0, System.nanoTime() - t1);
+    }
+
+    // ---------------------------------------------------------------------
+    // 词法：每行只分类一次，后续阶段直接复用分类结果
+    // ---------------------------------------------------------------------
+
+    private static final class Line {
+        final String text;
+        // 规范化阶段
+        boolean item;            // ITEM_LINE
+        Fixed itemAmount;
+        String itemCurrency;
+        boolean heading;         // 含“### 预算”或形如“## 预算”的标题行
+        boolean headingMarker;   // 含“### 预算”子串
+        boolean totalValid;      // TOTAL_LINE
+        boolean list;            // LIST_LINE
+        // 一致性修正阶段
+        String headerCategory;   // CATEGORY_HEADER
+        String headerCurrency;
+        boolean indentedList;
+        Fixed itemTotal;         // CATEGORY_ITEM_TOTAL
+        String itemTotalCurrency;
+        boolean totalAny;        // TOTAL_LINE_ANY
+        // 逐行匹配可能与整段多行匹配不一致（行尾空白跨行），需回退原流水线
+        boolean ambiguous;
+        boolean itemWithoutCurrency;
+
+        Line(String text) { this.text = text; }
+    }
+
+    private static Line lex(String s) {
+        Line ln = new Line(s);
+        if (s.isEmpty()) return ln;
+        ln.headingMarker = s.contains(HEADING);
+        char c = s.charAt(0);
+        if (c == '-' || c == '*') {
+            Matcher m = ITEM_LINE.matcher(s);
+            if (m.matches()) {
+                ln.item = true;
+                ln.itemAmount = Fixed.parse(m.group(2));
+                ln.itemCurrency = normalizeCurrency(m.group(3));
+                ln.itemWithoutCurrency = m.group(3) == null;
+            } else if (m.hitEnd()) {
+                ln.ambiguous = true;
+            }
+            Matcher h = CATEGORY_HEADER.matcher(s);
+            if (h.matches()) {
+                ln.headerCategory = h.group(1);
+                ln.headerCurrency = normalizeCurrency(h.group(3));
+            }
+            Matcher l = LIST_LINE.matcher(s);
+            if (l.matches()) {
+                ln.list = true;
+                if (s.substring(1).isBlank() || isRegexBlank(s, 1)) ln.ambiguous = true;
+            } else if (l.hitEnd()) {
+                ln.ambiguous = true;
+            }
+            ln.totalAny = TOTAL_LINE_ANY.matcher(s).matches();
+        } else if (c == '#') {
+            Matcher m = BUDGET_HEADING.matcher(s);
+            if (m.matches()) ln.heading = true;
+            else if (m.hitEnd()) ln.ambiguous = true;
+        } else if (c == '总' || c == '预' || c == '合') {
+            Matcher m = TOTAL_LINE.matcher(s);
+            if (m.matches()) {
+                ln.totalValid = true;
+                ln.totalAny = true;
+            } else if (m.hitEnd()) {
+                ln.ambiguous = true;
+            }
+        } else if (isRegexSpace(c)) {
+            int k = 1;
+            while (k < s.length() && isRegexSpace(s.charAt(k))) k++;
+            if (k < s.length() && (s.charAt(k) == '-' || s.charAt(k) == '*')) {
+                ln.indentedList = true;
+                Matcher m = CATEGORY_ITEM_TOTAL.matcher(s);
+                if (m.matches()) {
+                    ln.itemTotal = Fixed.parse(m.group(1));
+                    ln.itemTotalCurrency = normalizeCurrency(m.group(2));
+                }
+            }
+        }
+        if (ln.headingMarker) ln.heading = true;
+        return ln;
+    }
+
+    // ---------------------------------------------------------------------
+    // 规范化（与 BudgetRawTextNormalizer.normalize 等价）
+    // ---------------------------------------------------------------------
+
+    /** 返回 null 表示该文本无法逐行等价处理，调用方应回退原流水线。 */
+    private static List<Line> normalizeLines(String raw) {
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return null;
+        }
+        String[] parts = raw.split("\n", -1);
+        List<Line> lines = new ArrayList<>(parts.length + 4);
+        for (String p : parts) lines.add(lex(p));
+
+        int firstItem = -1;
+        int itemCount = 0;
+        Fixed itemSum = Fixed.ZERO;
+        String currency = null;
+        boolean hasHeading = false;
+        boolean hasTotalValid = false;
+        int last = lines.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            Line ln = lines.get(i);
+            if (i < last && (ln.ambiguous || (ln.itemWithoutCurrency && nextStartsCurrency(lines, i)))) return null;
+            if (ln.item) {
+                if (firstItem < 0) firstItem = i;
+                itemCount++;
+                itemSum = itemSum.add(ln.itemAmount);
+                if (currency == null) currency = ln.itemCurrency;
+                else if (!currency.equals(ln.itemCurrency)) currency = null;
+            }
+            if (ln.heading) hasHeading = true;
+            if (ln.totalValid) hasTotalValid = true;
+        }
+
+        // 有预算项但无预算标题：在第一条预算项之前插入空行与标题
+        if (itemCount > 0 && !hasHeading) {
+            lines.add(firstItem, lex(HEADING));
+            lines.add(firstItem, lex(""));
+        }
+
+        // 无有效总预算、币种一致且至少两项：在预算段落最后一个列表行末尾追加“合计”
+        if (!hasTotalValid && currency != null && itemCount >= 2) {
+            String appendLine = "合计：" + itemSum.plain() + " " + currency;
+            int headingIdx = -1;
+            for (int i = 0; i < lines.size(); i++) {
+                if (lines.get(i).headingMarker) { headingIdx = i; break; }
+            }
+            int lastList = -1;
+            if (headingIdx >= 0) {
+                for (int i = lines.size() - 1; i > headingIdx; i--) {
+                    if (lines.get(i).list) { lastList = i; break; }
+                }
+            }
+            if (lastList >= 0) {
+                lines.set(lastList, lex(lines.get(lastList).text + appendLine));
+                lines.add(lastList + 1, lex(""));
+            } else {
+                lines.add(lex(appendLine));
+                lines.add(lex(""));
+            }
+        }
+
+        enforceConsistency(lines);
+        return lines;
+    }
+
+    private static void enforceConsistency(List<Line> lines) {
+        Fixed totalAll = Fixed.ZERO;
+        String currencyAll = null;
+        int n = lines.size();
+        for (int i = 0; i < n; i++) {
+            Line head = lines.get(i);
+            if (head.headerCategory == null) continue;
+            String category = head.headerCategory;
+            String headerCurrency = head.headerCurrency;
+            if (currencyAll == null) currencyAll = headerCurrency;
+            Fixed sum = Fixed.ZERO;
+            List<String> itemTotals = new ArrayList<>();
+            int j = i + 1;
+            while (j < n) {
+                Line ln = lines.get(j);
+                if (ln.headerCategory != null) break;
+                if (ln.indentedList) {
+                    if (ln.itemTotal != null) {
+                        sum = sum.add(ln.itemTotal);
+                        itemTotals.add(ln.itemTotal.plain());
+                        headerCurrency = ln.itemTotalCurrency;
+                    } else if (ln.text.contains("免费")) {
+                        itemTotals.add("0");
+                    }
+                }
+                j++;
+            }
+            String fixedText = "- " + category + "：" + sum.plain() + " " + headerCurrency + "（总计）";
+            Line fixed = new Line(fixedText);
+            fixed.headerCategory = head.headerCategory;
+            fixed.headerCurrency = head.headerCurrency;
+            lines.set(i, fixed);
+            totalAll = totalAll.add(sum);
+            for (int k = i + 1; k < j; k++) {
+                String chkRaw = lines.get(k).text;
+                String chkTrim = chkRaw.trim();
+                if (chkTrim.startsWith("校验：") || chkTrim.startsWith("- 校验：") || chkTrim.startsWith("* 校验：")) {
+                    String prefix = chkRaw.substring(0, chkRaw.indexOf(chkTrim));
+                    String eq = "校验：" + sum.plain() + " " + headerCurrency + " = " + String.join(" + ", itemTotals) + " CNY";
+                    if (chkTrim.startsWith("- 校验：")) eq = "- " + eq;
+                    if (chkTrim.startsWith("* 校验：")) eq = "* " + eq;
+                    lines.set(k, lex(prefix + eq));
+                    break;
+                }
+            }
+        }
+
+        String totalStr = totalAll.plain();
+        String cur = currencyAll == null ? "CNY" : currencyAll;
+        String totalLine = "合计：" + totalStr + " " + cur;
+        for (int i = 0; i < lines.size(); i++) {
+            Line ln = lines.get(i);
+            if (ln.text.trim().startsWith("总预算校验：")) {
+                lines.set(i, lex("总预算校验：" + totalStr + " " + cur + " = 住宿 + 交通 + 餐饮 + 门票 = " + totalStr + " " + cur));
+                return;
+            }
+            if (ln.totalAny) {
+                lines.set(i, lex(totalLine));
+                return;
+            }
+        }
+        lines.add(lex(totalLine));
+    }
+
+    // ---------------------------------------------------------------------
+    // 解析 + 校验（与 BudgetParser.parse → BudgetVerifier.fixAndAlign 等价）
+    // ---------------------------------------------------------------------
+
+    private static final class Cat {
+        final String name;
+        final String currency;
+        final List<Item> items = new ArrayList<>();
+        Fixed header;
+        Fixed total = Fixed.ZERO;
+
+        Cat(String name, String currency) {
+            this.name = name;
+            this.currency = currency;
+        }
+    }
+
+    private static final class Item {
+        final String name;
+        final Fixed amount;
+        final String currency;
+
+        Item(String name, Fixed amount, String currency) {
+            this.name = name;
+            this.amount = amount;
+            this.currency = currency;
+        }
+    }
+
+    private static BudgetBreakdown parseLines(List<Line> lines) {
+        int start = -1;
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).text.contains(HEADING)) { start = i + 1; break; }
+        }
+        List<String> budgetLines = new ArrayList<>();
+        if (start >= 0) {
+            for (int i = start; i < lines.size(); i++) {
+                String t = lines.get(i).text.trim();
+                if (t.isEmpty()) continue;
+                if (t.startsWith("#")) break;
+                budgetLines.add(t.startsWith("- ") || t.startsWith("* ") ? t.substring(2).trim() : t);
+            }
+        }
+        if (budgetLines.isEmpty()) {
+            for (Line l : lines) {
+                String t = l.text.trim();
+                if (t.startsWith("- ") || t.startsWith("* ")) budgetLines.add(t.substring(2).trim());
+            }
+        }
+
+        List<Cat> cats = new ArrayList<>();
+        Map<String, Cat> byName = new HashMap<>();
+        Cat current = null;
+        for (String ln : budgetLines) {
+            if (ln.startsWith("总花费") || ln.contains("预算余量") || ln.startsWith("合计")) continue;
+
+            if (ln.contains("小计") && !ln.startsWith("类别小计")) {
+                String[] np0 = BudgetParser.splitNameValue(ln.replace(" ", ""));
+                String catKey0 = BudgetParser.canonicalCategory(np0[0].replace("小计", ""));
+                if (catKey0 != null && !catKey0.isBlank()) {
+                    Cat cat = category(cats, byName, catKey0, BudgetParser.normalizeCurrency(np0[1]));
+                    Fixed amt0 = lastNumber(ln);
+                    if (amt0.signum() > 0) cat.header = amt0;
+                }
+                continue;
+            }
+            if (ln.startsWith("类别小计")) {
+                for (String seg : ln.replace("类别小计：", "").split("，")) {
+                    String s = seg.trim();
+                    if (s.isEmpty()) continue;
+                    String[] np = BudgetParser.splitNameValue(s.replace(" ", ""));
+                    Fixed amt = firstNumber(s);
+                    String catKey = BudgetParser.canonicalCategory(np[0]);
+                    if (catKey != null) {
+                        Cat cat = category(cats, byName, catKey, BudgetParser.normalizeCurrency(s));
+                        if (amt.signum() > 0) cat.header = amt;
+                    }
+                }
+                continue;
+            }
+
+            String[] parts = BudgetParser.splitNameValue(ln);
+            String left = parts[0];
+            String right = parts[1];
+            if (BudgetParser.isCategoryName(left)) {
+                String catKey = BudgetParser.canonicalCategory(left);
+                String valueForParse = (right == null || right.isEmpty()) ? ln : right;
+                current = category(cats, byName, catKey, BudgetParser.normalizeCurrency(valueForParse));
+                Fixed headerAmt = lastNumber(valueForParse);
+                if (headerAmt.signum() > 0) current.header = headerAmt;
+                Item sameLine = parseItemLine(ln);
+                if (sameLine != null) current.items.add(sameLine);
+                continue;
+            }
+
+            for (String seg : BudgetParser.ITEM_SEPARATOR.split(ln)) {
+                String s = seg.trim();
+                if (s.isEmpty()) continue;
+                Item item = parseItemLine(s);
+                if (item == null) continue;
+                String inferredKey = BudgetParser.classifyCategoryFromItemName(item.name);
+                Cat target;
+                if (current != null && (inferredKey == null || !"其他".equals(current.name))) {
+                    target = current;
+                } else if (inferredKey != null) {
+                    target = category(cats, byName, inferredKey, item.currency);
+                } else {
+                    target = current != null ? current : category(cats, byName, "其他", item.currency);
+                }
+                target.items.add(item);
+            }
+        }
+
+        // 类别合计：有头部总额时以其为准（子项金额不计入），否则累加子项
+        Fixed parsedGrand = Fixed.ZERO;
+        for (Cat cat : cats) {
+            if (cat.header != null && cat.header.signum() > 0) {
+                cat.total = cat.header;
+            } else {
+                Fixed sum = Fixed.ZERO;
+                for (Item it : cat.items) sum = sum.add(it.amount);
+                cat.total = sum;
+            }
+            parsedGrand = parsedGrand.add(cat.total);
+        }
+
+        // 校验：移除“其他”类别后重算总计，与解析阶段总计不一致则标记未对齐
+        BudgetBreakdown bd = new BudgetBreakdown();
+        Fixed grand = Fixed.ZERO;
+        for (Cat cat : cats) {
+            if (cat.name != null && cat.name.trim().equals("其他")) continue;
+            boolean headed = cat.header != null && cat.header.signum() > 0;
+            BudgetCategory out = new BudgetCategory(cat.name, cat.currency);
+            for (Item it : cat.items) {
+                out.getItems().add(new BudgetItem(it.name, headed ? null : it.amount.toBigDecimal(), it.currency));
+            }
+            out.setTotal(cat.total.toBigDecimal());
+            bd.getCategories().add(out);
+            grand = grand.add(cat.total);
+        }
+        bd.setGrandTotal(grand.toBigDecimal());
+        bd.setAligned(grand.compareTo(parsedGrand) == 0);
+        return bd;
+    }
+
+    private static Cat category(List<Cat> cats, Map<String, Cat> byName, String key, String currency) {
+        Cat cat = byName.get(key);
+        if (cat == null) {
+            cat = new Cat(key, currency);
+            byName.put(key, cat);
+            cats.add(cat);
+        }
+        return cat;
+    }
+
+    private static Item parseItemLine(String ln) {
+        if (ln == null || ln.isBlank()) return null;
+        String t = ln.trim();
+        int approxIdx = Math.max(t.lastIndexOf("≈"), t.lastIndexOf("="));
+        if (approxIdx > 0) {
+            String left = t.substring(0, approxIdx).trim();
+            String right = t.substring(approxIdx + 1).trim();
+            Fixed amt = lastNumber(right);
+            String cur = BudgetParser.normalizeCurrency(right);
+            String[] np = BudgetParser.splitNameValue(left);
+            String name = np[0];
+            if (BudgetParser.isCategoryName(name) && np[1] != null && !np[1].isBlank()) name = np[1];
+            if (name == null || name.isBlank()) name = t;
+            return new Item(name, amt, cur);
+        }
+        // 单价×数量：注意此处不移除千分位逗号（与原实现一致）
+        Fixed first = null;
+        Fixed second = null;
+        int len = t.length();
+        int i = 0;
+        while (i < len && second == null) {
+            int end = numberEnd(t, i);
+            if (end < 0) { i++; continue; }
+            Fixed f = Fixed.parse(t, i, end);
+            if (first == null) first = f; else second = f;
+            i = end;
+        }
+        if (first == null) return null;
+        Fixed amt = second == null ? first : first.multiply(second);
+        String[] np = BudgetParser.splitNameValue(t);
+        String name = np[0];
+        if (name == null || name.isBlank()) name = t;
+        return new Item(name, amt, BudgetParser.normalizeCurrency(t));
+    }
+
+    // ---------------------------------------------------------------------
+    // 数字扫描：与 \d+(?:\.\d+)? 的 find 序列一致（金额先移除千分位逗号）
+    // ---------------------------------------------------------------------
+
+    private static int numberEnd(String s, int i) {
+        int len = s.length();
+        if (!isDigit(s.charAt(i))) return -1;
+        int j = i + 1;
+        while (j < len && isDigit(s.charAt(j))) j++;
+        if (j + 1 < len && s.charAt(j) == '.' && isDigit(s.charAt(j + 1))) {
+            j += 2;
+            while (j < len && isDigit(s.charAt(j))) j++;
+        }
+        return j;
+    }
+
+    private static Fixed firstNumber(String text) {
+        String s = text.indexOf(',') >= 0 ? text.replace(",", "") : text;
+        for (int i = 0; i < s.length(); i++) {
+            int end = numberEnd(s, i);
+            if (end >= 0) return Fixed.parse(s, i, end);
+        }
+        return Fixed.ZERO;
+    }
+
+    private static Fixed lastNumber(String text) {
+        String s = text.indexOf(',') >= 0 ? text.replace(",", "") : text;
+        int from = -1, to = -1;
+        int i = 0;
+        while (i < s.length()) {
+            int end = numberEnd(s, i);
+            if (end < 0) { i++; continue; }
+            from = i;
+            to = end;
+            i = end;
+        }
+        return from < 0 ? Fixed.ZERO : Fixed.parse(s, from, to);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // 与正则 \s 一致：[ \t\n\x0B\f\r]
+    private static boolean isRegexSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isRegexBlank(String s, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (!isRegexSpace(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    // 无币种的预算项若紧跟以币种开头的行，整段正则会跨行捕获币种
+    private static boolean nextStartsCurrency(List<Line> lines, int i) {
+        for (int k = i + 1; k < lines.size(); k++) {
+            String s = lines.get(k).text;
+            int p = 0;
+            while (p < s.length() && isRegexSpace(s.charAt(p))) p++;
+            if (p == s.length()) continue;
+            return "CcRrUuEeJj人元".indexOf(s.charAt(p)) >= 0;
+        }
+        return false;
+    }
+
+    private static String normalizeCurrency(String curRaw) {
+        String c = curRaw == null ? "" : curRaw.trim().toUpperCase(Locale.ROOT);
+        if (c.isEmpty()) return "CNY";
+        if (c.equals("人民币") || c.equals("元") || c.equals("RMB") || c.equals("CNY")) return "CNY";
+        return c;
+    }
+
+    private static String join(List<Line> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) sb.append('\n');
+            sb.append(lines.get(i).text);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 定点金额：value = unscaled × 10^-scale。加法取较大 scale、乘法 scale 相加，与 BigDecimal 语义一致，
+     * 因而还原后的数值与精度（scale）都与原流水线相同；溢出时抛出 ArithmeticException 触发回退。
+     */
+    private static final class Fixed {
+        static final Fixed ZERO = new Fixed(0L, 0);
+
+        final long unscaled;
+        final int scale;
+
+        Fixed(long unscaled, int scale) {
+            this.unscaled = unscaled;
+            this.scale = scale;
+        }
+
+        static Fixed parse(String s) {
+            return parse(s, 0, s.length());
+        }
+
+        static Fixed parse(String s, int from, int to) {
+            if (to - from > 18) throw new ArithmeticException("amount too long");
+            long v = 0;
+            int scale = 0;
+            boolean frac = false;
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (c == '.') { frac = true; continue; }
+                v = v * 10 + (c - '0');
+                if (frac) scale++;
+            }
+            return new Fixed(v, scale);
+        }
+
+        Fixed add(Fixed o) {
+            int sc = Math.max(scale, o.scale);
+            return new Fixed(Math.addExact(align(sc), o.align(sc)), sc);
+        }
+
+        Fixed multiply(Fixed o) {
+            return new Fixed(Math.multiplyExact(unscaled, o.unscaled), scale + o.scale);
+        }
+
+        int compareTo(Fixed o) {
+            int sc = Math.max(scale, o.scale);
+            return Long.compare(align(sc), o.align(sc));
+        }
+
+        int signum() {
+            return Long.signum(unscaled);
+        }
+
+        private long align(int sc) {
+            long v = unscaled;
+            for (int i = scale; i < sc; i++) v = Math.multiplyExact(v, 10L);
+            return v;
+        }
+
+        BigDecimal toBigDecimal() {
+            return BigDecimal.valueOf(unscaled, scale);
+        }
+
+        String plain() {
+            return toBigDecimal().stripTrailingZeros().toPlainString();
+        }
+    }
+}
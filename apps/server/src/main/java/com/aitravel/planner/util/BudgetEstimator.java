@@ -0,0 +1,189 @@
+package com.aitravel.planner.util;
+
+import com.aitravel.planner.itinerary.BudgetBreakdown;
+import com.aitravel.planner.itinerary.BudgetCategory;
+import com.aitravel.planner.itinerary.BudgetItem;
+import com.aitravel.planner.itinerary.DayPlan;
+import com.aitravel.planner.itinerary.ItineraryPlan;
+import com.aitravel.planner.itinerary.Poi;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 本地规则预算估算（不依赖 LLM）：
+ * - 按城市价格表（住宿/正餐/简餐/门票/市内交通）与行程天数、POI 类型计算四类预算；
+ * - 纯内存整数运算，可在 LLM 返回前即时给出预算面板数据；
+ * - 结果标记为未对齐（aligned=false），以区分 LLM 原文中的预算。
+ */
+public final class BudgetEstimator {
+
+    /** 城市单价（CNY，整数元）。 */
+    private static final class CityPrices {
+        final int hotelPerNight;   // 每晚住宿
+        final int meal;            // 正餐（餐厅类 POI）
+        final int snack;           // 简餐（未安排餐厅的餐次）
+        final int ticket;          // 景点门票
+        final int transitPerDay;   // 每日市内交通基础费用
+        final int perHop;          // 相邻 POI 之间的单次交通
+
+        CityPrices(int hotelPerNight, int meal, int snack, int ticket, int transitPerDay, int perHop) {
+            this.hotelPerNight = hotelPerNight;
+            this.meal = meal;
+            this.snack = snack;
+            this.ticket = ticket;
+            this.transitPerDay = transitPerDay;
+            this.perHop = perHop;
+        }
+    }
+
+    private static final CityPrices TIER1 = new CityPrices(450, 90, 30, 60, 40, 15);
+    private static final CityPrices TIER2 = new CityPrices(320, 70, 25, 50, 30, 12);
+    private static final CityPrices DEFAULT = new CityPrices(260, 60, 20, 40, 25, 10);
+
+    private static final Map<String, CityPrices> CITY_PRICES = Map.ofEntries(
+            Map.entry("北京", TIER1),
+            Map.entry("上海", TIER1),
+            Map.entry("广州", TIER1),
+            Map.entry("深圳", TIER1),
+            Map.entry("杭州", TIER2),
+            Map.entry("南京", TIER2),
+            Map.entry("苏州", TIER2),
+            Map.entry("成都", TIER2),
+            Map.entry("重庆", TIER2),
+            Map.entry("西安", TIER2),
+            Map.entry("武汉", TIER2),
+            Map.entry("厦门", TIER2),
+            Map.entry("青岛", TIER2),
+            Map.entry("三亚", new CityPrices(520, 90, 30, 80, 40, 20)),
+            Map.entry("丽江", new CityPrices(300, 60, 25, 80, 30, 15))
+    );
+
+    private static final int MEALS_PER_DAY = 3;
+
+    private BudgetEstimator() {}
+
+    /**
+     * 按城市价格表与行程天数/POI 类型估算预算；plan 为空时按 1 天计算。
+     */
+    public static BudgetBreakdown estimate(ItineraryPlan plan, String city) {
+        List<DayPlan> days = plan == null ? null : plan.getDays();
+        int dayCount = days == null || days.isEmpty() ? 1 : days.size();
+        CityPrices p = prices(city);
+
+        int sights = 0, meals = 0, hops = 0, hotels = 0;
+        if (days != null) {
+            for (DayPlan d : days) {
+                int rests = 0, stops = 0;
+                if (d.getPois() != null) {
+                    for (Poi poi : d.getPois()) {
+                        String tp = poi.getType() == null ? "" : poi.getType().toLowerCase(Locale.ROOT);
+                        if (isLodging(tp)) hotels++;
+                        else if (isRestaurant(tp)) rests++;
+                        else if (!isTransport(tp)) sights++;
+                        stops++;
+                    }
+                }
+                meals += Math.min(rests, MEALS_PER_DAY);
+                if (stops > 1) hops += stops - 1;
+            }
+        }
+        // 住宿晚数：按天数-1（至少 1 晚）；行程中酒店 POI 更多时以其为准
+        long nights = Math.max(Math.max(1, dayCount - 1), hotels);
+        long lodging = nights * p.hotelPerNight;
+        long dining = (long) meals * p.meal + (long) (dayCount * MEALS_PER_DAY - meals) * p.snack;
+        long transport = (long) dayCount * p.transitPerDay + (long) hops * p.perHop;
+        long tickets = (long) Math.max(sights, dayCount) * p.ticket;
+
+        BudgetBreakdown bd = new BudgetBreakdown();
+        bd.getCategories().add(category("住宿", lodging, nights + " 晚 × " + p.hotelPerNight));
+        bd.getCategories().add(category("餐饮", dining, dayCount * MEALS_PER_DAY + " 餐"));
+        bd.getCategories().add(category("交通", transport, dayCount + " 天市内交通"));
+        bd.getCategories().add(category("门票", tickets, Math.max(sights, dayCount) + " 个景点"));
+        bd.setGrandTotal(BigDecimal.valueOf(lodging + dining + transport + tickets));
+        bd.setAligned(false);
+        return bd;
+    }
+
+    /**
+     * 仅按天数估算（尚无 POI 时，例如 LLM 返回前的预算面板）。
+     */
+    public static BudgetBreakdown estimate(String city, int days) {
+        ItineraryPlan plan = new ItineraryPlan();
+        List<DayPlan> list = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, days); i++) list.add(new DayPlan());
+        plan.setDays(list);
+        return estimate(plan, city);
+    }
+
+    /**
+     * 按类别比例将估算结果缩放到给定总额（例如用户在请求中给出的总预算）。
+     */
+    public static BudgetBreakdown scaleTo(BudgetBreakdown estimate, BigDecimal total, String currency) {
+        BigDecimal base = estimate.getGrandTotal();
+        if (total == null || base == null || base.signum() <= 0) return estimate;
+        String cur = currency == null || currency.isBlank() ? "CNY" : currency;
+        BigDecimal assigned = BigDecimal.ZERO;
+        List<BudgetCategory> cats = estimate.getCategories();
+        for (int i = 0; i < cats.size(); i++) {
+            BudgetCategory c = cats.get(i);
+            // 最后一个类别取余数，保证各类合计与总额严格一致
+            BigDecimal amt = i == cats.size() - 1
+                    ? total.subtract(assigned)
+                    : total.multiply(c.getTotal()).divide(base, 2, RoundingMode.HALF_UP);
+            assigned = assigned.add(amt);
+            c.setCurrency(cur);
+            c.setTotal(amt);
+            for (BudgetItem it : c.getItems()) {
+                it.setAmount(amt);
+                it.setCurrency(cur);
+            }
+        }
+        estimate.setCurrency(cur);
+        estimate.setGrandTotal(total);
+        return estimate;
+    }
+
+    private static BudgetCategory category(String name, long amount, String basis) {
+        BigDecimal amt = BigDecimal.valueOf(amount);
+        BudgetCategory c = new BudgetCategory(name, "CNY");
+        c.getItems().add(new BudgetItem(name + "（估算：" + basis + "）", amt, "CNY"));
+        c.setTotal(amt);
+        return c;
+    }
+
+    private static CityPrices prices(String city) {
+        if (city == null || city.isBlank()) return DEFAULT;
+        String key = city.trim();
+        if (key.endsWith("市")) key = key.substring(0, key.length() - 1);
+        return CITY_PRICES.getOrDefault(key, DEFAULT);
+    }
+
+    /**
+     * POI 类型对应的预算类别（住宿/餐饮/交通/门票）。
+     */
+    public static String categoryOf(String poiType) {
+        String tp = poiType == null ? "" : poiType.toLowerCase(Locale.ROOT);
+        if (isLodging(tp)) return "住宿";
+        if (isRestaurant(tp)) return "餐饮";
+        if (isTransport(tp)) return "交通";
+        return "门票";
+    }
+
+    // 类型映射与 convertPlanToDaily 保持一致
+    private static boolean isLodging(String tp) {
+        return tp.contains("hotel") || tp.contains("lodg") || tp.contains("inn") || tp.contains("hostel") || tp.contains("住宿") || tp.contains("酒店");
+    }
+
+    private static boolean isRestaurant(String tp) {
+        return tp.contains("rest") || tp.contains("food") || tp.contains("cafe") || tp.contains("bar") || tp.contains("餐") || tp.contains("美食") || tp.contains("小吃");
+    }
+
+    private static boolean isTransport(String tp) {
+        return tp.contains("transport") || tp.contains("metro") || tp.contains("subway") || tp.contains("bus") || tp.contains("train") || tp.contains("airport") || tp.contains("车站") || tp.contains("地铁");
+    }
+}
@@ -15,6 +15,13 @@ import java.util.regex.Pattern;
  */
 public class BudgetParser {
     private static final Pattern AMOUNT_PATTERN = Pattern.compile("(\\d+(?:\\.\\d+)?)\\s*(CNY|RMB|人民币|元)?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern NUMBER_PATTERN = Pattern.compile("(\\d+(?:\\.\\d+)?)");
+    static final Pattern ITEM_SEPARATOR = Pattern.compile("[；;]");
+    // 条目名分类关键词（预编译，避免每个条目重复编译正则）
+    private static final Pattern LODGING_NAME = Pattern.compile(".*(酒店|民宿|宾馆|旅店|客栈|青旅|inn|hostel|hotel).*");
+    private static final Pattern TICKET_NAME = Pattern.compile(".*(门票|票|入场券|ticket).*");
+    private static final Pattern TRANSPORT_NAME = Pattern.compile(".*(打车|出租车|地铁|公交|车费|滴滴|taxi).*");
+    private static final Pattern DINING_NAME = Pattern.compile(".*(餐厅|餐馆|饭店|菜馆|小吃|美食|人均|顿|早餐|午餐|晚餐).*");
 
     public static BudgetBreakdown parse(String normalizedText) {
         BudgetBreakdown bd = new BudgetBreakdown();
@@ -131,7 +138,7 @@ public class BudgetParser {
 
             // 解析条目行：优先使用“≈ 小计金额”，否则尝试单价×数量计算，最后回退到最后一个数字
             // 若一行包含多个条目（以中文分号“；”或英文分号“;”分隔），逐段解析
-            String[] segments = ln.split("[；;]");
+            String[] segments = ITEM_SEPARATOR.split(ln);
             for (String seg : segments) {
                 String s = seg.trim(); if (s.isEmpty()) continue;
                 ItemParseResult item = parseItemLine(s);
@@ -206,7 +213,7 @@ public class BudgetParser {
         return bd;
     }
 
-    private static String[] splitNameValue(String ln) {
+    static String[] splitNameValue(String ln) {
         if (ln == null) return new String[]{"", ""};
         String tmp = ln;
         int asciiIdx = tmp.indexOf(":");
@@ -223,7 +230,7 @@ public class BudgetParser {
         return new String[]{tmp.trim(), ""};
     }
 
-    private static boolean isCategoryName(String name) {
+    static boolean isCategoryName(String name) {
         String n = name == null ? "" : name.trim().toLowerCase();
         // 允许类别后跟括号或额外描述，例如："住宿（3晚）"、"餐饮 - 每天" 等
         if (n.startsWith("住宿") || n.startsWith("餐饮") || n.startsWith("交通") || n.startsWith("门票")) return true;
@@ -233,7 +240,7 @@ public class BudgetParser {
         return false;
     }
 
-    private static String canonicalCategory(String name) {
+    static String canonicalCategory(String name) {
         if (name == null) return null;
         String n = name.trim().toLowerCase();
         // 排除“类别”作为真实类别，防止“类别小计”误解析
@@ -300,7 +307,7 @@ public class BudgetParser {
         }
         // 尝试单价×数量（若无≈/=/小计）
         java.util.List<BigDecimal> nums = new java.util.ArrayList<>();
-        Matcher m = Pattern.compile("(\\d+(?:\\.\\d+)?)").matcher(t);
+        Matcher m = NUMBER_PATTERN.matcher(t);
         while (m.find()) {
             try { nums.add(new BigDecimal(m.group(1))); } catch (Exception ignored) {}
         }
@@ -318,21 +325,21 @@ public class BudgetParser {
         return new ItemParseResult(name, amt, cur);
     }
 
-    private static String classifyCategoryFromItemName(String name) {
+    static String classifyCategoryFromItemName(String name) {
         if (name == null) return null;
         String n = name.trim();
         // 住宿：酒店/民宿/宾馆/旅店/客栈/青旅
-        if (n.matches(".*(酒店|民宿|宾馆|旅店|客栈|青旅|inn|hostel|hotel).*")) return "住宿";
+        if (LODGING_NAME.matcher(n).matches()) return "住宿";
         // 门票/票务
-        if (n.matches(".*(门票|票|入场券|ticket).*")) return "门票";
+        if (TICKET_NAME.matcher(n).matches()) return "门票";
         // 交通：打车/地铁/公交/出租车
-        if (n.matches(".*(打车|出租车|地铁|公交|车费|滴滴|taxi).*")) return "交通";
+        if (TRANSPORT_NAME.matcher(n).matches()) return "交通";
         // 餐饮：餐厅/饭店/菜馆/小吃/人均/顿
-        if (n.matches(".*(餐厅|餐馆|饭店|菜馆|小吃|美食|人均|顿|早餐|午餐|晚餐).*")) return "餐饮";
+        if (DINING_NAME.matcher(n).matches()) return "餐饮";
         return null;
     }
 
-    private static String normalizeCurrency(String text) {
+    static String normalizeCurrency(String text) {
         if (text == null) return "CNY";
         String t = text.toUpperCase();
         if (t.contains("CNY") || t.contains("RMB") || t.contains("人民币") || t.contains("元")) return "CNY";
@@ -0,0 +1,52 @@
+package com.aitravel.planner.util;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * 键集分页游标：编码排序键（时间戳 + id），对客户端不透明。
+ * 形如 base64url("2024-01-01T00:00:00Z|<uuid>")。
+ */
+public final class KeysetCursor {
+    /** 下一页游标所在的响应头。 */
+    public static final String HEADER = "X-Next-Cursor";
+    public static final int DEFAULT_PAGE = 50;
+    public static final int MAX_PAGE = 500;
+
+    private final OffsetDateTime at;
+    private final UUID id;
+
+    public KeysetCursor(OffsetDateTime at, UUID id) {
+        this.at = at;
+        this.id = id;
+    }
+
+    public OffsetDateTime getAt() { return at; }
+    public UUID getId() { return id; }
+
+    public String encode() {
+        String raw = at.toString() + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** 每页条数：未指定或非正数时取 def，上限 MAX_PAGE。 */
+    public static int pageSize(Integer limit, int def) {
+        if (limit == null || limit <= 0) return def;
+        return Math.min(limit, MAX_PAGE);
+    }
+
+    /** 解析失败返回 null，由调用方决定返回 400。 */
+    public static KeysetCursor decode(String cursor) {
+        if (cursor == null || cursor.isBlank()) return null;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int sep = raw.indexOf('|');
+            if (sep < 0) return null;
+            return new KeysetCursor(OffsetDateTime.parse(raw.substring(0, sep)), UUID.fromString(raw.substring(sep + 1)));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.aitravel.planner.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 冷消息正文编解码：deflate + 预置字典（JDK 自带，无额外依赖）。
+ * 压缩结果格式为 [4 字节字典 id][deflate 数据]，字典 id 为 0 表示不用字典；
+ * 字典按 id 注册在本地，未注册的 id 解压时经 loader 从数据库补取。
+ * 同时累计解压次数与耗时，用于观察冷数据读取开销。
+ */
+public final class MessageCompression {
+    /** deflate 回溯窗口为 32KB，字典超出部分不会被引用。 */
+    public static final int MAX_DICT_BYTES = 32 * 1024;
+
+    private static final Map<Integer, byte[]> DICTS = new ConcurrentHashMap<>();
+    private static volatile IntFunction<byte[]> loader = id -> null;
+
+    private static final AtomicLong inflations = new AtomicLong();
+    private static final AtomicLong inflateNanos = new AtomicLong();
+    private static final AtomicLong inflateFailures = new AtomicLong();
+
+    private MessageCompression() {}
+
+    public static void register(int id, byte[] dict) {
+        DICTS.put(id, dict);
+    }
+
+    public static void setLoader(IntFunction<byte[]> l) {
+        loader = l;
+    }
+
+    public static byte[] deflate(String text, int dictId) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        Deflater d = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            if (dictId != 0) d.setDictionary(dictionary(dictId));
+            d.setInput(raw);
+            d.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + 16);
+            out.write(ByteBuffer.allocate(4).putInt(dictId).array(), 0, 4);
+            byte[] buf = new byte[8192];
+            while (!d.finished()) out.write(buf, 0, d.deflate(buf));
+            return out.toByteArray();
+        } finally {
+            d.end();
+        }
+    }
+
+    /** 解压失败（数据损坏、字典缺失）时抛出 IllegalStateException。 */
+    public static String inflate(byte[] data) {
+        long start = System.nanoTime();
+        if (data == null || data.length < 4) {
+            inflateFailures.incrementAndGet();
+            throw new IllegalStateException("冷消息数据不完整");
+        }
+        int dictId = ByteBuffer.wrap(data, 0, 4).getInt();
+        Inflater inf = new Inflater();
+        boolean ok = false;
+        try {
+            inf.setInput(data, 4, data.length - 4);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buf = new byte[8192];
+            while (!inf.finished()) {
+                int n = inf.inflate(buf);
+                if (n == 0) {
+                    if (inf.needsDictionary()) inf.setDictionary(dictionary(dictId));
+                    else if (inf.needsInput()) throw new IllegalStateException("冷消息数据不完整");
+                }
+                out.write(buf, 0, n);
+            }
+            ok = true;
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("冷消息解压失败", e);
+        } finally {
+            inf.end();
+            if (!ok) inflateFailures.incrementAndGet();
+            inflations.incrementAndGet();
+            inflateNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 从样本文本训练字典：统计各样本中重复出现的行（Markdown 标题、列表前缀、预算条目模板等），
+     * 按“出现次数 × 长度”取收益最高的行拼接至 32KB，收益高的放在末尾（距离近、编码更短）。
+     */
+    public static byte[] train(List<String> samples) {
+        Map<String, Integer> freq = new HashMap<>();
+        for (String s : samples) {
+            for (String line : s.split("\n")) {
+                String l = line.strip();
+                if (l.length() >= 4 && l.length() <= 200) freq.merge(l + "\n", 1, Integer::sum);
+            }
+        }
+        List<Map.Entry<String, Integer>> lines = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : freq.entrySet()) if (e.getValue() > 1) lines.add(e);
+        lines.sort((a, b) -> Long.compare(gain(b), gain(a)));
+        List<byte[]> picked = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> e : lines) {
+            byte[] b = e.getKey().getBytes(StandardCharsets.UTF_8);
+            if (size + b.length > MAX_DICT_BYTES) continue;
+            picked.add(b);
+            size += b.length;
+        }
+        ByteBuffer dict = ByteBuffer.allocate(size);
+        for (int i = picked.size() - 1; i >= 0; i--) dict.put(picked.get(i));
+        return dict.array();
+    }
+
+    public static long inflations() {
+        return inflations.get();
+    }
+
+    public static long inflateNanos() {
+        return inflateNanos.get();
+    }
+
+    public static long inflateFailures() {
+        return inflateFailures.get();
+    }
+
+    private static long gain(Map.Entry<String, Integer> e) {
+        return (long) e.getValue() * e.getKey().length();
+    }
+
+    private static byte[] dictionary(int id) {
+        return DICTS.computeIfAbsent(id, k -> {
+            byte[] d = loader.apply(k);
+            if (d == null) throw new IllegalStateException("缺少消息压缩字典 " + k);
+            return d;
+        });
+    }
+}
@@ -0,0 +1,64 @@
+package com.aitravel.planner.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 搜索分词：不依赖词典，对中日韩文字取重叠二元组（"西湖游" -> 西湖、湖游），
+ * 字母数字按连续串切为单词并转小写，其余字符视为分隔符。
+ * 单个汉字构成的片段输出单字，查询时按前缀/后缀匹配二元组。
+ */
+public final class SearchTokenizer {
+
+    private SearchTokenizer() {}
+
+    public static List<String> tokens(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null || text.isEmpty()) return out;
+        String s = text.toLowerCase(Locale.ROOT);
+        int i = 0;
+        int n = s.length();
+        while (i < n) {
+            int cp = s.codePointAt(i);
+            if (isCjk(cp)) {
+                int start = i;
+                List<Integer> run = new ArrayList<>();
+                while (i < n && isCjk(s.codePointAt(i))) {
+                    run.add(i);
+                    i += Character.charCount(s.codePointAt(i));
+                }
+                if (run.size() == 1) {
+                    out.add(s.substring(start, i));
+                } else {
+                    for (int k = 0; k + 1 < run.size(); k++) {
+                        int end = k + 2 < run.size() ? run.get(k + 2) : i;
+                        out.add(s.substring(run.get(k), end));
+                    }
+                }
+            } else if (Character.isLetterOrDigit(cp)) {
+                int start = i;
+                while (i < n) {
+                    int c = s.codePointAt(i);
+                    if (!Character.isLetterOrDigit(c) || isCjk(c)) break;
+                    i += Character.charCount(c);
+                }
+                out.add(s.substring(start, i));
+            } else {
+                i += Character.charCount(cp);
+            }
+        }
+        return out;
+    }
+
+    /** 单个中日韩字符（查询时需要按二元组前后缀展开）。 */
+    public static boolean isSingleCjk(String token) {
+        return token.codePointCount(0, token.length()) == 1 && isCjk(token.codePointAt(0));
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeScript sc = Character.UnicodeScript.of(cp);
+        return sc == Character.UnicodeScript.HAN || sc == Character.UnicodeScript.HIRAGANA
+                || sc == Character.UnicodeScript.KATAKANA || sc == Character.UnicodeScript.HANGUL;
+    }
+}
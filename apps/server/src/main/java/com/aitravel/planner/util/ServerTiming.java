@@ -0,0 +1,22 @@
+package com.aitravel.planner.util;
+
+import java.util.Map;
+
+/**
+ * Server-Timing 响应头：各阶段耗时按 "名称;dur=毫秒" 以逗号拼接，浏览器开发者工具的 Timing 面板可直接展示。
+ * 名称只用代码中的阶段常量（不含空格、逗号等分隔符）。
+ */
+public final class ServerTiming {
+    public static final String HEADER = "Server-Timing";
+
+    private ServerTiming() {}
+
+    public static String format(Map<String, Long> timingsMs) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : timingsMs.entrySet()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(e.getKey()).append(";dur=").append(e.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -23,8 +23,16 @@ CREATE TABLE IF NOT EXISTS messages (
     role VARCHAR(20) NOT NULL,
     content TEXT NOT NULL,
     tokens INT,
+    cold_id UUID,
     created_at TIMESTAMP NOT NULL DEFAULT NOW()
 );
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS cold_id UUID;
+
+-- Compressed bodies of old messages (see MessageCompression); messages.cold_id marks the row as tiered
+CREATE TABLE IF NOT EXISTS message_cold (
+    message_id UUID PRIMARY KEY REFERENCES messages(id) ON DELETE CASCADE,
+    data BYTEA NOT NULL
+);
 
 CREATE TABLE IF NOT EXISTS profiles (
     user_id UUID PRIMARY KEY REFERENCES users(id) ON DELETE CASCADE,
@@ -39,7 +47,8 @@ CREATE TABLE IF NOT EXISTS profiles (
 CREATE TABLE IF NOT EXISTS plans (
     id UUID PRIMARY KEY DEFAULT gen_random_uuid(),
     owner_id UUID NOT NULL REFERENCES users(id) ON DELETE CASCADE,
-    conversation_id UUID REFERENCES conversations(id) ON DELETE SET NULL,
+    -- Soft reference: with sharding the conversation may live on another shard; ConversationPurgeService nulls it on purge
+    conversation_id UUID,
     destination VARCHAR(255) NOT NULL,
     start_date DATE NOT NULL,
     end_date DATE NOT NULL,
@@ -52,6 +61,9 @@ CREATE TABLE IF NOT EXISTS plans (
     updated_at TIMESTAMP NOT NULL DEFAULT NOW()
 );
 
+-- Databases created before sharding still carry the plans -> conversations FK (PostgreSQL default name); no-op once dropped
+ALTER TABLE plans DROP CONSTRAINT IF EXISTS plans_conversation_id_fkey;
+
 CREATE TABLE IF NOT EXISTS days (
     id UUID PRIMARY KEY DEFAULT gen_random_uuid(),
     plan_id UUID NOT NULL REFERENCES plans(id) ON DELETE CASCADE,
@@ -68,7 +80,10 @@ CREATE TABLE IF NOT EXISTS activities (
     day_id UUID NOT NULL REFERENCES days(id) ON DELETE CASCADE,
     type VARCHAR(20) NOT NULL,
     title VARCHAR(255) NOT NULL,
+    seq INT,
     poi JSONB,
+    lng DOUBLE PRECISION,
+    lat DOUBLE PRECISION,
     start_time TIME,
     end_time TIME,
     transport JSONB,
@@ -77,6 +92,26 @@ CREATE TABLE IF NOT EXISTS activities (
     description TEXT,
     images TEXT[]
 );
+ALTER TABLE activities ADD COLUMN IF NOT EXISTS seq INT;
+ALTER TABLE activities ADD COLUMN IF NOT EXISTS lng DOUBLE PRECISION;
+ALTER TABLE activities ADD COLUMN IF NOT EXISTS lat DOUBLE PRECISION;
+-- One-time data migrations: each runs while its id is missing here, then records it
+CREATE TABLE IF NOT EXISTS schema_migrations (
+    id VARCHAR(100) PRIMARY KEY,
+    applied_at TIMESTAMP NOT NULL DEFAULT NOW()
+);
+-- Backfill lng/lat for rows written before they were derived from poi.coord on write.
+-- The uncorrelated NOT EXISTS is evaluated once, so later boots skip the table scan entirely.
+UPDATE activities
+SET lng = (poi->'coord'->>0)::DOUBLE PRECISION,
+    lat = (poi->'coord'->>1)::DOUBLE PRECISION
+WHERE NOT EXISTS (SELECT 1 FROM schema_migrations WHERE id = 'activities-coord-backfill')
+  AND lng IS NULL
+  AND jsonb_typeof(poi->'coord') = 'array'
+  AND jsonb_typeof(poi->'coord'->0) = 'number'
+  AND jsonb_typeof(poi->'coord'->1) = 'number';
+INSERT INTO schema_migrations (id)
+SELECT 'activities-coord-backfill' WHERE NOT EXISTS (SELECT 1 FROM schema_migrations WHERE id = 'activities-coord-backfill');
 
 CREATE TABLE IF NOT EXISTS expenses (
     id UUID PRIMARY KEY DEFAULT gen_random_uuid(),
@@ -90,6 +125,50 @@ CREATE TABLE IF NOT EXISTS expenses (
     source VARCHAR(20) NOT NULL DEFAULT 'user'
 );
 
+-- Shared deflate dictionaries for compressed (cold) message content
+CREATE TABLE IF NOT EXISTS message_dictionaries (
+    id INT PRIMARY KEY,
+    data BYTEA NOT NULL,
+    sample_count INT NOT NULL DEFAULT 0,
+    created_at TIMESTAMP NOT NULL DEFAULT NOW()
+);
+
+-- Conversation shard directory: which shard holds each owner's conversations/messages/ledgers
+CREATE TABLE IF NOT EXISTS conversation_shards (
+    owner_id UUID PRIMARY KEY,
+    shard INT NOT NULL,
+    epoch BIGINT NOT NULL DEFAULT 0,
+    lease_until TIMESTAMP,
+    updated_at TIMESTAMP NOT NULL DEFAULT NOW()
+);
+-- Migration fencing: lease_until blocks routing on every node while an owner is being moved; epoch is the fencing token
+ALTER TABLE conversation_shards ADD COLUMN IF NOT EXISTS epoch BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE conversation_shards ADD COLUMN IF NOT EXISTS lease_until TIMESTAMP;
+
+-- Per-conversation budget ledger for incremental budget adjustment
+CREATE TABLE IF NOT EXISTS budget_ledgers (
+    conversation_id UUID PRIMARY KEY REFERENCES conversations(id) ON DELETE CASCADE,
+    currency VARCHAR(10) NOT NULL DEFAULT 'CNY',
+    planned_total NUMERIC(12,2) NOT NULL DEFAULT 0,
+    spent_amount NUMERIC(12,2) NOT NULL DEFAULT 0,
+    categories JSONB,
+    day_summaries JSONB,
+    days JSONB,
+    updated_at TIMESTAMP NOT NULL DEFAULT NOW()
+);
+ALTER TABLE budget_ledgers ADD COLUMN IF NOT EXISTS days JSONB;
+
+-- Per-user daily LLM usage (requests and reported tokens) for quotas
+CREATE TABLE IF NOT EXISTS llm_usage (
+    user_id UUID NOT NULL REFERENCES users(id) ON DELETE CASCADE,
+    usage_date DATE NOT NULL,
+    requests BIGINT NOT NULL DEFAULT 0,
+    prompt_tokens BIGINT NOT NULL DEFAULT 0,
+    completion_tokens BIGINT NOT NULL DEFAULT 0,
+    updated_at TIMESTAMP NOT NULL DEFAULT NOW(),
+    PRIMARY KEY (user_id, usage_date)
+);
+
 -- Indexes
 CREATE INDEX IF NOT EXISTS idx_plans_owner ON plans(owner_id);
 CREATE INDEX IF NOT EXISTS idx_plans_conv ON plans(conversation_id);
@@ -98,3 +177,17 @@ CREATE INDEX IF NOT EXISTS idx_messages_conv ON messages(conversation_id);
 CREATE INDEX IF NOT EXISTS idx_days_plan ON days(plan_id);
 CREATE INDEX IF NOT EXISTS idx_activities_day ON activities(day_id);
 CREATE INDEX IF NOT EXISTS idx_expenses_plan ON expenses(plan_id);
+-- Tiering job scans old, not-yet-compressed messages by (created_at, id)
+CREATE INDEX IF NOT EXISTS idx_messages_hot ON messages(created_at, id) WHERE cold_id IS NULL;
+
+-- Composite indexes backing keyset pagination (ORDER BY ... , id as tiebreaker)
+CREATE INDEX IF NOT EXISTS idx_messages_conv_created ON messages(conversation_id, created_at, id);
+CREATE INDEX IF NOT EXISTS idx_conversations_owner_updated ON conversations(owner_id, updated_at DESC, id DESC);
+CREATE INDEX IF NOT EXISTS idx_plans_owner_updated ON plans(owner_id, updated_at DESC, id DESC);
+-- Soft-deleted conversations awaiting background purge
+CREATE INDEX IF NOT EXISTS idx_conversations_deleted ON conversations(id) WHERE status = 'deleted';
+-- Tag containment (tags @> ARRAY[...])
+CREATE INDEX IF NOT EXISTS idx_plans_tags ON plans USING GIN (tags);
+-- Activity lookups by type and by coordinate bounding box (lng/lat derived from poi.coord on write)
+CREATE INDEX IF NOT EXISTS idx_activities_type ON activities(type);
+CREATE INDEX IF NOT EXISTS idx_activities_lng_lat ON activities(lng, lat);
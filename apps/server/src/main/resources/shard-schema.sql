@@ -0,0 +1,43 @@
+-- Tables stored on additional conversation shards (shard 0 uses schema.sql).
+-- No foreign key to users: accounts live on shard 0. Runs on both PostgreSQL and H2
+-- (JSONB -> JSON; partial index WHERE clauses are dropped since H2 does not support them).
+CREATE TABLE IF NOT EXISTS conversations (
+    id UUID PRIMARY KEY,
+    owner_id UUID NOT NULL,
+    title VARCHAR(255) NOT NULL,
+    status VARCHAR(20) NOT NULL DEFAULT 'active',
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS messages (
+    id UUID PRIMARY KEY,
+    conversation_id UUID NOT NULL REFERENCES conversations(id) ON DELETE CASCADE,
+    role VARCHAR(20) NOT NULL,
+    content TEXT NOT NULL,
+    tokens INT,
+    cold_id UUID,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS message_cold (
+    message_id UUID PRIMARY KEY REFERENCES messages(id) ON DELETE CASCADE,
+    data BYTEA NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS budget_ledgers (
+    conversation_id UUID PRIMARY KEY REFERENCES conversations(id) ON DELETE CASCADE,
+    currency VARCHAR(10) NOT NULL DEFAULT 'CNY',
+    planned_total NUMERIC(12,2) NOT NULL DEFAULT 0,
+    spent_amount NUMERIC(12,2) NOT NULL DEFAULT 0,
+    categories JSONB,
+    day_summaries JSONB,
+    days JSONB,
+    updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+ALTER TABLE budget_ledgers ADD COLUMN IF NOT EXISTS days JSONB;
+
+CREATE INDEX IF NOT EXISTS idx_messages_conv_created ON messages(conversation_id, created_at, id);
+CREATE INDEX IF NOT EXISTS idx_conversations_owner_updated ON conversations(owner_id, updated_at DESC, id DESC);
+CREATE INDEX IF NOT EXISTS idx_messages_hot ON messages(created_at, id) WHERE cold_id IS NULL;
+CREATE INDEX IF NOT EXISTS idx_conversations_deleted ON conversations(id) WHERE status = 'deleted';
@@ -0,0 +1,164 @@
+package com.aitravel.planner.auth;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * 已验证令牌缓存：命中时仍拒绝已吊销（登出、修改密码、其他节点广播）与已过期的令牌。
+ * Redis 默认不可用，吊销只走本地表与 onMessage。
+ */
+class JwtServiceTest {
+    private static final String SECRET = "test-secret-0123456789abcdef0123456789abcdef";
+
+    private TokenRevocationService revocations;
+    private JwtService jwt;
+    private final UUID user = UUID.randomUUID();
+
+    @BeforeEach
+    void setUp() {
+        revocations = revocations(null);
+        jwt = service(revocations);
+    }
+
+    @Test
+    void verifiedTokensAreServedFromTheCache() {
+        String token = jwt.issueToken(user, "a@example.com", Map.of());
+        JwtService.ParsedToken first = jwt.parse(token).orElseThrow();
+        assertEquals(user, first.userId());
+        assertEquals("a@example.com", first.email());
+        assertNotNull(first.jti());
+        assertSame(first, jwt.parse(token).orElseThrow(), "第二次应命中缓存");
+    }
+
+    @Test
+    void loggedOutTokenIsRejectedEvenWhenCached() {
+        String token = jwt.issueToken(user, "a@example.com", Map.of());
+        String other = jwt.issueToken(user, "a@example.com", Map.of());
+        jwt.parse(token).orElseThrow();
+        jwt.parse(other).orElseThrow();
+
+        assertTrue(jwt.revoke(token));
+
+        assertTrue(jwt.parse(token).isEmpty());
+        assertTrue(jwt.parse(other).isPresent(), "登出只吊销当前令牌");
+    }
+
+    @Test
+    void passwordChangeRevokesEarlierTokensOnly() throws Exception {
+        String before = jwt.issueToken(user, "a@example.com", Map.of());
+        String otherUser = jwt.issueToken(UUID.randomUUID(), "b@example.com", Map.of());
+        jwt.parse(before).orElseThrow();
+        Thread.sleep(2);
+
+        jwt.revokeAll(user);
+        Thread.sleep(2);
+        String after = jwt.issueToken(user, "a@example.com", Map.of());
+
+        assertTrue(jwt.parse(before).isEmpty(), "缓存中的旧令牌也应被拒绝");
+        assertTrue(jwt.parse(after).isPresent(), "修改密码后签发的新令牌有效");
+        assertTrue(jwt.parse(otherUser).isPresent());
+    }
+
+    @Test
+    void revocationBroadcastFromAnotherNodeRejectsCachedToken() {
+        String token = jwt.issueToken(user, "a@example.com", Map.of());
+        JwtService.ParsedToken pt = jwt.parse(token).orElseThrow();
+
+        revocations.onMessage(message("t:" + pt.jti() + ":" + pt.expiresAt()), null);
+        assertTrue(jwt.parse(token).isEmpty());
+
+        String next = jwt.issueToken(user, "a@example.com", Map.of());
+        jwt.parse(next).orElseThrow();
+        revocations.onMessage(message("u:" + user + ":" + (System.currentTimeMillis() + 1)), null);
+        assertTrue(jwt.parse(next).isEmpty());
+
+        // 格式不对的广播被忽略
+        revocations.onMessage(message("u:not-a-uuid:1"), null);
+        revocations.onMessage(message("garbage"), null);
+    }
+
+    @Test
+    void cachedTokenIsRejectedOnceExpired() throws Exception {
+        // exp 按秒截断：2 秒后到期，首次校验时一定有效
+        String token = Jwts.builder()
+                .setId(UUID.randomUUID().toString())
+                .setSubject(user.toString())
+                .setIssuedAt(new Date())
+                .setExpiration(Date.from(Instant.now().plusSeconds(2)))
+                .claim("email", "a@example.com")
+                .signWith(Keys.hmacShaKeyFor(SECRET.getBytes()), SignatureAlgorithm.HS256)
+                .compact();
+        JwtService.ParsedToken pt = jwt.parse(token).orElseThrow();
+        assertSame(pt, jwt.parse(token).orElseThrow());
+
+        Thread.sleep(Math.max(0, pt.expiresAt() - System.currentTimeMillis()) + 50);
+        assertTrue(jwt.parse(token).isEmpty());
+    }
+
+    @Test
+    void tamperedOrForeignTokensAreRejected() {
+        String token = jwt.issueToken(user, "a@example.com", Map.of());
+        assertTrue(jwt.parse(token.substring(0, token.length() - 2) + "xx").isEmpty());
+        assertTrue(jwt.parse("not-a-jwt").isEmpty());
+        String foreign = Jwts.builder().setSubject(user.toString())
+                .signWith(Keys.hmacShaKeyFor("another-secret-0123456789abcdef0123456789abcdef".getBytes()), SignatureAlgorithm.HS256)
+                .compact();
+        assertTrue(jwt.parse(foreign).isEmpty());
+    }
+
+    @Test
+    void fullVerificationPicksUpRevocationsStoredInRedis() {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        @SuppressWarnings("unchecked")
+        ValueOperations<String, String> values = mock(ValueOperations.class);
+        when(redis.opsForValue()).thenReturn(values);
+        when(redis.hasKey(anyString())).thenReturn(false);
+        when(values.get("jwt:revoked-before:" + user)).thenReturn(String.valueOf(System.currentTimeMillis() + 1000));
+        JwtService other = service(revocations(redis));
+
+        // 本节点订阅建立之前其他节点已吊销：首次完整验签时回源 Redis 发现
+        String token = other.issueToken(user, "a@example.com", Map.of());
+        assertTrue(other.parse(token).isEmpty());
+        assertTrue(other.parse(other.issueToken(UUID.randomUUID(), "b@example.com", Map.of())).isPresent());
+    }
+
+    private static TokenRevocationService revocations(StringRedisTemplate redis) {
+        DefaultListableBeanFactory empty = new DefaultListableBeanFactory();
+        TokenRevocationService r = new TokenRevocationService(
+                redis == null ? empty.getBeanProvider(StringRedisTemplate.class)
+                        : new StaticListableBeanFactory(Map.of("redis", redis)).getBeanProvider(StringRedisTemplate.class),
+                empty.getBeanProvider(RedisConnectionFactory.class), 120);
+        ReflectionTestUtils.setField(r, "redisEnabled", true);
+        return r;
+    }
+
+    private static JwtService service(TokenRevocationService revocations) {
+        JwtService s = new JwtService(SECRET, 120, revocations);
+        ReflectionTestUtils.setField(s, "maxEntries", 100);
+        return s;
+    }
+
+    private static DefaultMessage message(String body) {
+        return new DefaultMessage("jwt:revocations".getBytes(StandardCharsets.UTF_8), body.getBytes(StandardCharsets.UTF_8));
+    }
+}
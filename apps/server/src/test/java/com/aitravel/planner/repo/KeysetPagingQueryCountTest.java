@@ -0,0 +1,182 @@
+package com.aitravel.planner.repo;
+
+import com.aitravel.planner.model.Conversation;
+import com.aitravel.planner.model.Message;
+import com.aitravel.planner.model.MessageColdBlock;
+import com.aitravel.planner.model.Plan;
+import com.aitravel.planner.util.MessageCompression;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 键集分页与投影查询的 SQL 条数回归测试：
+ * 每页恰好一条语句（无 count 查询、无 N+1，冷消息正文随消息一并取出），投影查询不加载任何实体。
+ */
+@DataJpaTest(properties = {
+        "spring.sql.init.mode=never",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "spring.jpa.properties.hibernate.generate_statistics=true"
+})
+class KeysetPagingQueryCountTest {
+
+    private static final int PAGE = 3;
+    private static final int ROWS = 7;
+    private static final OffsetDateTime BASE = OffsetDateTime.of(2024, 6, 1, 8, 0, 0, 0, ZoneOffset.UTC);
+
+    @Autowired
+    private EntityManager em;
+    @Autowired
+    private EntityManagerFactory emf;
+    @Autowired
+    private ConversationRepository conversations;
+    @Autowired
+    private MessageRepository messages;
+    @Autowired
+    private PlanRepository plans;
+
+    private final UUID owner = UUID.randomUUID();
+    private UUID conversationId;
+    private final List<UUID> coldIds = new ArrayList<>();
+    private Statistics stats;
+
+    @BeforeEach
+    void seed() {
+        for (int i = 0; i < ROWS; i++) {
+            // 第 0、1 行时间戳相同，覆盖 (updated_at, id) 的并列分支
+            OffsetDateTime at = BASE.plusMinutes(Math.max(i, 1));
+            Conversation c = new Conversation();
+            c.setOwnerId(owner);
+            c.setTitle("会话" + i);
+            c.setCreatedAt(at);
+            c.setUpdatedAt(at);
+            em.persist(c);
+            if (i == 0) conversationId = c.getId();
+
+            Message m = new Message();
+            m.setConversationId(conversationId);
+            m.setRole(i % 2 == 0 ? "user" : "assistant");
+            m.setContent("消息" + i);
+            m.setTokens(i);
+            m.setCreatedAt(at);
+            em.persist(m);
+            if (i % 2 == 1) {
+                MessageColdBlock cold = new MessageColdBlock();
+                cold.setMessageId(m.getId());
+                cold.setData(MessageCompression.deflate("消息" + i, 0));
+                em.persist(cold);
+                coldIds.add(m.getId());
+            }
+
+            Plan p = new Plan();
+            p.setOwnerId(owner);
+            p.setDestination("杭州" + i);
+            p.setStartDate(at.toLocalDate());
+            p.setEndDate(at.toLocalDate());
+            p.setTotalDays(1);
+            p.setCreatedAt(at);
+            p.setUpdatedAt(at);
+            em.persist(p);
+        }
+        Conversation deleted = new Conversation();
+        deleted.setOwnerId(owner);
+        deleted.setTitle("已删除");
+        deleted.setStatus("deleted");
+        em.persist(deleted);
+        em.flush();
+        for (UUID id : coldIds) {
+            em.createNativeQuery("UPDATE messages SET content = '', cold_id = id WHERE id = ?1").setParameter(1, id).executeUpdate();
+        }
+        em.clear();
+
+        stats = emf.unwrap(SessionFactory.class).getStatistics();
+        stats.setStatisticsEnabled(true);
+        stats.clear();
+    }
+
+    @Test
+    void conversationSummariesUseOneStatementPerPageAndLoadNoEntities() {
+        List<UUID> ids = pageThrough(
+                () -> conversations.findPageByOwner(owner, PageRequest.of(0, PAGE)),
+                last -> conversations.findPageByOwnerAfter(owner, last.getUpdatedAt(), last.getId(), PageRequest.of(0, PAGE)),
+                ConversationSummary::getId);
+        assertEquals(ROWS, ids.size(), "已删除会话不应出现，且分页不应重复或遗漏");
+        assertEquals(0, stats.getEntityLoadCount(), "投影查询不应加载实体");
+    }
+
+    @Test
+    void messageSummariesUseOneStatementPerPageAndLoadNoEntities() {
+        List<UUID> ids = pageThrough(
+                () -> messages.findLatestSummaries(conversationId, PageRequest.of(0, PAGE)),
+                last -> messages.findLatestSummariesBefore(conversationId, last.getCreatedAt(), last.getId(), PageRequest.of(0, PAGE)),
+                MessageSummary::getId);
+        assertEquals(ROWS, ids.size());
+        assertEquals(0, stats.getEntityLoadCount(), "投影查询不应加载实体");
+    }
+
+    @Test
+    void messagePagesUseOneStatementPerPage() {
+        List<String> contents = new ArrayList<>();
+        List<UUID> ids = pageThrough(
+                () -> messages.findLatest(conversationId, PageRequest.of(0, PAGE)),
+                last -> messages.findLatestBefore(conversationId, last.getCreatedAt(), last.getId(), PageRequest.of(0, PAGE)),
+                m -> {
+                    // 读取正文不应再发出 SQL（冷数据块已随分页查询取出）
+                    contents.add(m.getContent());
+                    return m.getId();
+                });
+        assertEquals(ROWS, ids.size());
+        assertEquals(3, coldIds.size());
+        for (int i = 0; i < ROWS; i++) assertTrue(contents.contains("消息" + i), "缺少正文: 消息" + i);
+    }
+
+    @Test
+    void planPagesUseOneStatementPerPage() {
+        List<UUID> ids = pageThrough(
+                () -> plans.findPageByOwner(owner, PageRequest.of(0, PAGE)),
+                last -> plans.findPageByOwnerAfter(owner, last.getUpdatedAt(), last.getId(), PageRequest.of(0, PAGE)),
+                Plan::getId);
+        assertEquals(ROWS, ids.size());
+    }
+
+    /**
+     * 按游标翻页直到取空，断言每页只发出一条 SQL，返回按页顺序拼接的 id（不允许重复）。
+     */
+    private <T> List<UUID> pageThrough(Supplier<List<T>> first, Function<T, List<T>> next,
+                                       Function<T, UUID> id) {
+        List<UUID> ids = new ArrayList<>();
+        List<T> page = first.get();
+        int pages = 0;
+        while (true) {
+            pages++;
+            assertEquals(pages, stats.getPrepareStatementCount(), "第 " + pages + " 页应只发出一条 SQL");
+            assertTrue(page.size() <= PAGE);
+            for (T row : page) {
+                UUID rowId = id.apply(row);
+                assertTrue(!ids.contains(rowId), "分页结果重复: " + rowId);
+                ids.add(rowId);
+            }
+            if (page.size() < PAGE) break;
+            page = next.apply(page.get(page.size() - 1));
+        }
+        assertEquals(ROWS / PAGE + 1, pages);
+        return ids;
+    }
+}
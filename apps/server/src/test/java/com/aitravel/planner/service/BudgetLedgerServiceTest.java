@@ -0,0 +1,141 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.itinerary.BudgetBreakdown;
+import com.aitravel.planner.itinerary.BudgetCategory;
+import com.aitravel.planner.itinerary.DayPlan;
+import com.aitravel.planner.itinerary.ItineraryPlan;
+import com.aitravel.planner.model.BudgetLedger;
+import com.aitravel.planner.repo.BudgetLedgerRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 预算账本增量合并：类别按名替换、总额按差值更新、天数从 fromDay 起替换，以及合并后的完整行程。
+ */
+class BudgetLedgerServiceTest {
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private BudgetLedgerService service;
+
+    @BeforeEach
+    void setUp() {
+        BudgetLedgerRepository repo = mock(BudgetLedgerRepository.class);
+        when(repo.save(any())).thenAnswer(inv -> inv.getArgument(0));
+        service = new BudgetLedgerService(repo, registry);
+    }
+
+    @Test
+    void deltaReplacesListedCategoriesAndAdjustsTotalByDifference() {
+        BudgetLedger l = ledger(List.of(cat("住宿", "1200"), cat("餐饮", "600"), cat("交通", "300")), List.of("D1", "D2", "D3"));
+
+        service.applyDelta(l, breakdown(cat("餐饮", "450"), cat("门票", "200")), null, null, 3);
+
+        assertEquals(List.of("住宿", "餐饮", "交通", "门票"), l.getCategories().stream().map(BudgetCategory::getName).toList(),
+                "原类别保持顺序，新类别追加在末尾");
+        assertEquals(0, new BigDecimal("450").compareTo(l.getCategories().get(1).getTotal()));
+        // 2100 - 600 + 450 + 200
+        assertEquals(0, new BigDecimal("2150").compareTo(l.getPlannedTotal()));
+        assertTrue(service.toBreakdown(l).isAligned());
+    }
+
+    @Test
+    void usedAmountOnlyOverwritesWhenProvided() {
+        BudgetLedger l = ledger(List.of(cat("餐饮", "600")), List.of("D1"));
+        l.setSpentAmount(new BigDecimal("100"));
+
+        service.applyDelta(l, null, null, null, 0);
+        assertEquals(0, new BigDecimal("100").compareTo(l.getSpentAmount()));
+
+        service.applyDelta(l, null, null, new BigDecimal("380.5"), 0);
+        assertEquals(0, new BigDecimal("380.5").compareTo(l.getSpentAmount()));
+        assertEquals(0, new BigDecimal("600").compareTo(l.getPlannedTotal()), "无类别增量时总额不变");
+    }
+
+    @Test
+    void daysBeforeFromDayAreKeptAndTheRestReplaced() {
+        BudgetLedger l = ledger(List.of(), List.of());
+        l.setDays(new ArrayList<>(List.of(day("西湖"), day("灵隐寺"), day("千岛湖"), day("乌镇"))));
+
+        service.applyDelta(l, null, plan(day("宋城"), day("返程")), null, 2);
+
+        assertEquals(List.of("西湖", "灵隐寺", "宋城", "返程"), l.getDaySummaries());
+        ItineraryPlan merged = service.mergedPlan(l, plan(day("宋城"), day("返程")));
+        assertEquals(List.of("西湖", "灵隐寺", "宋城", "返程"), merged.getDays().stream().map(DayPlan::getSummary).toList(),
+                "返回的行程应包含保留的天数");
+    }
+
+    @Test
+    void emptyDeltaPlanKeepsExistingDaysAndFromDayBeyondEndAppends() {
+        BudgetLedger l = ledger(List.of(), List.of());
+        l.setDays(new ArrayList<>(List.of(day("西湖"), day("灵隐寺"))));
+
+        service.applyDelta(l, null, plan(), null, 1);
+        assertEquals(List.of("西湖", "灵隐寺"), l.getDaySummaries());
+
+        service.applyDelta(l, null, plan(day("杭州东站")), null, 5);
+        assertEquals(List.of("西湖", "灵隐寺", "杭州东站"), l.getDaySummaries());
+    }
+
+    @Test
+    void ledgersWithOnlySummariesMergeSummaryStubs() {
+        BudgetLedger l = ledger(List.of(), List.of("西湖", "灵隐寺", "千岛湖"));
+        l.setDays(null);
+
+        service.applyDelta(l, null, plan(day("乌镇")), null, 1);
+
+        assertEquals(List.of("西湖", "乌镇"), l.getDaySummaries());
+        assertEquals(2, service.mergedPlan(l, null).getDays().size());
+    }
+
+    @Test
+    void failuresAreCounted() {
+        service.failed(UUID.randomUUID(), new IllegalStateException("boom"));
+        assertEquals(1.0, registry.get("budget.ledger.failures").counter().count());
+    }
+
+    private static BudgetLedger ledger(List<BudgetCategory> cats, List<String> summaries) {
+        BudgetLedger l = new BudgetLedger();
+        l.setConversationId(UUID.randomUUID());
+        l.setCategories(new ArrayList<>(cats));
+        BigDecimal total = BigDecimal.ZERO;
+        for (BudgetCategory c : cats) total = total.add(c.getTotal());
+        l.setPlannedTotal(total);
+        l.setDaySummaries(new ArrayList<>(summaries));
+        return l;
+    }
+
+    private static BudgetCategory cat(String name, String total) {
+        BudgetCategory c = new BudgetCategory(name, "CNY");
+        c.setTotal(new BigDecimal(total));
+        return c;
+    }
+
+    private static BudgetBreakdown breakdown(BudgetCategory... cats) {
+        BudgetBreakdown b = new BudgetBreakdown();
+        b.setCurrency("CNY");
+        b.setCategories(List.of(cats));
+        return b;
+    }
+
+    private static DayPlan day(String summary) {
+        DayPlan d = new DayPlan();
+        d.setSummary(summary);
+        return d;
+    }
+
+    private static ItineraryPlan plan(DayPlan... days) {
+        ItineraryPlan p = new ItineraryPlan();
+        p.setDays(List.of(days));
+        return p;
+    }
+}
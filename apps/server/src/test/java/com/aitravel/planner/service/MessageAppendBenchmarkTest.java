@@ -0,0 +1,87 @@
+package com.aitravel.planner.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 消息追加基准：同步插入（每条一次提交）对比写后模式（日志 fsync 后确认，后台批量插入）。
+ * 输出确认吞吐与写后模式全部入库所需时间。默认跳过，运行方式：
+ * mvn test -Dtest=MessageAppendBenchmarkTest -Dbenchmark=true
+ * 默认使用临时目录下的 H2 文件库；提交开销与 PostgreSQL 差异较大，可用
+ * -Dbenchmark.jdbc-url=jdbc:postgresql://... -Dbenchmark.jdbc-user=... -Dbenchmark.jdbc-password=... 指向真实数据库。
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class MessageAppendBenchmarkTest {
+
+    private static final int THREADS = 8;
+    private static final int PER_THREAD = 500;
+    private static final String BODY = "## 第 1 天：西湖\n- 09:00 断桥残雪\n- 12:00 午餐\n预算：餐饮 ¥200，交通 ¥50\n".repeat(4);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void syncVersusWriteBehindThroughput() throws Exception {
+        String url = System.getProperty("benchmark.jdbc-url", "jdbc:h2:file:" + dir.resolve("bench") + ";MODE=PostgreSQL");
+        JdbcTemplate jdbc = new JdbcTemplate(MessageAppendServiceTest.database(url));
+
+        double sync = run(jdbc, false, "sync");
+        double behind = run(jdbc, true, "write-behind");
+        System.out.printf("[append-benchmark] 线程=%d 每线程=%d 同步=%.0f 条/s 写后=%.0f 条/s 加速比=%.2fx%n",
+                THREADS, PER_THREAD, sync, behind, behind / sync);
+        assertTrue(sync > 0 && behind > 0);
+    }
+
+    /** 并发追加 THREADS × PER_THREAD 条，返回确认吞吐（条/s）；写后模式另行报告全部入库的耗时。 */
+    private double run(JdbcTemplate jdbc, boolean writeBehind, String label) throws Exception {
+        UUID conversation = MessageAppendServiceTest.conversation(jdbc);
+        MessageAppendService s = MessageAppendServiceTest.create(jdbc, dir.resolve(label + ".log"), writeBehind, 200L);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            // 预热
+            for (int i = 0; i < 200; i++) s.append(conversation, UUID.randomUUID(), "assistant", BODY, null);
+            s.drain();
+            int before = count(jdbc, conversation);
+
+            long start = System.nanoTime();
+            List<Future<?>> fs = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                fs.add(pool.submit(() -> {
+                    UUID owner = UUID.randomUUID();
+                    for (int i = 0; i < PER_THREAD; i++) s.append(conversation, owner, "assistant", BODY, null);
+                }));
+            }
+            for (Future<?> f : fs) f.get();
+            long acked = System.nanoTime() - start;
+            assertTrue(s.drain());
+            long persisted = System.nanoTime() - start;
+
+            assertEquals(THREADS * PER_THREAD, count(jdbc, conversation) - before);
+            if (writeBehind) {
+                System.out.printf("[append-benchmark] 写后模式: 确认耗时 %d ms，全部入库耗时 %d ms%n",
+                        acked / 1_000_000, persisted / 1_000_000);
+            }
+            return THREADS * PER_THREAD * 1e9 / acked;
+        } finally {
+            pool.shutdownNow();
+            s.shutdown();
+        }
+    }
+
+    private static int count(JdbcTemplate jdbc, UUID conversation) {
+        return jdbc.queryForObject("SELECT COUNT(*) FROM messages WHERE conversation_id = ?", Integer.class, conversation);
+    }
+}
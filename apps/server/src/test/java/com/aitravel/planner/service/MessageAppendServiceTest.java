@@ -0,0 +1,180 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.ReplicaRoutingDataSource;
+import com.aitravel.planner.model.Message;
+import com.aitravel.planner.repo.ConversationRepository;
+import com.aitravel.planner.repo.MessageRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 写后模式的消息日志：进程崩溃后启动回放（跳过已入库、丢弃写了一半的行），
+ * 以及无法入库的消息转入 {journal}.failed 而不阻塞同批其他消息。
+ * 数据库为内存 H2（shard-schema.sql，messages 对 conversations 有外键）。
+ */
+class MessageAppendServiceTest {
+    @TempDir
+    Path dir;
+
+    private JdbcTemplate jdbc;
+    private Path journal;
+    private UUID conversation;
+    private final List<MessageAppendService> started = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        jdbc = new JdbcTemplate(database("jdbc:h2:mem:append-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+        journal = dir.resolve("message-journal.log");
+        conversation = conversation(jdbc);
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (MessageAppendService s : started) s.shutdown();
+    }
+
+    @Test
+    void acknowledgedMessagesSurviveACrashAndAreReplayedOnce() throws Exception {
+        // 刷写间隔足够长，确认后的消息只在日志里
+        MessageAppendService crashed = service(jdbc, journal, true, 3_600_000L);
+        UUID owner = UUID.randomUUID();
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) ids.add(crashed.append(conversation, owner, "user", "消息" + i, i).orElseThrow().getId());
+        assertEquals(0, count(), "写后模式确认时尚未入库");
+
+        // 模拟崩溃：不调用 shutdown；其中一条在崩溃前已由其他批次入库，日志末尾有半行
+        insert(jdbc, ids.get(0), conversation, "消息0");
+        Files.writeString(journal, "{\"shard\":0,\"owner\":\"" + owner + "\",\"mess", StandardOpenOption.APPEND);
+
+        service(jdbc, journal, true, 3_600_000L);
+
+        assertEquals(3, count(), "回放应补写未入库的两条，且不重复写入已入库的一条");
+        for (UUID id : ids) {
+            assertEquals(1, jdbc.queryForObject("SELECT COUNT(*) FROM messages WHERE id = ?", Integer.class, id));
+        }
+        assertEquals(0, Files.size(journal), "回放后日志清空");
+        assertFalse(Files.exists(failedLog()));
+    }
+
+    @Test
+    void rejectedMessagesGoToTheFailedLogWithoutBlockingTheBatch() throws Exception {
+        MessageAppendService s = service(jdbc, journal, true, 3_600_000L);
+        UUID owner = UUID.randomUUID();
+        UUID good1 = s.append(conversation, owner, "user", "正常1", null).orElseThrow().getId();
+        // 会话在入库前被清理：外键冲突，逐条重试后仍失败
+        UUID orphan = s.append(UUID.randomUUID(), owner, "user", "孤儿", null).orElseThrow().getId();
+        UUID good2 = s.append(conversation, owner, "user", "正常2", null).orElseThrow().getId();
+
+        assertTrue(s.drain(), "隔离失败消息后队列应清空");
+
+        assertEquals(2, count());
+        assertEquals(0, jdbc.queryForObject("SELECT COUNT(*) FROM messages WHERE id = ?", Integer.class, orphan));
+        assertEquals(2, jdbc.queryForObject("SELECT COUNT(*) FROM messages WHERE id IN (?, ?)", Integer.class, good1, good2));
+        List<String> failed = Files.readAllLines(failedLog(), StandardCharsets.UTF_8);
+        assertEquals(1, failed.size());
+        assertTrue(failed.get(0).contains(orphan.toString()) && failed.get(0).contains("\"owner\":\"" + owner + "\""));
+        assertEquals(0, Files.size(journal), "已入库与已隔离的消息都应移出日志");
+
+        // 重启不会再次回放失败消息
+        service(jdbc, journal, true, 3_600_000L);
+        assertEquals(2, count());
+        assertEquals(1, Files.readAllLines(failedLog(), StandardCharsets.UTF_8).size());
+    }
+
+    private Path failedLog() {
+        return journal.resolveSibling(journal.getFileName() + ".failed");
+    }
+
+    private int count() {
+        return jdbc.queryForObject("SELECT COUNT(*) FROM messages", Integer.class);
+    }
+
+    private MessageAppendService service(JdbcTemplate jdbc, Path journal, boolean writeBehind, long flushIntervalMs) {
+        MessageAppendService s = create(jdbc, journal, writeBehind, flushIntervalMs);
+        started.add(s);
+        return s;
+    }
+
+    /** 以 H2 / PostgreSQL 上的 conversations + messages 表建库（同追加分片的 shard-schema.sql）。 */
+    static DataSource database(String url) throws IOException {
+        DataSource ds = new DriverManagerDataSource(url, System.getProperty("benchmark.jdbc-user", "sa"),
+                System.getProperty("benchmark.jdbc-password", ""));
+        String ddl = new ClassPathResource("shard-schema.sql").getContentAsString(StandardCharsets.UTF_8);
+        if (url.startsWith("jdbc:h2:")) {
+            ddl = ddl.replace("JSONB", "JSON").replaceAll("(?m)^(CREATE INDEX [^;]*?)\\s+WHERE [^;]*;", "$1;");
+        }
+        new ResourceDatabasePopulator(new ByteArrayResource(ddl.getBytes(StandardCharsets.UTF_8))).execute(ds);
+        return ds;
+    }
+
+    static UUID conversation(JdbcTemplate jdbc) {
+        UUID id = UUID.randomUUID();
+        jdbc.update("INSERT INTO conversations (id, owner_id, title) VALUES (?, ?, 't')", id, UUID.randomUUID());
+        return id;
+    }
+
+    /**
+     * 直接构造并启动服务：会话属主校验总是通过；同步模式的 save 与回放时的已入库查询经 JdbcTemplate 完成。
+     */
+    static MessageAppendService create(JdbcTemplate jdbc, Path journal, boolean writeBehind, long flushIntervalMs) {
+        ConversationRepository conversations = mock(ConversationRepository.class);
+        when(conversations.touch(any(), any(), any())).thenReturn(1);
+        MessageRepository messages = mock(MessageRepository.class);
+        when(messages.save(any())).thenAnswer(inv -> {
+            Message m = inv.getArgument(0);
+            m.setId(UUID.randomUUID());
+            insert(jdbc, m.getId(), m.getConversationId(), m.getContent());
+            return m;
+        });
+        when(messages.findAllById(any())).thenAnswer(inv -> {
+            List<Message> out = new ArrayList<>();
+            for (UUID id : inv.<Iterable<UUID>>getArgument(0)) {
+                if (jdbc.queryForObject("SELECT COUNT(*) FROM messages WHERE id = ?", Integer.class, id) > 0) {
+                    Message m = new Message();
+                    m.setId(id);
+                    out.add(m);
+                }
+            }
+            return out;
+        });
+        MessageAppendService s = new MessageAppendService(conversations, messages, jdbc, mock(SearchService.class),
+                new DefaultListableBeanFactory().getBeanProvider(ReplicaRoutingDataSource.class));
+        ReflectionTestUtils.setField(s, "writeBehind", writeBehind);
+        ReflectionTestUtils.setField(s, "journalPath", journal.toString());
+        ReflectionTestUtils.setField(s, "batchSize", 200);
+        ReflectionTestUtils.setField(s, "flushIntervalMs", flushIntervalMs);
+        ReflectionTestUtils.setField(s, "maxPending", 10_000);
+        s.init();
+        return s;
+    }
+
+    private static void insert(JdbcTemplate jdbc, UUID id, UUID conversation, String content) {
+        jdbc.update("INSERT INTO messages (id, conversation_id, role, content, created_at) VALUES (?, ?, 'user', ?, ?)",
+                id, conversation, content, new Timestamp(System.currentTimeMillis()));
+    }
+}
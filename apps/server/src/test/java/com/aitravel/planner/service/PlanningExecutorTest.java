@@ -0,0 +1,147 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.RequestDeadline;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * 阶段图：fork 的阶段按时完成时 join 返回其结果；超过阶段截止时间或请求剩余时间时取消该阶段、
+ * 返回调用方给出的部分结果并记为 late；阶段抛出的异常原样抛出。
+ */
+class PlanningExecutorTest {
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private PlanningExecutor executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = new PlanningExecutor(mock(ShardMap.class), new PlanMetrics(registry));
+        ReflectionTestUtils.setField(executor, "threads", 2);
+        ReflectionTestUtils.setField(executor, "queueCapacity", 4);
+        ReflectionTestUtils.setField(executor, "stageThreads", 2);
+        ReflectionTestUtils.setField(executor, "stageQueueCapacity", 4);
+        executor.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.stop();
+    }
+
+    @Test
+    void joinReturnsStageResultsAndRecordsTimings() {
+        PlanningExecutor.Stages stages = executor.stages();
+        PlanningExecutor.Stage<String> geo = stages.fork("geocode", () -> "120.15,30.28");
+        String parsed = stages.run("parse", () -> "行程");
+
+        assertEquals("120.15,30.28", stages.join(geo, 5_000, () -> "partial"));
+        assertEquals("行程", parsed);
+        assertTrue(stages.late().isEmpty());
+        assertTrue(stages.timings().keySet().containsAll(List.of("geocode", "parse")));
+        assertEquals(1, registry.get("plan.stage").tag("stage", "geocode").timer().count());
+    }
+
+    @Test
+    void slowStageTimesOutReturnsPartialResultAndIsReportedLate() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        CountDownLatch finished = new CountDownLatch(1);
+        PlanningExecutor.Stages stages = executor.stages();
+        PlanningExecutor.Stage<String> slow = stages.fork("route", () -> {
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+                return "full";
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+                return "cancelled";
+            } finally {
+                finished.countDown();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        long t0 = System.nanoTime();
+        assertEquals("partial", stages.join(slow, 100, () -> "partial"));
+        long waitedMs = (System.nanoTime() - t0) / 1_000_000;
+        assertTrue(waitedMs >= 90 && waitedMs < 5_000, "应按阶段截止时间等待: " + waitedMs + "ms");
+
+        assertEquals(List.of("route"), stages.late());
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertTrue(interrupted.get(), "超时的阶段应被中断");
+        @SuppressWarnings("unchecked")
+        Map<String, Map<String, Object>> st = (Map<String, Map<String, Object>>) executor.stats().get("stages");
+        assertEquals(1L, st.get("route").get("late"));
+
+        // 同一阶段名多次超时只报告一次
+        PlanningExecutor.Stage<String> again = stages.fork("route", () -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException ignored) {}
+            return "full";
+        });
+        assertEquals("partial", stages.join(again, 10, () -> "partial"));
+        assertEquals(List.of("route"), stages.late());
+    }
+
+    @Test
+    void joinWaitsNoLongerThanTheRequestDeadline() throws Exception {
+        String out = RequestDeadline.call(RequestDeadline.after(100), () -> {
+            PlanningExecutor.Stages stages = executor.stages();
+            PlanningExecutor.Stage<String> slow = stages.fork("llm", () -> {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException ignored) {}
+                return "full";
+            });
+            long t0 = System.nanoTime();
+            String r = stages.join(slow, 60_000, () -> "partial");
+            assertTrue((System.nanoTime() - t0) / 1_000_000 < 5_000, "请求剩余时间短于阶段截止时间时按剩余时间等待");
+            assertEquals(List.of("llm"), stages.late());
+            return r;
+        });
+        assertEquals("partial", out);
+    }
+
+    @Test
+    void stageFailuresPropagateUnchanged() {
+        PlanningExecutor.Stages stages = executor.stages();
+        PlanningExecutor.Stage<String> bad = stages.fork("amap", () -> {
+            throw new IllegalArgumentException("坐标无效");
+        });
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> stages.join(bad, 5_000, () -> "partial"));
+        assertEquals("坐标无效", e.getMessage());
+        assertTrue(stages.late().isEmpty());
+    }
+
+    @Test
+    void forkRunsInlineWhenTheStagePoolIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        PlanningExecutor.Stages stages = executor.stages();
+        // 2 个线程 + 4 个排队占满阶段线程池
+        for (int i = 0; i < 6; i++) {
+            stages.fork("block", () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+                return null;
+            });
+        }
+        String caller = Thread.currentThread().getName();
+        PlanningExecutor.Stage<String> inline = stages.fork("inline", () -> Thread.currentThread().getName());
+        assertEquals(caller, stages.join(inline, 1_000, () -> "partial"));
+        assertEquals(1L, executor.stats().get("stagesInline"));
+        release.countDown();
+    }
+}
@@ -0,0 +1,164 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.model.Activity;
+import com.aitravel.planner.model.Day;
+import com.aitravel.planner.model.Plan;
+import com.aitravel.planner.repo.ActivityRepository;
+import com.aitravel.planner.repo.DayRepository;
+import com.aitravel.planner.repo.PlanRepository;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 行程天数生成基准：对比逐行加载删除 + 逐条 save 与集合删除 + saveAll 批量插入（generateDaysForPlan）。
+ * 每次生成前为每天预置活动，每次生成各自一个事务并计入提交；输出每次生成耗时与语句数。
+ * 不使用测试事务：长事务下 H2 累积的未提交行版本会掩盖语句差异。
+ * 默认跳过，运行方式：mvn test -Dtest=PlanningServiceBenchmarkTest -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+@DataJpaTest(showSql = false, properties = {
+        // 连接池化的内存库：嵌入式测试库每次取连接都新建 H2 连接，会淹没语句差异
+        "spring.datasource.url=jdbc:h2:mem:days-benchmark;MODE=PostgreSQL;DB_CLOSE_DELAY=-1",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "spring.sql.init.mode=never",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "spring.jpa.properties.hibernate.generate_statistics=true",
+        "logging.level.org.hibernate.engine.internal.StatisticalLoggingSessionEventListener=WARN"
+})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(PlanningService.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class PlanningServiceBenchmarkTest {
+
+    private static final int[] DAYS = {3, 7, 14, 30, 60};
+    private static final int ACTIVITIES_PER_DAY = 3;
+    private static final int WARMUP_RUNS = 200;
+    private static final int MEASURE_RUNS = 500;
+
+    @Autowired
+    private EntityManager em;
+    @Autowired
+    private EntityManagerFactory emf;
+    @Autowired
+    private PlanningService planning;
+    @Autowired
+    private PlanRepository plans;
+    @Autowired
+    private DayRepository days;
+    @Autowired
+    private ActivityRepository activities;
+    @Autowired
+    private PlatformTransactionManager txManager;
+
+    @Test
+    void perRowVersusBulkGeneration() {
+        Statistics stats = emf.unwrap(SessionFactory.class).getStatistics();
+        stats.setStatisticsEnabled(true);
+        System.out.printf("[days-benchmark] %4s %12s %12s %14s%n", "天数", "逐行(us)", "批量(us)", "语句数");
+        for (int n : DAYS) {
+            Plan legacyPlan = plan(n);
+            Plan bulkPlan = plan(n);
+            double[] legacy = measure(legacyPlan, stats, this::legacyGenerate);
+            double[] bulk = measure(bulkPlan, stats, p -> planning.generateDaysForPlan(p));
+            System.out.printf("[days-benchmark] %4d %12.0f %12.0f %6.0f -> %-6.0f%n", n, legacy[0], bulk[0], legacy[1], bulk[1]);
+
+            assertEquals(n, days.findByPlanIdOrderByIndexAsc(bulkPlan.getId()).size());
+            assertTrue(bulk[1] < legacy[1], "集合删除与批量插入应减少语句数");
+        }
+    }
+
+    /** 原实现：逐天加载活动并逐个删除，再逐条保存新的天。 */
+    private void legacyGenerate(Plan plan) {
+        for (Day old : days.findByPlanIdOrderByIndexAsc(plan.getId())) {
+            activities.deleteAll(activities.findByDayId(old.getId()));
+            days.delete(old);
+        }
+        LocalDate d = plan.getStartDate();
+        for (int i = 0; i < plan.getTotalDays(); i++) {
+            Day day = new Day();
+            day.setPlanId(plan.getId());
+            day.setIndex(i);
+            day.setDate(d.plusDays(i));
+            days.save(day);
+        }
+        plan.setStatus("planned");
+        plan.setUpdatedAt(OffsetDateTime.now());
+        plans.save(plan);
+    }
+
+    /** 返回 {每次生成耗时（微秒）, 每次生成的 JDBC 语句数}，预置活动不计入。 */
+    private double[] measure(Plan plan, Statistics stats, Consumer<Plan> op) {
+        for (int i = 0; i < WARMUP_RUNS; i++) run(plan, stats, op);
+        long nanos = 0;
+        long statements = 0;
+        for (int i = 0; i < MEASURE_RUNS; i++) {
+            long[] r = run(plan, stats, op);
+            nanos += r[0];
+            statements += r[1];
+        }
+        return new double[]{nanos / 1e3 / MEASURE_RUNS, (double) statements / MEASURE_RUNS};
+    }
+
+    private long[] run(Plan plan, Statistics stats, Consumer<Plan> op) {
+        TransactionTemplate tx = new TransactionTemplate(txManager);
+        tx.executeWithoutResult(s -> seedActivities(plan));
+        stats.clear();
+        long start = System.nanoTime();
+        tx.executeWithoutResult(s -> op.accept(em.find(Plan.class, plan.getId())));
+        long elapsed = System.nanoTime() - start;
+        // 不计 em.find 取行程的那条查询
+        return new long[]{elapsed, stats.getPrepareStatementCount() - 1};
+    }
+
+    private void seedActivities(Plan plan) {
+        for (Day day : days.findByPlanIdOrderByIndexAsc(plan.getId())) {
+            for (int s = 0; s < ACTIVITIES_PER_DAY; s++) {
+                Activity a = new Activity();
+                a.setDayId(day.getId());
+                a.setTitle("景点" + s);
+                a.setSeq(s);
+                em.persist(a);
+            }
+        }
+    }
+
+    private Plan plan(int n) {
+        return new TransactionTemplate(txManager).execute(s -> newPlan(n));
+    }
+
+    private Plan newPlan(int n) {
+        Plan p = new Plan();
+        p.setOwnerId(UUID.randomUUID());
+        p.setDestination("杭州");
+        p.setStartDate(LocalDate.of(2024, 6, 1));
+        p.setEndDate(LocalDate.of(2024, 6, 1).plusDays(n - 1));
+        p.setTotalDays(n);
+        p.setCreatedAt(OffsetDateTime.now());
+        p.setUpdatedAt(OffsetDateTime.now());
+        em.persist(p);
+        planning.generateDaysForPlan(p);
+        return p;
+    }
+}
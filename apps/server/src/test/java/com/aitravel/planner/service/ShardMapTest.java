@@ -0,0 +1,207 @@
+package com.aitravel.planner.service;
+
+import com.aitravel.planner.config.ShardContext;
+import com.aitravel.planner.config.ShardRoutingDataSource;
+import com.aitravel.planner.model.ConversationShard;
+import com.aitravel.planner.repo.BudgetLedgerRepository;
+import com.aitravel.planner.repo.ConversationShardRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 两个内存 H2 分片上的目录路由、迁移租约与再平衡迁移。
+ * 目录仓库以 JdbcTemplate 读主分片模拟，Redis 不可用（失效只走本地与 onMessage）。
+ */
+class ShardMapTest {
+    private JdbcTemplate jdbc;
+    private ShardMap shards;
+    private ShardRebalanceService rebalancer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        String ddl = new ClassPathResource("shard-schema.sql").getContentAsString(StandardCharsets.UTF_8)
+                .replace("JSONB", "JSON").replaceAll("(?m)^(CREATE INDEX [^;]*?)\\s+WHERE [^;]*;", "$1;")
+                + "\nCREATE TABLE conversation_shards (owner_id UUID PRIMARY KEY, shard INT NOT NULL, "
+                + "epoch BIGINT NOT NULL DEFAULT 0, lease_until TIMESTAMP, updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP);";
+        List<DataSource> targets = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            DataSource ds = new DriverManagerDataSource("jdbc:h2:mem:shard-test-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+            new ResourceDatabasePopulator(new ByteArrayResource(ddl.getBytes(StandardCharsets.UTF_8))).execute(ds);
+            targets.add(ds);
+        }
+        ShardRoutingDataSource routing = new ShardRoutingDataSource(targets);
+        routing.afterPropertiesSet();
+        DataSource ds = new LazyConnectionDataSourceProxy(routing);
+        jdbc = new JdbcTemplate(ds);
+
+        ConversationShardRepository directory = mock(ConversationShardRepository.class);
+        when(directory.findById(any())).thenAnswer(inv -> row(inv.getArgument(0)));
+        when(directory.findAll(any(Pageable.class))).thenAnswer(inv -> new PageImpl<>(jdbc.queryForList(
+                "SELECT owner_id FROM conversation_shards ORDER BY owner_id", UUID.class).stream()
+                .map(o -> row(o).orElseThrow()).toList()));
+
+        DefaultListableBeanFactory empty = new DefaultListableBeanFactory();
+        shards = new ShardMap(directory, jdbc, new StaticListableBeanFactory(Map.of("routing", routing))
+                .getBeanProvider(ShardRoutingDataSource.class),
+                empty.getBeanProvider(StringRedisTemplate.class),
+                empty.getBeanProvider(RedisConnectionFactory.class));
+        ReflectionTestUtils.setField(shards, "maxEntries", 1000);
+        ReflectionTestUtils.setField(shards, "ttlSeconds", 30L);
+        ReflectionTestUtils.setField(shards, "redisEnabled", false);
+
+        BudgetLedgerRepository ledgers = mock(BudgetLedgerRepository.class);
+        when(ledgers.findAllById(any())).thenReturn(List.of());
+        MessageAppendService appender = mock(MessageAppendService.class);
+        when(appender.drain()).thenReturn(true);
+        rebalancer = new ShardRebalanceService(shards, jdbc, ledgers, appender, new DataSourceTransactionManager(ds));
+        ReflectionTestUtils.setField(rebalancer, "batchSize", 2);
+        ReflectionTestUtils.setField(rebalancer, "leaseMs", 60_000L);
+        ReflectionTestUtils.setField(rebalancer, "inFlightGraceMs", 0L);
+    }
+
+    private Optional<ConversationShard> row(UUID owner) {
+        return jdbc.query("SELECT shard, epoch, lease_until FROM conversation_shards WHERE owner_id = ?", rs -> {
+            if (!rs.next()) return Optional.<ConversationShard>empty();
+            ConversationShard s = new ConversationShard();
+            s.setOwnerId(owner);
+            s.setShard(rs.getInt(1));
+            s.setEpoch(rs.getLong(2));
+            Timestamp lease = rs.getTimestamp(3);
+            if (lease != null) s.setLeaseUntil(lease.toInstant().atOffset(ZoneOffset.UTC));
+            return Optional.of(s);
+        }, owner);
+    }
+
+    private UUID ownerOnRing(int shard) {
+        while (true) {
+            UUID owner = UUID.randomUUID();
+            if (shards.ringShard(owner) == shard) return owner;
+        }
+    }
+
+    @Test
+    void unregisteredOwnersFollowTheRingAndAssignRegistersThem() {
+        int[] counts = new int[2];
+        for (int i = 0; i < 2000; i++) counts[shards.ringShard(UUID.randomUUID())]++;
+        assertTrue(counts[0] > 700 && counts[1] > 700, "一致性哈希应大致均分: " + counts[0] + "/" + counts[1]);
+
+        UUID owner = ownerOnRing(1);
+        assertEquals(1, shards.route(owner));
+        assertEquals(1, shards.assign(owner));
+        assertEquals(1, row(owner).orElseThrow().getShard());
+    }
+
+    @Test
+    void directoryWinsOverRingAndInvalidationDropsStaleCache() {
+        UUID owner = ownerOnRing(1);
+        jdbc.update("INSERT INTO conversation_shards (owner_id, shard) VALUES (?, 0)", owner);
+        assertEquals(0, shards.route(owner));
+
+        // 其他节点改了目录：缓存仍生效，收到失效广播后读到新位置
+        jdbc.update("UPDATE conversation_shards SET shard = 1 WHERE owner_id = ?", owner);
+        assertEquals(0, shards.route(owner));
+        shards.onMessage(new DefaultMessage("shards:directory".getBytes(StandardCharsets.UTF_8),
+                owner.toString().getBytes(StandardCharsets.UTF_8)), null);
+        assertEquals(1, shards.route(owner));
+    }
+
+    @Test
+    void leaseBlocksRoutingAndFencesTheDirectorySwitch() {
+        UUID owner = ownerOnRing(1);
+        jdbc.update("INSERT INTO conversation_shards (owner_id, shard) VALUES (?, 0)", owner);
+        assertEquals(0, shards.route(owner));
+
+        ShardMap.Lease lease = shards.acquireLease(owner, 60_000).orElseThrow();
+        assertTrue(shards.acquireLease(owner, 60_000).isEmpty(), "租约期间不能重复取得");
+        ShardMap.MigratingException e = assertThrows(ShardMap.MigratingException.class, () -> shards.route(owner));
+        assertTrue(e.getRetryAfterSeconds() >= 1);
+        assertThrows(ShardMap.MigratingException.class, () -> shards.assign(owner));
+        assertEquals(0, shards.shardFor(owner), "只读查询不受租约影响");
+
+        // 租约被释放后重新取得：旧 epoch 不能再切换目录
+        shards.release(lease);
+        ShardMap.Lease next = shards.acquireLease(owner, 60_000).orElseThrow();
+        assertFalse(shards.moved(lease, 1));
+        assertEquals(0, row(owner).orElseThrow().getShard());
+
+        assertTrue(shards.moved(next, 1));
+        assertEquals(1, shards.route(owner));
+        assertNull(row(owner).orElseThrow().getLeaseUntil());
+    }
+
+    @Test
+    void expiredLeaseCannotSwitchTheDirectory() throws Exception {
+        UUID owner = ownerOnRing(1);
+        jdbc.update("INSERT INTO conversation_shards (owner_id, shard) VALUES (?, 0)", owner);
+        ShardMap.Lease lease = shards.acquireLease(owner, 1).orElseThrow();
+        Thread.sleep(20);
+        assertFalse(shards.moved(lease, 1));
+        assertEquals(0, shards.route(owner));
+    }
+
+    @Test
+    void rebalanceMovesMisplacedOwnersAndDeletesTheSource() {
+        ReflectionTestUtils.setField(shards, "ttlSeconds", 0L);
+        UUID owner = ownerOnRing(1);
+        UUID stays = ownerOnRing(0);
+        UUID conv = UUID.randomUUID();
+        jdbc.update("INSERT INTO conversation_shards (owner_id, shard) VALUES (?, 0), (?, 0)", owner, stays);
+        jdbc.update("INSERT INTO conversations (id, owner_id, title) VALUES (?, ?, 't')", conv, owner);
+        for (int i = 0; i < 5; i++) {
+            UUID id = UUID.randomUUID();
+            jdbc.update("INSERT INTO messages (id, conversation_id, role, content) VALUES (?, ?, 'user', ?)", id, conv, "m" + i);
+            if (i % 2 == 0) {
+                jdbc.update("INSERT INTO message_cold (message_id, data) VALUES (?, ?)", id, new byte[]{0, 0, 0, 0});
+                jdbc.update("UPDATE messages SET content = '', cold_id = id WHERE id = ?", id);
+            }
+        }
+
+        assertEquals(1, rebalancer.rebalance(10));
+
+        assertEquals(1, shards.route(owner));
+        assertEquals(0, shards.route(stays));
+        assertEquals(0, count(0, "messages"));
+        assertEquals(0, count(0, "conversations"));
+        assertEquals(5, count(1, "messages"));
+        assertEquals(1, count(1, "conversations"));
+        assertEquals(0, count(0, "message_cold"));
+        assertEquals(3, count(1, "message_cold"));
+        assertNull(row(owner).orElseThrow().getLeaseUntil());
+        assertEquals(5L, rebalancer.stats().get("migratedMessages"));
+        assertTrue(rebalancer.rebalance(10) == 0, "已迁移的用户不再迁移");
+    }
+
+    private int count(int shard, String table) {
+        return ShardContext.call(shard, () -> jdbc.queryForObject("SELECT COUNT(*) FROM " + table, Integer.class));
+    }
+}
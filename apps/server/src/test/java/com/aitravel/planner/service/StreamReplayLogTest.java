@@ -0,0 +1,167 @@
+package com.aitravel.planner.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 本节点 SSE 重放：按 Last-Event-ID 补发其后的事件再接实时事件，断线不影响生成，
+ * 补发不重不漏且有序，流已结束时补发完即结束连接。Redis 不可用（不启动跨节点轮询）。
+ */
+class StreamReplayLogTest {
+    private StreamReplayLog replay;
+    private final UUID owner = UUID.randomUUID();
+
+    @BeforeEach
+    void setUp() {
+        replay = new StreamReplayLog(new DefaultListableBeanFactory().getBeanProvider(StringRedisTemplate.class));
+        ReflectionTestUtils.setField(replay, "maxEvents", 1000);
+        ReflectionTestUtils.setField(replay, "maxStreams", 100);
+        ReflectionTestUtils.setField(replay, "ttlSeconds", 600L);
+        ReflectionTestUtils.setField(replay, "redisEnabled", true);
+    }
+
+    /** 记录收到的事件；failAfter 条后 send 抛出 IOException，模拟连接断开。 */
+    private static final class RecordingSink implements StreamReplayLog.Sink {
+        final List<StreamReplayLog.Event> events = new CopyOnWriteArrayList<>();
+        final int failAfter;
+        final long delayMs;
+        volatile boolean ended;
+
+        RecordingSink() {
+            this(Integer.MAX_VALUE, 0);
+        }
+
+        RecordingSink(int failAfter, long delayMs) {
+            this.failAfter = failAfter;
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public void send(StreamReplayLog.Event event) throws IOException {
+            if (events.size() >= failAfter) throw new IOException("broken pipe");
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            events.add(event);
+        }
+
+        @Override
+        public void end() {
+            ended = true;
+        }
+
+        List<Long> seqs() {
+            return events.stream().map(e -> Long.parseLong(e.id().substring(e.id().lastIndexOf(':') + 1))).toList();
+        }
+    }
+
+    @Test
+    void reconnectWithLastEventIdReplaysTheRestThenFollowsLiveEvents() {
+        String id = replay.open(owner);
+        RecordingSink first = new RecordingSink(2, 0);
+        assertTrue(replay.subscribe(id, 0, owner, first));
+        for (int i = 1; i <= 5; i++) replay.append(id, "draft", Map.of("n", i));
+        assertEquals(List.of(1L, 2L), first.seqs(), "第 3 条发送失败后连接被移除");
+
+        String lastEventId = first.events.get(1).id();
+        String[] resume = StreamReplayLog.parseEventId(lastEventId);
+        assertArrayEquals(new String[]{id, "2"}, resume);
+
+        RecordingSink second = new RecordingSink();
+        assertTrue(replay.subscribe(resume[0], Long.parseLong(resume[1]), owner, second));
+        assertEquals(List.of(3L, 4L, 5L), second.seqs());
+        assertEquals("{\"n\":3}", second.events.get(0).data());
+        assertEquals("draft", second.events.get(0).name());
+
+        replay.append(id, "final", Map.of("ok", true));
+        replay.finish(id);
+        assertEquals(List.of(3L, 4L, 5L, 6L), second.seqs());
+        assertTrue(second.ended);
+        assertFalse(first.ended, "已断开的连接不再收到任何回调");
+        assertEquals(3L, replay.stats().get("replayedEvents"), "只统计补发的事件");
+        assertEquals(1L, replay.stats().get("resumedLocal"));
+    }
+
+    @Test
+    void resumingAFinishedStreamReplaysAndEnds() {
+        String id = replay.open(owner);
+        for (int i = 1; i <= 4; i++) replay.append(id, "draft", Map.of("n", i));
+        replay.finish(id);
+        replay.append(id, "draft", Map.of("n", 5));
+
+        RecordingSink sink = new RecordingSink();
+        assertTrue(replay.subscribe(id, 1, owner, sink));
+        assertEquals(List.of(2L, 3L, 4L), sink.seqs(), "结束后追加的事件被忽略");
+        assertTrue(sink.ended);
+
+        RecordingSink upToDate = new RecordingSink();
+        assertTrue(replay.subscribe(id, 4, owner, upToDate));
+        assertTrue(upToDate.events.isEmpty());
+        assertTrue(upToDate.ended);
+    }
+
+    @Test
+    void truncatedLogReplaysFromTheOldestRetainedEvent() {
+        ReflectionTestUtils.setField(replay, "maxEvents", 3);
+        String id = replay.open(owner);
+        for (int i = 1; i <= 6; i++) replay.append(id, "draft", Map.of("n", i));
+
+        RecordingSink sink = new RecordingSink();
+        assertTrue(replay.subscribe(id, 1, owner, sink));
+        assertEquals(List.of(4L, 5L, 6L), sink.seqs());
+    }
+
+    @Test
+    void otherOwnersAndUnknownStreamsCannotResume() {
+        String id = replay.open(owner);
+        replay.append(id, "draft", Map.of("n", 1));
+        assertFalse(replay.subscribe(id, 0, UUID.randomUUID(), new RecordingSink()));
+        assertFalse(replay.subscribe(UUID.randomUUID().toString(), 0, owner, new RecordingSink()), "Redis 不可用时未知流无法重放");
+    }
+
+    @Test
+    void malformedLastEventIdsAreRejected() {
+        assertNull(StreamReplayLog.parseEventId(null));
+        assertNull(StreamReplayLog.parseEventId("12"));
+        assertNull(StreamReplayLog.parseEventId(":3"));
+        assertNull(StreamReplayLog.parseEventId("not-a-uuid:3"));
+        assertNull(StreamReplayLog.parseEventId(UUID.randomUUID() + ":x"));
+    }
+
+    @Test
+    void slowSubscriberReceivesEveryEventInOrderWhileGenerationContinues() throws Exception {
+        String id = replay.open(owner);
+        for (int i = 1; i <= 50; i++) replay.append(id, "draft", Map.of("n", i));
+        RecordingSink slow = new RecordingSink(Integer.MAX_VALUE, 1);
+
+        // 生成线程与补发同时进行：补发在订阅线程，实时事件由生成线程或正在发送的线程取走
+        Thread producer = new Thread(() -> {
+            for (int i = 51; i <= 200; i++) replay.append(id, "draft", Map.of("n", i));
+            replay.finish(id);
+        });
+        producer.start();
+        assertTrue(replay.subscribe(id, 20, owner, slow));
+        producer.join(10_000);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!slow.ended && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+        assertTrue(slow.ended);
+        assertEquals(LongStream.rangeClosed(21, 200).boxed().toList(), slow.seqs());
+    }
+}
@@ -0,0 +1,83 @@
+package com.aitravel.planner.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+/**
+ * 本节点令牌桶：突发容量、按时间补充（不超过容量）、计算出的等待时长，以及 Redis 失败时的退化。
+ * 时间由参数传入，不依赖真实时钟。
+ */
+class TokenBucketRateLimiterTest {
+    // 每分钟 60 个，即每毫秒 0.001 个：一个令牌 1000ms
+    private static final double PER_MS = 60 / 60_000.0;
+    private static final long T0 = 1_000_000L;
+
+    private TokenBucketRateLimiter limiter;
+
+    @BeforeEach
+    void setUp() {
+        limiter = new TokenBucketRateLimiter(new DefaultListableBeanFactory().getBeanProvider(StringRedisTemplate.class));
+        ReflectionTestUtils.setField(limiter, "redisEnabled", true);
+    }
+
+    @Test
+    void burstUpToCapacityThenReportsWaitUntilNextToken() {
+        for (int i = 0; i < 3; i++) assertEquals(0, limiter.acquireLocal("u", 3, PER_MS, T0), "第 " + i + " 个应放行");
+        assertEquals(1000, limiter.acquireLocal("u", 3, PER_MS, T0));
+        // 已补充 0.4 个，还差 0.6 个
+        assertEquals(600, limiter.acquireLocal("u", 3, PER_MS, T0 + 400));
+        assertEquals(0, limiter.acquireLocal("u", 3, PER_MS, T0 + 1000));
+        assertEquals(1000, limiter.acquireLocal("u", 3, PER_MS, T0 + 1000));
+    }
+
+    @Test
+    void refillIsCappedAtCapacity() {
+        for (int i = 0; i < 3; i++) limiter.acquireLocal("u", 3, PER_MS, T0);
+        long later = T0 + 3_600_000L;
+        for (int i = 0; i < 3; i++) assertEquals(0, limiter.acquireLocal("u", 3, PER_MS, later));
+        assertTrue(limiter.acquireLocal("u", 3, PER_MS, later) > 0, "空闲一小时也只回满到容量");
+    }
+
+    @Test
+    void clockGoingBackwardsDoesNotRefillOrDrain() {
+        assertEquals(0, limiter.acquireLocal("u", 1, PER_MS, T0));
+        assertEquals(1000, limiter.acquireLocal("u", 1, PER_MS, T0 - 5000), "时钟回拨不补充，按上次时刻计算");
+        assertEquals(0, limiter.acquireLocal("u", 1, PER_MS, T0 + 1000));
+    }
+
+    @Test
+    void bucketsAreIndependentPerKey() {
+        assertEquals(0, limiter.acquireLocal("a", 1, PER_MS, T0));
+        assertTrue(limiter.acquireLocal("a", 1, PER_MS, T0) > 0);
+        assertEquals(0, limiter.acquireLocal("b", 1, PER_MS, T0));
+    }
+
+    @Test
+    void fallsBackToLocalBucketWhenRedisFails() {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        when(redis.execute(any(), anyList(), any(Object[].class))).thenThrow(new RedisConnectionFailureException("down"));
+        TokenBucketRateLimiter l = new TokenBucketRateLimiter(
+                new StaticListableBeanFactory(Map.of("redis", redis)).getBeanProvider(StringRedisTemplate.class));
+        ReflectionTestUtils.setField(l, "redisEnabled", true);
+
+        assertEquals(0, l.tryAcquire("u", 1, 1));
+        assertTrue(l.tryAcquire("u", 1, 1) > 0);
+        // 失败后 30 秒内不再访问 Redis
+        verify(redis, times(1)).execute(any(), anyList(), any(Object[].class));
+        assertEquals(1L, l.stats().get("allowed"));
+        assertEquals(1L, l.stats().get("limited"));
+        assertEquals(false, l.stats().get("redis"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.aitravel.planner.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 布隆过滤器：已插入元素不漏判（含并发插入与按哈希传播），误判率接近构造时的 fpp。
+ */
+class BloomFilterTest {
+
+    @Test
+    void insertedValuesAreAlwaysFound() {
+        BloomFilter f = BloomFilter.create(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) f.put("user" + i + "@example.com");
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(f.mightContain("user" + i + "@example.com"), "不应漏判: user" + i);
+        }
+    }
+
+    @Test
+    void falsePositiveRateStaysNearTheTarget() {
+        BloomFilter f = BloomFilter.create(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) f.put("user" + i + "@example.com");
+        int hits = 0;
+        for (int i = 0; i < 100_000; i++) if (f.mightContain("other" + i + "@example.com")) hits++;
+        double rate = hits / 100_000.0;
+        assertTrue(rate < 0.02, "误判率 " + rate + " 远高于 1%");
+        assertTrue(f.fillRatio() > 0.3 && f.fillRatio() < 0.7, "满载时约一半的位被置位: " + f.fillRatio());
+    }
+
+    @Test
+    void hashesPropagatedFromAnotherNodeAreFound() {
+        BloomFilter local = BloomFilter.create(1000, 0.01);
+        BloomFilter remote = BloomFilter.create(1000, 0.01);
+        for (int i = 0; i < 500; i++) {
+            String email = "新用户" + i + "@例子.中国";
+            local.put(email);
+            remote.putHash(BloomFilter.hash(email));
+        }
+        for (int i = 0; i < 500; i++) {
+            String email = "新用户" + i + "@例子.中国";
+            assertTrue(remote.mightContain(email));
+            assertTrue(local.mightContainHash(BloomFilter.hash(email)));
+        }
+    }
+
+    @Test
+    void concurrentPutsLoseNoBits() throws Exception {
+        // 多个线程同时写同一个字时靠 CAS 重试，任何一次覆盖丢位都会表现为漏判
+        BloomFilter f = BloomFilter.create(16_000, 0.01);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> fs = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                fs.add(pool.submit(() -> {
+                    for (int i = 0; i < 2000; i++) f.put(thread + ":" + i);
+                }));
+            }
+            for (Future<?> x : fs) x.get();
+        } finally {
+            pool.shutdownNow();
+        }
+        for (int t = 0; t < 8; t++) {
+            for (int i = 0; i < 2000; i++) assertTrue(f.mightContain(t + ":" + i));
+        }
+    }
+
+    @Test
+    void degenerateParametersAreClamped() {
+        BloomFilter f = BloomFilter.create(0, 0);
+        assertTrue(f.bitCount() >= 64);
+        assertTrue(f.hashCount() >= 1 && f.hashCount() <= 16);
+        assertFalse(f.mightContain("a@example.com"));
+        f.put("a@example.com");
+        assertTrue(f.mightContain("a@example.com"));
+    }
+}
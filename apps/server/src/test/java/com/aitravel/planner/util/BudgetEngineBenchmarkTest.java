@@ -0,0 +1,60 @@
+package com.aitravel.planner.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * BudgetEngine 吞吐基准：对比融合实现与原流水线（normalize → parse → fixAndAlign）。
+ * 默认跳过，运行方式：mvn test -Dtest=BudgetEngineBenchmarkTest -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class BudgetEngineBenchmarkTest {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final long ROUND_NANOS = 1_000_000_000L;
+
+    @Test
+    void fusedVersusLegacyThroughput() throws Exception {
+        List<String> corpus = new ArrayList<>();
+        for (Path p : BudgetEngineGoldenTest.inputs()) corpus.add(Files.readString(p, StandardCharsets.UTF_8));
+        Random random = new Random(7L);
+        for (int i = 0; i < 200; i++) corpus.add(BudgetEngineGoldenTest.randomDocument(random));
+
+        double legacy = measure(corpus, raw -> BudgetVerifier.fixAndAlign(BudgetParser.parse(BudgetEngineGoldenTest.legacyNormalize(raw))));
+        double fused = measure(corpus, BudgetEngine::process);
+        System.out.printf("[budget-benchmark] 文档数=%d 原流水线=%.0f ops/s 融合实现=%.0f ops/s 加速比=%.2fx%n",
+                corpus.size(), legacy, fused, fused / legacy);
+        assertTrue(fused > 0 && legacy > 0);
+    }
+
+    private static double measure(List<String> corpus, Consumer<String> op) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) round(corpus, op);
+        double best = 0;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) best = Math.max(best, round(corpus, op));
+        return best;
+    }
+
+    /** 单轮固定时长内的处理文档数（ops/s）。 */
+    private static double round(List<String> corpus, Consumer<String> op) {
+        long start = System.nanoTime();
+        long ops = 0;
+        long elapsed;
+        do {
+            for (String raw : corpus) op.accept(raw);
+            ops += corpus.size();
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ROUND_NANOS);
+        return ops * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,155 @@
+package com.aitravel.planner.util;
+
+import com.aitravel.planner.itinerary.BudgetBreakdown;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 融合版 BudgetEngine 与原流水线（normalize → parse → fixAndAlign）的等价性测试。
+ * <p>
+ * golden 文件位于 src/test/resources/budget-golden：每个 *.md 为模型原文，
+ * *.expected.txt / *.expected.json 为原流水线的规范化文本与预算结构。
+ * 修改原流水线后可用 -Dbudget.golden.update=true 重新生成。
+ */
+class BudgetEngineGoldenTest {
+
+    static final String GOLDEN_DIR = "budget-golden";
+    private static final Path SOURCE_DIR = Paths.get("src/test/resources", GOLDEN_DIR);
+    private static final ObjectMapper JSON = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    @TestFactory
+    Stream<DynamicTest> goldenFiles() throws IOException, URISyntaxException {
+        boolean update = Boolean.getBoolean("budget.golden.update");
+        return inputs().stream().map(input -> DynamicTest.dynamicTest(input.getFileName().toString(), () -> {
+            String raw = Files.readString(input, StandardCharsets.UTF_8);
+            String base = stripExtension(input.getFileName().toString());
+
+            String legacyText = legacyNormalize(raw);
+            String legacyJson = toJson(BudgetVerifier.fixAndAlign(BudgetParser.parse(legacyText)));
+            if (update) {
+                Files.writeString(SOURCE_DIR.resolve(base + ".expected.txt"), legacyText == null ? "" : legacyText, StandardCharsets.UTF_8);
+                Files.writeString(SOURCE_DIR.resolve(base + ".expected.json"), legacyJson, StandardCharsets.UTF_8);
+                return;
+            }
+            String expectedText = Files.readString(input.resolveSibling(base + ".expected.txt"), StandardCharsets.UTF_8);
+            String expectedJson = Files.readString(input.resolveSibling(base + ".expected.json"), StandardCharsets.UTF_8);
+
+            // 先确认原流水线本身未漂移，再比较融合实现
+            assertEquals(expectedText, nullToEmpty(legacyText), "原流水线规范化结果与 golden 不一致");
+            assertEquals(expectedJson, legacyJson, "原流水线预算结构与 golden 不一致");
+
+            BudgetEngine.Result fused = BudgetEngine.process(raw);
+            assertEquals(expectedText, nullToEmpty(fused.getText()), "process 规范化文本不一致");
+            assertEquals(expectedJson, toJson(fused.getBreakdown()), "process 预算结构不一致");
+
+            assertEquals(nullToEmpty(legacyText), nullToEmpty(BudgetEngine.normalize(raw)), "normalize 不一致");
+            assertEquals(toJson(BudgetVerifier.fixAndAlign(BudgetParser.parse(raw))),
+                    toJson(BudgetEngine.parseAndAlign(raw)), "parseAndAlign 不一致");
+        }));
+    }
+
+    /**
+     * 由固定种子随机拼装的文档覆盖 golden 之外的行组合（标题、分类汇总、子项、校验行、合计行、噪声）。
+     */
+    @Test
+    void randomizedDocumentsMatchLegacyPipeline() throws IOException {
+        Random random = new Random(20240601L);
+        for (int i = 0; i < 2000; i++) {
+            String raw = randomDocument(random);
+            BudgetEngine.Result fused = BudgetEngine.process(raw);
+            String legacyText = legacyNormalize(raw);
+            assertEquals(legacyText, fused.getText(), "规范化文本不一致：\n" + raw);
+            assertEquals(toJson(BudgetVerifier.fixAndAlign(BudgetParser.parse(legacyText))),
+                    toJson(fused.getBreakdown()), "预算结构不一致：\n" + raw);
+            assertEquals(toJson(BudgetVerifier.fixAndAlign(BudgetParser.parse(raw))),
+                    toJson(BudgetEngine.parseAndAlign(raw)), "parseAndAlign 不一致：\n" + raw);
+        }
+    }
+
+    static List<Path> inputs() throws IOException, URISyntaxException {
+        Path dir = Paths.get(BudgetEngineGoldenTest.class.getClassLoader().getResource(GOLDEN_DIR).toURI());
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".md")).sorted().toList();
+        }
+    }
+
+    /** 与 BudgetEngine 的兜底流水线一致：规范化异常时保留原文。 */
+    static String legacyNormalize(String raw) {
+        try {
+            return BudgetRawTextNormalizer.normalize(raw);
+        } catch (Exception e) {
+            return raw;
+        }
+    }
+
+    private static final String[] CATEGORIES = {"住宿", "酒店", "交通", "餐饮", "吃饭", "用餐", "门票", "景点", "购物", "其他"};
+    private static final String[] CURRENCIES = {"CNY", "RMB", "人民币", "元", "USD", "EUR", "JPY", ""};
+    private static final String[] SUB_ITEMS = {"西湖宾馆", "青旅", "地铁", "打车", "午餐", "小吃", "雷峰塔门票", "纪念品"};
+    private static final String[] TOTALS = {"总预算", "预算总额", "总体预算", "合计"};
+    private static final String[] NOISE = {"", "建议提前预订。", "## 行程", "1. 上午：断桥", "### 预算", "## 预算明细", "祝旅途愉快！"};
+
+    static String randomDocument(Random r) {
+        StringBuilder sb = new StringBuilder();
+        int lines = 1 + r.nextInt(12);
+        if (r.nextBoolean()) sb.append("### 预算\n");
+        for (int i = 0; i < lines; i++) {
+            String cat = CATEGORIES[r.nextInt(CATEGORIES.length)];
+            String cur = CURRENCIES[r.nextInt(CURRENCIES.length)];
+            String sep = r.nextBoolean() ? "：" : ":";
+            switch (r.nextInt(8)) {
+                case 0, 1, 2 -> sb.append(r.nextBoolean() ? "- " : "").append(cat).append(sep).append(amount(r)).append(' ').append(cur);
+                case 3 -> {
+                    sb.append("- ").append(cat).append("（总计）").append(sep).append(amount(r)).append(' ').append(cur);
+                    for (int k = r.nextInt(3); k >= 0; k--) {
+                        sb.append("\n  - ").append(SUB_ITEMS[r.nextInt(SUB_ITEMS.length)]).append(" = ").append(amount(r)).append(" 元");
+                    }
+                }
+                case 4 -> sb.append("校验：").append(amount(r)).append(" + ").append(amount(r)).append(" = ").append(amount(r));
+                case 5 -> sb.append(r.nextBoolean() ? "总预算校验：" : TOTALS[r.nextInt(TOTALS.length)] + sep)
+                        .append(r.nextInt(4) == 0 ? (r.nextBoolean() ? "每日 " : "人均 ") : "").append(amount(r)).append(' ').append(cur);
+                case 6 -> sb.append("- ").append(cat).append(sep).append(SUB_ITEMS[r.nextInt(SUB_ITEMS.length)])
+                        .append(" = ").append(amount(r)).append(" 元；").append(SUB_ITEMS[r.nextInt(SUB_ITEMS.length)]).append(' ').append(amount(r)).append(" 元");
+                default -> sb.append(NOISE[r.nextInt(NOISE.length)]);
+            }
+            sb.append(r.nextInt(10) == 0 ? "\r\n" : "\n");
+        }
+        return sb.toString();
+    }
+
+    private static String amount(Random r) {
+        return switch (r.nextInt(6)) {
+            case 0 -> r.nextInt(10) + "." + r.nextInt(100);
+            case 1 -> Integer.toString(r.nextInt(100000));
+            case 2 -> "0";
+            default -> Integer.toString(10 + r.nextInt(3000));
+        };
+    }
+
+    static String toJson(BudgetBreakdown bd) throws IOException {
+        return JSON.writeValueAsString(bd);
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+}
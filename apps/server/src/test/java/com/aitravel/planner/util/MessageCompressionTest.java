@@ -0,0 +1,110 @@
+package com.aitravel.planner.util;
+
+import com.aitravel.planner.model.Message;
+import com.aitravel.planner.model.MessageColdBlock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 冷消息编解码往返：无字典、本地注册字典、经 loader 补取字典，以及数据损坏 / 字典缺失时的失败路径。
+ * 字典 id 在各用例间不重复（字典注册表为进程级静态状态）。
+ */
+class MessageCompressionTest {
+
+    private static final String ITINERARY = """
+            ## 第 1 天：西湖
+            - 09:00 断桥残雪
+            - 12:00 午餐：楼外楼
+            预算：餐饮 ¥200，交通 ¥50
+            """;
+
+    @AfterEach
+    void resetLoader() {
+        MessageCompression.setLoader(id -> null);
+    }
+
+    @Test
+    void roundTripWithoutDictionary() {
+        byte[] z = MessageCompression.deflate(ITINERARY, 0);
+        assertEquals(0, z[0] | z[1] | z[2] | z[3], "字典 id 0 写在头部");
+        assertEquals(ITINERARY, MessageCompression.inflate(z));
+    }
+
+    @Test
+    void roundTripWithTrainedDictionaryIsSmaller() {
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 20; i++) samples.add(ITINERARY.replace("1", String.valueOf(i)));
+        byte[] dict = MessageCompression.train(samples);
+        assertTrue(dict.length > 0 && dict.length <= MessageCompression.MAX_DICT_BYTES);
+        MessageCompression.register(9101, dict);
+
+        byte[] plain = MessageCompression.deflate(ITINERARY, 0);
+        byte[] z = MessageCompression.deflate(ITINERARY, 9101);
+        assertTrue(z.length < plain.length, "字典应缩小压缩结果: " + z.length + " vs " + plain.length);
+        assertEquals(ITINERARY, MessageCompression.inflate(z));
+    }
+
+    @Test
+    void unregisteredDictionaryIsFetchedOnceThroughTheLoader() {
+        byte[] dict = "- 09:00 断桥残雪\n预算：餐饮".getBytes(StandardCharsets.UTF_8);
+        AtomicInteger loads = new AtomicInteger();
+        MessageCompression.setLoader(id -> {
+            loads.incrementAndGet();
+            return id == 9102 ? dict : null;
+        });
+        byte[] z = MessageCompression.deflate(ITINERARY, 9102);
+        assertEquals(ITINERARY, MessageCompression.inflate(z));
+        assertEquals(ITINERARY, MessageCompression.inflate(z));
+        assertEquals(1, loads.get(), "加载后的字典应缓存在本地");
+    }
+
+    @Test
+    void missingDictionaryAndCorruptDataFail() {
+        MessageCompression.setLoader(id -> id == 9103 ? "预算".getBytes(StandardCharsets.UTF_8) : null);
+        byte[] z = MessageCompression.deflate(ITINERARY, 9103);
+        // 模拟字典记录丢失：改写头部为从未注册过的 id
+        z[3] = (byte) (z[3] + 1);
+        long failures = MessageCompression.inflateFailures();
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> MessageCompression.inflate(z));
+        assertTrue(e.getMessage().contains("缺少消息压缩字典"));
+
+        byte[] truncated = MessageCompression.deflate(ITINERARY, 0);
+        byte[] cut = Arrays.copyOf(truncated, truncated.length / 2);
+        assertThrows(IllegalStateException.class, () -> MessageCompression.inflate(cut));
+        assertThrows(IllegalStateException.class, () -> MessageCompression.inflate(new byte[]{0, 0}));
+        assertEquals(failures + 3, MessageCompression.inflateFailures());
+    }
+
+    @Test
+    void unreadableColdMessageReturnsPlaceholderInsteadOfThrowing() {
+        Message ok = coldMessage(MessageCompression.deflate(ITINERARY, 0));
+        assertEquals(ITINERARY, ok.getContent());
+        assertFalse(ok.isContentUnavailable());
+
+        Message broken = coldMessage(new byte[]{0, 0, 0, 0, 1, 2, 3});
+        assertEquals(Message.UNAVAILABLE, broken.getContent());
+        assertTrue(broken.isContentUnavailable());
+
+        broken.setContent("重新写入");
+        assertEquals("重新写入", broken.getContent());
+        assertFalse(broken.isContentUnavailable());
+    }
+
+    private static Message coldMessage(byte[] data) {
+        MessageColdBlock block = new MessageColdBlock();
+        block.setData(data);
+        Message m = new Message();
+        m.setContent("");
+        ReflectionTestUtils.setField(m, "cold", block);
+        return m;
+    }
+}